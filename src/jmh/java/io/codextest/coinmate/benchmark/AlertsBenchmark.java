@@ -0,0 +1,103 @@
+package io.codextest.coinmate.benchmark;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.AlertRule;
+import io.codextest.coinmate.model.AlertRule.Kind;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.service.AlertPublisher;
+import io.codextest.coinmate.service.AlertRules;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link AlertRules#onSnapshot} of a random walk of BTC_EUR tops, 50 ms apart, against rules with
+ * thresholds spread around the walk: levels within 20%, spreads of 5 to 500 bps and changes of 0.5 to
+ * 10% over four windows. The time per operation should grow with the rules fired, not with the rules
+ * held. Each call builds its snapshot, so the time keeps moving forward for the change windows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AlertsBenchmark {
+
+    private static final int STEPS = 4096;
+    private static final Instant T0 = Instant.parse("2024-05-01T10:00:00Z");
+    private static final List<Duration> WINDOWS =
+            List.of(Duration.ofSeconds(10), Duration.ofMinutes(1), Duration.ofMinutes(5), Duration.ofMinutes(15));
+
+    @Param({"0", "1000", "50000"})
+    public int rules;
+
+    private AlertPublisher publisher;
+    private AlertRules alerts;
+    private long[] mids;
+    private long[] halfSpreads;
+    private long ticks;
+
+    @Setup
+    public void setUp() {
+        CoinmateProperties properties = new CoinmateProperties();
+        publisher = new AlertPublisher(List.of(), properties, new SimpleMeterRegistry());
+        publisher.start();
+        alerts = new AlertRules(publisher, properties);
+
+        SplittableRandom random = new SplittableRandom(42);
+        // A closed walk, so laps join up
+        mids = new long[STEPS];
+        halfSpreads = new long[STEPS];
+        long mid = 5_000_000;
+        for (int i = 0; i < STEPS / 2; i++) {
+            mid += random.nextLong(-500, 501);
+            mids[i] = mid;
+            mids[STEPS - 1 - i] = mid;
+        }
+        for (int i = 0; i < STEPS; i++) {
+            halfSpreads[i] = 1 + random.nextLong(50);
+        }
+        for (int i = 0; i < rules; i++) {
+            Kind kind = Kind.values()[i % 4];
+            double threshold = switch (kind) {
+                case ABOVE, BELOW -> 50_000 * (1 + random.nextDouble(-0.2, 0.2));
+                case SPREAD -> random.nextDouble(5, 500);
+                case CHANGE -> random.nextBoolean() ? random.nextDouble(0.5, 10) : -random.nextDouble(0.5, 10);
+            };
+            Duration window = kind == Kind.CHANGE ? WINDOWS.get(random.nextInt(WINDOWS.size())) : null;
+            alerts.add(new AlertRule(0, "BTC_EUR", kind, threshold, window));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        publisher.stop();
+    }
+
+    @Benchmark
+    public void onSnapshot() {
+        int step = (int) (ticks & (STEPS - 1));
+        long mid = mids[step];
+        long halfSpread = halfSpreads[step];
+        alerts.onSnapshot(new OrderBookSnapshot("BTC_EUR", mid - halfSpread, 50_000_000, mid + halfSpread,
+                25_000_000, 2, 8, T0.plusMillis(ticks * 50)));
+        ticks++;
+    }
+}
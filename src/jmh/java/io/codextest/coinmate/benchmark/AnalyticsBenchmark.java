@@ -0,0 +1,72 @@
+package io.codextest.coinmate.benchmark;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.service.RollingAnalytics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Instant;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link RollingAnalytics#record} of a random walk of BTC_EUR tops once the window is full, so every
+ * call also evicts a sample. With {@code -prof gc} the allocation rate per operation should be zero,
+ * and the time per operation should not depend on the window.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnalyticsBenchmark {
+
+    private static final int SNAPSHOTS = 4096;
+
+    @Param({"256", "4096", "65536"})
+    public int window;
+
+    private RollingAnalytics analytics;
+    private OrderBookSnapshot[] snapshots;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        CoinmateProperties properties = new CoinmateProperties();
+        properties.getAnalytics().setWindow(window);
+        analytics = new RollingAnalytics(properties, new SimpleMeterRegistry());
+
+        SplittableRandom random = new SplittableRandom(42);
+        snapshots = new OrderBookSnapshot[SNAPSHOTS];
+        Instant time = Instant.parse("2024-05-01T10:00:00Z");
+        long mid = 5_000_000;
+        for (int i = 0; i < SNAPSHOTS; i++) {
+            mid += random.nextLong(-500, 501);
+            long halfSpread = 1 + random.nextLong(50);
+            time = time.plusMillis(1 + random.nextLong(200));
+            snapshots[i] = new OrderBookSnapshot("BTC_EUR", mid - halfSpread, 50_000_000, mid + halfSpread,
+                    25_000_000, 2, 8, time);
+        }
+        for (int i = 0; i < window; i++) {
+            analytics.record(snapshots[i % SNAPSHOTS]);
+        }
+    }
+
+    @Benchmark
+    public void record() {
+        analytics.record(snapshots[next]);
+        next = (next + 1) & (SNAPSHOTS - 1);
+    }
+}
@@ -0,0 +1,21 @@
+package io.codextest.coinmate.benchmark;
+
+import io.codextest.coinmate.CoinmateStreamerApplication;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Starts the application on the {@code test} profile, i.e. against an in-memory H2 database and
+ * without subscribing to Coinmate.
+ */
+final class BenchmarkContext {
+
+    private BenchmarkContext() {
+    }
+
+    static ConfigurableApplicationContext startWithH2() {
+        return new SpringApplicationBuilder(CoinmateStreamerApplication.class)
+                .profiles("test")
+                .run();
+    }
+}
@@ -0,0 +1,130 @@
+package io.codextest.coinmate.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.repository.ExchangeRateRepository;
+import io.codextest.coinmate.repository.RateRollupRepository;
+import io.codextest.coinmate.repository.RateTickRepository;
+import io.codextest.coinmate.service.AlertPublisher;
+import io.codextest.coinmate.service.AlertRules;
+import io.codextest.coinmate.service.ExchangeRateWriter;
+import io.codextest.coinmate.service.OrderBookConversionService;
+import io.codextest.coinmate.service.OrderBookDepthRegistry;
+import io.codextest.coinmate.service.OrderBookPayloadParser;
+import io.codextest.coinmate.service.PairPrecisionRegistry;
+import io.codextest.coinmate.service.RateRollupService;
+import io.codextest.coinmate.service.UpdateConflator;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.datasource.SimpleDriverDataSource;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link OrderBookConversionService#handleSnapshot} for alternating BTC_EUR and BTC_CZK tops, so every
+ * call passes conflation, re-evaluates the EUR/CZK routes and hands both rates to the rollups and the
+ * writer.
+ * {@code STUB} persists into a repository that discards the batches, {@code H2} runs the application
+ * context of the {@code test} profile.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConversionBenchmark {
+
+    @Param({"STUB", "H2"})
+    public String persistence;
+
+    private ConfigurableApplicationContext context;
+    private ExchangeRateWriter writer;
+    private RateRollupService rollups;
+    private OrderBookConversionService service;
+    private OrderBookSnapshot[] snapshots;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        if ("H2".equals(persistence)) {
+            context = BenchmarkContext.startWithH2();
+            service = context.getBean(OrderBookConversionService.class);
+        } else {
+            CoinmateProperties properties = new CoinmateProperties();
+            ExchangeRateRepository rates = discarding(ExchangeRateRepository.class);
+            // Row storage: the tick repository never opens a connection
+            RateTickRepository ticks = new RateTickRepository(new SimpleDriverDataSource(), properties);
+            writer = new ExchangeRateWriter(rates, ticks, properties, new SimpleMeterRegistry());
+            writer.start();
+            rollups = new RateRollupService(discarding(RateRollupRepository.class), rates, ticks,
+                    properties, new SimpleMeterRegistry());
+            rollups.start();
+            AlertRules alerts = new AlertRules(new AlertPublisher(List.of(), properties, new SimpleMeterRegistry()),
+                    properties);
+            service = new OrderBookConversionService(writer, new OrderBookDepthRegistry(properties),
+                    new UpdateConflator(properties, new SimpleMeterRegistry()), rollups, alerts, properties,
+                    new SimpleMeterRegistry());
+        }
+        service.registerPairs(List.of("BTC_EUR", "BTC_CZK"));
+
+        OrderBookPayloadParser parser =
+                new OrderBookPayloadParser(new ObjectMapper(), new PairPrecisionRegistry(new CoinmateProperties()));
+        OrderBookSnapshot eur = parser.parseStreaming("BTC_EUR", Corpus.frame("BTC_EUR", 50));
+        OrderBookSnapshot czk = parser.parseStreaming("BTC_CZK", Corpus.frame("BTC_CZK", 50));
+        snapshots = new OrderBookSnapshot[] {eur, czk, shifted(eur), shifted(czk)};
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (writer != null) {
+            writer.stop();
+            rollups.stop();
+        }
+        if (context != null) {
+            context.close();
+        }
+    }
+
+    @Benchmark
+    public void handleSnapshot() {
+        service.handleSnapshot(snapshots[next]);
+        next = (next + 1) & 3;
+    }
+
+    private static OrderBookSnapshot shifted(OrderBookSnapshot snapshot) {
+        return new OrderBookSnapshot(snapshot.currencyPair(),
+                snapshot.bestBid() - 1, snapshot.bestBidAmount(),
+                snapshot.bestAsk() + 1, snapshot.bestAskAmount(),
+                snapshot.priceScale(), snapshot.amountScale(), snapshot.receivedAt());
+    }
+
+    private static <T> T discarding(Class<T> repository) {
+        return repository.cast(Proxy.newProxyInstance(
+                repository.getClassLoader(),
+                new Class<?>[] {repository},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "saveAll", "save" -> args[0];
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    case "toString" -> "Discarding" + repository.getSimpleName();
+                    default -> throw new UnsupportedOperationException(method.getName());
+                }));
+    }
+}
@@ -0,0 +1,30 @@
+package io.codextest.coinmate.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Recorded order book frames the benchmarks replay, so results stay comparable between commits.
+ * <p>
+ * {@code corpus/<pair>_<levels>.json} holds one {@code order_book} data frame with {@code levels}
+ * price levels per side. The files are fixed; regenerate them only together with a note in the
+ * benchmark results that the baseline moved.
+ */
+final class Corpus {
+
+    private Corpus() {
+    }
+
+    static byte[] frame(String currencyPair, int levels) {
+        String resource = "corpus/" + currencyPair.toLowerCase() + "_" + levels + ".json";
+        try (InputStream in = Corpus.class.getClassLoader().getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IllegalArgumentException("No recorded frame " + resource);
+            }
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package io.codextest.coinmate.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.service.OrderBookDepth;
+import io.codextest.coinmate.service.OrderBookPayloadParser;
+import io.codextest.coinmate.service.PairPrecisionRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What {@code OrderBookWebSocketClient#extractSnapshot} does per frame: parse the frame and pick the best
+ * bid/ask, optionally refreshing the pair's depth book with every level.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Param({"20", "50", "200"})
+    public int levels;
+
+    @Param({"STREAMING", "TREE"})
+    public CoinmateProperties.ParserMode mode;
+
+    private OrderBookPayloadParser parser;
+    private OrderBookDepth depth;
+    private byte[] frame;
+
+    @Setup
+    public void setUp() {
+        CoinmateProperties properties = new CoinmateProperties();
+        PairPrecisionRegistry precisions = new PairPrecisionRegistry(properties);
+        precisions.register("BTC_EUR", 2, 8);
+        parser = new OrderBookPayloadParser(new ObjectMapper(), precisions);
+        depth = new OrderBookDepth("BTC_EUR", properties.getDepthLevels());
+        frame = Corpus.frame("BTC_EUR", levels);
+    }
+
+    @Benchmark
+    public OrderBookSnapshot pickBestLevels() throws IOException {
+        return parse(null);
+    }
+
+    @Benchmark
+    public OrderBookSnapshot pickBestLevelsAndRefreshDepth() throws IOException {
+        return parse(depth);
+    }
+
+    private OrderBookSnapshot parse(OrderBookDepth target) throws IOException {
+        if (mode == CoinmateProperties.ParserMode.TREE) {
+            // The client hands the tree parser the frame decoded to text
+            return parser.parseTree("BTC_EUR", new String(frame, StandardCharsets.UTF_8), target);
+        }
+        return parser.parseStreaming("BTC_EUR", frame, target);
+    }
+}
@@ -0,0 +1,77 @@
+package io.codextest.coinmate.benchmark;
+
+import io.codextest.coinmate.model.ConversionDirection;
+import io.codextest.coinmate.model.ExchangeRate;
+import io.codextest.coinmate.repository.ExchangeRateRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ExchangeRateRepository#saveAll} throughput against H2, one operation being one batch as the
+ * write-behind worker issues it. Divide by {@code batchSize} for rates per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RepositoryBenchmark {
+
+    @Param({"1", "50", "200"})
+    public int batchSize;
+
+    private ConfigurableApplicationContext context;
+    private ExchangeRateRepository repository;
+    private long sequence;
+
+    @Setup
+    public void setUp() {
+        context = BenchmarkContext.startWithH2();
+        repository = context.getBean(ExchangeRateRepository.class);
+    }
+
+    @TearDown(Level.Iteration)
+    public void truncate() {
+        repository.deleteAllInBatch();
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public List<ExchangeRate> saveBatch() {
+        List<ExchangeRate> batch = new ArrayList<>(batchSize);
+        Instant now = Instant.now();
+        for (int i = 0; i < batchSize; i++) {
+            long value = ++sequence;
+            batch.add(new ExchangeRate(
+                    (value & 1) == 0 ? ConversionDirection.EUR_TO_CZK : ConversionDirection.CZK_TO_EUR,
+                    BigDecimal.valueOf(25_000_000_000_000L + value, 12),
+                    BigDecimal.valueOf(value % 1000, 4),
+                    BigDecimal.valueOf(value % 700, 4),
+                    now));
+        }
+        return repository.saveAll(batch);
+    }
+}
@@ -0,0 +1,232 @@
+package io.codextest.coinmate.loadtest;
+
+import io.codextest.coinmate.CoinmateStreamerApplication;
+import io.codextest.coinmate.ExchangeSimulator;
+import io.codextest.coinmate.service.SnapshotDispatcher;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the whole application against an {@link ExchangeSimulator} at increasing frame rates and
+ * reports for every step the frames per second the instance sustained, the latency from receiving a
+ * frame to a dispatcher lane picking its book up (p50, p99, p99.9), the mean frame-to-database
+ * latency, CPU, heap and GC, and finally the first step at which the instance saturated.
+ * <p>
+ * {@code mvn -Ploadtest test-compile exec:exec -Dloadtest.args="--pairs=300 --rates=5,10,20,50"}
+ * <p>
+ * Options ({@code --name=value}): {@code pairs} (200), {@code rates} in frames per second and pair
+ * (1,5,10,20,50,100), {@code warmup} (10s) and {@code step} (30s) per rate, {@code depth} (20),
+ * {@code volatility} (0.0005), {@code disconnect-every}, {@code stall-every} and {@code stall-for}
+ * (none), {@code connection-mode} (per-pair) and {@code max-p99} (250ms).
+ * <p>
+ * A step is saturated once the instance receives less than 95% of the frames sent, the simulator cannot
+ * write more than 1% of the offered ones, or the p99 latency exceeds {@code max-p99}. Stalls and
+ * disconnects lower the frames sent, not the verdict. The simulator runs in the same JVM, so its CPU
+ * and allocations are part of the figures.
+ */
+public final class LoadTestRunner {
+
+    private static final double[] PERCENTILES = {0.5, 0.99, 0.999};
+
+    private final Map<String, String> options;
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final com.sun.management.OperatingSystemMXBean os =
+            ManagementFactory.getPlatformMXBean(com.sun.management.OperatingSystemMXBean.class);
+    private volatile Timer dispatchLatency;
+
+    private LoadTestRunner(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        new LoadTestRunner(options).run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        int pairs = Integer.parseInt(option("pairs", "200"));
+        double[] rates = Arrays.stream(option("rates", "1,5,10,20,50,100").split(","))
+                .mapToDouble(rate -> Double.parseDouble(rate.trim()))
+                .toArray();
+        Duration warmup = duration("warmup", "10s");
+        Duration step = duration("step", "30s");
+        Duration maxP99 = duration("max-p99", "250ms");
+        ExchangeSimulator.Scenario scenario = ExchangeSimulator.Scenario.of(pairs, rates[0])
+                .withDepth(Integer.parseInt(option("depth", "20")))
+                .withVolatility(Double.parseDouble(option("volatility", "0.0005")));
+        if (options.containsKey("disconnect-every")) {
+            scenario = scenario.withDisconnects(duration("disconnect-every", null));
+        }
+        if (options.containsKey("stall-every")) {
+            scenario = scenario.withStalls(duration("stall-every", null), duration("stall-for", "5s"));
+        }
+
+        try (ExchangeSimulator exchange = ExchangeSimulator.start(scenario)) {
+            ConfigurableApplicationContext context = startApplication(exchange);
+            MeterRegistry meters = context.getBean(MeterRegistry.class);
+            System.out.printf("%d pairs, %s connections, %d levels, %s warmup and %s per step%n", pairs,
+                    option("connection-mode", "per-pair"), scenario.depth(), warmup, step);
+            System.out.printf("%9s %9s %10s %9s %7s %9s %9s %9s %9s %7s %8s %8s %6s %7s%n", "offered/s", "sent/s",
+                    "received/s", "missed/s", "drop %", "p50 ms", "p99 ms", "p99.9 ms", "e2e ms", "cpu %", "heap MB",
+                    "gc/s", "gc %", "");
+            List<Double> sustained = new ArrayList<>();
+            Double saturatedAt = null;
+            for (double rate : rates) {
+                if (!context.isActive()) {
+                    throw new IllegalStateException("The application stopped during the load test");
+                }
+                exchange.setFramesPerSecond(rate);
+                TimeUnit.NANOSECONDS.sleep(warmup.toNanos());
+                Sample before = sample(exchange, meters);
+                dispatchLatency = newLatencyTimer();
+                long peakHeap = 0;
+                for (long end = System.nanoTime() + step.toNanos(); System.nanoTime() < end; ) {
+                    TimeUnit.MILLISECONDS.sleep(Math.min(1000, Math.max(1, (end - System.nanoTime()) / 1_000_000)));
+                    peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+                }
+                Sample after = sample(exchange, meters);
+                HistogramSnapshot latency = dispatchLatency.takeSnapshot();
+
+                double seconds = (after.nanos - before.nanos) / 1e9;
+                double offered = rate * pairs;
+                double sent = (after.framesSent - before.framesSent) / seconds;
+                double received = (after.framesReceived - before.framesReceived) / seconds;
+                double missed = (after.framesMissed - before.framesMissed) / seconds;
+                double p99 = percentile(latency, 0.99);
+                long endToEndCount = after.endToEndCount - before.endToEndCount;
+                double cores = os.getAvailableProcessors();
+                System.out.printf("%9.0f %9.0f %10.0f %9.0f %7.1f %9.2f %9.2f %9.2f %9.2f %7.0f %8d %8.1f %6.1f",
+                        offered, sent, received, missed, sent == 0 ? 0 : 100 * (1 - received / sent),
+                        percentile(latency, 0.5), p99, percentile(latency, 0.999),
+                        endToEndCount == 0 ? Double.NaN
+                                : (after.endToEndNanos - before.endToEndNanos) / 1e6 / endToEndCount,
+                        100 * (after.cpuNanos - before.cpuNanos) / 1e9 / seconds / cores,
+                        peakHeap >> 20, (after.gcCount - before.gcCount) / seconds,
+                        100 * (after.gcMillis - before.gcMillis) / 1e3 / seconds);
+                boolean saturated = received < 0.95 * sent || missed > 0.01 * offered
+                        || p99 > maxP99.toNanos() / 1e6;
+                System.out.println(saturated ? "  saturated" : "");
+                if (saturated) {
+                    saturatedAt = offered;
+                    break;
+                }
+                sustained.add(received);
+            }
+            if (saturatedAt == null) {
+                System.out.printf("No saturation up to %.0f frames/s%n", rates[rates.length - 1] * pairs);
+            } else {
+                System.out.printf("Saturated at %.0f frames/s offered; highest sustained %.0f frames/s%n",
+                        saturatedAt, sustained.stream().mapToDouble(Double::doubleValue).max().orElse(0));
+            }
+            if (context.isActive()) {
+                SpringApplication.exit(context);
+            }
+        }
+    }
+
+    private ConfigurableApplicationContext startApplication(ExchangeSimulator exchange) throws Exception {
+        CompletableFuture<ConfigurableApplicationContext> started = new CompletableFuture<>();
+        ApplicationListener<ApplicationStartedEvent> onStarted = event -> {
+            // Subscribed before the streaming runner connects, so the very first books are measured
+            event.getApplicationContext().getBean(SnapshotDispatcher.class).subscribe("load-test", snapshot ->
+                    dispatchLatency.record(Duration.between(snapshot.receivedAt(), Instant.now())));
+            started.complete(event.getApplicationContext());
+        };
+        dispatchLatency = newLatencyTimer();
+        Thread application = new Thread(() -> {
+            try {
+                // Blocks in the streaming runner until the context is closed
+                new SpringApplicationBuilder(CoinmateStreamerApplication.class)
+                        .profiles("loadtest")
+                        .listeners(onStarted)
+                        // Arguments rather than default properties, which application.yml would override
+                        .run("--coinmate.rest-base-url=" + exchange.restBaseUrl(),
+                                "--coinmate.websocket-base-url=" + exchange.websocketBaseUrl(),
+                                "--coinmate.connection-mode=" + option("connection-mode", "per-pair"));
+            } catch (RuntimeException e) {
+                if (!started.completeExceptionally(e)) {
+                    System.err.println("Application stopped: " + e.getMessage());
+                }
+            }
+        }, "load-test-app");
+        application.setDaemon(true);
+        application.start();
+        return started.get(2, TimeUnit.MINUTES);
+    }
+
+    private Sample sample(ExchangeSimulator exchange, MeterRegistry meters) {
+        Timer endToEnd = meters.find("coinmate.rates.end-to-end").timer();
+        long gcCount = 0;
+        long gcMillis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, collector.getCollectionCount());
+            gcMillis += Math.max(0, collector.getCollectionTime());
+        }
+        return new Sample(System.nanoTime(),
+                (long) meters.find("coinmate.frames").counters().stream().mapToDouble(Counter::count).sum(),
+                exchange.getFramesSent(),
+                exchange.getFramesMissed(),
+                endToEnd == null ? 0 : endToEnd.count(),
+                endToEnd == null ? 0 : (long) endToEnd.totalTime(TimeUnit.NANOSECONDS),
+                os.getProcessCpuTime(), gcCount, gcMillis);
+    }
+
+    private static Timer newLatencyTimer() {
+        // A registry per step, so the percentiles cover exactly that step
+        return Timer.builder("load-test.dispatch")
+                .publishPercentiles(PERCENTILES)
+                .distributionStatisticExpiry(Duration.ofDays(1))
+                .distributionStatisticBufferLength(1)
+                .register(new SimpleMeterRegistry());
+    }
+
+    private static double percentile(HistogramSnapshot snapshot, double percentile) {
+        return Arrays.stream(snapshot.percentileValues())
+                .filter(value -> value.percentile() == percentile)
+                .mapToDouble(value -> value.value(TimeUnit.MILLISECONDS))
+                .findFirst()
+                .orElse(Double.NaN);
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private Duration duration(String name, String defaultValue) {
+        return DurationStyle.detectAndParse(option(name, defaultValue));
+    }
+
+    private record Sample(long nanos, long framesReceived, long framesSent, long framesMissed, long endToEndCount,
+                          long endToEndNanos, long cpuNanos, long gcCount, long gcMillis) {
+    }
+}
@@ -1,8 +1,15 @@
 package io.codextest.coinmate.config;
 
+import io.codextest.coinmate.model.AlertRule;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
 
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 @ConfigurationProperties(prefix = "coinmate")
 public class CoinmateProperties {
@@ -34,6 +41,93 @@ public class CoinmateProperties {
      */
     private Duration inactivityTimeout = Duration.ofSeconds(45);
 
+    /**
+     * How order book frames are parsed. {@code STREAMING} reads the frame bytes token by token
+     * and only materializes the best bid/ask level; {@code TREE} builds a full JSON tree per frame.
+     */
+    private ParserMode parserMode = ParserMode.STREAMING;
+
+    /**
+     * How order book channels are mapped onto WebSocket connections. {@code PER_PAIR} opens one
+     * connection per pair; {@code MULTIPLEXED} subscribes the channels over a small pool of shared
+     * sessions.
+     */
+    private ConnectionMode connectionMode = ConnectionMode.PER_PAIR;
+
+    /**
+     * Number of shared sessions the pairs are spread over in {@code MULTIPLEXED} mode.
+     */
+    private int multiplexPoolSize = 1;
+
+    /**
+     * Number of price levels kept per side in the in-memory depth book of every pair.
+     */
+    private int depthLevels = 50;
+
+    /**
+     * Currency conversions to quote from the subscribed order books. Each entry is quoted in both
+     * directions over the best route found in the graph of subscribed pairs.
+     */
+    private List<Conversion> conversions = new ArrayList<>(List.of(new Conversion("EUR", "CZK")));
+
+    /**
+     * Maximum number of order books a conversion route may cross.
+     */
+    private int maxHops = 2;
+
+    /**
+     * Order books older than this are not trusted for rates; unset trusts books of any age.
+     */
+    private Duration maxInputAge;
+
+    /**
+     * What happens to a rate whose best route crosses a book older than {@code max-input-age}.
+     */
+    private StaleInputPolicy staleInputPolicy = StaleInputPolicy.FLAG;
+
+    /**
+     * Decimals prices are carried with for pairs whose precision Coinmate did not report. Finer
+     * prices are rounded half up.
+     */
+    private int defaultPriceScale = 8;
+
+    /**
+     * Decimals amounts are carried with for pairs whose precision Coinmate did not report.
+     */
+    private int defaultAmountScale = 8;
+
+    private final Persistence persistence = new Persistence();
+
+    private final Rollup rollup = new Rollup();
+
+    private final Conflation conflation = new Conflation();
+
+    private final Metrics metrics = new Metrics();
+
+    private final Live live = new Live();
+
+    private final History history = new History();
+
+    private final Kafka kafka = new Kafka();
+
+    private final WarmStart warmStart = new WarmStart();
+
+    private final Journal journal = new Journal();
+
+    private final Redundancy redundancy = new Redundancy();
+
+    private final Sharding sharding = new Sharding();
+
+    private final Analytics analytics = new Analytics();
+
+    private final Alerts alerts = new Alerts();
+
+    private final UpdateLog updateLog = new UpdateLog();
+
+    private final Seeding seeding = new Seeding();
+
+    private final Connections connections = new Connections();
+
     public String getRestBaseUrl() {
         return restBaseUrl;
     }
@@ -73,4 +167,1209 @@ public class CoinmateProperties {
     public void setInactivityTimeout(Duration inactivityTimeout) {
         this.inactivityTimeout = inactivityTimeout;
     }
+
+    public ParserMode getParserMode() {
+        return parserMode;
+    }
+
+    public void setParserMode(ParserMode parserMode) {
+        this.parserMode = parserMode;
+    }
+
+    public ConnectionMode getConnectionMode() {
+        return connectionMode;
+    }
+
+    public void setConnectionMode(ConnectionMode connectionMode) {
+        this.connectionMode = connectionMode;
+    }
+
+    public int getMultiplexPoolSize() {
+        return multiplexPoolSize;
+    }
+
+    public void setMultiplexPoolSize(int multiplexPoolSize) {
+        this.multiplexPoolSize = multiplexPoolSize;
+    }
+
+    public int getDepthLevels() {
+        return depthLevels;
+    }
+
+    public void setDepthLevels(int depthLevels) {
+        this.depthLevels = depthLevels;
+    }
+
+    public List<Conversion> getConversions() {
+        return conversions;
+    }
+
+    public void setConversions(List<Conversion> conversions) {
+        this.conversions = conversions;
+    }
+
+    public int getMaxHops() {
+        return maxHops;
+    }
+
+    public void setMaxHops(int maxHops) {
+        this.maxHops = maxHops;
+    }
+
+    public Duration getMaxInputAge() {
+        return maxInputAge;
+    }
+
+    public void setMaxInputAge(Duration maxInputAge) {
+        this.maxInputAge = maxInputAge;
+    }
+
+    public StaleInputPolicy getStaleInputPolicy() {
+        return staleInputPolicy;
+    }
+
+    public void setStaleInputPolicy(StaleInputPolicy staleInputPolicy) {
+        this.staleInputPolicy = staleInputPolicy;
+    }
+
+    public int getDefaultPriceScale() {
+        return defaultPriceScale;
+    }
+
+    public void setDefaultPriceScale(int defaultPriceScale) {
+        this.defaultPriceScale = defaultPriceScale;
+    }
+
+    public int getDefaultAmountScale() {
+        return defaultAmountScale;
+    }
+
+    public void setDefaultAmountScale(int defaultAmountScale) {
+        this.defaultAmountScale = defaultAmountScale;
+    }
+
+    public Persistence getPersistence() {
+        return persistence;
+    }
+
+    public Rollup getRollup() {
+        return rollup;
+    }
+
+    public Conflation getConflation() {
+        return conflation;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public Live getLive() {
+        return live;
+    }
+
+    public History getHistory() {
+        return history;
+    }
+
+    public Kafka getKafka() {
+        return kafka;
+    }
+
+    public WarmStart getWarmStart() {
+        return warmStart;
+    }
+
+    public Journal getJournal() {
+        return journal;
+    }
+
+    public Redundancy getRedundancy() {
+        return redundancy;
+    }
+
+    public Sharding getSharding() {
+        return sharding;
+    }
+
+    public Analytics getAnalytics() {
+        return analytics;
+    }
+
+    public Alerts getAlerts() {
+        return alerts;
+    }
+
+    public UpdateLog getUpdateLog() {
+        return updateLog;
+    }
+
+    public Seeding getSeeding() {
+        return seeding;
+    }
+
+    public Connections getConnections() {
+        return connections;
+    }
+
+    public enum StaleInputPolicy {
+        /**
+         * Publish the rate flagged as stale; it is neither rolled up nor persisted.
+         */
+        FLAG,
+        /**
+         * Leave routes over old books out; a direction without a fresh route gets no new rate.
+         */
+        REFUSE
+    }
+
+    public enum ReplaySpeed {
+        /**
+         * Keep the recorded gaps between frames.
+         */
+        ORIGINAL,
+        /**
+         * Feed frames as fast as the pipeline takes them.
+         */
+        MAX
+    }
+
+    public enum ParserMode {
+        STREAMING,
+        TREE
+    }
+
+    public enum ConnectionMode {
+        PER_PAIR,
+        MULTIPLEXED
+    }
+
+    public static class Conversion {
+
+        /**
+         * Currency being converted, e.g. {@code EUR}.
+         */
+        private String source;
+
+        /**
+         * Currency being converted into, e.g. {@code CZK}. Rates are expressed in this currency per one
+         * unit of the source currency.
+         */
+        private String target;
+
+        public Conversion() {
+        }
+
+        public Conversion(String source, String target) {
+            this.source = source;
+            this.target = target;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public void setSource(String source) {
+            this.source = source;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        public void setTarget(String target) {
+            this.target = target;
+        }
+    }
+
+    public static class Persistence {
+
+        /**
+         * Maximum number of exchange rates waiting to be written.
+         */
+        private int queueCapacity = 10_000;
+
+        /**
+         * Number of rows written per JDBC batch; a batch is flushed as soon as it is full.
+         */
+        private int batchSize = 200;
+
+        /**
+         * Longest time a rate may wait in the queue before a partial batch is flushed.
+         */
+        private Duration flushInterval = Duration.ofSeconds(1);
+
+        /**
+         * What to do with a new rate when the queue is full.
+         */
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+        /**
+         * How long shutdown waits for the queue to be written out.
+         */
+        private Duration shutdownTimeout = Duration.ofSeconds(10);
+
+        /**
+         * Times a batch that failed to write is tried again before it is written in ever smaller parts,
+         * so a bad row loses only itself.
+         */
+        private int writeRetries = 3;
+
+        /**
+         * Wait before the first retry of a failed batch; it doubles with every further retry.
+         */
+        private Duration retryBackoff = Duration.ofMillis(200);
+
+        /**
+         * How raw rates are stored: {@code rows} in {@code exchange_rates}, or {@code compact} in
+         * {@code exchange_rate_ticks}.
+         */
+        private RateStorage storage = RateStorage.ROWS;
+
+        /**
+         * Time range of one partition of {@code exchange_rate_ticks} on PostgreSQL, in whole minutes;
+         * {@code rollup.raw-retention} drops whole partitions.
+         */
+        private Duration partitionWidth = Duration.ofDays(1);
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public void setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public Duration getFlushInterval() {
+            return flushInterval;
+        }
+
+        public void setFlushInterval(Duration flushInterval) {
+            this.flushInterval = flushInterval;
+        }
+
+        public OverflowPolicy getOverflowPolicy() {
+            return overflowPolicy;
+        }
+
+        public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+        }
+
+        public Duration getShutdownTimeout() {
+            return shutdownTimeout;
+        }
+
+        public void setShutdownTimeout(Duration shutdownTimeout) {
+            this.shutdownTimeout = shutdownTimeout;
+        }
+
+        public int getWriteRetries() {
+            return writeRetries;
+        }
+
+        public void setWriteRetries(int writeRetries) {
+            this.writeRetries = writeRetries;
+        }
+
+        public Duration getRetryBackoff() {
+            return retryBackoff;
+        }
+
+        public void setRetryBackoff(Duration retryBackoff) {
+            this.retryBackoff = retryBackoff;
+        }
+
+        public RateStorage getStorage() {
+            return storage;
+        }
+
+        public void setStorage(RateStorage storage) {
+            this.storage = storage;
+        }
+
+        public Duration getPartitionWidth() {
+            return partitionWidth;
+        }
+
+        public void setPartitionWidth(Duration partitionWidth) {
+            this.partitionWidth = partitionWidth;
+        }
+    }
+
+    public enum RateStorage {
+        /**
+         * A JPA entity per rate and direction, with a sequence id and decimal columns.
+         */
+        ROWS,
+        /**
+         * One row per computation holding both directions in fixed-width columns, ingested with binary
+         * {@code COPY} into time partitions on PostgreSQL and with JDBC batches elsewhere.
+         */
+        COMPACT
+    }
+
+    public enum OverflowPolicy {
+        /**
+         * Wait for the writer to make room; back-pressures whoever computes the rates.
+         */
+        BLOCK,
+        /**
+         * Discard the oldest queued rate.
+         */
+        DROP_OLDEST,
+        /**
+         * Replace the newest queued rate of the same direction, keeping only the latest value.
+         */
+        CONFLATE
+    }
+
+    public static class Rollup {
+
+        /**
+         * Whether rates are aggregated into open/high/low/close buckets in {@code exchange_rate_rollups}.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Bucket widths aggregated in parallel; each must be a whole number of seconds.
+         */
+        private List<Duration> buckets = new ArrayList<>(List.of(
+                Duration.ofSeconds(1), Duration.ofMinutes(1), Duration.ofHours(1)));
+
+        /**
+         * How often buckets that have ended are written out.
+         */
+        private Duration flushInterval = Duration.ofSeconds(1);
+
+        /**
+         * Whether every rate is still written to {@code exchange_rates} alongside the rollups.
+         */
+        private boolean rawRates = true;
+
+        /**
+         * Age after which rows of {@code exchange_rates} are deleted; unset keeps them forever.
+         */
+        private Duration rawRetention;
+
+        /**
+         * Further flushes a bucket that failed to write is written again in before it is dropped, so a
+         * bucket the database never accepts neither blocks the others nor holds back raw-retention.
+         */
+        private int writeRetries = 60;
+
+        /**
+         * Most ended buckets kept waiting to be written, e.g. during an outage; the oldest are dropped
+         * beyond it.
+         */
+        private int maxPending = 100_000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public List<Duration> getBuckets() {
+            return buckets;
+        }
+
+        public void setBuckets(List<Duration> buckets) {
+            this.buckets = buckets;
+        }
+
+        public Duration getFlushInterval() {
+            return flushInterval;
+        }
+
+        public void setFlushInterval(Duration flushInterval) {
+            this.flushInterval = flushInterval;
+        }
+
+        public boolean isRawRates() {
+            return rawRates;
+        }
+
+        public void setRawRates(boolean rawRates) {
+            this.rawRates = rawRates;
+        }
+
+        public Duration getRawRetention() {
+            return rawRetention;
+        }
+
+        public void setRawRetention(Duration rawRetention) {
+            this.rawRetention = rawRetention;
+        }
+
+        public int getWriteRetries() {
+            return writeRetries;
+        }
+
+        public void setWriteRetries(int writeRetries) {
+            this.writeRetries = writeRetries;
+        }
+
+        public int getMaxPending() {
+            return maxPending;
+        }
+
+        public void setMaxPending(int maxPending) {
+            this.maxPending = maxPending;
+        }
+    }
+
+    public static class Conflation {
+
+        /**
+         * Whether unchanged order book tops and rates are dropped before logging, rate computation and
+         * persistence.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Default minimum time between two emitted updates of the same pair or direction; a change
+         * arriving sooner is only emitted if it also meets {@code min-relative-change}. Zero never emits a
+         * change below {@code min-relative-change}.
+         */
+        private Duration minInterval = Duration.ZERO;
+
+        /**
+         * Default relative price move (0.0001 = 1 bp) that is always emitted regardless of
+         * {@code min-interval}.
+         */
+        private double minRelativeChange;
+
+        /**
+         * Per-pair overrides keyed by pair name, e.g. {@code BTC_EUR}.
+         */
+        private Map<String, Threshold> pairs = new LinkedHashMap<>();
+
+        /**
+         * Per-direction overrides keyed like {@code EUR_TO_CZK}.
+         */
+        private Map<String, Threshold> directions = new LinkedHashMap<>();
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public Duration getMinInterval() {
+            return minInterval;
+        }
+
+        public void setMinInterval(Duration minInterval) {
+            this.minInterval = minInterval;
+        }
+
+        public double getMinRelativeChange() {
+            return minRelativeChange;
+        }
+
+        public void setMinRelativeChange(double minRelativeChange) {
+            this.minRelativeChange = minRelativeChange;
+        }
+
+        public Map<String, Threshold> getPairs() {
+            return pairs;
+        }
+
+        public void setPairs(Map<String, Threshold> pairs) {
+            this.pairs = pairs;
+        }
+
+        public Map<String, Threshold> getDirections() {
+            return directions;
+        }
+
+        public void setDirections(Map<String, Threshold> directions) {
+            this.directions = directions;
+        }
+    }
+
+    public static class Threshold {
+
+        /**
+         * Minimum time between two emitted updates; unset falls back to the conflation default.
+         */
+        private Duration minInterval;
+
+        /**
+         * Relative move that is always emitted; unset falls back to the conflation default.
+         */
+        private Double minRelativeChange;
+
+        public Duration getMinInterval() {
+            return minInterval;
+        }
+
+        public void setMinInterval(Duration minInterval) {
+            this.minInterval = minInterval;
+        }
+
+        public Double getMinRelativeChange() {
+            return minRelativeChange;
+        }
+
+        public void setMinRelativeChange(Double minRelativeChange) {
+            this.minRelativeChange = minRelativeChange;
+        }
+    }
+
+    public static class Metrics {
+
+        /**
+         * Interval at which the pipeline meters ({@code coinmate.*}) are written to the log; unset or
+         * empty disables the log reporter. JMX export is unaffected.
+         */
+        private Duration logInterval;
+
+        public Duration getLogInterval() {
+            return logInterval;
+        }
+
+        public void setLogInterval(Duration logInterval) {
+            this.logInterval = logInterval;
+        }
+    }
+
+    public static class Live {
+
+        /**
+         * Interval of the comment lines sent on idle live streams so proxies keep the connection open.
+         */
+        private Duration heartbeat = Duration.ofSeconds(15);
+
+        public Duration getHeartbeat() {
+            return heartbeat;
+        }
+
+        public void setHeartbeat(Duration heartbeat) {
+            this.heartbeat = heartbeat;
+        }
+    }
+
+    public static class History {
+
+        /**
+         * Largest number of rates returned per history page.
+         */
+        private int maxPageSize = 1000;
+
+        /**
+         * Largest number of points a downsampled history may be split into.
+         */
+        private int maxPoints = 5000;
+
+        public int getMaxPageSize() {
+            return maxPageSize;
+        }
+
+        public void setMaxPageSize(int maxPageSize) {
+            this.maxPageSize = maxPageSize;
+        }
+
+        public int getMaxPoints() {
+            return maxPoints;
+        }
+
+        public void setMaxPoints(int maxPoints) {
+            this.maxPoints = maxPoints;
+        }
+    }
+
+    public static class Kafka {
+
+        /**
+         * Publish order book snapshots and computed rates to Kafka. Producer settings (brokers,
+         * batching, compression, idempotence) come from {@code spring.kafka.producer}.
+         */
+        private boolean enabled;
+
+        /**
+         * Topic of the best bid/ask snapshots, keyed by currency pair.
+         */
+        private String snapshotTopic = "coinmate.order-books";
+
+        /**
+         * Topic of the computed rates, keyed by direction, e.g. {@code EUR_TO_CZK}.
+         */
+        private String rateTopic = "coinmate.rates";
+
+        /**
+         * Records waiting for the producer at most; the oldest is dropped when it is full.
+         */
+        private int queueCapacity = 10000;
+
+        /**
+         * How long stopping the application waits for queued records to be acknowledged.
+         */
+        private Duration shutdownTimeout = Duration.ofSeconds(10);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getSnapshotTopic() {
+            return snapshotTopic;
+        }
+
+        public void setSnapshotTopic(String snapshotTopic) {
+            this.snapshotTopic = snapshotTopic;
+        }
+
+        public String getRateTopic() {
+            return rateTopic;
+        }
+
+        public void setRateTopic(String rateTopic) {
+            this.rateTopic = rateTopic;
+        }
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public void setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+        }
+
+        public Duration getShutdownTimeout() {
+            return shutdownTimeout;
+        }
+
+        public void setShutdownTimeout(Duration shutdownTimeout) {
+            this.shutdownTimeout = shutdownTimeout;
+        }
+    }
+
+    public static class WarmStart {
+
+        /**
+         * Keep the trading pairs and the latest snapshot per pair in a local file, so a restart
+         * subscribes from the saved pairs at once and has (stale) rates before the first live frame.
+         */
+        private boolean enabled = true;
+
+        /**
+         * The state file, an append-only log compacted as it grows.
+         */
+        private Path file = Path.of("coinmate-state.bin");
+
+        /**
+         * Interval at which changed snapshots are appended to the file.
+         */
+        private Duration flushInterval = Duration.ofSeconds(1);
+
+        /**
+         * Saved snapshots older than this are not restored.
+         */
+        private Duration maxSnapshotAge = Duration.ofHours(1);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        public void setFile(Path file) {
+            this.file = file;
+        }
+
+        public Duration getFlushInterval() {
+            return flushInterval;
+        }
+
+        public void setFlushInterval(Duration flushInterval) {
+            this.flushInterval = flushInterval;
+        }
+
+        public Duration getMaxSnapshotAge() {
+            return maxSnapshotAge;
+        }
+
+        public void setMaxSnapshotAge(Duration maxSnapshotAge) {
+            this.maxSnapshotAge = maxSnapshotAge;
+        }
+    }
+
+    public static class Redundancy {
+
+        /**
+         * Stream the critical pairs over two independent connections each, taking every frame from
+         * whichever connection delivers it first. Applies to {@code PER_PAIR} connections.
+         */
+        private boolean enabled;
+
+        /**
+         * Pairs streamed twice; empty means every pair on a conversion route.
+         */
+        private List<String> pairs = new ArrayList<>();
+
+        /**
+         * A connection of a pair that has been silent, or this far behind its twin, for this long
+         * while the twin delivers frames is reconnected.
+         */
+        private Duration stallTimeout = Duration.ofSeconds(5);
+
+        /**
+         * Frames per pair remembered to recognize the copy arriving on the slower connection.
+         */
+        private int window = 256;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public List<String> getPairs() {
+            return pairs;
+        }
+
+        public void setPairs(List<String> pairs) {
+            this.pairs = pairs;
+        }
+
+        public Duration getStallTimeout() {
+            return stallTimeout;
+        }
+
+        public void setStallTimeout(Duration stallTimeout) {
+            this.stallTimeout = stallTimeout;
+        }
+
+        public int getWindow() {
+            return window;
+        }
+
+        public void setWindow(int window) {
+            this.window = window;
+        }
+    }
+
+    public static class Journal {
+
+        /**
+         * Append every raw order book frame received to the journal.
+         */
+        private boolean capture;
+
+        /**
+         * Directory of the journal segments.
+         */
+        private Path directory = Path.of("journal");
+
+        /**
+         * Size of one memory-mapped segment file; a frame that does not fit starts the next one.
+         */
+        private DataSize segmentSize = DataSize.ofMegabytes(64);
+
+        /**
+         * Total size of the segments kept; the oldest are deleted beyond it.
+         */
+        private DataSize maxSize = DataSize.ofGigabytes(1);
+
+        /**
+         * Feed the journal through the pipeline instead of connecting to Coinmate, then log a report.
+         */
+        private boolean replay;
+
+        /**
+         * Pace of the replay.
+         */
+        private ReplaySpeed replaySpeed = ReplaySpeed.MAX;
+
+        public boolean isCapture() {
+            return capture;
+        }
+
+        public void setCapture(boolean capture) {
+            this.capture = capture;
+        }
+
+        public Path getDirectory() {
+            return directory;
+        }
+
+        public void setDirectory(Path directory) {
+            this.directory = directory;
+        }
+
+        public DataSize getSegmentSize() {
+            return segmentSize;
+        }
+
+        public void setSegmentSize(DataSize segmentSize) {
+            this.segmentSize = segmentSize;
+        }
+
+        public DataSize getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(DataSize maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public boolean isReplay() {
+            return replay;
+        }
+
+        public void setReplay(boolean replay) {
+            this.replay = replay;
+        }
+
+        public ReplaySpeed getReplaySpeed() {
+            return replaySpeed;
+        }
+
+        public void setReplaySpeed(ReplaySpeed replaySpeed) {
+            this.replaySpeed = replaySpeed;
+        }
+    }
+
+    public static class Sharding {
+
+        /**
+         * Split the pairs across the instances sharing the database, each pair streamed by one instance
+         * at a time. Pairs on the routes of a conversion stay on one instance, so each rate is computed
+         * and written once.
+         */
+        private boolean enabled;
+
+        /**
+         * Name of this instance in the lease table; empty picks the host name and a random suffix.
+         */
+        private String instanceId = "";
+
+        /**
+         * How long a lease, and an instance's membership, lasts without being renewed. An instance that
+         * dies has its pairs taken over after this long. Leases expire by the database's clock; membership
+         * is judged by the instances' clocks, which only affects how the pairs are balanced.
+         */
+        private Duration leaseTtl = Duration.ofSeconds(15);
+
+        /**
+         * How often leases are renewed and the pairs rebalanced over the live instances. An instance whose
+         * leases were not renewed stops streaming this long (at most half the lease-ttl) before they expire.
+         */
+        private Duration renewInterval = Duration.ofSeconds(5);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getInstanceId() {
+            return instanceId;
+        }
+
+        public void setInstanceId(String instanceId) {
+            this.instanceId = instanceId;
+        }
+
+        public Duration getLeaseTtl() {
+            return leaseTtl;
+        }
+
+        public void setLeaseTtl(Duration leaseTtl) {
+            this.leaseTtl = leaseTtl;
+        }
+
+        public Duration getRenewInterval() {
+            return renewInterval;
+        }
+
+        public void setRenewInterval(Duration renewInterval) {
+            this.renewInterval = renewInterval;
+        }
+    }
+
+    public static class Analytics {
+
+        /**
+         * Keep rolling statistics of the top of book per pair: mid EMA, realized volatility, spread
+         * percentiles and update rate.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Latest snapshots per pair the statistics are computed over. Each pair takes a fixed
+         * {@code 18 * window} bytes plus about 1 KB, allocated with its first snapshot.
+         */
+        private int window = 1024;
+
+        /**
+         * Time after which a mid price weighs half as much in the mid EMA.
+         */
+        private Duration emaHalfLife = Duration.ofSeconds(30);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getWindow() {
+            return window;
+        }
+
+        public void setWindow(int window) {
+            this.window = window;
+        }
+
+        public Duration getEmaHalfLife() {
+            return emaHalfLife;
+        }
+
+        public void setEmaHalfLife(Duration emaHalfLife) {
+            this.emaHalfLife = emaHalfLife;
+        }
+    }
+
+    public static class Alerts {
+
+        /**
+         * Alerts waiting for the sinks; the oldest is dropped when full so rates never wait for a sink.
+         */
+        private int queueCapacity = 10000;
+
+        /**
+         * Rules registered at startup, in addition to those added over {@code /api/alerts/rules}.
+         */
+        private List<Rule> rules = new ArrayList<>();
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public void setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+        }
+
+        public List<Rule> getRules() {
+            return rules;
+        }
+
+        public void setRules(List<Rule> rules) {
+            this.rules = rules;
+        }
+    }
+
+    public static class Rule {
+
+        /**
+         * A conversion direction like {@code EUR_TO_CZK}, or a pair like {@code BTC_EUR} (its mid price).
+         */
+        private String subject;
+
+        private AlertRule.Kind kind;
+
+        /**
+         * A rate or price for {@code ABOVE} and {@code BELOW}, percent for {@code CHANGE} (negative for a
+         * fall), basis points for {@code SPREAD}.
+         */
+        private double threshold;
+
+        /**
+         * Time the change of a {@code CHANGE} rule is measured over.
+         */
+        private Duration window;
+
+        public String getSubject() {
+            return subject;
+        }
+
+        public void setSubject(String subject) {
+            this.subject = subject;
+        }
+
+        public AlertRule.Kind getKind() {
+            return kind;
+        }
+
+        public void setKind(AlertRule.Kind kind) {
+            this.kind = kind;
+        }
+
+        public double getThreshold() {
+            return threshold;
+        }
+
+        public void setThreshold(double threshold) {
+            this.threshold = threshold;
+        }
+
+        public Duration getWindow() {
+            return window;
+        }
+
+        public void setWindow(Duration window) {
+            this.window = window;
+        }
+    }
+
+    public static class UpdateLog {
+
+        /**
+         * How order book and rate updates are written to the {@code io.codextest.coinmate.updates} log.
+         */
+        private UpdateLogMode mode = UpdateLogMode.SAMPLED;
+
+        /**
+         * In {@code sampled} mode, the least time between two lines of the same pair or direction.
+         */
+        private Duration interval = Duration.ofSeconds(1);
+
+        public UpdateLogMode getMode() {
+            return mode;
+        }
+
+        public void setMode(UpdateLogMode mode) {
+            this.mode = mode;
+        }
+
+        public Duration getInterval() {
+            return interval;
+        }
+
+        public void setInterval(Duration interval) {
+            this.interval = interval;
+        }
+    }
+
+    public enum UpdateLogMode {
+        /**
+         * A human-readable line for every admitted book and every published rate, for debugging.
+         */
+        VERBOSE,
+        /**
+         * A {@code key=value} line per pair or direction at most every {@code interval}, with the number of
+         * updates it stands for.
+         */
+        SAMPLED,
+        /**
+         * No update lines.
+         */
+        OFF
+    }
+
+    public static class Seeding {
+
+        /**
+         * Fetch a pair's order book over REST whenever its WebSocket connects or reconnects, so rates are
+         * available after one round trip instead of at the pair's next frame.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Order book requests started per second across all pairs; the rest wait for their turn.
+         */
+        private int requestsPerSecond = 10;
+
+        /**
+         * Order book requests in flight at once when the pairs of a multiplexed session are seeded.
+         */
+        private int concurrency = 4;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getRequestsPerSecond() {
+            return requestsPerSecond;
+        }
+
+        public void setRequestsPerSecond(int requestsPerSecond) {
+            this.requestsPerSecond = requestsPerSecond;
+        }
+
+        public int getConcurrency() {
+            return concurrency;
+        }
+
+        public void setConcurrency(int concurrency) {
+            this.concurrency = concurrency;
+        }
+    }
+
+    public static class Connections {
+
+        /**
+         * WebSocket handshakes in progress at once across all streams; further connects and reconnects
+         * wait, those of pairs on a conversion route first.
+         */
+        private int maxConcurrentHandshakes = 4;
+
+        /**
+         * A handshake still in progress after this long frees its place for the next one.
+         */
+        private Duration handshakeTimeout = Duration.ofSeconds(10);
+
+        /**
+         * Share of each reconnect delay, between 0 and 1, by which it is randomly varied, so streams that
+         * failed together do not all reconnect at the same moment.
+         */
+        private double jitter = 0.5;
+
+        public int getMaxConcurrentHandshakes() {
+            return maxConcurrentHandshakes;
+        }
+
+        public void setMaxConcurrentHandshakes(int maxConcurrentHandshakes) {
+            this.maxConcurrentHandshakes = maxConcurrentHandshakes;
+        }
+
+        public Duration getHandshakeTimeout() {
+            return handshakeTimeout;
+        }
+
+        public void setHandshakeTimeout(Duration handshakeTimeout) {
+            this.handshakeTimeout = handshakeTimeout;
+        }
+
+        public double getJitter() {
+            return jitter;
+        }
+
+        public void setJitter(double jitter) {
+            this.jitter = jitter;
+        }
+    }
 }
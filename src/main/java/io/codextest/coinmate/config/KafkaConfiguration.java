@@ -0,0 +1,32 @@
+package io.codextest.coinmate.config;
+
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.core.ProducerFactory;
+
+import java.util.Map;
+
+/**
+ * Template of the Kafka publisher. It shares the producer settings of {@code spring.kafka.producer}
+ * (and the Micrometer producer listener) with Spring Boot's producer factory, but always writes string
+ * keys and the binary values of {@code KafkaRecordCodec}, whatever serializers are configured there.
+ */
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnProperty(prefix = "coinmate.kafka", name = "enabled", havingValue = "true")
+public class KafkaConfiguration {
+
+    @Bean
+    @SuppressWarnings("unchecked")
+    public KafkaTemplate<String, byte[]> coinmateKafkaTemplate(ProducerFactory<?, ?> producerFactory) {
+        Map<String, Object> overrides = Map.of(
+                ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class,
+                ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class);
+        // The overriding copy of the factory is owned, and closed, by the template
+        return new KafkaTemplate<>((ProducerFactory<String, byte[]>) producerFactory, false, overrides);
+    }
+}
@@ -0,0 +1,40 @@
+package io.codextest.coinmate.config;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.logging.LoggingMeterRegistry;
+import io.micrometer.core.instrument.logging.LoggingRegistryConfig;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+/**
+ * Periodically logs the pipeline meters, so the latency histograms and counters show up without extra
+ * tooling. They are also exported over JMX and, while the web server runs, on
+ * {@code /actuator/prometheus}.
+ */
+@Configuration(proxyBeanMethods = false)
+public class MetricsConfiguration {
+
+    @Bean
+    @ConditionalOnExpression("'${coinmate.metrics.log-interval:}' != ''")
+    public LoggingMeterRegistry coinmateLoggingMeterRegistry(CoinmateProperties properties) {
+        Duration interval = properties.getMetrics().getLogInterval();
+        LoggingRegistryConfig config = new LoggingRegistryConfig() {
+            @Override
+            public String get(String key) {
+                return null;
+            }
+
+            @Override
+            public Duration step() {
+                return interval;
+            }
+        };
+        LoggingMeterRegistry registry = new LoggingMeterRegistry(config, Clock.SYSTEM);
+        registry.config().meterFilter(MeterFilter.denyUnless(id -> id.getName().startsWith("coinmate.")));
+        return registry;
+    }
+}
@@ -0,0 +1,12 @@
+package io.codextest.coinmate.model;
+
+import java.time.Instant;
+
+/**
+ * A rule that fired.
+ *
+ * @param value    the value that crossed the threshold, in the unit of the rule's threshold
+ * @param previous the value before it
+ */
+public record Alert(AlertRule rule, double value, double previous, Instant firedAt) {
+}
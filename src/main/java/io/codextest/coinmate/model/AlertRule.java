@@ -0,0 +1,61 @@
+package io.codextest.coinmate.model;
+
+import java.time.Duration;
+
+/**
+ * A threshold on the rates of a conversion direction or the top of book of a pair. Rules fire when the
+ * watched value crosses the threshold, not on every update beyond it.
+ *
+ * @param subject   a direction like {@code EUR_TO_CZK}, or a pair like {@code BTC_EUR}
+ * @param threshold a rate or mid price for {@link Kind#ABOVE} and {@link Kind#BELOW}, percent for
+ *                  {@link Kind#CHANGE} (negative for a fall), basis points for {@link Kind#SPREAD}
+ * @param window    time a {@link Kind#CHANGE} is measured over, {@code null} for the other kinds
+ */
+public record AlertRule(long id, String subject, Kind kind, double threshold, Duration window) {
+
+    public enum Kind {
+        /**
+         * The rate or mid price rises above the threshold.
+         */
+        ABOVE,
+        /**
+         * The rate or mid price falls below the threshold.
+         */
+        BELOW,
+        /**
+         * The rate or mid price changes by at least the threshold percent against its value a window ago.
+         */
+        CHANGE,
+        /**
+         * The spread widens beyond the threshold: of the book for a pair, of the round trip through both
+         * directions for a conversion.
+         */
+        SPREAD
+    }
+
+    public AlertRule {
+        if (subject == null || subject.isBlank() || kind == null) {
+            throw new IllegalArgumentException("An alert rule needs a subject and a kind");
+        }
+        if (!Double.isFinite(threshold)) {
+            throw new IllegalArgumentException("Alert threshold must be finite: " + threshold);
+        }
+        if (kind == Kind.CHANGE) {
+            if (window == null || window.isNegative() || window.isZero()) {
+                throw new IllegalArgumentException("A CHANGE rule needs a positive window");
+            }
+            if (threshold == 0) {
+                throw new IllegalArgumentException("A CHANGE rule needs a non-zero threshold");
+            }
+        } else {
+            window = null;
+        }
+    }
+
+    /**
+     * @return this rule under the given id
+     */
+    public AlertRule withId(long id) {
+        return new AlertRule(id, subject, kind, threshold, window);
+    }
+}
@@ -0,0 +1,24 @@
+package io.codextest.coinmate.model;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+/**
+ * Best bid and ask of a pair as pushed to live subscribers.
+ */
+public record BookTop(String currencyPair,
+                      BigDecimal bestBid,
+                      BigDecimal bestBidAmount,
+                      BigDecimal bestAsk,
+                      BigDecimal bestAskAmount,
+                      Instant receivedAt) {
+
+    public static BookTop of(OrderBookSnapshot snapshot) {
+        return new BookTop(snapshot.currencyPair(),
+                snapshot.bestBidDecimal(),
+                snapshot.bestBidAmountDecimal(),
+                snapshot.bestAskDecimal(),
+                snapshot.bestAskAmountDecimal(),
+                snapshot.receivedAt());
+    }
+}
@@ -1,6 +1,33 @@
 package io.codextest.coinmate.model;
 
+import java.util.Optional;
+
 public enum ConversionDirection {
-    EUR_TO_CZK,
-    CZK_TO_EUR
+    EUR_TO_CZK("EUR", "CZK"),
+    CZK_TO_EUR("CZK", "EUR");
+
+    private final String fromCurrency;
+    private final String toCurrency;
+
+    ConversionDirection(String fromCurrency, String toCurrency) {
+        this.fromCurrency = fromCurrency;
+        this.toCurrency = toCurrency;
+    }
+
+    public String getFromCurrency() {
+        return fromCurrency;
+    }
+
+    public String getToCurrency() {
+        return toCurrency;
+    }
+
+    public static Optional<ConversionDirection> of(String fromCurrency, String toCurrency) {
+        for (ConversionDirection direction : values()) {
+            if (direction.fromCurrency.equals(fromCurrency) && direction.toCurrency.equals(toCurrency)) {
+                return Optional.of(direction);
+            }
+        }
+        return Optional.empty();
+    }
 }
@@ -0,0 +1,20 @@
+package io.codextest.coinmate.model;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+/**
+ * Size-aware conversion rate obtained by walking the order book depth.
+ *
+ * @param notional       amount of the conversion's source currency (EUR) the quote was computed for
+ * @param rate           effective CZK per 1 EUR for the whole notional
+ * @param topOfBookRate  CZK per 1 EUR over the same route using only the best levels
+ * @param slippage       relative cost of the size versus the top of book, {@code 0.001} meaning 0.1 %
+ */
+public record ConversionQuote(ConversionDirection direction,
+                              BigDecimal notional,
+                              BigDecimal rate,
+                              BigDecimal topOfBookRate,
+                              BigDecimal slippage,
+                              Instant computedAt) {
+}
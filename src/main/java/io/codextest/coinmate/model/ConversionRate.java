@@ -0,0 +1,49 @@
+package io.codextest.coinmate.model;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+/**
+ * Top-of-book rate of one direction of a configured conversion over its currently best route.
+ * <p>
+ * The rate is always quoted as units of the conversion's target currency per one unit of its source
+ * currency. For the reverse direction (converting target back into source) that is the cost of one
+ * source unit, which is how {@link ConversionDirection#CZK_TO_EUR} has always been stored.
+ *
+ * @param fromCurrency currency being converted
+ * @param toCurrency   currency received
+ * @param bidAmount    amount at the best bid of the last book the route sells into, if any
+ * @param askAmount    amount at the best ask of the first book the route buys from, if any
+ * @param route        order books crossed, in order, joined by {@code >}
+ * @param stale        whether the rate was computed from an order book restored at startup that no live
+ *                     frame has replaced yet, or from one older than {@code coinmate.max-input-age}
+ */
+public record ConversionRate(String fromCurrency,
+                             String toCurrency,
+                             BigDecimal rate,
+                             BigDecimal bidAmount,
+                             BigDecimal askAmount,
+                             String route,
+                             Instant computedAt,
+                             boolean stale) {
+
+    public ConversionRate(String fromCurrency, String toCurrency, BigDecimal rate, BigDecimal bidAmount,
+                          BigDecimal askAmount, String route, Instant computedAt) {
+        this(fromCurrency, toCurrency, rate, bidAmount, askAmount, route, computedAt, false);
+    }
+
+    /**
+     * @return this rate flagged as computed from restored or aged order books
+     */
+    public ConversionRate asStale() {
+        return stale ? this : new ConversionRate(fromCurrency, toCurrency, rate, bidAmount, askAmount, route,
+                computedAt, true);
+    }
+
+    /**
+     * @return the direction key, e.g. {@code EUR_TO_CZK}, matching {@link ConversionDirection} names
+     */
+    public String directionKey() {
+        return fromCurrency + "_TO_" + toCurrency;
+    }
+}
@@ -0,0 +1,17 @@
+package io.codextest.coinmate.model;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+/**
+ * Rates of one direction over one bucket of a downsampled history.
+ *
+ * @param count number of rates the bucket aggregates
+ */
+public record DownsampledRate(Instant bucketStart,
+                              BigDecimal open,
+                              BigDecimal high,
+                              BigDecimal low,
+                              BigDecimal close,
+                              Long count) {
+}
@@ -5,11 +5,18 @@ import java.math.BigDecimal;
 import java.time.Instant;
 
 @Entity
-@Table(name = "exchange_rates")
+@Table(name = "exchange_rates", indexes = {
+        // History queries seek by direction and walk (computed_at, id) in order
+        @Index(name = "idx_exchange_rates_direction_computed_at", columnList = "direction, computed_at, id"),
+        // Raw-rate retention deletes by age
+        @Index(name = "idx_exchange_rates_computed_at", columnList = "computed_at")
+})
 public class ExchangeRate {
 
+    // Pooled sequence ids (unlike IDENTITY) let Hibernate batch inserts and fetch ids once per allocation
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "exchange_rates_seq")
+    @SequenceGenerator(name = "exchange_rates_seq", sequenceName = "exchange_rates_seq", allocationSize = 50)
     private Long id;
 
     @Enumerated(EnumType.STRING)
@@ -29,6 +36,15 @@ public class ExchangeRate {
     @Column(name = "computed_at", nullable = false)
     private Instant computedAt;
 
+    // When the frame this rate was computed from arrived, for end-to-end latency; not persisted
+    @Transient
+    private Instant sourceReceivedAt;
+
+    // Rates of both directions computed from the same snapshot share it, so compact storage writes them
+    // as one row; 0 when unknown, not persisted
+    @Transient
+    private long computation;
+
     protected ExchangeRate() {
         // JPA
     }
@@ -72,4 +88,20 @@ public class ExchangeRate {
     public Instant getComputedAt() {
         return computedAt;
     }
+
+    public Instant getSourceReceivedAt() {
+        return sourceReceivedAt;
+    }
+
+    public void setSourceReceivedAt(Instant sourceReceivedAt) {
+        this.sourceReceivedAt = sourceReceivedAt;
+    }
+
+    public long getComputation() {
+        return computation;
+    }
+
+    public void setComputation(long computation) {
+        this.computation = computation;
+    }
 }
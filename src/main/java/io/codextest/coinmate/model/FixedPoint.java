@@ -0,0 +1,303 @@
+package io.codextest.coinmate.model;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * A decimal held as a {@code long} unscaled value and a scale, i.e. {@code unscaled × 10^-scale}, plus
+ * the static helpers the ingest and conversion path uses to work on such values without creating
+ * {@link BigDecimal}s.
+ * <p>
+ * Rounding is always {@link RoundingMode#HALF_UP} and every operation either gives exactly the value
+ * {@link BigDecimal} would give or throws {@link ArithmeticException} on {@code long} overflow, so
+ * callers can fall back to {@link BigDecimal} arithmetic.
+ */
+public record FixedPoint(long unscaled, int scale) implements Comparable<FixedPoint> {
+
+    /**
+     * Marks an absent value, e.g. a level without an amount.
+     */
+    public static final long NONE = Long.MIN_VALUE;
+
+    /**
+     * Most decimal digits a {@code long} always holds.
+     */
+    public static final int MAX_DIGITS = 18;
+
+    private static final long[] POWERS_OF_TEN = new long[MAX_DIGITS + 1];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    public BigDecimal toBigDecimal() {
+        return BigDecimal.valueOf(unscaled, scale);
+    }
+
+    public double doubleValue() {
+        return toDouble(unscaled, scale);
+    }
+
+    @Override
+    public int compareTo(FixedPoint other) {
+        return compare(unscaled, scale, other.unscaled, other.scale);
+    }
+
+    /**
+     * @return the value as a {@link BigDecimal}, or {@code null} for {@link #NONE}
+     */
+    public static BigDecimal toBigDecimal(long unscaled, int scale) {
+        return unscaled == NONE ? null : BigDecimal.valueOf(unscaled, scale);
+    }
+
+    /**
+     * @return {@code value} rounded to {@code scale}, or {@link #NONE} for {@code null}
+     * @throws ArithmeticException when the rounded value does not fit a {@code long}
+     */
+    public static long toUnscaled(BigDecimal value, int scale) {
+        if (value == null) {
+            return NONE;
+        }
+        long unscaled = value.setScale(scale, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+        if (unscaled == NONE) {
+            throw new ArithmeticException("Out of fixed-point range: " + value);
+        }
+        return unscaled;
+    }
+
+    public static double toDouble(long unscaled, int scale) {
+        if (unscaled == NONE) {
+            return Double.NaN;
+        }
+        if (scale >= 0 && scale <= MAX_DIGITS) {
+            // Both operands are exact doubles, so this is the correctly rounded quotient
+            return unscaled / (double) POWERS_OF_TEN[scale];
+        }
+        return BigDecimal.valueOf(unscaled, scale).doubleValue();
+    }
+
+    /**
+     * Parses the text of a JSON number, e.g. {@code -12.5e-1}, straight into an unscaled value.
+     *
+     * @param maxSignificantDigits numbers with more significant digits are left to the caller
+     * @return the value rounded to {@code scale}, or {@link #NONE} when the text is not a plain number,
+     * has too many digits or does not fit
+     */
+    public static long parse(char[] chars, int offset, int length, int scale, int maxSignificantDigits) {
+        int end = offset + length;
+        int i = offset;
+        boolean negative = false;
+        if (i < end && chars[i] == '-') {
+            negative = true;
+            i++;
+        }
+        long mantissa = 0;
+        int significantDigits = 0;
+        int fractionDigits = 0;
+        boolean fraction = false;
+        boolean digitSeen = false;
+        int exponent = 0;
+        for (; i < end; i++) {
+            char c = chars[i];
+            if (c >= '0' && c <= '9') {
+                digitSeen = true;
+                if (fraction) {
+                    fractionDigits++;
+                }
+                if (mantissa == 0 && c == '0') {
+                    continue;
+                }
+                if (++significantDigits > maxSignificantDigits || significantDigits > MAX_DIGITS) {
+                    return NONE;
+                }
+                mantissa = mantissa * 10 + (c - '0');
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else if ((c == 'e' || c == 'E') && digitSeen) {
+                int parsed = parseExponent(chars, i + 1, end);
+                if (parsed == Integer.MIN_VALUE) {
+                    return NONE;
+                }
+                exponent = parsed;
+                break;
+            } else {
+                return NONE;
+            }
+        }
+        if (!digitSeen) {
+            return NONE;
+        }
+        long magnitude;
+        try {
+            magnitude = shift(mantissa, (long) scale + exponent - fractionDigits);
+        } catch (ArithmeticException overflow) {
+            return NONE;
+        }
+        return negative ? -magnitude : magnitude;
+    }
+
+    private static int parseExponent(char[] chars, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (chars[i] == '-' || chars[i] == '+')) {
+            negative = chars[i] == '-';
+            i++;
+        }
+        if (i == end) {
+            return Integer.MIN_VALUE;
+        }
+        int exponent = 0;
+        for (; i < end; i++) {
+            char c = chars[i];
+            if (c < '0' || c > '9' || exponent > 100_000) {
+                return Integer.MIN_VALUE;
+            }
+            exponent = exponent * 10 + (c - '0');
+        }
+        return negative ? -exponent : exponent;
+    }
+
+    /**
+     * @return {@code value × 10^shift}, rounded half up when digits are shifted out
+     */
+    private static long shift(long value, long shift) {
+        if (value == 0) {
+            return 0;
+        }
+        if (shift >= 0) {
+            if (shift > MAX_DIGITS) {
+                throw new ArithmeticException("long overflow");
+            }
+            return Math.multiplyExact(value, POWERS_OF_TEN[(int) shift]);
+        }
+        if (-shift > MAX_DIGITS) {
+            // value < 10^18 shifted by more than 18 digits is below one half
+            return 0;
+        }
+        long divisor = POWERS_OF_TEN[(int) -shift];
+        long quotient = value / divisor;
+        return (value % divisor) * 2 >= divisor ? quotient + 1 : quotient;
+    }
+
+    private static int digitCount(long value) {
+        int digits = 1;
+        while (digits <= MAX_DIGITS && value >= POWERS_OF_TEN[digits]) {
+            digits++;
+        }
+        return digits;
+    }
+
+    /**
+     * Appends the value in plain notation, like {@link BigDecimal#toPlainString()} but without creating
+     * a {@link BigDecimal} for the usual scales; {@link #NONE} appends {@code -}.
+     */
+    public static StringBuilder append(StringBuilder out, long unscaled, int scale) {
+        if (unscaled == NONE) {
+            return out.append('-');
+        }
+        if (scale <= 0 || scale > MAX_DIGITS) {
+            return out.append(BigDecimal.valueOf(unscaled, scale).toPlainString());
+        }
+        if (unscaled < 0) {
+            out.append('-');
+        }
+        long value = Math.abs(unscaled);
+        long fraction = value % POWERS_OF_TEN[scale];
+        out.append(value / POWERS_OF_TEN[scale]).append('.');
+        for (int digits = digitCount(fraction); digits < scale; digits++) {
+            out.append('0');
+        }
+        return out.append(fraction);
+    }
+
+    /**
+     * Compares two values of possibly different scales.
+     */
+    public static int compare(long a, int aScale, long b, int bScale) {
+        if (aScale == bScale) {
+            return Long.compare(a, b);
+        }
+        try {
+            return aScale < bScale
+                    ? Long.compare(shift(a, (long) bScale - aScale), b)
+                    : Long.compare(a, shift(b, (long) aScale - bScale));
+        } catch (ArithmeticException overflow) {
+            return BigDecimal.valueOf(a, aScale).compareTo(BigDecimal.valueOf(b, bScale));
+        }
+    }
+
+    /**
+     * Divides {@code dividend × 10^-dividendScale} by {@code divisor × 10^-divisorScale} like
+     * {@link BigDecimal#divide(BigDecimal, java.math.MathContext)} with {@code precision} digits and
+     * {@link RoundingMode#HALF_UP}: an exact quotient keeps the scale closest to the preferred
+     * {@code dividendScale - divisorScale}, an inexact one has exactly {@code precision} digits.
+     *
+     * @throws ArithmeticException when the quotient cannot be formed in {@code long} arithmetic, or the
+     *                             divisor is zero
+     */
+    public static FixedPoint divide(long dividend, int dividendScale, long divisor, int divisorScale, int precision) {
+        if (precision <= 0 || precision > MAX_DIGITS) {
+            throw new IllegalArgumentException("Precision must be within 1.." + MAX_DIGITS + ": " + precision);
+        }
+        if (divisor == 0) {
+            throw new ArithmeticException("Division by zero");
+        }
+        if (dividend == Long.MIN_VALUE || divisor == Long.MIN_VALUE) {
+            throw new ArithmeticException("long overflow");
+        }
+        int preferredScale = dividendScale - divisorScale;
+        if (dividend == 0) {
+            return new FixedPoint(0, preferredScale);
+        }
+        boolean negative = (dividend < 0) != (divisor < 0);
+        long n = Math.abs(dividend);
+        long d = Math.abs(divisor);
+        long limit = POWERS_OF_TEN[precision];
+
+        long quotient = n / d;
+        long remainder = n % d;
+        // Digits of the quotient generated past the decimal point of n / d
+        int digits = 0;
+        boolean roundUp;
+        boolean exact;
+        if (quotient >= limit) {
+            int excess = digitCount(quotient) - precision;
+            long scale = POWERS_OF_TEN[excess];
+            long dropped = quotient % scale;
+            quotient /= scale;
+            digits = -excess;
+            roundUp = dropped * 2 >= scale;
+            exact = dropped == 0 && remainder == 0;
+        } else {
+            if (d > Long.MAX_VALUE / 10) {
+                throw new ArithmeticException("long overflow");
+            }
+            while (remainder != 0 && quotient < limit / 10) {
+                remainder *= 10;
+                quotient = quotient * 10 + remainder / d;
+                remainder %= d;
+                digits++;
+            }
+            exact = remainder == 0;
+            roundUp = remainder * 2 >= d && remainder != 0;
+        }
+        if (roundUp) {
+            quotient++;
+            if (quotient == limit) {
+                quotient /= 10;
+                digits--;
+            }
+        }
+        int resultScale = Math.addExact(preferredScale, digits);
+        if (exact) {
+            while (resultScale > preferredScale && quotient % 10 == 0) {
+                quotient /= 10;
+                resultScale--;
+            }
+        }
+        return new FixedPoint(negative ? -quotient : quotient, resultScale);
+    }
+}
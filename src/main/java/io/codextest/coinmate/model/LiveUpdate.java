@@ -0,0 +1,10 @@
+package io.codextest.coinmate.model;
+
+/**
+ * One update pushed to live subscribers.
+ *
+ * @param type {@code rate} with a {@link ConversionRate}, or {@code book} with a {@link BookTop}
+ * @param key  what the update replaces, e.g. {@code rate:EUR_TO_CZK} or {@code book:BTC_EUR}
+ */
+public record LiveUpdate(String type, String key, Object data) {
+}
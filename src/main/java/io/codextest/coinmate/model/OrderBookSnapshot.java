@@ -3,10 +3,59 @@ package io.codextest.coinmate.model;
 import java.math.BigDecimal;
 import java.time.Instant;
 
+/**
+ * Best bid and ask of one order book frame.
+ * <p>
+ * Prices and amounts are unscaled {@code long}s at the pair's {@code priceScale} and
+ * {@code amountScale} (see {@link FixedPoint}); an amount missing from the frame is
+ * {@link FixedPoint#NONE}. The {@code *Decimal()} accessors build {@link BigDecimal}s for logging and
+ * persistence.
+ */
 public record OrderBookSnapshot(String currencyPair,
-                               BigDecimal bestBid,
-                               BigDecimal bestBidAmount,
-                               BigDecimal bestAsk,
-                               BigDecimal bestAskAmount,
+                               long bestBid,
+                               long bestBidAmount,
+                               long bestAsk,
+                               long bestAskAmount,
+                               int priceScale,
+                               int amountScale,
                                Instant receivedAt) {
+
+    /**
+     * Builds a snapshot from decimals, rounding them half up to the given scales.
+     *
+     * @throws ArithmeticException when a value does not fit a {@code long} at its scale
+     */
+    public static OrderBookSnapshot of(String currencyPair,
+                                       BigDecimal bestBid,
+                                       BigDecimal bestBidAmount,
+                                       BigDecimal bestAsk,
+                                       BigDecimal bestAskAmount,
+                                       int priceScale,
+                                       int amountScale,
+                                       Instant receivedAt) {
+        return new OrderBookSnapshot(currencyPair,
+                FixedPoint.toUnscaled(bestBid, priceScale),
+                FixedPoint.toUnscaled(bestBidAmount, amountScale),
+                FixedPoint.toUnscaled(bestAsk, priceScale),
+                FixedPoint.toUnscaled(bestAskAmount, amountScale),
+                priceScale,
+                amountScale,
+                receivedAt);
+    }
+
+    public BigDecimal bestBidDecimal() {
+        return FixedPoint.toBigDecimal(bestBid, priceScale);
+    }
+
+    public BigDecimal bestBidAmountDecimal() {
+        return FixedPoint.toBigDecimal(bestBidAmount, amountScale);
+    }
+
+    public BigDecimal bestAskDecimal() {
+        return FixedPoint.toBigDecimal(bestAsk, priceScale);
+    }
+
+    public BigDecimal bestAskAmountDecimal() {
+        return FixedPoint.toBigDecimal(bestAskAmount, amountScale);
+    }
 }
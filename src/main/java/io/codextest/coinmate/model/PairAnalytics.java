@@ -0,0 +1,31 @@
+package io.codextest.coinmate.model;
+
+import java.time.Instant;
+
+/**
+ * Rolling statistics of one pair's top of book over its latest snapshots.
+ *
+ * @param samples                   snapshots in the window
+ * @param windowSeconds             time from the oldest to the newest snapshot in the window
+ * @param mid                       latest mid price
+ * @param midEma                    exponential moving average of the mid price, weighted by time
+ * @param volatilityPerHour         realized volatility of the mid: the root of the summed squared log
+ *                                  returns in the window, scaled to one hour
+ * @param spreadBpsP50              median spread in basis points of the mid, within about 3%
+ * @param spreadBpsP90              90th percentile of the spread
+ * @param spreadBpsP99              99th percentile of the spread
+ * @param updatesPerSecond          snapshots per second over the window
+ * @param updatedAt                 when the latest snapshot arrived
+ */
+public record PairAnalytics(String currencyPair,
+                            int samples,
+                            double windowSeconds,
+                            double mid,
+                            double midEma,
+                            double volatilityPerHour,
+                            double spreadBpsP50,
+                            double spreadBpsP90,
+                            double spreadBpsP99,
+                            double updatesPerSecond,
+                            Instant updatedAt) {
+}
@@ -0,0 +1,45 @@
+package io.codextest.coinmate.model;
+
+import jakarta.persistence.*;
+import java.time.Instant;
+
+/**
+ * Lease of a group of pairs to the instance streaming them. A group is one pair, or all pairs on the
+ * routes of a conversion; its lease is free once released or expired.
+ */
+@Entity
+@Table(name = "pair_leases")
+public class PairLease {
+
+    @Id
+    @Column(name = "group_key", length = 100)
+    private String groupKey;
+
+    // Instance holding the lease, absent once released
+    @Column(length = 100)
+    private String owner;
+
+    @Column(name = "expires_at", nullable = false)
+    private Instant expiresAt;
+
+    protected PairLease() {
+        // JPA
+    }
+
+    public PairLease(String groupKey, Instant expiresAt) {
+        this.groupKey = groupKey;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getGroupKey() {
+        return groupKey;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+}
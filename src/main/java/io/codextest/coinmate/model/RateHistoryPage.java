@@ -0,0 +1,11 @@
+package io.codextest.coinmate.model;
+
+import java.util.List;
+
+/**
+ * A page of rates in {@code computedAt} order.
+ *
+ * @param next cursor to pass as {@code after} for the following page, or {@code null} on the last page
+ */
+public record RateHistoryPage(List<RatePoint> items, String next) {
+}
@@ -0,0 +1,14 @@
+package io.codextest.coinmate.model;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+/**
+ * One stored exchange rate as returned by history queries, read without managing an entity.
+ */
+public record RatePoint(Long id,
+                        Instant computedAt,
+                        BigDecimal rate,
+                        BigDecimal bidAmount,
+                        BigDecimal askAmount) {
+}
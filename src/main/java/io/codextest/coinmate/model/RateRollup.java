@@ -0,0 +1,138 @@
+package io.codextest.coinmate.model;
+
+import jakarta.persistence.*;
+import java.math.BigDecimal;
+import java.time.Instant;
+
+/**
+ * Aggregate of the rates of one direction and route over one time bucket.
+ * <p>
+ * A bucket that was still open when the application stopped may be continued in a second row after
+ * the restart; queries combine rows of the same bucket like any other buckets, taking the open and close
+ * by the times of the rates they came from.
+ */
+@Entity
+@Table(name = "exchange_rate_rollups", indexes = {
+        @Index(name = "idx_rollups_direction_width_start", columnList = "direction, bucket_seconds, bucket_start")
+})
+public class RateRollup {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "exchange_rate_rollups_seq")
+    @SequenceGenerator(name = "exchange_rate_rollups_seq", sequenceName = "exchange_rate_rollups_seq", allocationSize = 50)
+    private Long id;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 20)
+    private ConversionDirection direction;
+
+    // Order books the rates were computed over, e.g. BTC_EUR>BTC_CZK
+    @Column(nullable = false, length = 100)
+    private String route;
+
+    @Column(name = "bucket_seconds", nullable = false)
+    private int bucketSeconds;
+
+    @Column(name = "bucket_start", nullable = false)
+    private Instant bucketStart;
+
+    // Times of the first and last rate; absent in rows written before they were recorded
+    @Column(name = "open_at")
+    private Instant openAt;
+
+    @Column(name = "close_at")
+    private Instant closeAt;
+
+    @Column(name = "open_rate", nullable = false, precision = 38, scale = 18)
+    private BigDecimal open;
+
+    @Column(name = "high_rate", nullable = false, precision = 38, scale = 18)
+    private BigDecimal high;
+
+    @Column(name = "low_rate", nullable = false, precision = 38, scale = 18)
+    private BigDecimal low;
+
+    @Column(name = "close_rate", nullable = false, precision = 38, scale = 18)
+    private BigDecimal close;
+
+    // Mean of the spread to the opposite direction, absent while that direction had no rate yet
+    @Column(name = "mean_spread", precision = 38, scale = 18)
+    private BigDecimal meanSpread;
+
+    @Column(name = "update_count", nullable = false)
+    private int updateCount;
+
+    protected RateRollup() {
+        // JPA
+    }
+
+    public RateRollup(ConversionDirection direction, String route, int bucketSeconds, Instant bucketStart,
+                      Instant openAt, Instant closeAt,
+                      BigDecimal open, BigDecimal high, BigDecimal low, BigDecimal close,
+                      BigDecimal meanSpread, int updateCount) {
+        this.direction = direction;
+        this.route = route;
+        this.bucketSeconds = bucketSeconds;
+        this.bucketStart = bucketStart;
+        this.openAt = openAt;
+        this.closeAt = closeAt;
+        this.open = open;
+        this.high = high;
+        this.low = low;
+        this.close = close;
+        this.meanSpread = meanSpread;
+        this.updateCount = updateCount;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public ConversionDirection getDirection() {
+        return direction;
+    }
+
+    public String getRoute() {
+        return route;
+    }
+
+    public int getBucketSeconds() {
+        return bucketSeconds;
+    }
+
+    public Instant getBucketStart() {
+        return bucketStart;
+    }
+
+    public Instant getOpenAt() {
+        return openAt;
+    }
+
+    public Instant getCloseAt() {
+        return closeAt;
+    }
+
+    public BigDecimal getOpen() {
+        return open;
+    }
+
+    public BigDecimal getHigh() {
+        return high;
+    }
+
+    public BigDecimal getLow() {
+        return low;
+    }
+
+    public BigDecimal getClose() {
+        return close;
+    }
+
+    public BigDecimal getMeanSpread() {
+        return meanSpread;
+    }
+
+    public int getUpdateCount() {
+        return updateCount;
+    }
+}
@@ -0,0 +1,22 @@
+package io.codextest.coinmate.model;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+/**
+ * Rates of one direction within one bucket, e.g. a rollup row of one route, as downsampling folds them.
+ * Rows of the same bucket may overlap in time, so the bucket's open and close are taken by the times of
+ * each row's first and last rate rather than by the order of the rows.
+ *
+ * @param openAt  time of the rate {@code open} was taken from
+ * @param closeAt time of the rate {@code close} was taken from
+ */
+public record RateSpan(Instant bucketStart,
+                       Instant openAt,
+                       Instant closeAt,
+                       BigDecimal open,
+                       BigDecimal high,
+                       BigDecimal low,
+                       BigDecimal close,
+                       Long count) {
+}
@@ -0,0 +1,36 @@
+package io.codextest.coinmate.model;
+
+import jakarta.persistence.*;
+import java.time.Instant;
+
+/**
+ * An instance taking part in splitting the pairs, alive while its heartbeat is recent.
+ */
+@Entity
+@Table(name = "shard_members")
+public class ShardMember {
+
+    @Id
+    @Column(name = "instance_id", length = 100)
+    private String instanceId;
+
+    @Column(name = "heartbeat_at", nullable = false)
+    private Instant heartbeatAt;
+
+    protected ShardMember() {
+        // JPA
+    }
+
+    public ShardMember(String instanceId, Instant heartbeatAt) {
+        this.instanceId = instanceId;
+        this.heartbeatAt = heartbeatAt;
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    public Instant getHeartbeatAt() {
+        return heartbeatAt;
+    }
+}
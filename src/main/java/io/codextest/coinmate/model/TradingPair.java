@@ -7,6 +7,10 @@ public class TradingPair {
 
     private String name;
 
+    private Integer priceDecimals;
+
+    private Integer lotDecimals;
+
     public String getName() {
         return name;
     }
@@ -14,4 +18,26 @@ public class TradingPair {
     public void setName(String name) {
         this.name = name;
     }
+
+    /**
+     * @return number of decimals prices of this pair are quoted with, or {@code null} if not reported
+     */
+    public Integer getPriceDecimals() {
+        return priceDecimals;
+    }
+
+    public void setPriceDecimals(Integer priceDecimals) {
+        this.priceDecimals = priceDecimals;
+    }
+
+    /**
+     * @return number of decimals amounts of this pair are quoted with, or {@code null} if not reported
+     */
+    public Integer getLotDecimals() {
+        return lotDecimals;
+    }
+
+    public void setLotDecimals(Integer lotDecimals) {
+        this.lotDecimals = lotDecimals;
+    }
 }
@@ -1,7 +1,60 @@
 package io.codextest.coinmate.repository;
 
+import io.codextest.coinmate.model.ConversionDirection;
 import io.codextest.coinmate.model.ExchangeRate;
+import io.codextest.coinmate.model.RatePoint;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Stream;
 
 public interface ExchangeRateRepository extends JpaRepository<ExchangeRate, Long> {
+
+    /**
+     * Deletes raw rates older than {@code cutoff} in one statement, without loading them.
+     *
+     * @return the number of rows deleted
+     */
+    @Transactional
+    @Modifying
+    @Query("delete from ExchangeRate r where r.computedAt < :cutoff")
+    int deleteComputedBefore(@Param("cutoff") Instant cutoff);
+
+    /**
+     * Keyset page: the rates of a direction after the position {@code (afterTime, afterId)} and before
+     * {@code to}, in {@code (computedAt, id)} order, which the {@code (direction, computed_at, id)} index
+     * serves without sorting or skipping rows.
+     */
+    @Query("select new io.codextest.coinmate.model.RatePoint(r.id, r.computedAt, r.rate, r.bidAmount, r.askAmount)"
+            + " from ExchangeRate r"
+            + " where r.direction = :direction and r.computedAt < :to"
+            + " and (r.computedAt > :afterTime or (r.computedAt = :afterTime and r.id > :afterId))"
+            + " order by r.computedAt, r.id")
+    List<RatePoint> findPage(@Param("direction") ConversionDirection direction,
+                             @Param("afterTime") Instant afterTime,
+                             @Param("afterId") long afterId,
+                             @Param("to") Instant to,
+                             Limit limit);
+
+    /**
+     * Streams the rates of a direction within {@code [from, to)} in time order. Must be consumed and
+     * closed inside a transaction; rows are fetched from the database in chunks as the stream advances.
+     */
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "500"))
+    @Query("select new io.codextest.coinmate.model.RatePoint(r.id, r.computedAt, r.rate, r.bidAmount, r.askAmount)"
+            + " from ExchangeRate r"
+            + " where r.direction = :direction and r.computedAt >= :from and r.computedAt < :to"
+            + " order by r.computedAt, r.id")
+    Stream<RatePoint> streamRange(@Param("direction") ConversionDirection direction,
+                                  @Param("from") Instant from,
+                                  @Param("to") Instant to);
 }
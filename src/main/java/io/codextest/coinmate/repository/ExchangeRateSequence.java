@@ -0,0 +1,51 @@
+package io.codextest.coinmate.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import javax.sql.DataSource;
+import java.util.List;
+
+/**
+ * Moves {@code exchange_rates_seq} past the ids already in {@code exchange_rates} on PostgreSQL.
+ * <p>
+ * Ids used to come from an identity column. On a database that has such rows, {@code ddl-auto: update}
+ * creates the sequence starting at 1, and the first batches would collide with them. Running after
+ * Hibernate's schema update and before any rate is written, this sets the sequence to the highest id
+ * whenever it is behind, so it is a no-op on every later start.
+ */
+@Repository
+@DependsOn("entityManagerFactory")
+public class ExchangeRateSequence implements InitializingBean {
+
+    private static final Logger log = LoggerFactory.getLogger(ExchangeRateSequence.class);
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public ExchangeRateSequence(DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        boolean postgres = Boolean.TRUE.equals(jdbcTemplate.execute((ConnectionCallback<Boolean>) connection ->
+                "PostgreSQL".equals(connection.getMetaData().getDatabaseProductName())));
+        if (!postgres || !Boolean.TRUE.equals(jdbcTemplate.queryForObject(
+                "select to_regclass('exchange_rates_seq') is not null and to_regclass('exchange_rates') is not null",
+                Boolean.class))) {
+            return;
+        }
+        // With the pooled allocation the next block starts right after the value set here
+        List<Long> advanced = jdbcTemplate.queryForList("select setval('exchange_rates_seq', m.id)"
+                + " from (select max(id) as id from exchange_rates) m"
+                + " where m.id >= (select last_value from exchange_rates_seq)", Long.class);
+        if (!advanced.isEmpty()) {
+            log.info("Advanced exchange_rates_seq to the highest existing id {}", advanced.get(0));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package io.codextest.coinmate.repository;
+
+import io.codextest.coinmate.model.PairLease;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+
+/**
+ * Leases are taken and renewed with conditional updates, which the database applies atomically per row
+ * in Postgres and H2 alike, so two instances never both hold a group. Expiry is set and compared by the
+ * database's clock, so the clocks of the instances need not agree.
+ */
+public interface PairLeaseRepository extends JpaRepository<PairLease, String> {
+
+    /**
+     * Adds a free lease; fails with a {@link org.springframework.dao.DataIntegrityViolationException} if
+     * another instance added it first. Unlike {@code save}, never overwrites an existing lease.
+     */
+    @Transactional
+    @Modifying
+    @Query(value = "insert into pair_leases (group_key, expires_at) values (:groupKey, current_timestamp)",
+            nativeQuery = true)
+    void create(@Param("groupKey") String groupKey);
+
+    /**
+     * Takes the lease of a group that is free, expired or already held by {@code owner}.
+     *
+     * @return whether {@code owner} holds the lease now
+     */
+    @Transactional
+    @Modifying
+    @Query("update PairLease l set l.owner = :owner, l.expiresAt = instant + (:ttlMillis * 1000000L) nanosecond"
+            + " where l.groupKey = :groupKey and (l.owner is null or l.owner = :owner or l.expiresAt < instant)")
+    int acquire(@Param("groupKey") String groupKey,
+                @Param("owner") String owner,
+                @Param("ttlMillis") long ttlMillis);
+
+    /**
+     * Extends every lease {@code owner} still holds to {@code ttlMillis} from now; one taken over after
+     * expiring is not.
+     */
+    @Transactional
+    @Modifying
+    @Query("update PairLease l set l.expiresAt = instant + (:ttlMillis * 1000000L) nanosecond"
+            + " where l.owner = :owner")
+    int renew(@Param("owner") String owner, @Param("ttlMillis") long ttlMillis);
+
+    @Transactional
+    @Modifying
+    @Query("update PairLease l set l.owner = null where l.groupKey in :groupKeys and l.owner = :owner")
+    int release(@Param("groupKeys") List<String> groupKeys, @Param("owner") String owner);
+
+    @Query("select l.groupKey from PairLease l where l.owner = :owner")
+    List<String> findGroupKeysByOwner(@Param("owner") String owner);
+}
@@ -0,0 +1,34 @@
+package io.codextest.coinmate.repository;
+
+import io.codextest.coinmate.model.ConversionDirection;
+import io.codextest.coinmate.model.RateRollup;
+import io.codextest.coinmate.model.RateSpan;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+
+import java.time.Instant;
+import java.util.stream.Stream;
+
+public interface RateRollupRepository extends JpaRepository<RateRollup, Long> {
+
+    /**
+     * Streams the buckets of one width starting within {@code [from, to)}, all routes mixed, in order of
+     * their start; rows of the same bucket in no particular order. Rows without the times of their open
+     * and close have them at the bucket start. Must be consumed and closed inside a transaction.
+     */
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "500"))
+    @Query("select new io.codextest.coinmate.model.RateSpan(r.bucketStart, coalesce(r.openAt, r.bucketStart),"
+            + " coalesce(r.closeAt, r.bucketStart), r.open, r.high, r.low, r.close, cast(r.updateCount as Long))"
+            + " from RateRollup r"
+            + " where r.direction = :direction and r.bucketSeconds = :bucketSeconds"
+            + " and r.bucketStart >= :from and r.bucketStart < :to"
+            + " order by r.bucketStart")
+    Stream<RateSpan> streamRange(@Param("direction") ConversionDirection direction,
+                                        @Param("bucketSeconds") int bucketSeconds,
+                                        @Param("from") Instant from,
+                                        @Param("to") Instant to);
+}
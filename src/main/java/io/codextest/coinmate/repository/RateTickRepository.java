@@ -0,0 +1,452 @@
+package io.codextest.coinmate.repository;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.ConversionDirection;
+import io.codextest.coinmate.model.ExchangeRate;
+import io.codextest.coinmate.model.FixedPoint;
+import io.codextest.coinmate.model.RatePoint;
+import org.postgresql.PGConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Repository;
+
+import javax.sql.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Compact storage of raw rates ({@code coinmate.persistence.storage=compact}) in
+ * {@code exchange_rate_ticks}: one row per computation with the rates of both directions, so a book
+ * update that moves both costs one row instead of two. Every column is fixed-width: the time, each rate
+ * as a {@code bigint} unscaled value with a {@code smallint} scale, which keeps its digits exactly, and
+ * the amounts as {@code bigint} at {@link #AMOUNT_SCALE} decimals. There is no id and no text column.
+ * <p>
+ * On PostgreSQL the table is range-partitioned by {@code computed_at} into partitions of
+ * {@code partition-width}, created ahead of the rows that need them, and retention drops whole
+ * partitions instead of deleting rows. Batches are ingested with binary {@code COPY} through PgJDBC's
+ * {@code CopyManager}. On other databases, H2 in tests, it is a plain table written with JDBC batches.
+ * <p>
+ * History reads return {@link RatePoint}s whose id is the position among the rows of the same
+ * {@code computed_at}, which is all a keyset cursor needs without an id column.
+ */
+@Repository
+public class RateTickRepository implements InitializingBean {
+
+    private static final Logger log = LoggerFactory.getLogger(RateTickRepository.class);
+
+    /**
+     * Decimals the bid and ask amounts are kept with; amounts of books with more are rounded.
+     */
+    public static final int AMOUNT_SCALE = 8;
+
+    private static final String TABLE = "exchange_rate_ticks";
+    // 8-byte columns first, so rows carry no alignment padding
+    private static final String COLUMNS = "computed_at, forward_rate, forward_bid_amount, forward_ask_amount,"
+            + " reverse_rate, reverse_bid_amount, reverse_ask_amount, forward_rate_scale, reverse_rate_scale";
+    private static final String COLUMN_TYPES = "computed_at timestamp with time zone not null,"
+            + " forward_rate bigint, forward_bid_amount bigint, forward_ask_amount bigint,"
+            + " reverse_rate bigint, reverse_bid_amount bigint, reverse_ask_amount bigint,"
+            + " forward_rate_scale smallint, reverse_rate_scale smallint";
+    private static final MathContext LONG_DIGITS = new MathContext(FixedPoint.MAX_DIGITS, RoundingMode.HALF_UP);
+
+    private static final byte[] COPY_SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0};
+    // PostgreSQL's binary timestamps count microseconds from 2000-01-01T00:00:00Z
+    private static final long POSTGRES_EPOCH_SECONDS = 946_684_800L;
+    private static final DateTimeFormatter PARTITION_TIME =
+            DateTimeFormatter.ofPattern("yyyyMMddHHmm").withZone(ZoneOffset.UTC);
+    // Partitions created here; others attached to the table, such as a default one, are left alone
+    private static final Pattern PARTITION_NAME = Pattern.compile(TABLE + "_(\\d{12})_(\\d{12})");
+
+    private final JdbcTemplate jdbcTemplate;
+    private final boolean enabled;
+    private final long partitionSeconds;
+    // Starts of the partitions known to exist, in epoch seconds
+    private final Set<Long> partitions = ConcurrentHashMap.newKeySet();
+    private volatile boolean postgres;
+
+    public RateTickRepository(DataSource dataSource, CoinmateProperties properties) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        // Large ranges are streamed by the history downsampling
+        this.jdbcTemplate.setFetchSize(500);
+        CoinmateProperties.Persistence settings = properties.getPersistence();
+        this.enabled = settings.getStorage() == CoinmateProperties.RateStorage.COMPACT;
+        Duration width = settings.getPartitionWidth();
+        if (width.isNegative() || width.isZero() || width.toSecondsPart() != 0 || width.getNano() != 0) {
+            throw new IllegalArgumentException("Partition width must be whole minutes: " + width);
+        }
+        this.partitionSeconds = width.toSeconds();
+    }
+
+    /**
+     * @return whether raw rates are stored here rather than in {@code exchange_rates}
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (!enabled) {
+            return;
+        }
+        postgres = Boolean.TRUE.equals(jdbcTemplate.execute((ConnectionCallback<Boolean>) connection -> {
+            DatabaseMetaData metaData = connection.getMetaData();
+            return "PostgreSQL".equals(metaData.getDatabaseProductName());
+        }));
+        if (postgres) {
+            jdbcTemplate.execute("create table if not exists " + TABLE + " (" + COLUMN_TYPES + ")"
+                    + " partition by range (computed_at)");
+            ensurePartition(Instant.now().getEpochSecond());
+            // The next one too, so the first rows of the next period do not wait for it
+            ensurePartition(Instant.now().getEpochSecond() + partitionSeconds);
+        } else {
+            jdbcTemplate.execute("create table if not exists " + TABLE + " (" + COLUMN_TYPES + ")");
+        }
+        // Keyset pages and range scans walk computed_at in order
+        jdbcTemplate.execute("create index if not exists idx_" + TABLE + "_computed_at on " + TABLE
+                + " (computed_at)");
+        log.info("Storing raw rates compactly in {}{}", TABLE,
+                postgres ? " partitioned by " + Duration.ofSeconds(partitionSeconds) : "");
+    }
+
+    /**
+     * Writes the rates, one row per computation: consecutive rates of opposite directions that share
+     * {@link ExchangeRate#getComputation()} go into the same row, stamped with the earlier time.
+     *
+     * @return the number of rows written
+     */
+    public int write(List<ExchangeRate> rates) {
+        List<Tick> ticks = group(rates);
+        if (ticks.isEmpty()) {
+            return 0;
+        }
+        if (postgres) {
+            Set<Long> starts = new HashSet<>();
+            for (Tick tick : ticks) {
+                starts.add(ensurePartition(tick.computedAt.getEpochSecond()));
+            }
+            try {
+                copy(ticks);
+            } catch (RuntimeException e) {
+                // A partition may be missing after all, or dropped meanwhile: check them again next time
+                partitions.removeAll(starts);
+                throw e;
+            }
+        } else {
+            insert(ticks);
+        }
+        return ticks.size();
+    }
+
+    private static List<Tick> group(List<ExchangeRate> rates) {
+        List<Tick> ticks = new ArrayList<>(rates.size());
+        Tick last = null;
+        for (ExchangeRate rate : rates) {
+            boolean forward = isForward(rate.getDirection());
+            if (last != null && rate.getComputation() != 0 && rate.getComputation() == last.computation
+                    && (forward ? last.forwardRate : last.reverseRate) == FixedPoint.NONE) {
+                last.add(rate, forward);
+                continue;
+            }
+            last = new Tick(rate.getComputation());
+            last.add(rate, forward);
+            ticks.add(last);
+        }
+        return ticks;
+    }
+
+    private void insert(List<Tick> ticks) {
+        jdbcTemplate.batchUpdate("insert into " + TABLE + " (" + COLUMNS + ") values (?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                new BatchPreparedStatementSetter() {
+                    @Override
+                    public void setValues(PreparedStatement statement, int i) throws SQLException {
+                        Tick tick = ticks.get(i);
+                        statement.setObject(1, OffsetDateTime.ofInstant(tick.computedAt, ZoneOffset.UTC));
+                        setLong(statement, 2, tick.forwardRate);
+                        setLong(statement, 3, tick.forwardBidAmount);
+                        setLong(statement, 4, tick.forwardAskAmount);
+                        setLong(statement, 5, tick.reverseRate);
+                        setLong(statement, 6, tick.reverseBidAmount);
+                        setLong(statement, 7, tick.reverseAskAmount);
+                        setScale(statement, 8, tick.forwardRate, tick.forwardRateScale);
+                        setScale(statement, 9, tick.reverseRate, tick.reverseRateScale);
+                    }
+
+                    @Override
+                    public int getBatchSize() {
+                        return ticks.size();
+                    }
+                });
+    }
+
+    private static void setLong(PreparedStatement statement, int index, long value) throws SQLException {
+        if (value == FixedPoint.NONE) {
+            statement.setNull(index, Types.BIGINT);
+        } else {
+            statement.setLong(index, value);
+        }
+    }
+
+    private static void setScale(PreparedStatement statement, int index, long rate, short scale) throws SQLException {
+        if (rate == FixedPoint.NONE) {
+            statement.setNull(index, Types.SMALLINT);
+        } else {
+            statement.setShort(index, scale);
+        }
+    }
+
+    /**
+     * Sends the rows in PostgreSQL's binary {@code COPY} format: a signature and two header words, then
+     * per row the field count and every field as its length (-1 for {@code NULL}) and big-endian bytes,
+     * and a -1 trailer.
+     */
+    private void copy(List<Tick> ticks) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(19 + ticks.size() * 96);
+        try (DataOutputStream out = new DataOutputStream(buffer)) {
+            out.write(COPY_SIGNATURE);
+            out.writeInt(0);
+            out.writeInt(0);
+            for (Tick tick : ticks) {
+                out.writeShort(9);
+                out.writeInt(8);
+                out.writeLong((tick.computedAt.getEpochSecond() - POSTGRES_EPOCH_SECONDS) * 1_000_000
+                        + tick.computedAt.getNano() / 1_000);
+                writeLong(out, tick.forwardRate);
+                writeLong(out, tick.forwardBidAmount);
+                writeLong(out, tick.forwardAskAmount);
+                writeLong(out, tick.reverseRate);
+                writeLong(out, tick.reverseBidAmount);
+                writeLong(out, tick.reverseAskAmount);
+                writeScale(out, tick.forwardRate, tick.forwardRateScale);
+                writeScale(out, tick.reverseRate, tick.reverseRateScale);
+            }
+            out.writeShort(-1);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        String sql = "copy " + TABLE + " (" + COLUMNS + ") from stdin (format binary)";
+        jdbcTemplate.execute((ConnectionCallback<Long>) connection -> {
+            try {
+                return connection.unwrap(PGConnection.class).getCopyAPI()
+                        .copyIn(sql, new ByteArrayInputStream(buffer.toByteArray()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static void writeLong(DataOutputStream out, long value) throws IOException {
+        if (value == FixedPoint.NONE) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(8);
+            out.writeLong(value);
+        }
+    }
+
+    private static void writeScale(DataOutputStream out, long rate, short scale) throws IOException {
+        if (rate == FixedPoint.NONE) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(2);
+            out.writeShort(scale);
+        }
+    }
+
+    /**
+     * @return the start of the partition holding {@code epochSecond}, in epoch seconds
+     */
+    private long ensurePartition(long epochSecond) {
+        long start = Math.floorDiv(epochSecond, partitionSeconds) * partitionSeconds;
+        if (partitions.contains(start)) {
+            return start;
+        }
+        Instant from = Instant.ofEpochSecond(start);
+        Instant to = Instant.ofEpochSecond(start + partitionSeconds);
+        try {
+            jdbcTemplate.execute("create table if not exists " + partitionName(from, to) + " partition of " + TABLE
+                    + " for values from ('" + from + "') to ('" + to + "')");
+            partitions.add(start);
+        } catch (DataAccessException e) {
+            // Another instance created it at the same time; a missing partition fails the copy instead,
+            // and the next batch tries again
+            log.debug("Creating the partition of {} failed: {}", from, e.getMessage());
+        }
+        return start;
+    }
+
+    private static String partitionName(Instant from, Instant to) {
+        return TABLE + "_" + PARTITION_TIME.format(from) + "_" + PARTITION_TIME.format(to);
+    }
+
+    /**
+     * Removes the rows before {@code cutoff}: on PostgreSQL by dropping the partitions that end by then,
+     * so rows of the partition holding the cutoff are kept until it has passed entirely. Partitions not
+     * named like the ones created here, such as a default partition, are never dropped.
+     *
+     * @return the rows removed, estimated from the planner statistics for dropped partitions
+     */
+    public long deleteBefore(Instant cutoff) {
+        if (!postgres) {
+            return jdbcTemplate.update("delete from " + TABLE + " where computed_at < ?",
+                    OffsetDateTime.ofInstant(cutoff, ZoneOffset.UTC));
+        }
+        List<Object[]> children = jdbcTemplate.query("select c.relname, c.reltuples from pg_inherits i"
+                        + " join pg_class c on c.oid = i.inhrelid join pg_class p on p.oid = i.inhparent"
+                        + " where p.relname = ?",
+                (rs, row) -> new Object[] {rs.getString(1), rs.getDouble(2)}, TABLE);
+        long removed = 0;
+        for (Object[] child : children) {
+            String name = (String) child[0];
+            Matcher matcher = PARTITION_NAME.matcher(name);
+            if (!matcher.matches()) {
+                continue;
+            }
+            Instant end = Instant.from(PARTITION_TIME.parse(matcher.group(2)));
+            if (!end.isAfter(cutoff)) {
+                jdbcTemplate.execute("drop table if exists " + name);
+                partitions.remove(Instant.from(PARTITION_TIME.parse(matcher.group(1))).getEpochSecond());
+                removed += Math.max(0, Math.round((Double) child[1]));
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Keyset page of a direction's rates from {@code afterTime} (inclusive) to {@code to}, skipping the
+     * first {@code skip} rows at exactly {@code afterTime}, which an earlier page returned already.
+     */
+    public List<RatePoint> findPage(ConversionDirection direction, Instant afterTime, long skip, Instant to,
+                                    int limit) {
+        String prefix = isForward(direction) ? "forward" : "reverse";
+        List<RatePoint> rows = jdbcTemplate.query(select(prefix) + " limit ?", mapper(prefix),
+                OffsetDateTime.ofInstant(afterTime, ZoneOffset.UTC), OffsetDateTime.ofInstant(to, ZoneOffset.UTC),
+                skip + limit);
+        List<RatePoint> page = new ArrayList<>(Math.min(rows.size(), limit));
+        Instant time = null;
+        long position = 0;
+        for (RatePoint row : rows) {
+            if (!row.computedAt().equals(time)) {
+                time = row.computedAt();
+                position = 0;
+            }
+            position++;
+            if (time.equals(afterTime) && position <= skip) {
+                continue;
+            }
+            page.add(new RatePoint(position, row.computedAt(), row.rate(), row.bidAmount(), row.askAmount()));
+        }
+        return page;
+    }
+
+    /**
+     * Streams a direction's rates within {@code [from, to)} in time order; must be closed.
+     */
+    public Stream<RatePoint> streamRange(ConversionDirection direction, Instant from, Instant to) {
+        String prefix = isForward(direction) ? "forward" : "reverse";
+        return jdbcTemplate.queryForStream(select(prefix), mapper(prefix),
+                OffsetDateTime.ofInstant(from, ZoneOffset.UTC), OffsetDateTime.ofInstant(to, ZoneOffset.UTC));
+    }
+
+    private static String select(String prefix) {
+        return "select computed_at, " + prefix + "_rate, " + prefix + "_rate_scale, " + prefix + "_bid_amount, "
+                + prefix + "_ask_amount from " + TABLE
+                + " where " + prefix + "_rate is not null and computed_at >= ? and computed_at < ?"
+                // Rows of the same time in a fixed order, so positions among them stay put between pages
+                + " order by computed_at, " + prefix + "_rate, " + prefix + "_rate_scale, " + prefix + "_bid_amount, "
+                + prefix + "_ask_amount";
+    }
+
+    private static RowMapper<RatePoint> mapper(String prefix) {
+        return (rs, row) -> new RatePoint(null, rs.getObject(1, OffsetDateTime.class).toInstant(),
+                BigDecimal.valueOf(rs.getLong(2), rs.getShort(3)), amount(rs, 4), amount(rs, 5));
+    }
+
+    private static BigDecimal amount(ResultSet rs, int column) throws SQLException {
+        long value = rs.getLong(column);
+        return rs.wasNull() ? null : BigDecimal.valueOf(value, AMOUNT_SCALE);
+    }
+
+    private static boolean isForward(ConversionDirection direction) {
+        return switch (direction) {
+            case EUR_TO_CZK -> true;
+            case CZK_TO_EUR -> false;
+        };
+    }
+
+    /**
+     * One row: the rates of a computation, {@link FixedPoint#NONE} for a direction it did not persist.
+     */
+    private static final class Tick {
+
+        private final long computation;
+        private Instant computedAt;
+        private long forwardRate = FixedPoint.NONE;
+        private short forwardRateScale;
+        private long forwardBidAmount = FixedPoint.NONE;
+        private long forwardAskAmount = FixedPoint.NONE;
+        private long reverseRate = FixedPoint.NONE;
+        private short reverseRateScale;
+        private long reverseBidAmount = FixedPoint.NONE;
+        private long reverseAskAmount = FixedPoint.NONE;
+
+        Tick(long computation) {
+            this.computation = computation;
+        }
+
+        void add(ExchangeRate rate, boolean forward) {
+            if (computedAt == null || rate.getComputedAt().isBefore(computedAt)) {
+                computedAt = rate.getComputedAt();
+            }
+            BigDecimal value = rate.getRate();
+            if (value.precision() > FixedPoint.MAX_DIGITS) {
+                value = value.round(LONG_DIGITS);
+            }
+            long unscaled = value.unscaledValue().longValueExact();
+            short scale = (short) value.scale();
+            long bidAmount = FixedPoint.toUnscaled(rate.getBidAmount(), AMOUNT_SCALE);
+            long askAmount = FixedPoint.toUnscaled(rate.getAskAmount(), AMOUNT_SCALE);
+            if (forward) {
+                forwardRate = unscaled;
+                forwardRateScale = scale;
+                forwardBidAmount = bidAmount;
+                forwardAskAmount = askAmount;
+            } else {
+                reverseRate = unscaled;
+                reverseRateScale = scale;
+                reverseBidAmount = bidAmount;
+                reverseAskAmount = askAmount;
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package io.codextest.coinmate.repository;
+
+import io.codextest.coinmate.model.ShardMember;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+
+/**
+ * Heartbeats are stamped and compared by the database's clock, like the leases, so every instance
+ * agrees on which members are alive whatever its own clock says.
+ */
+public interface ShardMemberRepository extends JpaRepository<ShardMember, String> {
+
+    /**
+     * Adds the row of an instance that has none yet, with a heartbeat of now.
+     */
+    @Transactional
+    @Modifying
+    @Query(value = "insert into shard_members (instance_id, heartbeat_at) values (:instanceId, current_timestamp)",
+            nativeQuery = true)
+    void create(@Param("instanceId") String instanceId);
+
+    /**
+     * @return 0 when the instance has no row yet
+     */
+    @Transactional
+    @Modifying
+    @Query("update ShardMember m set m.heartbeatAt = instant where m.instanceId = :instanceId")
+    int heartbeat(@Param("instanceId") String instanceId);
+
+    /**
+     * @return the instances with a heartbeat within the last {@code millis}
+     */
+    @Query("select m.instanceId from ShardMember m where m.heartbeatAt >= instant - (:millis * 1000000L) nanosecond")
+    List<String> findAliveWithin(@Param("millis") long millis);
+
+    /**
+     * Forgets instances that have not been seen for {@code millis}; their leases expire on their own.
+     */
+    @Transactional
+    @Modifying
+    @Query("delete from ShardMember m where m.heartbeatAt < instant - (:millis * 1000000L) nanosecond")
+    int deleteSilentFor(@Param("millis") long millis);
+}
@@ -0,0 +1,132 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.Alert;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands fired alerts to every {@link AlertSink} on a background thread. Alerts are queued without
+ * blocking; when the queue is full the oldest alert is dropped.
+ * <p>
+ * Meters: {@code coinmate.alerts.fired}, {@code coinmate.alerts.dropped}, {@code coinmate.alerts.failed}
+ * (per sink call that threw) and the {@code coinmate.alerts.queued} gauge.
+ */
+@Component
+public class AlertPublisher implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(AlertPublisher.class);
+
+    private final List<AlertSink> sinks;
+    private final BlockingQueue<Alert> queue;
+    private final Counter fired;
+    private final Counter dropped;
+    private final Counter failed;
+
+    private volatile boolean running;
+    private Thread worker;
+
+    public AlertPublisher(List<AlertSink> sinks, CoinmateProperties properties, MeterRegistry meterRegistry) {
+        int capacity = properties.getAlerts().getQueueCapacity();
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Alert queue capacity must be positive");
+        }
+        this.sinks = List.copyOf(sinks);
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.fired = Counter.builder("coinmate.alerts.fired")
+                .description("Alerts fired by the alert rules")
+                .register(meterRegistry);
+        this.dropped = Counter.builder("coinmate.alerts.dropped")
+                .description("Alerts dropped because the sinks fell behind")
+                .register(meterRegistry);
+        this.failed = Counter.builder("coinmate.alerts.failed")
+                .description("Deliveries of an alert to a sink that failed")
+                .register(meterRegistry);
+        Gauge.builder("coinmate.alerts.queued", queue, BlockingQueue::size)
+                .description("Alerts waiting for the sinks")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Queues an alert for the sinks; never blocks.
+     */
+    public void publish(Alert alert) {
+        fired.increment();
+        while (!queue.offer(alert)) {
+            if (queue.poll() != null) {
+                dropped.increment();
+            }
+        }
+    }
+
+    private void runWorker() {
+        while (running || !queue.isEmpty()) {
+            try {
+                Alert alert = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (alert != null) {
+                    deliver(alert);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void deliver(Alert alert) {
+        for (AlertSink sink : sinks) {
+            try {
+                sink.accept(alert);
+            } catch (Exception e) {
+                failed.increment();
+                log.warn("Alert sink {} failed on rule {}: {}", sink, alert.rule().id(), e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        worker = new Thread(this::runWorker, "alert-publisher");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        // The worker delivers what is queued before it ends
+        running = false;
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        // Stop after the snapshot dispatcher, whose conversion lane still fires alerts while it winds down
+        return DEFAULT_PHASE - 1;
+    }
+}
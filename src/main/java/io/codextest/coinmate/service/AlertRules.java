@@ -0,0 +1,202 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.Alert;
+import io.codextest.coinmate.model.AlertRule;
+import io.codextest.coinmate.model.ConversionRate;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Alert rules on the rates of the conversion directions and the top of book of the pairs, evaluated
+ * by {@link OrderBookConversionService} with every rate it computes and every snapshot it admits.
+ * <p>
+ * Each subject keeps a {@link ThresholdIndex} per watched series (its rate or mid, its spread and its
+ * change over each window in use), so an update costs a lookup of the subject plus O(log n + fired
+ * rules) per series, and nothing for a subject without rules. Fired alerts go to the
+ * {@link AlertPublisher}. Rules are kept in memory: the configured ones are registered at startup.
+ */
+@Service
+public class AlertRules {
+
+    private final AlertPublisher publisher;
+    private final AtomicLong ids = new AtomicLong();
+    private final Map<Long, AlertRule> rules = new ConcurrentHashMap<>();
+    private final Map<String, Subject> subjects = new ConcurrentHashMap<>();
+
+    public AlertRules(AlertPublisher publisher, CoinmateProperties properties) {
+        this.publisher = publisher;
+        for (CoinmateProperties.Rule rule : properties.getAlerts().getRules()) {
+            add(new AlertRule(0, rule.getSubject(), rule.getKind(), rule.getThreshold(), rule.getWindow()));
+        }
+    }
+
+    /**
+     * @return the rule under its new id
+     */
+    public AlertRule add(AlertRule rule) {
+        AlertRule added = rule.withId(ids.incrementAndGet());
+        rules.put(added.id(), added);
+        subjects.computeIfAbsent(added.subject(), subject -> new Subject()).add(added);
+        return added;
+    }
+
+    /**
+     * @return whether the rule existed
+     */
+    public boolean remove(long id) {
+        AlertRule removed = rules.remove(id);
+        if (removed == null) {
+            return false;
+        }
+        Subject subject = subjects.get(removed.subject());
+        if (subject != null) {
+            subject.remove(removed);
+        }
+        return true;
+    }
+
+    public List<AlertRule> list() {
+        return rules.values().stream().sorted(Comparator.comparingLong(AlertRule::id)).toList();
+    }
+
+    /**
+     * Evaluates the rules of the rate's direction.
+     *
+     * @param spread the round-trip spread through both directions in the units of the rate, or {@code NaN}
+     */
+    public void onRate(ConversionRate rate, double spread) {
+        Subject subject = subjects.get(rate.directionKey());
+        if (subject == null) {
+            return;
+        }
+        double value = rate.rate().doubleValue();
+        subject.update(value, spread / value * 10_000, rate.computedAt());
+    }
+
+    /**
+     * Evaluates the rules of the snapshot's pair on its mid price and spread.
+     */
+    public void onSnapshot(OrderBookSnapshot snapshot) {
+        Subject subject = subjects.get(snapshot.currencyPair());
+        if (subject == null || snapshot.bestBid() <= 0 || snapshot.bestAsk() <= 0) {
+            return;
+        }
+        double scale = Math.pow(10, -snapshot.priceScale());
+        double mid = (snapshot.bestBid() + snapshot.bestAsk()) / 2.0 * scale;
+        double spreadBps = (snapshot.bestAsk() - snapshot.bestBid()) * scale / mid * 10_000;
+        subject.update(mid, spreadBps, snapshot.receivedAt());
+    }
+
+    /**
+     * The series of one direction or pair.
+     */
+    private final class Subject {
+
+        private final ThresholdIndex level = new ThresholdIndex();
+        private final ThresholdIndex spread = new ThresholdIndex();
+        private final Map<Duration, ChangeSeries> changes = new ConcurrentHashMap<>();
+
+        void add(AlertRule rule) {
+            switch (rule.kind()) {
+                case ABOVE -> level.add(rule, true);
+                case BELOW -> level.add(rule, false);
+                case SPREAD -> spread.add(rule, true);
+                case CHANGE -> changes.computeIfAbsent(rule.window(), ChangeSeries::new)
+                        .index.add(rule, rule.threshold() > 0);
+            }
+        }
+
+        void remove(AlertRule rule) {
+            switch (rule.kind()) {
+                case ABOVE -> level.remove(rule, true);
+                case BELOW -> level.remove(rule, false);
+                case SPREAD -> spread.remove(rule, true);
+                case CHANGE -> {
+                    ChangeSeries series = changes.get(rule.window());
+                    if (series != null) {
+                        series.index.remove(rule, rule.threshold() > 0);
+                    }
+                }
+            }
+        }
+
+        void update(double value, double spreadBps, Instant at) {
+            fire(level, value, at);
+            fire(spread, spreadBps, at);
+            if (!changes.isEmpty()) {
+                long micros = at.getEpochSecond() * 1_000_000 + at.getNano() / 1_000;
+                for (ChangeSeries series : changes.values()) {
+                    fire(series.index, series.change(value, micros), at);
+                }
+            }
+        }
+
+        private void fire(ThresholdIndex index, double value, Instant at) {
+            double previous = index.previous();
+            index.update(value, rule -> publisher.publish(new Alert(rule, value, previous, at)));
+        }
+    }
+
+    /**
+     * The values of a subject over the last window, to measure the change in percent against the value
+     * a window ago. Samples sit in a primitive ring that grows with the update rate.
+     */
+    private static final class ChangeSeries {
+
+        private final long windowMicros;
+        private final ThresholdIndex index = new ThresholdIndex();
+        private long[] times = new long[64];
+        private double[] values = new double[64];
+        private int oldest;
+        private int size;
+
+        ChangeSeries(Duration window) {
+            this.windowMicros = window.toNanos() / 1_000;
+        }
+
+        /**
+         * Adds the value and returns its change against the newest value at least a window old, or
+         * {@code NaN} until the series reaches back that far.
+         */
+        double change(double value, long micros) {
+            long start = micros - windowMicros;
+            // Keep one sample at or before the start of the window as the reference
+            while (size >= 2 && times[(oldest + 1) % times.length] <= start) {
+                oldest = (oldest + 1) % times.length;
+                size--;
+            }
+            double change = size > 0 && times[oldest] <= start
+                    ? (value - values[oldest]) / values[oldest] * 100
+                    : Double.NaN;
+            if (size == times.length) {
+                grow();
+            }
+            int slot = (oldest + size) % times.length;
+            times[slot] = micros;
+            values[slot] = value;
+            size++;
+            return change;
+        }
+
+        private void grow() {
+            long[] grownTimes = new long[times.length * 2];
+            double[] grownValues = new double[values.length * 2];
+            for (int i = 0; i < size; i++) {
+                grownTimes[i] = times[(oldest + i) % times.length];
+                grownValues[i] = values[(oldest + i) % values.length];
+            }
+            times = grownTimes;
+            values = grownValues;
+            oldest = 0;
+        }
+    }
+}
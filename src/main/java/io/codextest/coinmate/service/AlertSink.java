@@ -0,0 +1,13 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.model.Alert;
+
+/**
+ * Receives fired alerts. Every {@code AlertSink} bean is called, one alert at a time, on the
+ * {@link AlertPublisher}'s own thread; a slow sink delays the other sinks but never the rates.
+ */
+@FunctionalInterface
+public interface AlertSink {
+
+    void accept(Alert alert) throws Exception;
+}
@@ -2,6 +2,7 @@ package io.codextest.coinmate.service;
 
 import io.codextest.coinmate.config.CoinmateProperties;
 import io.codextest.coinmate.model.ApiResponse;
+import io.codextest.coinmate.model.OrderBookSnapshot;
 import io.codextest.coinmate.model.TradingPair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,38 +14,121 @@ import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.io.IOException;
 import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Coinmate's REST API: the trading pairs and, for seeding books on connect, the order book of a pair.
+ * Order book requests are paced to {@code seeding.requests-per-second} across all callers.
+ */
 @Component
 public class CoinmateApiClient {
 
     private static final Logger log = LoggerFactory.getLogger(CoinmateApiClient.class);
 
     private final WebClient webClient;
+    private final OrderBookPayloadParser payloadParser;
     private final Duration requestTimeout = Duration.ofSeconds(10);
+    private final long requestSpacingNanos;
+    private final int concurrency;
+    // When the next order book request may start, in System.nanoTime()
+    private final AtomicLong nextRequestAt = new AtomicLong(System.nanoTime());
 
-    public CoinmateApiClient(WebClient.Builder builder, CoinmateProperties properties) {
+    public CoinmateApiClient(WebClient.Builder builder, OrderBookPayloadParser payloadParser,
+                             CoinmateProperties properties) {
         this.webClient = builder
                 .baseUrl(properties.getRestBaseUrl())
                 .defaultHeader(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON_VALUE)
                 .build();
+        this.payloadParser = payloadParser;
+        CoinmateProperties.Seeding seeding = properties.getSeeding();
+        this.requestSpacingNanos = seeding.getRequestsPerSecond() > 0
+                ? 1_000_000_000L / seeding.getRequestsPerSecond()
+                : 0;
+        this.concurrency = Math.max(1, seeding.getConcurrency());
     }
 
     public Flux<String> fetchCurrencyPairs() {
+        return fetchTradingPairs().map(TradingPair::getName);
+    }
+
+    /**
+     * @return the available trading pairs sorted by name, including their price and amount precision
+     */
+    public Flux<TradingPair> fetchTradingPairs() {
         return webClient.get()
                 .uri("/api/tradingPairs")
                 .retrieve()
                 .bodyToMono(new ParameterizedTypeReference<ApiResponse<List<TradingPair>>>() {})
                 .timeout(requestTimeout)
                 .flatMapMany(this::toPairs)
-                .sort(Comparator.naturalOrder())
+                .sort(Comparator.comparing(TradingPair::getName))
                 .doOnSubscribe(subscription -> log.info("Requesting available currency pairs from Coinmate API"))
                 .doOnComplete(() -> log.info("Finished loading currency pairs"));
     }
 
-    private Flux<String> toPairs(ApiResponse<List<TradingPair>> response) {
+    /**
+     * Fetches the current order book of a pair, waiting for its turn under the request rate limit.
+     *
+     * @return the best bid and ask, stamped with the arrival of the response; empty when the book has
+     * no bids or asks
+     */
+    public Mono<OrderBookSnapshot> fetchOrderBook(String currencyPair) {
+        return Mono.defer(() -> {
+                    Mono<String> request = webClient.get()
+                            .uri("/api/orderBook?currencyPair={pair}&groupByPriceLimit=False", currencyPair)
+                            .retrieve()
+                            .bodyToMono(String.class)
+                            .timeout(requestTimeout);
+                    long wait = reserveRequest();
+                    return wait > 0 ? Mono.delay(Duration.ofNanos(wait)).then(request) : request;
+                })
+                .handle((body, sink) -> {
+                    try {
+                        OrderBookSnapshot snapshot =
+                                payloadParser.parseOrderBookResponse(currencyPair, body, Instant.now());
+                        if (snapshot != null) {
+                            sink.next(snapshot);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        sink.error(e);
+                    }
+                });
+    }
+
+    /**
+     * Fetches the order books of several pairs, up to {@code seeding.concurrency} at a time. A pair whose
+     * request fails is logged and left out.
+     *
+     * @return the books in the order their responses arrive
+     */
+    public Flux<OrderBookSnapshot> fetchOrderBooks(Collection<String> currencyPairs) {
+        return Flux.fromIterable(currencyPairs)
+                .flatMap(pair -> fetchOrderBook(pair)
+                        .onErrorResume(e -> {
+                            log.warn("Could not fetch the order book of {}: {}", pair, e.getMessage());
+                            return Mono.empty();
+                        }), concurrency);
+    }
+
+    /**
+     * Takes the next free slot of the request rate limit.
+     *
+     * @return nanoseconds until the slot starts
+     */
+    private long reserveRequest() {
+        long now = System.nanoTime();
+        long slot = nextRequestAt.getAndAccumulate(now,
+                (next, time) -> (next - time > 0 ? next : time) + requestSpacingNanos);
+        return Math.max(0, slot - now);
+    }
+
+    private Flux<TradingPair> toPairs(ApiResponse<List<TradingPair>> response) {
         if (response == null) {
             return Flux.empty();
         }
@@ -57,7 +141,6 @@ public class CoinmateApiClient {
             return Flux.empty();
         }
         return Flux.fromIterable(pairs)
-                .map(TradingPair::getName)
-                .filter(name -> name != null && !name.isBlank());
+                .filter(pair -> pair.getName() != null && !pair.getName().isBlank());
     }
 }
@@ -0,0 +1,216 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Admits WebSocket handshakes, at most {@code connections.max-concurrent-handshakes} at a time, so
+ * streams that connect or reconnect together reach Coinmate one after another instead of all at once.
+ * Waiting handshakes of streams carrying a {@linkplain #prioritize critical} pair go first, the others
+ * in the order they asked; so the wait of a critical stream is bounded by the handshakes already in
+ * progress, however many streams there are.
+ * <p>
+ * Meters ({@code priority} tag {@code critical} or {@code other}): {@code coinmate.handshake.wait}
+ * times the wait for a place, {@code coinmate.handshake} the handshake itself,
+ * {@code coinmate.handshake.failed} counts handshakes that failed or timed out, and the
+ * {@code coinmate.handshake.queued} gauge shows the handshakes waiting.
+ */
+@Component
+public class ConnectionScheduler {
+
+    private final int maxConcurrent;
+    private final Duration handshakeTimeout;
+    private final PriorityQueue<Waiter> waiting = new PriorityQueue<>(
+            Comparator.comparing((Waiter waiter) -> !waiter.critical).thenComparingLong(waiter -> waiter.sequence));
+    private final Meters critical;
+    private final Meters other;
+    private volatile Predicate<String> criticalPairs = pair -> false;
+    private int inProgress;
+    private long sequence;
+
+    public ConnectionScheduler(CoinmateProperties properties, MeterRegistry meterRegistry) {
+        CoinmateProperties.Connections connections = properties.getConnections();
+        this.maxConcurrent = Math.max(1, connections.getMaxConcurrentHandshakes());
+        this.handshakeTimeout = connections.getHandshakeTimeout();
+        this.critical = new Meters("critical", meterRegistry);
+        this.other = new Meters("other", meterRegistry);
+        Gauge.builder("coinmate.handshake.queued", this, ConnectionScheduler::getQueued)
+                .description("WebSocket handshakes waiting for a place")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Sets the pairs whose streams connect first, e.g. those on a conversion route.
+     */
+    public void prioritize(Predicate<String> criticalPairs) {
+        this.criticalPairs = criticalPairs;
+    }
+
+    /**
+     * Waits for a place for the handshake of a stream carrying the given pairs. The place is held until
+     * the returned {@link Handshake} is {@linkplain Handshake#connected connected} or
+     * {@linkplain Handshake#release released}, or until {@code connections.handshake-timeout} has passed.
+     * Cancelling the wait gives up the place in line.
+     */
+    public Mono<Handshake> acquire(Collection<String> currencyPairs) {
+        return Mono.create(sink -> {
+            Predicate<String> isCritical = criticalPairs;
+            boolean priority = currencyPairs.stream().anyMatch(isCritical);
+            Waiter waiter = new Waiter(sink, priority, System.nanoTime());
+            boolean admitted;
+            synchronized (this) {
+                waiter.sequence = sequence++;
+                admitted = inProgress < maxConcurrent && waiting.isEmpty();
+                if (admitted) {
+                    inProgress++;
+                } else {
+                    waiting.add(waiter);
+                }
+            }
+            if (admitted) {
+                admit(waiter);
+            } else {
+                sink.onCancel(() -> {
+                    waiter.cancelled = true;
+                    synchronized (this) {
+                        waiting.remove(waiter);
+                    }
+                });
+            }
+        });
+    }
+
+    public synchronized int getQueued() {
+        return waiting.size();
+    }
+
+    private void admit(Waiter waiter) {
+        if (waiter.cancelled) {
+            leave();
+            return;
+        }
+        Meters meters = waiter.critical ? critical : other;
+        meters.wait.record(System.nanoTime() - waiter.queuedAtNanos, TimeUnit.NANOSECONDS);
+        Handshake handshake = new Handshake(meters);
+        // Also frees the place should the waiter have been cancelled just now
+        if (!handshakeTimeout.isZero() && !handshakeTimeout.isNegative()) {
+            handshake.timeout = Schedulers.parallel().schedule(handshake::release, handshakeTimeout.toNanos(),
+                    TimeUnit.NANOSECONDS);
+        }
+        waiter.sink.success(handshake);
+    }
+
+    private void leave() {
+        Waiter next;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                inProgress--;
+            }
+        }
+        if (next != null) {
+            admit(next);
+        }
+    }
+
+    /**
+     * A place held by one handshake; giving it up more than once has no further effect.
+     */
+    public final class Handshake {
+
+        private final Meters meters;
+        private final long startedAtNanos = System.nanoTime();
+        private volatile Disposable timeout;
+        private boolean done;
+
+        private Handshake(Meters meters) {
+            this.meters = meters;
+        }
+
+        /**
+         * Records the completed handshake and gives up its place.
+         */
+        public void connected() {
+            if (finish()) {
+                meters.handshake.record(System.nanoTime() - startedAtNanos, TimeUnit.NANOSECONDS);
+                leave();
+            }
+        }
+
+        /**
+         * Gives up the place of a handshake that failed, or that has not completed within the timeout.
+         */
+        public void release() {
+            if (finish()) {
+                meters.failed.increment();
+                leave();
+            }
+        }
+
+        private boolean finish() {
+            synchronized (this) {
+                if (done) {
+                    return false;
+                }
+                done = true;
+            }
+            Disposable pending = timeout;
+            if (pending != null) {
+                pending.dispose();
+            }
+            return true;
+        }
+    }
+
+    private static final class Waiter {
+
+        private final MonoSink<Handshake> sink;
+        private final boolean critical;
+        private final long queuedAtNanos;
+        private long sequence;
+        private volatile boolean cancelled;
+
+        Waiter(MonoSink<Handshake> sink, boolean critical, long queuedAtNanos) {
+            this.sink = sink;
+            this.critical = critical;
+            this.queuedAtNanos = queuedAtNanos;
+        }
+    }
+
+    private static final class Meters {
+
+        private final Timer wait;
+        private final Timer handshake;
+        private final Counter failed;
+
+        Meters(String priority, MeterRegistry meterRegistry) {
+            this.wait = Timer.builder("coinmate.handshake.wait")
+                    .description("Time a WebSocket handshake waited for a place")
+                    .tag("priority", priority)
+                    .register(meterRegistry);
+            this.handshake = Timer.builder("coinmate.handshake")
+                    .description("Time from a WebSocket handshake's start to the open connection")
+                    .tag("priority", priority)
+                    .register(meterRegistry);
+            this.failed = Counter.builder("coinmate.handshake.failed")
+                    .description("WebSocket handshakes that failed or timed out")
+                    .tag("priority", priority)
+                    .register(meterRegistry);
+        }
+    }
+}
@@ -0,0 +1,453 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.ConversionRate;
+import io.codextest.coinmate.model.FixedPoint;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Currencies connected by the subscribed order books, with every route of up to {@code maxHops} books
+ * precomputed for each configured conversion.
+ * <p>
+ * A pair {@code BASE_QUOTE} is an edge both ways: BASE→QUOTE sells into the bids, QUOTE→BASE buys from
+ * the asks. Routes are indexed by the pairs they cross, so a snapshot only re-evaluates the routes that
+ * actually use its pair and the per-update cost does not grow with the number of subscribed pairs.
+ * <p>
+ * Rates are computed on the snapshots' scaled {@code long}s with {@link FixedPoint#divide}, which
+ * rounds exactly like {@link BigDecimal#divide(BigDecimal, MathContext)}; routes whose products
+ * overflow a {@code long} are computed with {@link BigDecimal} instead.
+ */
+public class CurrencyGraph {
+
+    private final List<CoinmateProperties.Conversion> conversions;
+    private final int maxHops;
+    private final MathContext mathContext;
+    private final boolean fixedPointDivision;
+    private final Set<String> pairs = ConcurrentHashMap.newKeySet();
+    private volatile Index index = new Index(List.of(), Map.of(), Map.of());
+
+    public CurrencyGraph(List<CoinmateProperties.Conversion> conversions, int maxHops, MathContext mathContext) {
+        if (maxHops <= 0) {
+            throw new IllegalArgumentException("maxHops must be positive: " + maxHops);
+        }
+        this.conversions = List.copyOf(conversions);
+        this.maxHops = maxHops;
+        this.mathContext = mathContext;
+        if (mathContext.getPrecision() <= 0 || mathContext.getPrecision() > FixedPoint.MAX_DIGITS) {
+            throw new IllegalArgumentException("Rate precision must be within 1.." + FixedPoint.MAX_DIGITS
+                    + " digits: " + mathContext.getPrecision());
+        }
+        this.fixedPointDivision = mathContext.getRoundingMode() == RoundingMode.HALF_UP;
+    }
+
+    public boolean knows(String currencyPair) {
+        return pairs.contains(currencyPair);
+    }
+
+    /**
+     * Adds pairs to the graph, rebuilding the route index when at least one of them is new.
+     *
+     * @return whether the routes were rebuilt; previously evaluated routes are discarded in that case
+     */
+    public synchronized boolean addPairs(Collection<String> currencyPairs) {
+        boolean changed = false;
+        for (String pair : currencyPairs) {
+            if (currencies(pair) != null && pairs.add(pair)) {
+                changed = true;
+            }
+        }
+        if (changed) {
+            index = buildIndex();
+        }
+        return changed;
+    }
+
+    public List<Leg> legs() {
+        return index.legs;
+    }
+
+    /**
+     * @return the leg converting {@code fromCurrency} into {@code toCurrency}, or {@code null} if not configured
+     */
+    public Leg leg(String fromCurrency, String toCurrency) {
+        for (Leg leg : index.legs) {
+            if (leg.fromCurrency.equals(fromCurrency) && leg.toCurrency.equals(toCurrency)) {
+                return leg;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return whether a route of a configured conversion crosses the pair's order book
+     */
+    public boolean isRouted(String currencyPair) {
+        return index.routesByPair.containsKey(currencyPair);
+    }
+
+    /**
+     * @return the conversion whose routes cross the pair, like {@code EUR_CZK}, or {@code null} for a pair
+     * on no route. Conversions sharing a pair are one group, named after the first configured of them.
+     */
+    public String routeGroup(String currencyPair) {
+        return index.groupByPair.get(currencyPair);
+    }
+
+    public List<Route> routesThrough(String currencyPair) {
+        return index.routesByPair.getOrDefault(currencyPair, List.of());
+    }
+
+    private Index buildIndex() {
+        Map<String, List<Hop>> adjacency = new HashMap<>();
+        for (String pair : pairs) {
+            String[] currencies = currencies(pair);
+            adjacency.computeIfAbsent(currencies[0], c -> new ArrayList<>()).add(new Hop(pair, true, currencies[1]));
+            adjacency.computeIfAbsent(currencies[1], c -> new ArrayList<>()).add(new Hop(pair, false, currencies[0]));
+        }
+        List<Leg> legs = new ArrayList<>();
+        Map<String, List<Route>> routesByPair = new HashMap<>();
+        Map<String, String> groupByPair = new HashMap<>();
+        List<String> groupOrder = new ArrayList<>();
+        for (CoinmateProperties.Conversion conversion : conversions) {
+            Leg forward = buildLeg(conversion.getSource(), conversion.getTarget(), false, adjacency, routesByPair);
+            legs.add(forward);
+            legs.add(buildLeg(conversion.getTarget(), conversion.getSource(), true, adjacency, routesByPair));
+            // The inverse leg crosses the same books
+            group(conversion.getSource() + "_" + conversion.getTarget(), forward, groupByPair, groupOrder);
+        }
+        routesByPair.replaceAll((pair, routes) -> List.copyOf(routes));
+        return new Index(List.copyOf(legs), Map.copyOf(routesByPair), Map.copyOf(groupByPair));
+    }
+
+    /**
+     * Puts the pairs on the leg's routes into the group {@code name}, merging the groups of earlier
+     * conversions that share one of them.
+     */
+    private static void group(String name, Leg leg, Map<String, String> groupByPair, List<String> groupOrder) {
+        Set<String> pairs = new HashSet<>();
+        for (Route route : leg.routes) {
+            for (Hop hop : route.hops) {
+                pairs.add(hop.pair);
+            }
+        }
+        Set<String> joined = new HashSet<>();
+        for (String pair : pairs) {
+            String existing = groupByPair.get(pair);
+            if (existing != null) {
+                joined.add(existing);
+            }
+        }
+        // Every instance has to arrive at the same name: the earliest configured conversion of the group
+        String target = name;
+        for (String group : groupOrder) {
+            if (joined.contains(group)) {
+                target = group;
+                break;
+            }
+        }
+        groupOrder.add(name);
+        String merged = target;
+        groupByPair.replaceAll((pair, group) -> joined.contains(group) ? merged : group);
+        pairs.forEach(pair -> groupByPair.put(pair, merged));
+    }
+
+    private Leg buildLeg(String from, String to, boolean inverse,
+                         Map<String, List<Hop>> adjacency, Map<String, List<Route>> routesByPair) {
+        List<Hop[]> paths = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        visited.add(from);
+        collectPaths(from, to, adjacency, visited, new ArrayList<>(), paths);
+        paths.sort(Comparator.<Hop[]>comparingInt(path -> path.length).thenComparing(CurrencyGraph::describe));
+
+        Leg leg = new Leg(from, to, inverse);
+        List<Route> routes = new ArrayList<>(paths.size());
+        for (Hop[] path : paths) {
+            Route route = new Route(leg, path);
+            routes.add(route);
+            for (Hop hop : path) {
+                routesByPair.computeIfAbsent(hop.pair, p -> new ArrayList<>()).add(route);
+            }
+        }
+        leg.routes = List.copyOf(routes);
+        return leg;
+    }
+
+    private void collectPaths(String current, String target, Map<String, List<Hop>> adjacency,
+                              Set<String> visited, List<Hop> path, List<Hop[]> paths) {
+        if (path.size() >= maxHops) {
+            return;
+        }
+        for (Hop hop : adjacency.getOrDefault(current, List.of())) {
+            if (hop.to.equals(target)) {
+                path.add(hop);
+                paths.add(path.toArray(new Hop[0]));
+                path.remove(path.size() - 1);
+            } else if (visited.add(hop.to)) {
+                path.add(hop);
+                collectPaths(hop.to, target, adjacency, visited, path, paths);
+                path.remove(path.size() - 1);
+                visited.remove(hop.to);
+            }
+        }
+    }
+
+    private static String describe(Hop[] path) {
+        StringBuilder description = new StringBuilder();
+        for (Hop hop : path) {
+            if (description.length() > 0) {
+                description.append('>');
+            }
+            description.append(hop.pair);
+        }
+        return description.toString();
+    }
+
+    private static String[] currencies(String pair) {
+        if (pair == null) {
+            return null;
+        }
+        String[] parts = pair.split("_");
+        if (parts.length != 2 || parts[0].isBlank() || parts[1].isBlank()) {
+            return null;
+        }
+        return parts;
+    }
+
+    private static boolean isValid(OrderBookSnapshot snapshot) {
+        return snapshot != null && snapshot.bestBid() > 0 && snapshot.bestAsk() > 0;
+    }
+
+    private record Index(List<Leg> legs, Map<String, List<Route>> routesByPair, Map<String, String> groupByPair) {
+    }
+
+    /**
+     * One step of a route: selling the pair's base currency into its bids, or buying it from its asks.
+     */
+    public record Hop(String pair, boolean sell, String to) {
+    }
+
+    /**
+     * One direction of a configured conversion together with all of its candidate routes.
+     */
+    public static final class Leg {
+        private final String fromCurrency;
+        private final String toCurrency;
+        private final boolean inverse;
+        private List<Route> routes = List.of();
+        private volatile Route best;
+
+        private Leg(String fromCurrency, String toCurrency, boolean inverse) {
+            this.fromCurrency = fromCurrency;
+            this.toCurrency = toCurrency;
+            this.inverse = inverse;
+        }
+
+        public String getFromCurrency() {
+            return fromCurrency;
+        }
+
+        public String getToCurrency() {
+            return toCurrency;
+        }
+
+        /**
+         * Whether this leg converts the configured target back into the source; its rates are then the
+         * target-currency cost of one source unit.
+         */
+        public boolean isInverse() {
+            return inverse;
+        }
+
+        public List<Route> getRoutes() {
+            return routes;
+        }
+
+        public Route getBest() {
+            return best;
+        }
+
+        /**
+         * Picks the most favourable evaluated route: the highest rate going forward, the lowest cost inverse.
+         *
+         * @return the rate over the best route, or {@code null} when no route can be evaluated yet
+         */
+        public ConversionRate selectBest() {
+            Route selected = null;
+            Evaluation selectedValue = null;
+            for (Route route : routes) {
+                Evaluation value = route.value;
+                if (value == null) {
+                    continue;
+                }
+                if (selected != null) {
+                    int comparison = value.rate.compareTo(selectedValue.rate);
+                    if (inverse ? comparison >= 0 : comparison <= 0) {
+                        continue;
+                    }
+                }
+                selected = route;
+                selectedValue = value;
+            }
+            best = selected;
+            if (selected == null) {
+                return null;
+            }
+            return new ConversionRate(fromCurrency, toCurrency, selectedValue.rate.toBigDecimal(),
+                    FixedPoint.toBigDecimal(selectedValue.bidAmount, selectedValue.bidAmountScale),
+                    FixedPoint.toBigDecimal(selectedValue.askAmount, selectedValue.askAmountScale),
+                    selected.description, Instant.now());
+        }
+    }
+
+    /**
+     * A chain of order books leading from a leg's source to its target currency.
+     */
+    public final class Route {
+        private final Leg leg;
+        private final Hop[] hops;
+        private final String description;
+        private volatile Evaluation value;
+
+        private Route(Leg leg, Hop[] hops) {
+            this.leg = leg;
+            this.hops = hops;
+            this.description = describe(hops);
+        }
+
+        public Leg getLeg() {
+            return leg;
+        }
+
+        public List<Hop> getHops() {
+            return List.of(hops);
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        /**
+         * @return the top-of-book rate of this route, quoted like {@link ConversionRate#rate()}, or
+         * {@code null} when one of its books has no valid snapshot
+         */
+        public BigDecimal getRate() {
+            Evaluation current = value;
+            return current == null ? null : current.rate.toBigDecimal();
+        }
+
+        /**
+         * Re-evaluates the route from the latest snapshots. The rate is the product of the bids sold into
+         * divided by the product of the asks bought from, with a single division so a two-book route gives
+         * exactly the same figure as dividing the two prices directly.
+         */
+        public void evaluate(Function<String, OrderBookSnapshot> snapshots) {
+            long numerator = 1;
+            int numeratorScale = 0;
+            long denominator = 1;
+            int denominatorScale = 0;
+            boolean overflow = false;
+            long lastBidAmount = FixedPoint.NONE;
+            int lastBidAmountScale = 0;
+            long firstAskAmount = FixedPoint.NONE;
+            int firstAskAmountScale = 0;
+            boolean askSeen = false;
+            for (Hop hop : hops) {
+                OrderBookSnapshot snapshot = snapshots.apply(hop.pair);
+                if (!isValid(snapshot)) {
+                    value = null;
+                    return;
+                }
+                if (hop.sell) {
+                    if (!overflow) {
+                        try {
+                            numerator = Math.multiplyExact(numerator, snapshot.bestBid());
+                            numeratorScale += snapshot.priceScale();
+                        } catch (ArithmeticException e) {
+                            overflow = true;
+                        }
+                    }
+                    lastBidAmount = snapshot.bestBidAmount();
+                    lastBidAmountScale = snapshot.amountScale();
+                } else {
+                    if (!overflow) {
+                        try {
+                            denominator = Math.multiplyExact(denominator, snapshot.bestAsk());
+                            denominatorScale += snapshot.priceScale();
+                        } catch (ArithmeticException e) {
+                            overflow = true;
+                        }
+                    }
+                    if (!askSeen) {
+                        firstAskAmount = snapshot.bestAskAmount();
+                        firstAskAmountScale = snapshot.amountScale();
+                        askSeen = true;
+                    }
+                }
+            }
+            FixedPoint rate = null;
+            if (!overflow && fixedPointDivision) {
+                try {
+                    rate = leg.inverse
+                            ? FixedPoint.divide(denominator, denominatorScale, numerator, numeratorScale,
+                                    mathContext.getPrecision())
+                            : FixedPoint.divide(numerator, numeratorScale, denominator, denominatorScale,
+                                    mathContext.getPrecision());
+                } catch (ArithmeticException e) {
+                    rate = null;
+                }
+            }
+            if (rate == null) {
+                rate = evaluateDecimal(snapshots);
+            }
+            if (rate == null) {
+                value = null;
+                return;
+            }
+            value = new Evaluation(rate, lastBidAmount, lastBidAmountScale, firstAskAmount, firstAskAmountScale);
+        }
+
+        /**
+         * Same rate computed with {@link BigDecimal}, for routes that do not fit {@code long} arithmetic.
+         *
+         * @return the rate, or {@code null} when a book was replaced by an unusable snapshot meanwhile
+         */
+        private FixedPoint evaluateDecimal(Function<String, OrderBookSnapshot> snapshots) {
+            BigDecimal numerator = BigDecimal.ONE;
+            BigDecimal denominator = BigDecimal.ONE;
+            for (Hop hop : hops) {
+                OrderBookSnapshot snapshot = snapshots.apply(hop.pair);
+                if (!isValid(snapshot)) {
+                    return null;
+                }
+                if (hop.sell) {
+                    numerator = numerator.multiply(snapshot.bestBidDecimal());
+                } else {
+                    denominator = denominator.multiply(snapshot.bestAskDecimal());
+                }
+            }
+            BigDecimal rate = leg.inverse
+                    ? denominator.divide(numerator, mathContext)
+                    : numerator.divide(denominator, mathContext);
+            return new FixedPoint(rate.unscaledValue().longValueExact(), rate.scale());
+        }
+    }
+
+    private record Evaluation(FixedPoint rate, long bidAmount, int bidAmountScale,
+                              long askAmount, int askAmountScale) {
+    }
+}
@@ -0,0 +1,202 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.ConversionDirection;
+import io.codextest.coinmate.model.DownsampledRate;
+import io.codextest.coinmate.model.RateHistoryPage;
+import io.codextest.coinmate.model.RatePoint;
+import io.codextest.coinmate.model.RateSpan;
+import io.codextest.coinmate.repository.ExchangeRateRepository;
+import io.codextest.coinmate.repository.RateRollupRepository;
+import io.codextest.coinmate.repository.RateTickRepository;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+/**
+ * Reads the stored history of a direction, either page by page or downsampled to a bounded number of
+ * points.
+ * <p>
+ * Pages use keyset pagination on {@code (computedAt, id)}: the cursor of a page is the position of its
+ * last rate, so every page is a single index range scan regardless of how deep into the history it is.
+ * Downsampling streams rows from the database and folds them into buckets as they arrive, so memory is
+ * bounded by the number of points. Buckets at least as wide as a configured rollup width are computed
+ * from {@code exchange_rate_rollups} instead of the raw rows; rollup buckets that are still open are
+ * not included yet. With compact storage the raw rates are read from {@link RateTickRepository}.
+ */
+@Service
+public class ExchangeRateHistoryService {
+
+    private final ExchangeRateRepository exchangeRateRepository;
+    private final RateRollupRepository rollupRepository;
+    private final RateTickRepository tickRepository;
+    private final CoinmateProperties.History settings;
+    private final CoinmateProperties.Rollup rollupSettings;
+
+    public ExchangeRateHistoryService(ExchangeRateRepository exchangeRateRepository,
+                                      RateRollupRepository rollupRepository,
+                                      RateTickRepository tickRepository,
+                                      CoinmateProperties properties) {
+        this.exchangeRateRepository = exchangeRateRepository;
+        this.rollupRepository = rollupRepository;
+        this.tickRepository = tickRepository;
+        this.settings = properties.getHistory();
+        this.rollupSettings = properties.getRollup();
+    }
+
+    /**
+     * @param after cursor from the previous page, or {@code null} for the first page
+     * @param limit page size, capped at {@code max-page-size}
+     * @throws IllegalArgumentException for an empty range or a malformed cursor
+     */
+    public RateHistoryPage page(ConversionDirection direction, Instant from, Instant to, String after, int limit) {
+        checkRange(direction, from, to);
+        int size = Math.max(1, Math.min(limit, settings.getMaxPageSize()));
+        Instant afterTime = from;
+        long afterId = Long.MIN_VALUE;
+        if (after != null && !after.isBlank()) {
+            int separator = after.lastIndexOf('_');
+            try {
+                Instant cursorTime = Instant.parse(after.substring(0, Math.max(separator, 0)));
+                if (!cursorTime.isBefore(from)) {
+                    afterTime = cursorTime;
+                    afterId = Long.parseLong(after.substring(separator + 1));
+                }
+            } catch (DateTimeParseException | NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed cursor: " + after);
+            }
+        }
+        // One extra row tells whether another page follows
+        List<RatePoint> items = tickRepository.isEnabled()
+                ? tickRepository.findPage(direction, afterTime, Math.max(afterId, 0), to, size + 1)
+                : exchangeRateRepository.findPage(direction, afterTime, afterId, to, Limit.of(size + 1));
+        if (items.size() <= size) {
+            return new RateHistoryPage(items, null);
+        }
+        List<RatePoint> page = items.subList(0, size);
+        RatePoint last = page.get(size - 1);
+        return new RateHistoryPage(List.copyOf(page), last.computedAt() + "_" + last.id());
+    }
+
+    /**
+     * Splits {@code [from, to)} into at most {@code points} equal buckets (a little wider when aligned to
+     * rollup buckets) and returns the non-empty ones in time order.
+     *
+     * @throws IllegalArgumentException for an empty range
+     */
+    @Transactional(readOnly = true)
+    public List<DownsampledRate> downsample(ConversionDirection direction, Instant from, Instant to, int points) {
+        checkRange(direction, from, to);
+        int count = Math.max(1, Math.min(points, settings.getMaxPoints()));
+        long width = Math.max(1, ceilDiv(Duration.between(from, to).toMillis(), count));
+        int rollupSeconds = rollupWidthFor(width);
+        if (rollupSeconds > 0) {
+            // Buckets made of whole rollup buckets, so none of those straddles two points
+            long unit = rollupSeconds * 1000L;
+            width = ceilDiv(width, unit) * unit;
+            long origin = Math.floorDiv(from.toEpochMilli(), unit) * unit;
+            try (Stream<RateSpan> rows =
+                         rollupRepository.streamRange(direction, rollupSeconds, Instant.ofEpochMilli(origin), to)) {
+                return fold(rows.iterator(), origin, width);
+            }
+        }
+        try (Stream<RatePoint> rows = tickRepository.isEnabled()
+                ? tickRepository.streamRange(direction, from, to)
+                : exchangeRateRepository.streamRange(direction, from, to)) {
+            Iterator<RateSpan> single = rows
+                    .map(row -> new RateSpan(row.computedAt(), row.computedAt(), row.computedAt(),
+                            row.rate(), row.rate(), row.rate(), row.rate(), 1L))
+                    .iterator();
+            return fold(single, from.toEpochMilli(), width);
+        }
+    }
+
+    private int rollupWidthFor(long bucketMillis) {
+        if (!rollupSettings.isEnabled()) {
+            return 0;
+        }
+        long best = 0;
+        for (Duration width : rollupSettings.getBuckets()) {
+            long millis = width.toMillis();
+            if (millis <= bucketMillis && millis > best) {
+                best = millis;
+            }
+        }
+        return (int) (best / 1000);
+    }
+
+    /**
+     * Folds rows in order of their bucket start into points; the open and close of a point are those of
+     * the rows with the earliest open and the latest close, whatever the order of the rows within it.
+     */
+    private static List<DownsampledRate> fold(Iterator<RateSpan> rows, long origin, long width) {
+        List<DownsampledRate> points = new ArrayList<>();
+        long bucket = Long.MIN_VALUE;
+        BigDecimal open = null;
+        BigDecimal high = null;
+        BigDecimal low = null;
+        BigDecimal close = null;
+        Instant openAt = null;
+        Instant closeAt = null;
+        long count = 0;
+        while (rows.hasNext()) {
+            RateSpan row = rows.next();
+            long index = Math.floorDiv(row.bucketStart().toEpochMilli() - origin, width);
+            if (index != bucket) {
+                if (count > 0) {
+                    points.add(new DownsampledRate(Instant.ofEpochMilli(origin + bucket * width),
+                            open, high, low, close, count));
+                }
+                bucket = index;
+                open = row.open();
+                openAt = row.openAt();
+                high = row.high();
+                low = row.low();
+                close = row.close();
+                closeAt = row.closeAt();
+                count = 0;
+            }
+            if (row.openAt().isBefore(openAt)) {
+                open = row.open();
+                openAt = row.openAt();
+            }
+            if (row.high().compareTo(high) > 0) {
+                high = row.high();
+            }
+            if (row.low().compareTo(low) < 0) {
+                low = row.low();
+            }
+            // Of rows closing at the same time, e.g. rates in time order, the later one
+            if (!row.closeAt().isBefore(closeAt)) {
+                close = row.close();
+                closeAt = row.closeAt();
+            }
+            count += row.count();
+        }
+        if (count > 0) {
+            points.add(new DownsampledRate(Instant.ofEpochMilli(origin + bucket * width), open, high, low, close, count));
+        }
+        return points;
+    }
+
+    private static void checkRange(ConversionDirection direction, Instant from, Instant to) {
+        Objects.requireNonNull(direction, "direction");
+        if (from == null || to == null || !from.isBefore(to)) {
+            throw new IllegalArgumentException("History range must have from before to: " + from + ".." + to);
+        }
+    }
+
+    private static long ceilDiv(long dividend, long divisor) {
+        return -Math.floorDiv(-dividend, divisor);
+    }
+}
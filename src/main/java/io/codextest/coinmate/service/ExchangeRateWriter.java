@@ -0,0 +1,425 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.ExchangeRate;
+import io.codextest.coinmate.repository.ExchangeRateRepository;
+import io.codextest.coinmate.repository.RateTickRepository;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind stage for {@link ExchangeRate}s.
+ * <p>
+ * Rates are handed over with {@link #submit} into a bounded ring and written by a single background
+ * thread with {@code saveAll}, so Hibernate turns each flush into one JDBC batch (which PgJDBC's
+ * {@code reWriteBatchedInserts} sends as multi-row inserts). With compact storage the batch goes to
+ * {@link RateTickRepository} instead, which writes both directions of a computation as one row. A batch is flushed once
+ * {@code batch-size} rates are waiting or the oldest one has waited {@code flush-interval}. When the
+ * ring is full the configured {@link CoinmateProperties.OverflowPolicy} applies. A batch that fails is
+ * retried {@code write-retries} times with a doubling backoff and then written in halves, down to single
+ * rates, so an outage shorter than the retries loses nothing and a bad row loses only itself. Only one
+ * thread writes at a time. Stopping the application drains the ring before the data source goes away.
+ * <p>
+ * Meters: {@code coinmate.rates.save} times each {@code saveAll}, {@code coinmate.rates.end-to-end} is
+ * the histogram of the time from a frame arriving to the rates computed from it being committed, and
+ * {@code coinmate.rates.*} counters plus the {@code coinmate.rates.queued} gauge mirror the getters.
+ */
+@Component
+public class ExchangeRateWriter implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(ExchangeRateWriter.class);
+
+    private final ExchangeRateRepository exchangeRateRepository;
+    private final RateTickRepository tickRepository;
+    private final CoinmateProperties.Persistence settings;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Held while writing, so the flush on stop never writes alongside a worker that outlived the timeout
+    private final ReentrantLock writing = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final ExchangeRate[] ring;
+    private int head;
+    private int count;
+    private long oldestQueuedAtNanos;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong conflated = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private final Timer saveTimer;
+    private final Timer endToEndTimer;
+
+    private volatile boolean running;
+    private Thread worker;
+
+    public ExchangeRateWriter(ExchangeRateRepository exchangeRateRepository, RateTickRepository tickRepository,
+                              CoinmateProperties properties, MeterRegistry meterRegistry) {
+        this.exchangeRateRepository = exchangeRateRepository;
+        this.tickRepository = tickRepository;
+        this.settings = properties.getPersistence();
+        if (settings.getQueueCapacity() <= 0 || settings.getBatchSize() <= 0) {
+            throw new IllegalArgumentException("Persistence queue capacity and batch size must be positive");
+        }
+        if (settings.getWriteRetries() < 0 || settings.getRetryBackoff().isNegative()) {
+            throw new IllegalArgumentException("Persistence write retries and retry backoff must not be negative");
+        }
+        this.ring = new ExchangeRate[settings.getQueueCapacity()];
+        this.saveTimer = Timer.builder("coinmate.rates.save")
+                .description("Time to write one batch of exchange rates")
+                .register(meterRegistry);
+        this.endToEndTimer = Timer.builder("coinmate.rates.end-to-end")
+                .description("Time from receiving an order book frame to its exchange rates being written")
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(Duration.ofMinutes(1))
+                .register(meterRegistry);
+        registerCounter(meterRegistry, "coinmate.rates.written", written);
+        registerCounter(meterRegistry, "coinmate.rates.dropped", dropped);
+        registerCounter(meterRegistry, "coinmate.rates.conflated", conflated);
+        registerCounter(meterRegistry, "coinmate.rates.failed", failed);
+        Gauge.builder("coinmate.rates.queued", this, ExchangeRateWriter::getQueued)
+                .description("Exchange rates waiting to be written")
+                .register(meterRegistry);
+    }
+
+    private static void registerCounter(MeterRegistry meterRegistry, String name, AtomicLong value) {
+        FunctionCounter.builder(name, value, AtomicLong::get).register(meterRegistry);
+    }
+
+    /**
+     * Queues a rate for writing without touching the database on the caller's thread.
+     *
+     * @return {@code false} when the rate was discarded because the writer is stopped
+     */
+    public boolean submit(ExchangeRate rate) {
+        lock.lock();
+        try {
+            if (!running) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            if (count == ring.length && !makeRoom(rate)) {
+                return running;
+            }
+            if (count == 0) {
+                oldestQueuedAtNanos = System.nanoTime();
+            }
+            ring[(head + count) % ring.length] = rate;
+            count++;
+            // The first rate starts the flush interval of a worker waiting on an empty ring
+            if (count == 1 || count >= settings.getBatchSize()) {
+                notEmpty.signal();
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            dropped.incrementAndGet();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies the overflow policy to a full ring.
+     *
+     * @return whether {@code rate} still has to be appended
+     */
+    private boolean makeRoom(ExchangeRate rate) throws InterruptedException {
+        switch (settings.getOverflowPolicy()) {
+            case BLOCK:
+                while (count == ring.length && running) {
+                    notFull.await();
+                }
+                if (!running) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                return true;
+            case CONFLATE:
+                for (int i = count - 1; i >= 0; i--) {
+                    int index = (head + i) % ring.length;
+                    if (ring[index].getDirection() == rate.getDirection()) {
+                        ring[index] = rate;
+                        conflated.incrementAndGet();
+                        return false;
+                    }
+                }
+                // Nothing of the same direction is queued, fall back to dropping the oldest
+                dropOldest();
+                return true;
+            case DROP_OLDEST:
+            default:
+                dropOldest();
+                return true;
+        }
+    }
+
+    private void dropOldest() {
+        ring[head] = null;
+        head = (head + 1) % ring.length;
+        count--;
+        dropped.incrementAndGet();
+    }
+
+    private List<ExchangeRate> takeBatch() throws InterruptedException {
+        lock.lock();
+        try {
+            long flushIntervalNanos = settings.getFlushInterval().toNanos();
+            while (running) {
+                if (count >= settings.getBatchSize()) {
+                    break;
+                }
+                if (count > 0) {
+                    long waitNanos = flushIntervalNanos - (System.nanoTime() - oldestQueuedAtNanos);
+                    if (waitNanos <= 0) {
+                        break;
+                    }
+                    notEmpty.awaitNanos(waitNanos);
+                } else {
+                    notEmpty.await();
+                }
+            }
+            return drain(settings.getBatchSize());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<ExchangeRate> drain(int max) {
+        int size = Math.min(count, max);
+        List<ExchangeRate> batch = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            batch.add(ring[head]);
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+        }
+        count -= size;
+        if (count > 0) {
+            oldestQueuedAtNanos = System.nanoTime();
+        }
+        notFull.signalAll();
+        return batch;
+    }
+
+    private void runWorker() {
+        while (running) {
+            try {
+                write(takeBatch());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void write(List<ExchangeRate> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        writing.lock();
+        try {
+            long backoffMillis = settings.getRetryBackoff().toMillis();
+            for (int attempt = 0; ; attempt++) {
+                Exception failure;
+                try {
+                    save(batch);
+                    return;
+                } catch (Exception e) {
+                    failure = e;
+                }
+                batch = retryable(batch);
+                if (attempt == settings.getWriteRetries() || Thread.currentThread().isInterrupted()) {
+                    log.warn("Failed to persist {} exchange rates, writing them in parts: {}", batch.size(),
+                            failure.getMessage());
+                    writeInParts(batch, failure);
+                    return;
+                }
+                log.warn("Failed to persist {} exchange rates, retrying in {} ms: {}", batch.size(),
+                        backoffMillis, failure.getMessage());
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                backoffMillis *= 2;
+            }
+        } finally {
+            writing.unlock();
+        }
+    }
+
+    /**
+     * Writes the halves of a batch that just failed on their own, so only the parts holding a bad row fail.
+     */
+    private void writeInParts(List<ExchangeRate> batch, Exception failure) {
+        if (batch.size() == 1) {
+            failed.incrementAndGet();
+            log.warn("Failed to persist the exchange rate computed at {}: {}", batch.get(0).getComputedAt(),
+                    failure.getMessage());
+            return;
+        }
+        for (List<ExchangeRate> half : List.of(batch.subList(0, batch.size() / 2),
+                batch.subList(batch.size() / 2, batch.size()))) {
+            try {
+                save(half);
+            } catch (Exception e) {
+                writeInParts(retryable(half), e);
+            }
+        }
+    }
+
+    private void save(List<ExchangeRate> batch) {
+        long start = System.nanoTime();
+        if (tickRepository.isEnabled()) {
+            tickRepository.write(batch);
+        } else {
+            exchangeRateRepository.saveAll(batch);
+        }
+        saveTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        written.addAndGet(batch.size());
+        recordEndToEnd(batch);
+    }
+
+    /**
+     * @return fresh entities in place of those a failed {@code saveAll} may have given ids already
+     */
+    private static List<ExchangeRate> retryable(List<ExchangeRate> batch) {
+        List<ExchangeRate> fresh = new ArrayList<>(batch.size());
+        for (ExchangeRate rate : batch) {
+            if (rate.getId() == null) {
+                fresh.add(rate);
+                continue;
+            }
+            ExchangeRate copy = new ExchangeRate(rate.getDirection(), rate.getRate(), rate.getBidAmount(),
+                    rate.getAskAmount(), rate.getComputedAt());
+            copy.setSourceReceivedAt(rate.getSourceReceivedAt());
+            copy.setComputation(rate.getComputation());
+            fresh.add(copy);
+        }
+        return fresh;
+    }
+
+    private void recordEndToEnd(List<ExchangeRate> batch) {
+        Instant now = Instant.now();
+        for (ExchangeRate rate : batch) {
+            Instant receivedAt = rate.getSourceReceivedAt();
+            if (receivedAt != null) {
+                endToEndTimer.record(Duration.between(receivedAt, now));
+            }
+        }
+    }
+
+    /**
+     * Writes everything queued so far on the caller's thread, after a batch the worker may be writing.
+     */
+    public void flush() {
+        writing.lock();
+        try {
+            List<ExchangeRate> batch;
+            do {
+                lock.lock();
+                try {
+                    batch = drain(settings.getBatchSize());
+                } finally {
+                    lock.unlock();
+                }
+                write(batch);
+            } while (!batch.isEmpty());
+        } finally {
+            writing.unlock();
+        }
+    }
+
+    @Override
+    public void start() {
+        lock.lock();
+        try {
+            if (running) {
+                return;
+            }
+            running = true;
+        } finally {
+            lock.unlock();
+        }
+        worker = new Thread(this::runWorker, "exchange-rate-writer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @Override
+    public void stop() {
+        lock.lock();
+        try {
+            if (!running) {
+                return;
+            }
+            running = false;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            worker.join(settings.getShutdownTimeout().toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        log.info("Exchange rate writer stopped: written={}, dropped={}, conflated={}, failed={}",
+                written.get(), dropped.get(), conflated.get(), failed.get());
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        // Stop after the snapshot dispatcher, whose consumers still submit rates while it winds down
+        return DEFAULT_PHASE - 1;
+    }
+
+    public int getQueued() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getConflated() {
+        return conflated.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+}
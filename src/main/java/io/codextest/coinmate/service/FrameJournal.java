@@ -0,0 +1,301 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only journal of the raw order book frames, for replaying real market data through the
+ * pipeline.
+ * <p>
+ * Frames are appended to memory-mapped segment files {@code frames-<sequence>.journal} of
+ * {@code segment-size} each; a frame that does not fit starts the next segment, and the oldest segments
+ * are deleted once they add up to more than {@code max-size}. A segment starts with a magic number and
+ * a format version, followed by records {@code [length][received at, µs][kind][key length][key][payload]},
+ * where the key is the pair of a per-pair stream ({@link Frame#CHANNEL} not set) or the session of a
+ * multiplexed one. The length is written last, so a reader stops at the first zero length: the unused
+ * end of a segment, or a record cut off by a crash.
+ * <p>
+ * Meters: {@code coinmate.journal.frames} and {@code coinmate.journal.dropped} (frames larger than a
+ * segment or lost to an I/O error).
+ */
+@Component
+public class FrameJournal implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(FrameJournal.class);
+
+    private static final int MAGIC = 0x434d464a;
+    private static final byte FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = Integer.BYTES + 1;
+    private static final int RECORD_OVERHEAD = Integer.BYTES + Long.BYTES + 1 + Short.BYTES;
+    private static final String PREFIX = "frames-";
+    private static final String SUFFIX = ".journal";
+
+    private final CoinmateProperties.Journal settings;
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    // Guarded by this
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long sequence;
+    private volatile boolean running;
+
+    public FrameJournal(CoinmateProperties properties, MeterRegistry meterRegistry) {
+        this.settings = properties.getJournal();
+        long segmentSize = settings.getSegmentSize().toBytes();
+        if (segmentSize < 1024 || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Journal segment size must be between 1KB and 2GB");
+        }
+        FunctionCounter.builder("coinmate.journal.frames", frames, AtomicLong::get)
+                .description("Raw frames appended to the journal")
+                .register(meterRegistry);
+        FunctionCounter.builder("coinmate.journal.dropped", dropped, AtomicLong::get)
+                .description("Raw frames that could not be journaled")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return whether frames are being captured right now
+     */
+    public boolean isCapturing() {
+        return running;
+    }
+
+    /**
+     * Appends the readable bytes of {@code payload} without consuming them.
+     *
+     * @param key     the pair, or the session when {@code channel} is set
+     * @param channel whether the frame names its pair in its channel (a multiplexed session)
+     */
+    public synchronized void append(String key, boolean channel, Instant receivedAt, DataBuffer payload) {
+        if (!running) {
+            return;
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int length = payload.readableByteCount();
+        int recordSize = RECORD_OVERHEAD + keyBytes.length + length;
+        if (recordSize > settings.getSegmentSize().toBytes() - HEADER_SIZE) {
+            dropped.incrementAndGet();
+            return;
+        }
+        try {
+            if (segment == null || segment.remaining() < recordSize) {
+                rotate();
+            }
+        } catch (IOException e) {
+            dropped.incrementAndGet();
+            log.warn("Cannot open a journal segment in {}: {}", settings.getDirectory(), e.getMessage());
+            closeSegment();
+            return;
+        }
+        int start = segment.position();
+        segment.position(start + Integer.BYTES);
+        segment.putLong(ChronoUnit.MICROS.between(Instant.EPOCH, receivedAt));
+        segment.put(channel ? Frame.CHANNEL : 0);
+        segment.putShort((short) keyBytes.length);
+        segment.put(keyBytes);
+        payload.toByteBuffer(payload.readPosition(), segment, segment.position(), length);
+        segment.position(segment.position() + length);
+        // Written last, so a reader never sees a length before its record
+        segment.putInt(start, recordSize - Integer.BYTES);
+        frames.incrementAndGet();
+    }
+
+    private void rotate() throws IOException {
+        closeSegment();
+        Files.createDirectories(settings.getDirectory());
+        sequence = Math.max(sequence, lastSequence()) + 1;
+        Path file = settings.getDirectory().resolve(String.format("%s%012d%s", PREFIX, sequence, SUFFIX));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, settings.getSegmentSize().toBytes());
+        segment.putInt(MAGIC).put(FORMAT_VERSION);
+        deleteBeyondMaxSize();
+    }
+
+    private long lastSequence() throws IOException {
+        List<Path> segments = segments(settings.getDirectory());
+        return segments.isEmpty() ? 0 : sequenceOf(segments.get(segments.size() - 1));
+    }
+
+    private void deleteBeyondMaxSize() throws IOException {
+        List<Path> segments = segments(settings.getDirectory());
+        long total = 0;
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            total += Files.size(segments.get(i));
+            // The segment just opened is never deleted
+            if (total > settings.getMaxSize().toBytes() && i < segments.size() - 1) {
+                Files.deleteIfExists(segments.get(i));
+            }
+        }
+    }
+
+    private void closeSegment() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            if (segment != null) {
+                segment.force();
+                // Cut the unused end off; the mapping is not touched again
+                channel.truncate(segment.position());
+            }
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Cannot close journal segment: {}", e.getMessage());
+        }
+        segment = null;
+        channel = null;
+    }
+
+    /**
+     * @return the segments in {@code directory}, oldest first
+     */
+    static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return segments;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            files.forEach(segments::add);
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    private static long sequenceOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * Reads the frames of all segments in {@code directory}, oldest first. Segments are mapped one at a
+     * time and payloads are slices of the mapping, valid until the iterator moves to the next segment.
+     */
+    public static Iterator<Frame> read(Path directory) throws IOException {
+        List<Path> segments = segments(directory);
+        return new Iterator<>() {
+            private int next;
+            private ByteBuffer current;
+            private Frame frame;
+
+            @Override
+            public boolean hasNext() {
+                while (frame == null) {
+                    if (current != null) {
+                        frame = readFrame(current);
+                        if (frame != null) {
+                            return true;
+                        }
+                    }
+                    if (next == segments.size()) {
+                        return false;
+                    }
+                    current = map(segments.get(next++));
+                }
+                return true;
+            }
+
+            @Override
+            public Frame next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Frame result = frame;
+                frame = null;
+                return result;
+            }
+        };
+    }
+
+    private static ByteBuffer map(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.get() != FORMAT_VERSION) {
+                log.warn("Skipping {}: not a journal segment", file);
+                return null;
+            }
+            return buffer;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Frame readFrame(ByteBuffer buffer) {
+        if (buffer.remaining() < Integer.BYTES) {
+            return null;
+        }
+        int length = buffer.getInt();
+        if (length <= 0 || length > buffer.remaining()) {
+            buffer.position(buffer.limit());
+            return null;
+        }
+        long micros = buffer.getLong();
+        boolean channel = buffer.get() == Frame.CHANNEL;
+        byte[] key = new byte[buffer.getShort()];
+        buffer.get(key);
+        int payloadLength = length - (RECORD_OVERHEAD - Integer.BYTES) - key.length;
+        ByteBuffer payload = buffer.slice(buffer.position(), payloadLength);
+        buffer.position(buffer.position() + payloadLength);
+        return new Frame(new String(key, StandardCharsets.UTF_8), channel,
+                Instant.EPOCH.plus(micros, ChronoUnit.MICROS), payload);
+    }
+
+    @Override
+    public synchronized void start() {
+        running = settings.isCapture();
+        if (running) {
+            log.info("Capturing raw frames to {}", settings.getDirectory().toAbsolutePath());
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        running = false;
+        closeSegment();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    public long getFrames() {
+        return frames.get();
+    }
+
+    /**
+     * One journaled frame.
+     *
+     * @param key     the pair, or the multiplexed session when {@code channel} is set
+     * @param payload the raw frame bytes
+     */
+    public record Frame(String key, boolean channel, Instant receivedAt, ByteBuffer payload) {
+
+        static final byte CHANNEL = 1;
+    }
+}
@@ -0,0 +1,128 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Feeds the frames of the {@link FrameJournal} through the same parsing as live frames and passes every
+ * snapshot to the pipeline on the calling thread, either with the recorded gaps between frames or as fast
+ * as possible. Unlike the {@link SnapshotDispatcher}'s lanes this never skips a snapshot, so every replay
+ * of a journal computes the same rates.
+ * <p>
+ * {@code coinmate.replay.frame} times parsing each frame and processing its snapshot; the {@link Report}
+ * of a replay has the distribution of exactly that replay and its throughput, so releases can be compared
+ * on identical input. Frames are stamped with
+ * the time they are replayed, so the pipeline's own latency meters ({@code coinmate.rates.end-to-end}
+ * and others) stay meaningful during a replay.
+ */
+@Component
+public class FrameJournalReplayer {
+
+    private static final Logger log = LoggerFactory.getLogger(FrameJournalReplayer.class);
+
+    private final OrderBookWebSocketClient webSocketClient;
+    private final CoinmateProperties.Journal settings;
+    private final Timer frameTimer;
+
+    public FrameJournalReplayer(OrderBookWebSocketClient webSocketClient, CoinmateProperties properties,
+                                MeterRegistry meterRegistry) {
+        this.webSocketClient = webSocketClient;
+        this.settings = properties.getJournal();
+        this.frameTimer = Timer.builder("coinmate.replay.frame")
+                .description("Time to parse a replayed frame and process its snapshot")
+                .publishPercentiles(0.5, 0.99, 0.999)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Replays the whole journal on the calling thread, passing each snapshot to {@code consumer} before
+     * the next frame is parsed.
+     */
+    public Report replay(Consumer<OrderBookSnapshot> consumer) throws IOException {
+        boolean paced = settings.getReplaySpeed() == CoinmateProperties.ReplaySpeed.ORIGINAL;
+        log.info("Replaying the journal in {} at {} speed", settings.getDirectory().toAbsolutePath(),
+                settings.getReplaySpeed().name().toLowerCase());
+        Iterator<FrameJournal.Frame> frames = FrameJournal.read(settings.getDirectory());
+        Timer replayTimer = newReplayTimer();
+        long frameCount = 0;
+        long snapshotCount = 0;
+        long startNanos = System.nanoTime();
+        Instant firstReceivedAt = null;
+        while (frames.hasNext()) {
+            FrameJournal.Frame frame = frames.next();
+            if (paced) {
+                if (firstReceivedAt == null) {
+                    firstReceivedAt = frame.receivedAt();
+                }
+                long dueNanos = startNanos + Duration.between(firstReceivedAt, frame.receivedAt()).toNanos();
+                long waitNanos;
+                while ((waitNanos = dueNanos - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(waitNanos);
+                }
+            }
+            long frameStart = System.nanoTime();
+            OrderBookSnapshot snapshot = webSocketClient.replay(frame);
+            if (snapshot != null) {
+                consumer.accept(snapshot);
+                snapshotCount++;
+            }
+            long frameNanos = System.nanoTime() - frameStart;
+            frameTimer.record(frameNanos, TimeUnit.NANOSECONDS);
+            replayTimer.record(frameNanos, TimeUnit.NANOSECONDS);
+            frameCount++;
+        }
+        Report report = new Report(frameCount, snapshotCount, Duration.ofNanos(System.nanoTime() - startNanos),
+                replayTimer.takeSnapshot());
+        log.info("Replay finished: {}", report);
+        return report;
+    }
+
+    private static Timer newReplayTimer() {
+        // A registry per replay and percentiles that never expire, so they cover exactly the whole replay
+        return Timer.builder("coinmate.replay.frame")
+                .publishPercentiles(0.5, 0.99, 0.999)
+                .distributionStatisticExpiry(Duration.ofDays(3650))
+                .distributionStatisticBufferLength(1)
+                .register(new SimpleMeterRegistry());
+    }
+
+    /**
+     * Outcome of one replay.
+     *
+     * @param frameLatency distribution of the time to parse a frame and process its snapshot over this replay
+     */
+    public record Report(long frames, long snapshots, Duration elapsed, HistogramSnapshot frameLatency) {
+
+        public double framesPerSecond() {
+            return elapsed.isZero() ? 0 : frames / (elapsed.toNanos() / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(String.format("%d frames, %d snapshots in %d ms (%.0f frames/s)",
+                    frames, snapshots, elapsed.toMillis(), framesPerSecond()));
+            for (ValueAtPercentile percentile : frameLatency.percentileValues()) {
+                String name = BigDecimal.valueOf(percentile.percentile() * 100).stripTrailingZeros().toPlainString();
+                text.append(String.format(", p%s %.1f µs", name, percentile.value(TimeUnit.MICROSECONDS)));
+            }
+            return text.append(String.format(", max %.1f µs", frameLatency.max(TimeUnit.MICROSECONDS))).toString();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package io.codextest.coinmate.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.core.io.buffer.DataBuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Races the two connections ("legs") streaming the same order book. Both legs receive the same frames
+ * from Coinmate; whichever delivers a frame first wins, and the copy arriving on the other leg is
+ * dropped before it is parsed. Frames are recognized by a 64-bit hash of their bytes among the last
+ * {@code window} frames of the pair; a resent book arriving again on the leg that delivered it counts
+ * as a new frame. The winner is parsed and passed on while the race's lock is held, so the legs never
+ * write the pair's depth book at the same time and frames reach the consumer in the order they won.
+ * <p>
+ * Each leg tracks when it last received a frame and how far its copies trail the twin's, so a leg that
+ * went silent or fell behind is reconnected while the other keeps the book current.
+ * <p>
+ * Meters per pair: {@code coinmate.race.won} per leg, {@code coinmate.race.duplicates} and
+ * {@code coinmate.race.lead}, the time by which the winning leg was ahead of the other.
+ */
+final class FrameRace {
+
+    private static final byte COPIED = -1;
+
+    private final long[] hashes;
+    private final long[] firstSeenNanos;
+    private final byte[] winners;
+    private int next;
+    private int filled;
+    private final long stallNanos;
+    private final Leg[] legs = new Leg[2];
+    private final Counter duplicates;
+    private final Timer lead;
+
+    FrameRace(String currencyPair, int window, Duration stallTimeout, MeterRegistry meterRegistry) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("Redundancy window must be positive: " + window);
+        }
+        this.hashes = new long[window];
+        this.firstSeenNanos = new long[window];
+        this.winners = new byte[window];
+        this.stallNanos = stallTimeout.toNanos();
+        for (int i = 0; i < legs.length; i++) {
+            legs[i] = new Leg(i, Counter.builder("coinmate.race.won")
+                    .description("Frames a connection delivered before its twin")
+                    .tag("pair", currencyPair)
+                    .tag("leg", Leg.NAMES[i])
+                    .register(meterRegistry));
+        }
+        this.duplicates = Counter.builder("coinmate.race.duplicates")
+                .description("Frames dropped because the twin connection delivered them first")
+                .tag("pair", currencyPair)
+                .register(meterRegistry);
+        this.lead = Timer.builder("coinmate.race.lead")
+                .description("Time by which the first connection delivered a frame ahead of the second")
+                .tag("pair", currencyPair)
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+    }
+
+    Leg leg(int index) {
+        return legs[index];
+    }
+
+    private synchronized boolean admit(Leg leg, long hash, long now) {
+        leg.lastFrameNanos = now;
+        // Newest first, so a resent book matches its latest occurrence
+        for (int i = 1; i <= filled; i++) {
+            int slot = Math.floorMod(next - i, hashes.length);
+            if (hashes[slot] != hash) {
+                continue;
+            }
+            if (winners[slot] != leg.index && winners[slot] != COPIED) {
+                winners[slot] = COPIED;
+                leg.lagNanos = now - firstSeenNanos[slot];
+                lead.record(leg.lagNanos, TimeUnit.NANOSECONDS);
+                duplicates.increment();
+                return false;
+            }
+            break;
+        }
+        hashes[next] = hash;
+        firstSeenNanos[next] = now;
+        winners[next] = (byte) leg.index;
+        next = (next + 1) % hashes.length;
+        filled = Math.min(filled + 1, hashes.length);
+        leg.lagNanos = 0;
+        leg.won.increment();
+        return true;
+    }
+
+    /**
+     * Hashes the readable bytes as big-endian 8-byte words, the same however the buffer is split up.
+     */
+    static long hash(DataBuffer payload) {
+        long hash = payload.readableByteCount();
+        long word = 0;
+        int wordBytes = 0;
+        try (DataBuffer.ByteBufferIterator buffers = payload.readableByteBuffers()) {
+            while (buffers.hasNext()) {
+                ByteBuffer buffer = buffers.next().order(ByteOrder.BIG_ENDIAN);
+                if (wordBytes == 0) {
+                    while (buffer.remaining() >= Long.BYTES) {
+                        hash = mix(hash, buffer.getLong());
+                    }
+                }
+                while (buffer.hasRemaining()) {
+                    word = (word << 8) | (buffer.get() & 0xFF);
+                    if (++wordBytes == Long.BYTES) {
+                        hash = mix(hash, word);
+                        word = 0;
+                        wordBytes = 0;
+                    }
+                }
+            }
+        }
+        return wordBytes == 0 ? hash : mix(hash, word);
+    }
+
+    private static long mix(long hash, long value) {
+        return Long.rotateLeft(hash ^ value * 0x9E3779B97F4A7C15L, 31) * 0xBF58476D1CE4E5B9L;
+    }
+
+    /**
+     * One of the two connections of the pair.
+     */
+    final class Leg {
+
+        private static final String[] NAMES = {"a", "b"};
+
+        private final int index;
+        private final Counter won;
+        private volatile long lastFrameNanos = System.nanoTime();
+        private volatile long lagNanos;
+
+        private Leg(int index, Counter won) {
+            this.index = index;
+            this.won = won;
+        }
+
+        String name() {
+            return NAMES[index];
+        }
+
+        /**
+         * @return how often to check whether the leg is {@link #lagging()}
+         */
+        Duration checkInterval() {
+            return Duration.ofNanos(Math.max(stallNanos / 2, 1_000_000));
+        }
+
+        /**
+         * Runs {@code winner} if the frame is new, before the twin can admit its next frame.
+         *
+         * @return whether the frame was new, {@code false} for the twin's copy
+         */
+        boolean admit(DataBuffer payload, Runnable winner) {
+            long hash = hash(payload);
+            synchronized (FrameRace.this) {
+                if (!FrameRace.this.admit(this, hash, System.nanoTime())) {
+                    return false;
+                }
+                winner.run();
+                return true;
+            }
+        }
+
+        /**
+         * Starts the leg afresh on a new connection.
+         */
+        void connected() {
+            lastFrameNanos = System.nanoTime();
+            lagNanos = 0;
+        }
+
+        /**
+         * @return why the leg is to be reconnected, or {@code null} while it keeps up or its twin is
+         * silent as well (the inactivity timeout covers both being down)
+         */
+        String lagging() {
+            long now = System.nanoTime();
+            if (now - legs[1 - index].lastFrameNanos >= stallNanos) {
+                return null;
+            }
+            if (now - lastFrameNanos >= stallNanos) {
+                return "silent while its twin delivers frames";
+            }
+            if (lagNanos >= stallNanos) {
+                return "behind its twin by " + Duration.ofNanos(lagNanos).toMillis() + " ms";
+            }
+            return null;
+        }
+    }
+}
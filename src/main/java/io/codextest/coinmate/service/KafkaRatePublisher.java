@@ -0,0 +1,238 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.ConversionRate;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes order book snapshots and computed rates to Kafka, encoded with {@link KafkaRecordCodec}.
+ * <p>
+ * Snapshots are keyed by currency pair and rates by direction, so each key stays ordered on its
+ * partition; the record timestamp is when the frame arrived or the rate was computed. Records are
+ * handed over into a bounded queue and sent by a single background thread, which is the only one that
+ * can wait on the producer (for metadata or buffer space while the broker is slow). When the queue is
+ * full the oldest record is dropped, so callers never block.
+ * <p>
+ * Meters: {@code coinmate.kafka.lag} (per topic) is the histogram of the time from a record's timestamp
+ * to its acknowledgement by the broker, {@code coinmate.kafka.sent}, {@code dropped} and {@code failed}
+ * count records, and the {@code coinmate.kafka.queued} and {@code coinmate.kafka.in-flight} gauges show
+ * the backlog in front of and inside the producer. The producer's own {@code kafka.producer.*} meters
+ * are registered as well.
+ */
+@Component
+@ConditionalOnProperty(prefix = "coinmate.kafka", name = "enabled", havingValue = "true")
+public class KafkaRatePublisher implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(KafkaRatePublisher.class);
+
+    private final KafkaTemplate<String, byte[]> kafkaTemplate;
+    private final CoinmateProperties.Kafka settings;
+    private final BlockingQueue<ProducerRecord<String, byte[]>> queue;
+    private final Map<String, Timer> lagTimers;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private volatile boolean running;
+    private Thread worker;
+
+    public KafkaRatePublisher(KafkaTemplate<String, byte[]> kafkaTemplate, CoinmateProperties properties,
+                              MeterRegistry meterRegistry) {
+        this.kafkaTemplate = kafkaTemplate;
+        this.settings = properties.getKafka();
+        if (settings.getQueueCapacity() <= 0) {
+            throw new IllegalArgumentException("Kafka queue capacity must be positive");
+        }
+        this.queue = new ArrayBlockingQueue<>(settings.getQueueCapacity());
+        this.lagTimers = new HashMap<>();
+        for (String topic : List.of(settings.getSnapshotTopic(), settings.getRateTopic())) {
+            lagTimers.computeIfAbsent(topic, name -> lagTimer(meterRegistry, name));
+        }
+        registerCounter(meterRegistry, "coinmate.kafka.sent", sent);
+        registerCounter(meterRegistry, "coinmate.kafka.dropped", dropped);
+        registerCounter(meterRegistry, "coinmate.kafka.failed", failed);
+        Gauge.builder("coinmate.kafka.queued", queue, BlockingQueue::size)
+                .description("Records waiting to be handed to the Kafka producer")
+                .register(meterRegistry);
+        Gauge.builder("coinmate.kafka.in-flight", inFlight, AtomicInteger::get)
+                .description("Records handed to the Kafka producer and not acknowledged yet")
+                .register(meterRegistry);
+    }
+
+    private static Timer lagTimer(MeterRegistry meterRegistry, String topic) {
+        return Timer.builder("coinmate.kafka.lag")
+                .description("Time from a record's timestamp to its acknowledgement by the broker")
+                .tag("topic", topic)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(Duration.ofMinutes(1))
+                .register(meterRegistry);
+    }
+
+    private static void registerCounter(MeterRegistry meterRegistry, String name, AtomicLong value) {
+        FunctionCounter.builder(name, value, AtomicLong::get).register(meterRegistry);
+    }
+
+    public void publishSnapshot(OrderBookSnapshot snapshot) {
+        enqueue(settings.getSnapshotTopic(), snapshot.currencyPair(), snapshot.receivedAt(),
+                KafkaRecordCodec.encodeSnapshot(snapshot));
+    }
+
+    /**
+     * Publishes a rate unless it is {@linkplain ConversionRate#stale() stale}; the topic only carries
+     * rates computed from live books.
+     */
+    public void publishRate(ConversionRate rate) {
+        if (rate.stale()) {
+            return;
+        }
+        enqueue(settings.getRateTopic(), rate.directionKey(), rate.computedAt(), KafkaRecordCodec.encodeRate(rate));
+    }
+
+    private void enqueue(String topic, String key, Instant timestamp, byte[] value) {
+        if (!running) {
+            dropped.incrementAndGet();
+            return;
+        }
+        Long millis = timestamp == null ? null : timestamp.toEpochMilli();
+        ProducerRecord<String, byte[]> record = new ProducerRecord<>(topic, null, millis, key, value);
+        while (!queue.offer(record)) {
+            if (queue.poll() != null) {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    private void runWorker() {
+        while (running) {
+            try {
+                ProducerRecord<String, byte[]> record = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (record != null) {
+                    send(record);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void send(ProducerRecord<String, byte[]> record) {
+        inFlight.incrementAndGet();
+        try {
+            kafkaTemplate.send(record).whenComplete((result, e) -> {
+                inFlight.decrementAndGet();
+                if (e != null) {
+                    failed(record, e);
+                    return;
+                }
+                sent.incrementAndGet();
+                Long timestamp = record.timestamp();
+                if (timestamp != null) {
+                    lagTimers.get(record.topic()).record(Duration.ofMillis(System.currentTimeMillis() - timestamp));
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.decrementAndGet();
+            failed(record, e);
+        }
+    }
+
+    private void failed(ProducerRecord<String, byte[]> record, Throwable e) {
+        // Every record fails the same way while the broker is unreachable, so only every 1000th is logged
+        if (failed.incrementAndGet() % 1000 == 1) {
+            log.warn("Failed to publish {} to {} ({} failed so far): {}", record.key(), record.topic(),
+                    failed.get(), e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        worker = new Thread(this::runWorker, "kafka-publisher");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        long deadline = System.nanoTime() + settings.getShutdownTimeout().toNanos();
+        try {
+            worker.join(settings.getShutdownTimeout().toMillis());
+            ProducerRecord<String, byte[]> record;
+            while ((record = queue.poll()) != null) {
+                if (System.nanoTime() < deadline) {
+                    send(record);
+                } else {
+                    // Each send may wait up to max.block.ms on an unreachable broker, so give up on the rest
+                    dropped.incrementAndGet();
+                }
+            }
+            while (inFlight.get() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Kafka publisher stopped: sent={}, dropped={}, failed={}, unacknowledged={}",
+                sent.get(), dropped.get(), failed.get(), inFlight.get());
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        // Stop after the snapshot dispatcher, whose consumers still publish while it winds down
+        return DEFAULT_PHASE - 1;
+    }
+
+    public int getQueued() {
+        return queue.size();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+}
@@ -0,0 +1,133 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.model.ConversionRate;
+import io.codextest.coinmate.model.FixedPoint;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * Compact binary values of the records published to Kafka. The record key carries the currency pair or
+ * the direction, so values hold only the numbers. All multi-byte fields are big-endian, decimals are a
+ * signed scale byte followed by the unscaled {@code long} ({@link FixedPoint#NONE} when absent), and
+ * timestamps are microseconds since the epoch.
+ * <p>
+ * Snapshot value (43 bytes): version {@code 1}, price scale, amount scale, best bid, best bid amount,
+ * best ask, best ask amount (unscaled at the pair's scales) and the receive time.
+ * <p>
+ * Rate value (36 bytes plus the route): version {@code 1}, rate, bid amount and ask amount as decimals,
+ * the computation time, then the route as UTF-8 up to the end of the value.
+ */
+public final class KafkaRecordCodec {
+
+    public static final byte VERSION = 1;
+
+    static final int SNAPSHOT_SIZE = 3 + 4 * Long.BYTES + Long.BYTES;
+    private static final int DECIMAL_SIZE = 1 + Long.BYTES;
+    private static final int RATE_SIZE = 1 + 3 * DECIMAL_SIZE + Long.BYTES;
+    private static final MathContext LONG_DIGITS = new MathContext(FixedPoint.MAX_DIGITS, RoundingMode.HALF_UP);
+
+    private KafkaRecordCodec() {
+    }
+
+    public static byte[] encodeSnapshot(OrderBookSnapshot snapshot) {
+        ByteBuffer buffer = ByteBuffer.allocate(SNAPSHOT_SIZE);
+        buffer.put(VERSION);
+        buffer.put((byte) snapshot.priceScale());
+        buffer.put((byte) snapshot.amountScale());
+        buffer.putLong(snapshot.bestBid());
+        buffer.putLong(snapshot.bestBidAmount());
+        buffer.putLong(snapshot.bestAsk());
+        buffer.putLong(snapshot.bestAskAmount());
+        buffer.putLong(toMicros(snapshot.receivedAt()));
+        return buffer.array();
+    }
+
+    /**
+     * @param currencyPair the record key
+     * @throws IllegalArgumentException for a value of an unknown version
+     */
+    public static OrderBookSnapshot decodeSnapshot(String currencyPair, byte[] value) {
+        ByteBuffer buffer = ByteBuffer.wrap(value);
+        checkVersion(buffer.get());
+        int priceScale = buffer.get();
+        int amountScale = buffer.get();
+        return new OrderBookSnapshot(currencyPair, buffer.getLong(), buffer.getLong(), buffer.getLong(),
+                buffer.getLong(), priceScale, amountScale, fromMicros(buffer.getLong()));
+    }
+
+    public static byte[] encodeRate(ConversionRate rate) {
+        byte[] route = rate.route() == null ? new byte[0] : rate.route().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(RATE_SIZE + route.length);
+        buffer.put(VERSION);
+        putDecimal(buffer, rate.rate());
+        putDecimal(buffer, rate.bidAmount());
+        putDecimal(buffer, rate.askAmount());
+        buffer.putLong(toMicros(rate.computedAt()));
+        buffer.put(route);
+        return buffer.array();
+    }
+
+    /**
+     * @param directionKey the record key, e.g. {@code EUR_TO_CZK}
+     * @throws IllegalArgumentException for a value of an unknown version or a malformed key
+     */
+    public static ConversionRate decodeRate(String directionKey, byte[] value) {
+        String[] currencies = directionKey.split("_TO_");
+        if (currencies.length != 2) {
+            throw new IllegalArgumentException("Not a direction key: " + directionKey);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(value);
+        checkVersion(buffer.get());
+        BigDecimal rate = getDecimal(buffer);
+        BigDecimal bidAmount = getDecimal(buffer);
+        BigDecimal askAmount = getDecimal(buffer);
+        Instant computedAt = fromMicros(buffer.getLong());
+        String route = new String(value, buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+        return new ConversionRate(currencies[0], currencies[1], rate, bidAmount, askAmount, route, computedAt);
+    }
+
+    private static void putDecimal(ByteBuffer buffer, BigDecimal value) {
+        if (value == null) {
+            buffer.put((byte) 0);
+            buffer.putLong(FixedPoint.NONE);
+            return;
+        }
+        BigDecimal fitted = value;
+        if (value.precision() > FixedPoint.MAX_DIGITS) {
+            fitted = value.round(LONG_DIGITS);
+        }
+        if (fitted.scale() > Byte.MAX_VALUE || fitted.scale() < Byte.MIN_VALUE) {
+            // Only values far outside any price range get here; they lose digits beyond the byte scale
+            fitted = fitted.setScale(Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, fitted.scale())),
+                    RoundingMode.HALF_UP);
+        }
+        buffer.put((byte) fitted.scale());
+        buffer.putLong(fitted.unscaledValue().longValueExact());
+    }
+
+    private static BigDecimal getDecimal(ByteBuffer buffer) {
+        int scale = buffer.get();
+        return FixedPoint.toBigDecimal(buffer.getLong(), scale);
+    }
+
+    private static long toMicros(Instant instant) {
+        return instant == null ? 0 : ChronoUnit.MICROS.between(Instant.EPOCH, instant);
+    }
+
+    private static Instant fromMicros(long micros) {
+        return Instant.EPOCH.plus(micros, ChronoUnit.MICROS);
+    }
+
+    private static void checkVersion(byte version) {
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported record version " + version);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.model.BookTop;
+import io.codextest.coinmate.model.ConversionRate;
+import io.codextest.coinmate.model.LiveUpdate;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Pushes rates and best bid/ask updates to any number of live subscribers.
+ * <p>
+ * Every subscriber has its own pending map holding at most one update per key (direction or pair).
+ * Publishing replaces the pending value and schedules a drain, which emits only as much as the
+ * subscriber requested. A slow client therefore skips to the newest values instead of queueing, its
+ * memory stays bounded by the number of keys, and publishers never wait for it. New subscribers
+ * start with the latest value of every key.
+ * <p>
+ * Meters: the {@code coinmate.live.subscribers} gauge, {@code coinmate.live.delivered} and
+ * {@code coinmate.live.conflated} (updates replaced before a subscriber took them).
+ */
+@Component
+public class LiveRateBroadcaster {
+
+    private static final String RATE = "rate";
+    private static final String BOOK = "book";
+
+    private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+    private final Map<String, Object> latest = new ConcurrentHashMap<>();
+    private final Counter delivered;
+    private final Counter conflated;
+
+    public LiveRateBroadcaster(MeterRegistry meterRegistry) {
+        Gauge.builder("coinmate.live.subscribers", subscriptions, Set::size)
+                .description("Connected live subscribers")
+                .register(meterRegistry);
+        this.delivered = Counter.builder("coinmate.live.delivered")
+                .description("Updates sent to live subscribers")
+                .register(meterRegistry);
+        this.conflated = Counter.builder("coinmate.live.conflated")
+                .description("Updates replaced by a newer one before a slow subscriber took them")
+                .register(meterRegistry);
+    }
+
+    public void publishRate(ConversionRate rate) {
+        publish(RATE + ":" + rate.directionKey(), rate);
+    }
+
+    public void publishBook(OrderBookSnapshot snapshot) {
+        publish(BOOK + ":" + snapshot.currencyPair(), snapshot);
+    }
+
+    private void publish(String key, Object value) {
+        latest.put(key, value);
+        for (Subscription subscription : subscriptions) {
+            if (subscription.filter.test(key)) {
+                subscription.offer(key, value);
+            }
+        }
+    }
+
+    /**
+     * @param filter keys to receive, see {@link #filter}
+     */
+    public Flux<LiveUpdate> updates(Predicate<String> filter) {
+        return Flux.create(sink -> {
+            Subscription subscription = new Subscription(sink, filter);
+            // Registered before the replay, so nothing published meanwhile is missed
+            subscriptions.add(subscription);
+            latest.forEach((key, value) -> {
+                if (filter.test(key)) {
+                    subscription.replay(key, value);
+                }
+            });
+            subscription.replayed();
+            sink.onRequest(n -> subscription.schedule());
+            sink.onDispose(() -> {
+                subscriptions.remove(subscription);
+                subscription.worker.dispose();
+            });
+        });
+    }
+
+    /**
+     * @param pairs      pairs whose best bid/ask to receive; {@code null} or empty for all
+     * @param directions rate directions to receive, e.g. {@code EUR_TO_CZK}; {@code null} or empty for all
+     */
+    public static Predicate<String> filter(Collection<String> pairs, Collection<String> directions) {
+        Set<String> keys = new HashSet<>();
+        boolean allPairs = pairs == null || pairs.isEmpty();
+        boolean allDirections = directions == null || directions.isEmpty();
+        if (!allPairs) {
+            pairs.forEach(pair -> keys.add(BOOK + ":" + pair));
+        }
+        if (!allDirections) {
+            directions.forEach(direction -> keys.add(RATE + ":" + direction));
+        }
+        return key -> keys.contains(key)
+                || allPairs && key.startsWith(BOOK + ":")
+                || allDirections && key.startsWith(RATE + ":");
+    }
+
+    private static LiveUpdate toUpdate(String key, Object value) {
+        if (value instanceof OrderBookSnapshot snapshot) {
+            return new LiveUpdate(BOOK, key, BookTop.of(snapshot));
+        }
+        return new LiveUpdate(RATE, key, value);
+    }
+
+    private final class Subscription {
+
+        private final FluxSink<LiveUpdate> sink;
+        private final Predicate<String> filter;
+        private final Scheduler.Worker worker = Schedulers.parallel().createWorker();
+        private final AtomicInteger wip = new AtomicInteger();
+        // Guarded by this; insertion order keeps keys fair when several are pending
+        private final Map<String, Object> pending = new LinkedHashMap<>();
+        // Guarded by this; keys published during the replay, whose replayed values are older; null after it
+        private Set<String> published = new HashSet<>();
+
+        private Subscription(FluxSink<LiveUpdate> sink, Predicate<String> filter) {
+            this.sink = sink;
+            this.filter = filter;
+        }
+
+        void offer(String key, Object value) {
+            boolean replaced;
+            synchronized (this) {
+                replaced = pending.put(key, value) != null;
+                if (published != null) {
+                    published.add(key);
+                }
+            }
+            if (replaced) {
+                conflated.increment();
+            }
+            schedule();
+        }
+
+        synchronized void replay(String key, Object value) {
+            if (!published.contains(key)) {
+                pending.put(key, value);
+            }
+        }
+
+        synchronized void replayed() {
+            published = null;
+        }
+
+        void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                worker.schedule(this::drain);
+            }
+        }
+
+        private void drain() {
+            int missed = 1;
+            do {
+                while (sink.requestedFromDownstream() > 0 && !sink.isCancelled()) {
+                    String key;
+                    Object value;
+                    synchronized (this) {
+                        Iterator<Map.Entry<String, Object>> it = pending.entrySet().iterator();
+                        if (!it.hasNext()) {
+                            break;
+                        }
+                        Map.Entry<String, Object> next = it.next();
+                        key = next.getKey();
+                        value = next.getValue();
+                        it.remove();
+                    }
+                    sink.next(toUpdate(key, value));
+                    delivered.increment();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.model.Alert;
+import io.codextest.coinmate.model.AlertRule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Logs every alert at WARN, so alerts show up without a sink of one's own.
+ */
+@Component
+public class LoggingAlertSink implements AlertSink {
+
+    private static final Logger log = LoggerFactory.getLogger(LoggingAlertSink.class);
+
+    @Override
+    public void accept(Alert alert) {
+        AlertRule rule = alert.rule();
+        log.warn("Alert {}: {} {} {}{} at {} (was {})", rule.id(), rule.subject(), rule.kind(), rule.threshold(),
+                rule.window() == null ? "" : " within " + rule.window(), alert.value(), alert.previous());
+    }
+}
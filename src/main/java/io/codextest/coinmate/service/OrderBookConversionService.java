@@ -1,98 +1,349 @@
 package io.codextest.coinmate.service;
 
+import io.codextest.coinmate.config.CoinmateProperties;
 import io.codextest.coinmate.model.ConversionDirection;
+import io.codextest.coinmate.model.ConversionQuote;
+import io.codextest.coinmate.model.ConversionRate;
 import io.codextest.coinmate.model.ExchangeRate;
 import io.codextest.coinmate.model.OrderBookSnapshot;
-import io.codextest.coinmate.repository.ExchangeRateRepository;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
 import java.math.MathContext;
 import java.math.RoundingMode;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
-import java.util.Locale;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 @Service
 public class OrderBookConversionService {
 
-    private static final Logger log = LoggerFactory.getLogger(OrderBookConversionService.class);
-    private static final String BTC_EUR = "BTC_EUR";
-    private static final String BTC_CZK = "BTC_CZK";
     private static final MathContext MC = new MathContext(16, RoundingMode.HALF_UP);
 
     private final Map<String, OrderBookSnapshot> latestSnapshots = new ConcurrentHashMap<>();
-    private final DecimalFormat decimalFormat;
-    private final ExchangeRateRepository exchangeRateRepository;
+    private final Map<String, ConversionRate> latestRates = new ConcurrentHashMap<>();
+    // Pairs whose latest snapshot was restored at startup and not replaced by a live frame yet
+    private final Set<String> stalePairs = ConcurrentHashMap.newKeySet();
+    private final List<Consumer<ConversionRate>> rateListeners = new CopyOnWriteArrayList<>();
+    private final ExchangeRateWriter exchangeRateWriter;
+    private final OrderBookDepthRegistry depthRegistry;
+    private final CurrencyGraph currencyGraph;
+    private final UpdateConflator conflator;
+    private final RateRollupService rollups;
+    private final AlertRules alerts;
+    private final UpdateLog updateLog;
+    private final boolean rawRates;
+    private final Duration maxInputAge;
+    private final boolean refuseAgedInputs;
+    private final Timer conversionTimer;
+    private final Counter agedRates;
+    // Numbers the recomputations, so compact storage can pair the rates of one; written by the snapshot lane only
+    private long computation;
 
-    public OrderBookConversionService(ExchangeRateRepository exchangeRateRepository) {
-        this.exchangeRateRepository = exchangeRateRepository;
-        DecimalFormatSymbols symbols = new DecimalFormatSymbols(Locale.US);
-        this.decimalFormat = new DecimalFormat("#,##0.0000######", symbols);
+    public OrderBookConversionService(ExchangeRateWriter exchangeRateWriter,
+                                      OrderBookDepthRegistry depthRegistry,
+                                      UpdateConflator conflator,
+                                      RateRollupService rollups,
+                                      AlertRules alerts,
+                                      CoinmateProperties properties,
+                                      MeterRegistry meterRegistry) {
+        this.exchangeRateWriter = exchangeRateWriter;
+        this.depthRegistry = depthRegistry;
+        this.conflator = conflator;
+        this.rollups = rollups;
+        this.alerts = alerts;
+        this.rawRates = properties.getRollup().isRawRates();
+        this.maxInputAge = properties.getMaxInputAge();
+        this.refuseAgedInputs = properties.getStaleInputPolicy() == CoinmateProperties.StaleInputPolicy.REFUSE;
+        this.currencyGraph = new CurrencyGraph(properties.getConversions(), properties.getMaxHops(), MC);
+        this.updateLog = new UpdateLog(properties.getUpdateLog());
+        this.conversionTimer = Timer.builder("coinmate.snapshot.conversion")
+                .description("Time to turn an admitted snapshot into rates handed to the writer")
+                .register(meterRegistry);
+        this.agedRates = Counter.builder("coinmate.rates.aged")
+                .description("Rates whose best route used an order book older than the maximum input age")
+                .tag("policy", properties.getStaleInputPolicy().name().toLowerCase())
+                .register(meterRegistry);
     }
 
+    /**
+     * Registers the subscribed pairs up front so the conversion routes are built once rather than
+     * growing pair by pair as the first snapshots arrive.
+     */
+    public void registerPairs(Collection<String> currencyPairs) {
+        if (currencyGraph.addPairs(currencyPairs)) {
+            recomputeAll(null);
+        }
+    }
+
+    /**
+     * Updates the rates for a new snapshot. Route evaluation keeps state on the routes, so calls must
+     * not overlap; the streaming runner delivers them from a single {@link SnapshotDispatcher} lane.
+     */
     public void handleSnapshot(OrderBookSnapshot snapshot) {
-        latestSnapshots.put(snapshot.currencyPair(), snapshot);
-        if (snapshot.bestBid() != null && snapshot.bestAsk() != null) {
-            log.info("order_book [{}] bid={} ask={}", snapshot.currencyPair(),
-                    decimalFormat.format(snapshot.bestBid()), decimalFormat.format(snapshot.bestAsk()));
+        OrderBookSnapshot previous = latestSnapshots.put(snapshot.currencyPair(), snapshot);
+        stalePairs.remove(snapshot.currencyPair());
+        // Coinmate resends unchanged books; skip logging and rate computation for those, unless the
+        // resent book renews one that had aged out of the rates
+        if (!conflator.admitSnapshot(snapshot) && !isAged(previous)) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            convert(snapshot);
+        } finally {
+            conversionTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
         }
-        maybeReportConversionRate();
     }
 
-    private void maybeReportConversionRate() {
-        OrderBookSnapshot btcEur = latestSnapshots.get(BTC_EUR);
-        OrderBookSnapshot btcCzk = latestSnapshots.get(BTC_CZK);
-        if (!isValid(btcEur) || !isValid(btcCzk)) {
+    private void convert(OrderBookSnapshot snapshot) {
+        updateLog.book(snapshot);
+        alerts.onSnapshot(snapshot);
+        if (!currencyGraph.knows(snapshot.currencyPair())
+                && currencyGraph.addPairs(List.of(snapshot.currencyPair()))) {
+            recomputeAll(snapshot.receivedAt());
             return;
         }
+        recompute(currencyGraph.routesThrough(snapshot.currencyPair()), snapshot.receivedAt());
+    }
 
-        BigDecimal eurToCzk = btcCzk.bestBid().divide(btcEur.bestAsk(), MC);
-        // For CZK -> EUR, user wants to see how many CZK are needed per 1 EUR.
-        // That corresponds to buying BTC for CZK at the CZK ask, and selling BTC for EUR at the EUR bid.
-        BigDecimal czkPerEur = btcCzk.bestAsk().divide(btcEur.bestBid(), MC);
+    /**
+     * Seeds the books with snapshots saved before the last shutdown, so rates are available before the
+     * first live frame. Rates computed from any restored book are {@linkplain ConversionRate#stale()
+     * stale}: they reach the rate listeners, but are neither rolled up nor persisted, and the first live
+     * frame of a pair replaces its restored book. Must be called before snapshots are handled.
+     */
+    public void restoreSnapshots(Collection<OrderBookSnapshot> snapshots) {
+        if (snapshots.isEmpty()) {
+            return;
+        }
+        for (OrderBookSnapshot snapshot : snapshots) {
+            latestSnapshots.put(snapshot.currencyPair(), snapshot);
+            stalePairs.add(snapshot.currencyPair());
+        }
+        currencyGraph.addPairs(latestSnapshots.keySet());
+        recomputeAll(null);
+    }
 
-        log.info("EUR→CZK via BTC: 1 EUR ≈ {} CZK (buy BTC @ {} EUR, sell BTC @ {} CZK)",
-                decimalFormat.format(eurToCzk),
-                decimalFormat.format(btcEur.bestAsk()),
-                decimalFormat.format(btcCzk.bestBid()));
+    /**
+     * @return whether the pair's order book is on a route of a configured conversion
+     */
+    public boolean isRouted(String currencyPair) {
+        return currencyGraph.isRouted(currencyPair);
+    }
 
-        log.info("CZK→EUR via BTC: 1 EUR ≈ {} CZK (buy BTC @ {} CZK, sell BTC @ {} EUR)",
-                decimalFormat.format(czkPerEur),
-                decimalFormat.format(btcCzk.bestAsk()),
-                decimalFormat.format(btcEur.bestBid()));
+    /**
+     * Adds a listener called with every rate that passes rate conflation, on the thread handling the
+     * snapshot; it must not block.
+     */
+    public void addRateListener(Consumer<ConversionRate> listener) {
+        rateListeners.add(listener);
+    }
 
-        // Persist both rates with timestamp, including picked amounts when available
-        try {
-            ExchangeRate eurToCzkRate = new ExchangeRate(
-                    ConversionDirection.EUR_TO_CZK,
-                    eurToCzk,
-                    btcCzk.bestBidAmount(), // bid amount from CZK book
-                    btcEur.bestAskAmount(), // ask amount from EUR book
-                    java.time.Instant.now());
-            ExchangeRate czkToEurRate = new ExchangeRate(
-                    ConversionDirection.CZK_TO_EUR,
-                    czkPerEur,
-                    btcEur.bestBidAmount(), // bid amount from EUR book
-                    btcCzk.bestAskAmount(), // ask amount from CZK book
-                    java.time.Instant.now());
-            exchangeRateRepository.save(eurToCzkRate);
-            exchangeRateRepository.save(czkToEurRate);
-        } catch (Exception e) {
-            log.warn("Failed to persist exchange rates: {}", e.getMessage());
-        }
-    }
-
-    private boolean isValid(OrderBookSnapshot snapshot) {
-        return snapshot != null
-                && snapshot.bestBid() != null
-                && snapshot.bestAsk() != null
-                && snapshot.bestBid().compareTo(BigDecimal.ZERO) > 0
-                && snapshot.bestAsk().compareTo(BigDecimal.ZERO) > 0;
+    /**
+     * @return the latest rate per configured conversion direction, keyed like {@code EUR_TO_CZK}
+     */
+    public Map<String, ConversionRate> latestRates() {
+        return Map.copyOf(latestRates);
+    }
+
+    private void recomputeAll(Instant sourceReceivedAt) {
+        List<CurrencyGraph.Route> routes = new ArrayList<>();
+        for (CurrencyGraph.Leg leg : currencyGraph.legs()) {
+            routes.addAll(leg.getRoutes());
+        }
+        recompute(routes, sourceReceivedAt);
+    }
+
+    /**
+     * @param sourceReceivedAt when the frame that triggered the recomputation arrived, or {@code null}
+     */
+    private void recompute(List<CurrencyGraph.Route> routes, Instant sourceReceivedAt) {
+        if (routes.isEmpty()) {
+            return;
+        }
+        computation++;
+        Instant oldestInput = maxInputAge == null ? null : Instant.now().minus(maxInputAge);
+        List<CurrencyGraph.Leg> affectedLegs = new ArrayList<>(2);
+        for (CurrencyGraph.Route route : routes) {
+            route.evaluate(latestSnapshots::get);
+            if (!affectedLegs.contains(route.getLeg())) {
+                affectedLegs.add(route.getLeg());
+            }
+        }
+        for (CurrencyGraph.Leg leg : affectedLegs) {
+            ConversionRate rate = leg.selectBest();
+            if (rate != null && oldestInput != null && usesInputOlderThan(leg.getBest(), oldestInput)) {
+                agedRates.increment();
+                rate = refuseAgedInputs ? selectBestFresh(leg, oldestInput) : rate.asStale();
+            }
+            if (rate != null && !stalePairs.isEmpty() && usesStalePair(leg.getBest())) {
+                rate = rate.asStale();
+            }
+            if (rate != null) {
+                reportConversionRate(leg, rate, sourceReceivedAt);
+            }
+        }
+    }
+
+    /**
+     * Re-evaluates all routes of the leg without the books older than {@code oldestInput}, so another route
+     * can take over from one that depends on a book that stopped updating.
+     *
+     * @return the rate over the best route left, or {@code null} when every route needs an aged book
+     */
+    private ConversionRate selectBestFresh(CurrencyGraph.Leg leg, Instant oldestInput) {
+        for (CurrencyGraph.Route route : leg.getRoutes()) {
+            route.evaluate(pair -> {
+                OrderBookSnapshot snapshot = latestSnapshots.get(pair);
+                return snapshot == null || snapshot.receivedAt().isBefore(oldestInput) ? null : snapshot;
+            });
+        }
+        return leg.selectBest();
+    }
+
+    private boolean isAged(OrderBookSnapshot snapshot) {
+        return maxInputAge != null && snapshot != null
+                && snapshot.receivedAt().isBefore(Instant.now().minus(maxInputAge));
+    }
+
+    private boolean usesInputOlderThan(CurrencyGraph.Route route, Instant oldestInput) {
+        for (CurrencyGraph.Hop hop : route.getHops()) {
+            OrderBookSnapshot snapshot = latestSnapshots.get(hop.pair());
+            if (snapshot != null && snapshot.receivedAt().isBefore(oldestInput)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean usesStalePair(CurrencyGraph.Route route) {
+        for (CurrencyGraph.Hop hop : route.getHops()) {
+            if (stalePairs.contains(hop.pair())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void reportConversionRate(CurrencyGraph.Leg leg, ConversionRate rate, Instant sourceReceivedAt) {
+        latestRates.put(rate.directionKey(), rate);
+        if (rate.stale()) {
+            // Restored books only give clients something to show until live data arrives
+            updateLog.rate(rate, leg.isInverse());
+            for (Consumer<ConversionRate> listener : rateListeners) {
+                listener.accept(rate);
+            }
+            return;
+        }
+        Optional<ConversionDirection> direction = ConversionDirection.of(rate.fromCurrency(), rate.toCurrency());
+        double spread = spread(leg, rate);
+        // Rollups and alert rules see every rate so highs and lows survive rate conflation
+        direction.ifPresent(value -> rollups.record(value, rate.route(), rate.rate(), spread, rate.computedAt()));
+        alerts.onRate(rate, spread);
+        if (!conflator.admitRate(rate)) {
+            return;
+        }
+        updateLog.rate(rate, leg.isInverse());
+        for (Consumer<ConversionRate> listener : rateListeners) {
+            listener.accept(rate);
+        }
+
+        if (direction.isEmpty() || !rawRates) {
+            return;
+        }
+        // Persist the rate with timestamp, including picked amounts when available. The write happens
+        // behind a queue so the thread delivering frames never waits for the database.
+        ExchangeRate exchangeRate = new ExchangeRate(
+                direction.get(),
+                rate.rate(),
+                rate.bidAmount(),
+                rate.askAmount(),
+                rate.computedAt());
+        exchangeRate.setSourceReceivedAt(sourceReceivedAt);
+        exchangeRate.setComputation(computation);
+        exchangeRateWriter.submit(exchangeRate);
+    }
+
+    /**
+     * @return what a round trip through both directions costs per unit of the source currency, in the
+     * units of the rate (negative for a crossed market), or {@code NaN} before the other direction is known
+     */
+    private double spread(CurrencyGraph.Leg leg, ConversionRate rate) {
+        ConversionRate opposite = latestRates.get(rate.toCurrency() + "_TO_" + rate.fromCurrency());
+        if (opposite == null) {
+            return Double.NaN;
+        }
+        // The inverse leg quotes the cost of one source unit, the forward leg what one source unit yields
+        double difference = rate.rate().doubleValue() - opposite.rate().doubleValue();
+        return leg.isInverse() ? difference : -difference;
+    }
+
+    /**
+     * Quotes converting {@code notional} units of the conversion's source currency (EUR for both
+     * directions) over the current best route by walking the depth books. Both directions are
+     * expressed like the top-of-book rates, i.e. CZK per 1 EUR.
+     *
+     * @return the quote, or empty when a book on the route is missing or too shallow for the notional
+     */
+    public Optional<ConversionQuote> quote(ConversionDirection direction, BigDecimal notional) {
+        Objects.requireNonNull(direction, "direction");
+        if (notional == null || notional.signum() <= 0) {
+            throw new IllegalArgumentException("Notional must be positive: " + notional);
+        }
+        CurrencyGraph.Leg leg = currencyGraph.leg(direction.getFromCurrency(), direction.getToCurrency());
+        CurrencyGraph.Route route = leg == null ? null : leg.getBest();
+        BigDecimal topOfBook = route == null ? null : route.getRate();
+        if (topOfBook == null) {
+            return Optional.empty();
+        }
+        List<CurrencyGraph.Hop> hops = route.getHops();
+        double amount = notional.doubleValue();
+        if (!leg.isInverse()) {
+            // Walk forward spending the source currency hop by hop
+            for (CurrencyGraph.Hop hop : hops) {
+                OrderBookDepth book = depthRegistry.find(hop.pair());
+                if (book == null) {
+                    return Optional.empty();
+                }
+                amount = hop.sell() ? book.quoteProceedsOf(amount) : book.baseBoughtFor(amount);
+            }
+        } else {
+            // Walk backwards from the source currency that has to be raised to what it costs
+            for (int i = hops.size() - 1; i >= 0; i--) {
+                CurrencyGraph.Hop hop = hops.get(i);
+                OrderBookDepth book = depthRegistry.find(hop.pair());
+                if (book == null) {
+                    return Optional.empty();
+                }
+                amount = hop.sell() ? book.baseSoldFor(amount) : book.quoteCostOf(amount);
+            }
+        }
+        if (!Double.isFinite(amount)) {
+            return Optional.empty();
+        }
+        double top = topOfBook.doubleValue();
+        double rate = amount / notional.doubleValue();
+        double slippage = leg.isInverse() ? (rate - top) / top : (top - rate) / top;
+        return Optional.of(new ConversionQuote(
+                direction,
+                notional,
+                new BigDecimal(rate, MC),
+                topOfBook,
+                new BigDecimal(slippage, MC),
+                Instant.now()));
     }
 }
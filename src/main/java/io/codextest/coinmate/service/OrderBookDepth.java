@@ -0,0 +1,213 @@
+package io.codextest.coinmate.service;
+
+import java.time.Instant;
+
+/**
+ * Top-N order book of a single pair kept in sorted primitive arrays.
+ * <p>
+ * A single writer (the connection delivering the pair's frames) stages the levels of a frame with
+ * {@link #beginUpdate()}, {@link #stageBid}/{@link #stageAsk} and {@link #publish}; staging happens in a
+ * back buffer that is swapped in under the book's monitor, so readers always walk a complete frame and
+ * no level objects are ever allocated. Memory is fixed at construction by the level capacity.
+ */
+public class OrderBookDepth {
+
+    private final String currencyPair;
+    private final int capacity;
+
+    private Side bids;
+    private Side asks;
+    private Side stagedBids;
+    private Side stagedAsks;
+    private Instant updatedAt;
+
+    public OrderBookDepth(String currencyPair, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Depth capacity must be positive: " + capacity);
+        }
+        this.currencyPair = currencyPair;
+        this.capacity = capacity;
+        this.bids = new Side(capacity, true);
+        this.asks = new Side(capacity, false);
+        this.stagedBids = new Side(capacity, true);
+        this.stagedAsks = new Side(capacity, false);
+    }
+
+    public String getCurrencyPair() {
+        return currencyPair;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void beginUpdate() {
+        stagedBids.clear();
+        stagedAsks.clear();
+    }
+
+    public void stageBid(double price, double amount) {
+        stagedBids.insert(price, amount);
+    }
+
+    public void stageAsk(double price, double amount) {
+        stagedAsks.insert(price, amount);
+    }
+
+    public void publish(Instant receivedAt) {
+        synchronized (this) {
+            Side previousBids = bids;
+            Side previousAsks = asks;
+            bids = stagedBids;
+            asks = stagedAsks;
+            stagedBids = previousBids;
+            stagedAsks = previousAsks;
+            updatedAt = receivedAt;
+        }
+    }
+
+    public synchronized Instant getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public synchronized int bidLevels() {
+        return bids.count;
+    }
+
+    public synchronized int askLevels() {
+        return asks.count;
+    }
+
+    public synchronized double bestBid() {
+        return bids.count == 0 ? Double.NaN : bids.prices[0];
+    }
+
+    public synchronized double bestAsk() {
+        return asks.count == 0 ? Double.NaN : asks.prices[0];
+    }
+
+    /**
+     * Walks the asks spending {@code quoteAmount} of the quote currency.
+     *
+     * @return base currency acquired, or {@code NaN} when the book is too shallow
+     */
+    public synchronized double baseBoughtFor(double quoteAmount) {
+        if (!(quoteAmount >= 0)) {
+            return Double.NaN;
+        }
+        double remaining = quoteAmount;
+        double acquired = 0;
+        for (int i = 0; i < asks.count && remaining > 0; i++) {
+            double levelCost = asks.prices[i] * asks.amounts[i];
+            if (levelCost >= remaining) {
+                return acquired + remaining / asks.prices[i];
+            }
+            acquired += asks.amounts[i];
+            remaining -= levelCost;
+        }
+        return remaining > 0 ? Double.NaN : acquired;
+    }
+
+    /**
+     * Walks the asks buying {@code baseAmount} of the base currency.
+     *
+     * @return quote currency spent, or {@code NaN} when the book is too shallow
+     */
+    public synchronized double quoteCostOf(double baseAmount) {
+        if (!(baseAmount >= 0)) {
+            return Double.NaN;
+        }
+        double remaining = baseAmount;
+        double cost = 0;
+        for (int i = 0; i < asks.count && remaining > 0; i++) {
+            double filled = Math.min(remaining, asks.amounts[i]);
+            cost += filled * asks.prices[i];
+            remaining -= filled;
+        }
+        return remaining > 0 ? Double.NaN : cost;
+    }
+
+    /**
+     * Walks the bids selling {@code baseAmount} of the base currency.
+     *
+     * @return quote currency received, or {@code NaN} when the book is too shallow
+     */
+    public synchronized double quoteProceedsOf(double baseAmount) {
+        if (!(baseAmount >= 0)) {
+            return Double.NaN;
+        }
+        double remaining = baseAmount;
+        double proceeds = 0;
+        for (int i = 0; i < bids.count && remaining > 0; i++) {
+            double filled = Math.min(remaining, bids.amounts[i]);
+            proceeds += filled * bids.prices[i];
+            remaining -= filled;
+        }
+        return remaining > 0 ? Double.NaN : proceeds;
+    }
+
+    /**
+     * Walks the bids until selling base currency has raised {@code quoteAmount}.
+     *
+     * @return base currency that has to be sold, or {@code NaN} when the book is too shallow
+     */
+    public synchronized double baseSoldFor(double quoteAmount) {
+        if (!(quoteAmount >= 0)) {
+            return Double.NaN;
+        }
+        double remaining = quoteAmount;
+        double sold = 0;
+        for (int i = 0; i < bids.count && remaining > 0; i++) {
+            double levelProceeds = bids.prices[i] * bids.amounts[i];
+            if (levelProceeds >= remaining) {
+                return sold + remaining / bids.prices[i];
+            }
+            sold += bids.amounts[i];
+            remaining -= levelProceeds;
+        }
+        return remaining > 0 ? Double.NaN : sold;
+    }
+
+    private static final class Side {
+        final double[] prices;
+        final double[] amounts;
+        final boolean descending;
+        int count;
+
+        Side(int capacity, boolean descending) {
+            this.prices = new double[capacity];
+            this.amounts = new double[capacity];
+            this.descending = descending;
+        }
+
+        void clear() {
+            count = 0;
+        }
+
+        void insert(double price, double amount) {
+            if (!(price > 0) || !(amount > 0)) {
+                return;
+            }
+            // Frames normally arrive best-first, so the insertion point is almost always the tail
+            int index = count;
+            while (index > 0 && isBetter(price, prices[index - 1])) {
+                index--;
+            }
+            if (index >= prices.length) {
+                return;
+            }
+            int tail = Math.min(count, prices.length - 1);
+            System.arraycopy(prices, index, prices, index + 1, tail - index);
+            System.arraycopy(amounts, index, amounts, index + 1, tail - index);
+            prices[index] = price;
+            amounts[index] = amount;
+            if (count < prices.length) {
+                count++;
+            }
+        }
+
+        private boolean isBetter(double price, double other) {
+            return descending ? price > other : price < other;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds one {@link OrderBookDepth} per subscribed pair, each bounded to {@code coinmate.depth-levels}.
+ */
+@Component
+public class OrderBookDepthRegistry {
+
+    private final Map<String, OrderBookDepth> books = new ConcurrentHashMap<>();
+    private final int depthLevels;
+
+    public OrderBookDepthRegistry(CoinmateProperties properties) {
+        this.depthLevels = properties.getDepthLevels();
+    }
+
+    public OrderBookDepth bookFor(String currencyPair) {
+        return books.computeIfAbsent(currencyPair, pair -> new OrderBookDepth(pair, depthLevels));
+    }
+
+    /**
+     * @return the pair's book, or {@code null} when no frame has been seen for it yet
+     */
+    public OrderBookDepth find(String currencyPair) {
+        return books.get(currencyPair);
+    }
+}
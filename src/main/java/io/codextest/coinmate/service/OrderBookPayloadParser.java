@@ -0,0 +1,468 @@
+package io.codextest.coinmate.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.codextest.coinmate.model.FixedPoint;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.function.Function;
+
+/**
+ * Turns Coinmate order book frames into {@link OrderBookSnapshot}s.
+ * <p>
+ * Two equivalent strategies are offered: {@link #parseTree} builds a {@link JsonNode} tree and is kept
+ * as the reference implementation, {@link #parseStreaming} walks the raw frame bytes with a token-level
+ * {@link JsonParser}, skips non-{@code data} events as soon as they are recognised and reads prices and
+ * amounts from the token text straight into scaled {@code long}s at the pair's precision, without
+ * creating a {@link BigDecimal} per level. Both round to that precision the same way, so they yield
+ * equal snapshots, and both can also refresh an {@link OrderBookDepth} with every level of the frame.
+ */
+@Component
+public class OrderBookPayloadParser {
+
+    private static final String ORDER_BOOK_CHANNEL_PREFIX = "order_book-";
+
+    /**
+     * Significant digits up to which a decimal survives a round trip through {@code double} unchanged,
+     * so the token text can stand in for the {@code double} the tree parser would read.
+     */
+    private static final int DOUBLE_EXACT_DIGITS = 15;
+
+    private final ObjectMapper objectMapper;
+    private final JsonFactory jsonFactory;
+    private final boolean bigDecimalFloats;
+    private final PairPrecisionRegistry precisions;
+
+    public OrderBookPayloadParser(ObjectMapper objectMapper, PairPrecisionRegistry precisions) {
+        this.objectMapper = objectMapper;
+        this.jsonFactory = objectMapper.getFactory();
+        this.bigDecimalFloats = objectMapper.isEnabled(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS);
+        this.precisions = precisions;
+    }
+
+    /**
+     * Parses a frame by materializing the whole JSON tree.
+     *
+     * @return the snapshot, or {@code null} when the frame carries no usable order book
+     */
+    public OrderBookSnapshot parseTree(String currencyPair, String rawPayload) throws IOException {
+        return parseTree(currencyPair, rawPayload, null);
+    }
+
+    /**
+     * Same as {@link #parseTree(String, String)}, additionally replacing the levels of {@code depth}
+     * (when given) with the frame's levels once the frame is known to be a valid snapshot.
+     */
+    public OrderBookSnapshot parseTree(String currencyPair, String rawPayload, OrderBookDepth depth)
+            throws IOException {
+        return parseTree(currencyPair, rawPayload, depth, Instant.now());
+    }
+
+    /**
+     * @param receivedAt when the frame arrived, recorded as the snapshot's {@code receivedAt}
+     */
+    public OrderBookSnapshot parseTree(String currencyPair, String rawPayload, OrderBookDepth depth,
+                                       Instant receivedAt) throws IOException {
+        return fromTree(currencyPair, objectMapper.readTree(rawPayload), depth, receivedAt);
+    }
+
+    /**
+     * Parses a frame of a multiplexed session, taking the pair from the frame's {@code channel}.
+     *
+     * @param depths resolves the depth book to refresh for the frame's pair, may be {@code null}
+     * @return the snapshot, or {@code null} when the frame carries no usable order book
+     */
+    public OrderBookSnapshot parseChannelTree(String rawPayload, Function<String, OrderBookDepth> depths)
+            throws IOException {
+        return parseChannelTree(rawPayload, depths, Instant.now());
+    }
+
+    public OrderBookSnapshot parseChannelTree(String rawPayload, Function<String, OrderBookDepth> depths,
+                                              Instant receivedAt) throws IOException {
+        JsonNode root = objectMapper.readTree(rawPayload);
+        String pair = pairOfChannel(root.path("channel").asText(null));
+        if (pair == null) {
+            return null;
+        }
+        return fromTree(pair, root, depths == null ? null : depths.apply(pair), receivedAt);
+    }
+
+    /**
+     * Parses the response of the REST {@code /api/orderBook} endpoint, whose {@code data} holds the same
+     * levels as the payload of a frame. The depth book is left alone, as the response may turn out to be
+     * older than the frames received meanwhile.
+     *
+     * @param receivedAt when the response arrived, recorded as the snapshot's {@code receivedAt}
+     * @return the snapshot, or {@code null} when the response carries no usable order book
+     * @throws IllegalStateException when the API responded with an error
+     */
+    public OrderBookSnapshot parseOrderBookResponse(String currencyPair, String rawResponse, Instant receivedAt)
+            throws IOException {
+        JsonNode root = objectMapper.readTree(rawResponse);
+        if (root.path("error").asBoolean(false)) {
+            throw new IllegalStateException("Coinmate API responded with error: "
+                    + root.path("errorMessage").asText(null));
+        }
+        JsonNode data = root.path("data");
+        return data.isMissingNode() ? null : fromPayload(currencyPair, data, null, receivedAt);
+    }
+
+    private OrderBookSnapshot fromTree(String currencyPair, JsonNode root, OrderBookDepth depth, Instant receivedAt) {
+        String event = root.hasNonNull("event") ? root.get("event").asText() : null;
+        if (event != null && !"data".equalsIgnoreCase(event)) {
+            return null;
+        }
+        JsonNode payload = root.path("payload");
+        if (payload.isMissingNode()) {
+            return null;
+        }
+        return fromPayload(currencyPair, payload, depth, receivedAt);
+    }
+
+    private OrderBookSnapshot fromPayload(String currencyPair, JsonNode payload, OrderBookDepth depth,
+                                          Instant receivedAt) {
+        if (depth != null) {
+            depth.beginUpdate();
+        }
+        PairPrecisionRegistry.Precision precision = precisions.precisionOf(currencyPair);
+        PickedLevel bestBid = pickPrice(payload.path("bids"), true, depth, precision);
+        PickedLevel bestAsk = pickPrice(payload.path("asks"), false, depth, precision);
+        if (bestBid == null || bestAsk == null) {
+            return null;
+        }
+        OrderBookSnapshot snapshot = new OrderBookSnapshot(
+                currencyPair,
+                bestBid.price,
+                bestBid.amount,
+                bestAsk.price,
+                bestAsk.amount,
+                precision.priceScale(),
+                precision.amountScale(),
+                receivedAt
+        );
+        if (depth != null) {
+            depth.publish(snapshot.receivedAt());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Parses a frame straight from its bytes without building a tree.
+     *
+     * @return the snapshot, or {@code null} when the frame carries no usable order book
+     */
+    public OrderBookSnapshot parseStreaming(String currencyPair, InputStream rawPayload) throws IOException {
+        return parseStreaming(currencyPair, rawPayload, null);
+    }
+
+    /**
+     * Same as {@link #parseStreaming(String, InputStream)}, additionally replacing the levels of
+     * {@code depth} (when given) with the frame's levels once the frame is known to be a valid snapshot.
+     */
+    public OrderBookSnapshot parseStreaming(String currencyPair, InputStream rawPayload, OrderBookDepth depth)
+            throws IOException {
+        return parseStreaming(currencyPair, rawPayload, depth, Instant.now());
+    }
+
+    /**
+     * @param receivedAt when the frame arrived, recorded as the snapshot's {@code receivedAt}
+     */
+    public OrderBookSnapshot parseStreaming(String currencyPair, InputStream rawPayload, OrderBookDepth depth,
+                                            Instant receivedAt) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(rawPayload)) {
+            return parseStreaming(parser, currencyPair, depth, null, receivedAt);
+        }
+    }
+
+    public OrderBookSnapshot parseStreaming(String currencyPair, byte[] rawPayload) throws IOException {
+        return parseStreaming(currencyPair, rawPayload, null);
+    }
+
+    public OrderBookSnapshot parseStreaming(String currencyPair, byte[] rawPayload, OrderBookDepth depth)
+            throws IOException {
+        Instant receivedAt = Instant.now();
+        try (JsonParser parser = jsonFactory.createParser(rawPayload)) {
+            return parseStreaming(parser, currencyPair, depth, null, receivedAt);
+        }
+    }
+
+    /**
+     * Streaming counterpart of {@link #parseChannelTree}. Non order book channels are skipped as soon
+     * as the {@code channel} field is read; the depth book is only refreshed when the channel precedes
+     * the payload, which is how Coinmate orders its frames.
+     */
+    public OrderBookSnapshot parseChannelStreaming(InputStream rawPayload, Function<String, OrderBookDepth> depths)
+            throws IOException {
+        return parseChannelStreaming(rawPayload, depths, Instant.now());
+    }
+
+    public OrderBookSnapshot parseChannelStreaming(InputStream rawPayload, Function<String, OrderBookDepth> depths,
+                                                   Instant receivedAt) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(rawPayload)) {
+            return parseStreaming(parser, null, null, depths, receivedAt);
+        }
+    }
+
+    public OrderBookSnapshot parseChannelStreaming(byte[] rawPayload, Function<String, OrderBookDepth> depths)
+            throws IOException {
+        Instant receivedAt = Instant.now();
+        try (JsonParser parser = jsonFactory.createParser(rawPayload)) {
+            return parseStreaming(parser, null, null, depths, receivedAt);
+        }
+    }
+
+    /**
+     * @return the channel name of a pair's order book, e.g. {@code order_book-BTC_EUR}
+     */
+    public static String channelOf(String currencyPair) {
+        return ORDER_BOOK_CHANNEL_PREFIX + currencyPair;
+    }
+
+    private static String pairOfChannel(String channel) {
+        if (channel == null || !channel.startsWith(ORDER_BOOK_CHANNEL_PREFIX)
+                || channel.length() == ORDER_BOOK_CHANNEL_PREFIX.length()) {
+            return null;
+        }
+        return channel.substring(ORDER_BOOK_CHANNEL_PREFIX.length());
+    }
+
+    /**
+     * @param fixedPair pair of a per-pair session, or {@code null} to take it from the frame's channel
+     */
+    private OrderBookSnapshot parseStreaming(JsonParser parser, String fixedPair, OrderBookDepth fixedDepth,
+                                             Function<String, OrderBookDepth> depths, Instant receivedAt)
+            throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return null;
+        }
+        String currencyPair = fixedPair;
+        OrderBookDepth depth = null;
+        PairPrecisionRegistry.Precision precision = null;
+        LevelScan bids = new LevelScan(true);
+        LevelScan asks = new LevelScan(false);
+        boolean payloadSeen = false;
+        String event = null;
+        JsonToken token;
+        while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if ("event".equals(field)) {
+                event = scalarText(parser, value);
+                // Skip subscription acknowledgements and other control events without touching the book
+                if (event != null && !"data".equalsIgnoreCase(event)) {
+                    return null;
+                }
+            } else if ("channel".equals(field) && fixedPair == null) {
+                currencyPair = pairOfChannel(scalarText(parser, value));
+                if (currencyPair == null) {
+                    return null;
+                }
+            } else if ("payload".equals(field)) {
+                payloadSeen = true;
+                depth = fixedPair != null ? fixedDepth
+                        : (currencyPair != null && depths != null ? depths.apply(currencyPair) : null);
+                // A channel arriving after the payload leaves the frame at the default precision,
+                // which the snapshot records along with its values
+                precision = precisions.precisionOf(currencyPair);
+                bids.reset(depth, precision);
+                asks.reset(depth, precision);
+                if (depth != null) {
+                    depth.beginUpdate();
+                }
+                if (value == JsonToken.START_OBJECT) {
+                    readPayload(parser, bids, asks);
+                } else {
+                    parser.skipChildren();
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (token != JsonToken.END_OBJECT) {
+            return null;
+        }
+        if (currencyPair == null || !payloadSeen || !bids.hasBest || !asks.hasBest) {
+            return null;
+        }
+        OrderBookSnapshot snapshot = new OrderBookSnapshot(
+                currencyPair,
+                bids.bestPrice,
+                bids.bestAmount,
+                asks.bestPrice,
+                asks.bestAmount,
+                precision.priceScale(),
+                precision.amountScale(),
+                receivedAt
+        );
+        if (depth != null) {
+            depth.publish(snapshot.receivedAt());
+        }
+        return snapshot;
+    }
+
+    private void readPayload(JsonParser parser, LevelScan bids, LevelScan asks) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            LevelScan target = "bids".equals(field) ? bids : "asks".equals(field) ? asks : null;
+            if (target == null) {
+                parser.skipChildren();
+                continue;
+            }
+            target.reset(target.depth, target.precision);
+            if (value == JsonToken.START_ARRAY) {
+                readLevels(parser, target);
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private void readLevels(JsonParser parser, LevelScan scan) throws IOException {
+        JsonToken element;
+        while ((element = parser.nextToken()) != JsonToken.END_ARRAY && element != null) {
+            if (element != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            scan.price = FixedPoint.NONE;
+            scan.amount = FixedPoint.NONE;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("price".equals(field)) {
+                    scan.price = readScaled(parser, value, scan.precision.priceScale());
+                } else if ("amount".equals(field)) {
+                    scan.amount = readScaled(parser, value, scan.precision.amountScale());
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            scan.offerCurrentLevel();
+        }
+    }
+
+    private String scalarText(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (value.isStructStart()) {
+            // JsonNode#asText() yields an empty string for containers
+            parser.skipChildren();
+            return "";
+        }
+        return parser.getText();
+    }
+
+    /**
+     * Reads a number token as an unscaled value, mirroring what {@code JsonNode#decimalValue()} returns
+     * for the same token rounded to {@code scale}.
+     *
+     * @return the value, or {@link FixedPoint#NONE} when the token is not a number
+     */
+    private long readScaled(JsonParser parser, JsonToken value, int scale) throws IOException {
+        if (value != JsonToken.VALUE_NUMBER_INT && value != JsonToken.VALUE_NUMBER_FLOAT) {
+            parser.skipChildren();
+            return FixedPoint.NONE;
+        }
+        // Integers and big decimal floats are exact in the tree, doubles only while their text round-trips
+        boolean exact = value == JsonToken.VALUE_NUMBER_INT || bigDecimalFloats;
+        long unscaled = FixedPoint.parse(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength(),
+                scale, exact ? FixedPoint.MAX_DIGITS : DOUBLE_EXACT_DIGITS);
+        if (unscaled != FixedPoint.NONE) {
+            return unscaled;
+        }
+        BigDecimal decimal = exact ? parser.getDecimalValue() : BigDecimal.valueOf(parser.getDoubleValue());
+        return FixedPoint.toUnscaled(decimal, scale);
+    }
+
+    private PickedLevel pickPrice(JsonNode levels, boolean pickHighest, OrderBookDepth depth,
+                                  PairPrecisionRegistry.Precision precision) {
+        if (levels == null || !levels.isArray() || levels.isEmpty()) {
+            return null;
+        }
+        PickedLevel best = null;
+        for (JsonNode level : levels) {
+            JsonNode priceNode = level.path("price");
+            JsonNode amountNode = level.path("amount");
+            if (!priceNode.isNumber()) {
+                continue;
+            }
+            long price = FixedPoint.toUnscaled(priceNode.decimalValue(), precision.priceScale());
+            long amount = amountNode.isNumber()
+                    ? FixedPoint.toUnscaled(amountNode.decimalValue(), precision.amountScale())
+                    : FixedPoint.NONE;
+            if (depth != null && amount != FixedPoint.NONE) {
+                stage(depth, pickHighest, price, amount, precision);
+            }
+            if (best == null || (pickHighest ? price > best.price : price < best.price)) {
+                best = new PickedLevel(price, amount);
+            }
+        }
+        return best;
+    }
+
+    private static void stage(OrderBookDepth depth, boolean bid, long price, long amount,
+                              PairPrecisionRegistry.Precision precision) {
+        double priceValue = FixedPoint.toDouble(price, precision.priceScale());
+        double amountValue = FixedPoint.toDouble(amount, precision.amountScale());
+        if (bid) {
+            depth.stageBid(priceValue, amountValue);
+        } else {
+            depth.stageAsk(priceValue, amountValue);
+        }
+    }
+
+    private record PickedLevel(long price, long amount) {
+    }
+
+    /**
+     * Tracks the best level of one side while the levels stream past.
+     */
+    private static final class LevelScan {
+        final boolean pickHighest;
+        OrderBookDepth depth;
+        PairPrecisionRegistry.Precision precision;
+        long price = FixedPoint.NONE;
+        long amount = FixedPoint.NONE;
+        long bestPrice = FixedPoint.NONE;
+        long bestAmount = FixedPoint.NONE;
+        boolean hasBest;
+
+        LevelScan(boolean pickHighest) {
+            this.pickHighest = pickHighest;
+        }
+
+        void reset(OrderBookDepth depth, PairPrecisionRegistry.Precision precision) {
+            this.depth = depth;
+            this.precision = precision;
+            hasBest = false;
+            bestPrice = FixedPoint.NONE;
+            bestAmount = FixedPoint.NONE;
+        }
+
+        void offerCurrentLevel() {
+            if (price == FixedPoint.NONE) {
+                return;
+            }
+            if (depth != null && amount != FixedPoint.NONE) {
+                stage(depth, pickHighest, price, amount, precision);
+            }
+            if (hasBest && (pickHighest ? price <= bestPrice : price >= bestPrice)) {
+                return;
+            }
+            bestPrice = price;
+            bestAmount = amount;
+            hasBest = true;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Seeds the books of freshly (re)connected streams from the REST API, so a pair has a current book one
+ * round trip after connecting rather than at its next frame, which a quiet pair may not send for long.
+ * <p>
+ * Frames and seeds are sequenced by when they arrived: a seed is passed on only if no frame of its pair
+ * has arrived since the seed was requested, so a slow response never replaces a newer book. Until then
+ * the pair's frames take a lock to settle the order; once a frame has arrived they do not anymore.
+ * <p>
+ * Meters: {@code coinmate.seeds} counts responses per {@code outcome}: {@code applied}, or
+ * {@code superseded} by a frame that arrived first.
+ */
+@Component
+public class OrderBookSeeder {
+
+    private final CoinmateApiClient apiClient;
+    private final boolean enabled;
+    private final Map<String, Seed> seeds = new ConcurrentHashMap<>();
+    private final Counter applied;
+    private final Counter superseded;
+
+    public OrderBookSeeder(CoinmateApiClient apiClient, CoinmateProperties properties, MeterRegistry meterRegistry) {
+        this.apiClient = apiClient;
+        this.enabled = properties.getSeeding().isEnabled();
+        this.applied = Counter.builder("coinmate.seeds")
+                .description("Order books fetched over REST on connect")
+                .tag("outcome", "applied")
+                .register(meterRegistry);
+        this.superseded = Counter.builder("coinmate.seeds")
+                .description("Order books fetched over REST on connect")
+                .tag("outcome", "superseded")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Fetches the books of the pairs of a connection that has just opened and passes them to
+     * {@code consumer}, unless frames came first. Pairs with a seed already in flight, e.g. from the
+     * twin of a redundant connection, are left to it.
+     *
+     * @return completes once every book was handled; cancelling it, as closing the connection does,
+     * abandons the books still outstanding
+     */
+    public Mono<Void> seed(Collection<String> currencyPairs, Consumer<OrderBookSnapshot> consumer) {
+        if (!enabled) {
+            return Mono.empty();
+        }
+        return Mono.defer(() -> {
+            List<Seed> claimed = new ArrayList<>(currencyPairs.size());
+            List<String> pairs = new ArrayList<>(currencyPairs.size());
+            for (String pair : currencyPairs) {
+                Seed seed = seeds.computeIfAbsent(pair, p -> new Seed());
+                if (seed.claim()) {
+                    claimed.add(seed);
+                    pairs.add(pair);
+                }
+            }
+            if (pairs.isEmpty()) {
+                return Mono.empty();
+            }
+            return apiClient.fetchOrderBooks(pairs)
+                    .doOnNext(snapshot -> offer(snapshot, consumer))
+                    .doFinally(signal -> claimed.forEach(Seed::release))
+                    .then();
+        });
+    }
+
+    /**
+     * Passes a frame's snapshot to {@code consumer}, settling its order with an outstanding seed first.
+     */
+    public void deliver(OrderBookSnapshot snapshot, Consumer<OrderBookSnapshot> consumer) {
+        if (enabled) {
+            Seed seed = seeds.get(snapshot.currencyPair());
+            if (seed != null && seed.pending) {
+                seed.frameArrived();
+            }
+        }
+        consumer.accept(snapshot);
+    }
+
+    private void offer(OrderBookSnapshot snapshot, Consumer<OrderBookSnapshot> consumer) {
+        Seed seed = seeds.get(snapshot.currencyPair());
+        if (seed != null && seed.apply(snapshot, consumer)) {
+            applied.increment();
+        } else {
+            superseded.increment();
+        }
+    }
+
+    /**
+     * The seed state of one pair.
+     */
+    private static final class Seed {
+
+        // Set when a seed is requested, cleared by the first frame or once the seed was passed on
+        private volatile boolean pending;
+        private boolean inFlight;
+
+        synchronized boolean claim() {
+            if (inFlight) {
+                return false;
+            }
+            inFlight = true;
+            pending = true;
+            return true;
+        }
+
+        synchronized void release() {
+            inFlight = false;
+        }
+
+        synchronized void frameArrived() {
+            pending = false;
+        }
+
+        /**
+         * Passes the seed on while holding the lock, so a frame arriving meanwhile is passed on after it:
+         * {@code pending} stays set until then, which keeps such a frame waiting for the lock.
+         */
+        synchronized boolean apply(OrderBookSnapshot snapshot, Consumer<OrderBookSnapshot> consumer) {
+            if (!pending) {
+                return false;
+            }
+            try {
+                consumer.accept(snapshot);
+            } finally {
+                pending = false;
+            }
+            return true;
+        }
+    }
+}
@@ -1,50 +1,202 @@
 package io.codextest.coinmate.service;
 
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.model.TradingPair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.ApplicationArguments;
 import org.springframework.boot.ApplicationRunner;
 import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
-import reactor.core.publisher.Mono;
 
+import java.io.IOException;
 import java.time.Duration;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 @Component
 @Profile("!test")
-public class OrderBookStreamingRunner implements ApplicationRunner {
+public class OrderBookStreamingRunner implements ApplicationRunner, DisposableBean {
 
     private static final Logger log = LoggerFactory.getLogger(OrderBookStreamingRunner.class);
 
     private final CoinmateApiClient apiClient;
     private final OrderBookWebSocketClient webSocketClient;
     private final OrderBookConversionService conversionService;
+    private final PairPrecisionRegistry precisionRegistry;
+    private final SnapshotDispatcher dispatcher;
+    private final LiveRateBroadcaster broadcaster;
+    private final ObjectProvider<KafkaRatePublisher> kafkaPublisher;
+    private final WarmStartCache warmStartCache;
+    private final FrameJournalReplayer replayer;
+    private final PairShardCoordinator shards;
+    private final RollingAnalytics analytics;
+    private final ConnectionScheduler connectionScheduler;
+    private final CoinmateProperties properties;
+    private volatile OrderBookSubscriptions subscriptions;
 
     public OrderBookStreamingRunner(CoinmateApiClient apiClient,
                                     OrderBookWebSocketClient webSocketClient,
-                                    OrderBookConversionService conversionService) {
+                                    OrderBookConversionService conversionService,
+                                    PairPrecisionRegistry precisionRegistry,
+                                    SnapshotDispatcher dispatcher,
+                                    LiveRateBroadcaster broadcaster,
+                                    ObjectProvider<KafkaRatePublisher> kafkaPublisher,
+                                    WarmStartCache warmStartCache,
+                                    FrameJournalReplayer replayer,
+                                    PairShardCoordinator shards,
+                                    RollingAnalytics analytics,
+                                    ConnectionScheduler connectionScheduler,
+                                    CoinmateProperties properties) {
         this.apiClient = apiClient;
         this.webSocketClient = webSocketClient;
         this.conversionService = conversionService;
+        this.precisionRegistry = precisionRegistry;
+        this.dispatcher = dispatcher;
+        this.broadcaster = broadcaster;
+        this.kafkaPublisher = kafkaPublisher;
+        this.warmStartCache = warmStartCache;
+        this.replayer = replayer;
+        this.shards = shards;
+        this.analytics = analytics;
+        this.connectionScheduler = connectionScheduler;
+        this.properties = properties;
     }
 
     @Override
-    public void run(ApplicationArguments args) {
-        List<String> pairs = apiClient.fetchCurrencyPairs()
-                .collectList()
-                .block(Duration.ofSeconds(30));
+    public void run(ApplicationArguments args) throws IOException {
+        WarmStartCache.Saved saved = warmStartCache.load();
+        boolean replay = properties.getJournal().isReplay();
+        List<TradingPair> tradingPairs = saved.pairs();
+        boolean warm = !tradingPairs.isEmpty();
+        if (warm) {
+            log.info("Starting from {} cached currency pairs", tradingPairs.size());
+        } else if (replay) {
+            // Pairs join with their first replayed frame, at the default scales
+            log.info("No cached currency pairs, replaying with default precision");
+        } else {
+            tradingPairs = apiClient.fetchTradingPairs()
+                    .collectList()
+                    .block(Duration.ofSeconds(30));
+            if (tradingPairs == null || tradingPairs.isEmpty()) {
+                log.error("No currency pairs were returned by Coinmate. Aborting WebSocket subscriptions.");
+                return;
+            }
+            warmStartCache.savePairs(tradingPairs);
+        }
+
+        // Scales must be known before the first frame of a pair is parsed
+        tradingPairs.forEach(precisionRegistry::register);
+        List<String> pairs = names(tradingPairs);
+
+        conversionService.registerPairs(pairs);
+
+        Map<String, Consumer<OrderBookSnapshot>> consumers = new LinkedHashMap<>();
+        consumers.put("conversion", conversionService::handleSnapshot);
+        // Live subscribers get every book and the rates as they are computed
+        consumers.put("live", broadcaster::publishBook);
+        conversionService.addRateListener(broadcaster::publishRate);
+        if (analytics.isEnabled()) {
+            consumers.put("analytics", analytics::record);
+        }
+        // Kafka only queues on these threads; a slow broker holds up its own sender thread alone
+        kafkaPublisher.ifAvailable(publisher -> {
+            consumers.put("kafka", publisher::publishSnapshot);
+            conversionService.addRateListener(publisher::publishRate);
+        });
+        if (replay) {
+            // Every replayed book goes through every consumer in turn, none is conflated away by a lane.
+            // Replayed books neither restore nor overwrite the saved state.
+            replayer.replay(snapshot -> consumers.forEach((name, consumer) -> {
+                try {
+                    consumer.accept(snapshot);
+                } catch (RuntimeException e) {
+                    log.warn("Consumer {} failed on {}: {}", name, snapshot.currencyPair(), e.toString());
+                }
+            }));
+            return;
+        }
+        if (warmStartCache.isEnabled()) {
+            consumers.put("warm-start", warmStartCache::saveSnapshot);
+        }
+        // Frames are only parsed on the I/O threads; each consumer runs on a dispatcher lane of its own
+        consumers.forEach(dispatcher::subscribe);
+        // After a blip every stream reconnects at about the same time; those feeding conversions go first
+        connectionScheduler.prioritize(conversionService::isRouted);
+        OrderBookSubscriptions subscriptions =
+                new OrderBookSubscriptions(webSocketClient, properties, dispatcher::publish, redundantPairs());
+        this.subscriptions = subscriptions;
+        // With sharding this instance streams its share of the pairs, which changes as instances come and go
+        List<String> streamed = shards.isEnabled() ? shards.start(pairs, subscriptions::update) : pairs;
+
+        // Books saved by the last run give (stale) rates at once; live frames replace them pair by pair
+        conversionService.restoreSnapshots(saved.snapshots().stream()
+                .filter(snapshot -> streamed.contains(snapshot.currencyPair()))
+                .toList());
+        log.info("Subscribing to {} order book streams", streamed.size());
+        subscriptions.update(streamed);
+        if (warm) {
+            // The cached list may be outdated; refresh it without holding up the streams
+            apiClient.fetchTradingPairs()
+                    .collectList()
+                    .subscribe(fresh -> refresh(fresh, subscriptions),
+                            e -> log.warn("Could not refresh currency pairs, keeping the cached ones: {}",
+                                    e.getMessage()));
+        }
+        subscriptions.whenClosed().block();
+    }
 
-        if (pairs == null || pairs.isEmpty()) {
-            log.error("No currency pairs were returned by Coinmate. Aborting WebSocket subscriptions.");
+    private void refresh(List<TradingPair> tradingPairs, OrderBookSubscriptions subscriptions) {
+        if (tradingPairs.isEmpty()) {
+            log.warn("Coinmate returned no currency pairs, keeping the cached ones");
             return;
         }
+        tradingPairs.forEach(precisionRegistry::register);
+        warmStartCache.savePairs(tradingPairs);
+        if (shards.isEnabled()) {
+            shards.updatePairs(names(tradingPairs));
+            return;
+        }
+        // New pairs join the conversion routes with their first snapshot, on the conversion lane
+        subscriptions.update(names(tradingPairs));
+    }
 
-        log.info("Subscribing to {} order book streams", pairs.size());
+    /**
+     * @return the pairs to stream over two racing connections: the configured ones, or by default every
+     * pair on a conversion route
+     */
+    private Predicate<String> redundantPairs() {
+        CoinmateProperties.Redundancy redundancy = properties.getRedundancy();
+        if (!redundancy.isEnabled()) {
+            return pair -> false;
+        }
+        if (properties.getConnectionMode() == CoinmateProperties.ConnectionMode.MULTIPLEXED) {
+            log.warn("Redundant connections are only opened in per-pair connection mode");
+            return pair -> false;
+        }
+        if (redundancy.getPairs().isEmpty()) {
+            return conversionService::isRouted;
+        }
+        Set<String> configured = Set.copyOf(redundancy.getPairs());
+        return configured::contains;
+    }
+
+    private static List<String> names(List<TradingPair> tradingPairs) {
+        return tradingPairs.stream().map(TradingPair::getName).toList();
+    }
 
-        Mono.whenDelayError(pairs.stream()
-                        .map(pair -> webSocketClient.streamOrderBook(pair, conversionService::handleSnapshot))
-                        .toList())
-                .block();
+    @Override
+    public void destroy() {
+        OrderBookSubscriptions current = subscriptions;
+        if (current != null) {
+            current.close();
+        }
     }
 }
@@ -0,0 +1,116 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * The set of order books being streamed, changeable while streaming.
+ * <p>
+ * {@link #update} diffs the wanted pairs against the subscribed ones: per-pair connections are opened
+ * and closed one by one, while multiplexed sessions are rebuilt once when the set changes, since their
+ * pairs are spread over the pool up front. Per-pair connections of the pairs matching {@code redundant}
+ * are {@linkplain OrderBookWebSocketClient#streamRedundant doubled}.
+ */
+public class OrderBookSubscriptions {
+
+    private static final Logger log = LoggerFactory.getLogger(OrderBookSubscriptions.class);
+
+    private final OrderBookWebSocketClient webSocketClient;
+    private final Consumer<OrderBookSnapshot> consumer;
+    private final boolean multiplexed;
+    private final Predicate<String> redundant;
+    private final Map<String, Disposable> streams = new LinkedHashMap<>();
+    private final Sinks.Empty<Void> closed = Sinks.empty();
+    private Disposable sessions;
+
+    public OrderBookSubscriptions(OrderBookWebSocketClient webSocketClient, CoinmateProperties properties,
+                                  Consumer<OrderBookSnapshot> consumer) {
+        this(webSocketClient, properties, consumer, pair -> false);
+    }
+
+    public OrderBookSubscriptions(OrderBookWebSocketClient webSocketClient, CoinmateProperties properties,
+                                  Consumer<OrderBookSnapshot> consumer, Predicate<String> redundant) {
+        this.webSocketClient = webSocketClient;
+        this.consumer = consumer;
+        this.redundant = redundant;
+        this.multiplexed = properties.getConnectionMode() == CoinmateProperties.ConnectionMode.MULTIPLEXED;
+    }
+
+    /**
+     * Streams exactly the given pairs from now on.
+     */
+    public synchronized void update(List<String> currencyPairs) {
+        Set<String> wanted = new LinkedHashSet<>(currencyPairs);
+        if (wanted.equals(streams.keySet())) {
+            return;
+        }
+        List<String> added = new ArrayList<>(wanted);
+        added.removeAll(streams.keySet());
+        List<String> removed = new ArrayList<>(streams.keySet());
+        removed.removeAll(wanted);
+        log.info("Order book subscriptions: {} added, {} removed", added, removed);
+        if (multiplexed) {
+            if (sessions != null) {
+                sessions.dispose();
+            }
+            streams.clear();
+            wanted.forEach(pair -> streams.put(pair, null));
+            sessions = subscribe("multiplexed sessions",
+                    webSocketClient.streamOrderBooks(List.copyOf(wanted), consumer));
+            return;
+        }
+        for (String pair : removed) {
+            streams.remove(pair).dispose();
+        }
+        for (String pair : added) {
+            streams.put(pair, subscribe(pair, redundant.test(pair)
+                    ? webSocketClient.streamRedundant(pair, consumer)
+                    : webSocketClient.streamOrderBook(pair, consumer)));
+        }
+    }
+
+    private static Disposable subscribe(String name, Mono<Void> stream) {
+        return stream.subscribe(null, e -> log.error("Order book stream {} ended: {}", name, e.getMessage()));
+    }
+
+    public synchronized Set<String> currencyPairs() {
+        return Set.copyOf(streams.keySet());
+    }
+
+    /**
+     * Stops every stream.
+     */
+    public synchronized void close() {
+        streams.values().forEach(stream -> {
+            if (stream != null) {
+                stream.dispose();
+            }
+        });
+        streams.clear();
+        if (sessions != null) {
+            sessions.dispose();
+        }
+        closed.tryEmitEmpty();
+    }
+
+    /**
+     * @return completes once {@link #close} was called
+     */
+    public Mono<Void> whenClosed() {
+        return closed.asMono();
+    }
+}
@@ -1,45 +1,142 @@
 package io.codextest.coinmate.service;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import io.codextest.coinmate.config.CoinmateProperties;
 import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.socket.WebSocketHandler;
 import org.springframework.web.reactive.socket.WebSocketMessage;
 import org.springframework.web.reactive.socket.client.ReactorNettyWebSocketClient;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.util.retry.Retry;
 
-import java.math.BigDecimal;
 import java.net.URI;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
+/**
+ * Streams Coinmate order books over WebSockets, per pair or multiplexed.
+ * <p>
+ * Meters: {@code coinmate.frames} and {@code coinmate.frames.failed} count text frames and frames that
+ * could not be parsed per stream (a pair, or a multiplexed session), {@code coinmate.snapshots} counts
+ * parsed snapshots per pair, {@code coinmate.frame.parse} times the parsing,
+ * {@code coinmate.websocket.reconnects} counts reconnects and {@code coinmate.websocket.gap} measures
+ * each outage from the failure to the first frame after reconnecting. Pairs streamed redundantly also
+ * have the {@link FrameRace} meters.
+ * <p>
+ * Every (re)connect {@linkplain OrderBookSeeder#seed seeds} the connection's books over REST, and
+ * frames reach the consumer through the seeder, which keeps a late seed from replacing them. Handshakes
+ * wait for a place from the {@link ConnectionScheduler}, and reconnect delays are jittered by
+ * {@code connections.jitter}.
+ */
 @Component
 public class OrderBookWebSocketClient {
 
     private static final Logger log = LoggerFactory.getLogger(OrderBookWebSocketClient.class);
 
     private final ReactorNettyWebSocketClient webSocketClient;
-    private final ObjectMapper objectMapper;
+    private final OrderBookPayloadParser payloadParser;
+    private final OrderBookDepthRegistry depthRegistry;
     private final CoinmateProperties properties;
+    private final MeterRegistry meterRegistry;
+    private final Timer parseTimer;
+    private final Map<String, Counter> snapshotCounters = new ConcurrentHashMap<>();
+    private final FrameJournal journal;
+    private final OrderBookSeeder seeder;
+    private final ConnectionScheduler scheduler;
+    private volatile StreamMeters replayMeters;
 
-    public OrderBookWebSocketClient(ObjectMapper objectMapper, CoinmateProperties properties) {
-        this.objectMapper = objectMapper;
+    public OrderBookWebSocketClient(OrderBookPayloadParser payloadParser,
+                                    OrderBookDepthRegistry depthRegistry,
+                                    CoinmateProperties properties,
+                                    MeterRegistry meterRegistry,
+                                    FrameJournal journal,
+                                    OrderBookSeeder seeder,
+                                    ConnectionScheduler scheduler) {
+        this.payloadParser = payloadParser;
+        this.journal = journal;
+        this.seeder = seeder;
+        this.scheduler = scheduler;
+        this.depthRegistry = depthRegistry;
         this.properties = properties;
+        this.meterRegistry = meterRegistry;
         this.webSocketClient = new ReactorNettyWebSocketClient();
+        this.parseTimer = Timer.builder("coinmate.frame.parse")
+                .description("Time to parse an order book frame into a snapshot")
+                .tag("mode", properties.getParserMode().name().toLowerCase())
+                .register(meterRegistry);
+    }
+
+    /**
+     * Streams the order books of all given pairs using the configured connection mode.
+     */
+    public Mono<Void> streamOrderBooks(List<String> currencyPairs, Consumer<OrderBookSnapshot> consumer) {
+        if (properties.getConnectionMode() == CoinmateProperties.ConnectionMode.MULTIPLEXED) {
+            int poolSize = Math.max(1, Math.min(properties.getMultiplexPoolSize(), currencyPairs.size()));
+            List<List<String>> sessions = new ArrayList<>(poolSize);
+            for (int i = 0; i < poolSize; i++) {
+                sessions.add(new ArrayList<>());
+            }
+            for (int i = 0; i < currencyPairs.size(); i++) {
+                sessions.get(i % poolSize).add(currencyPairs.get(i));
+            }
+            List<Mono<Void>> streams = new ArrayList<>(poolSize);
+            for (int i = 0; i < poolSize; i++) {
+                streams.add(streamMultiplexed("session-" + i, sessions.get(i), consumer));
+            }
+            return Mono.whenDelayError(streams);
+        }
+        return Mono.whenDelayError(currencyPairs.stream()
+                .map(pair -> streamOrderBook(pair, consumer))
+                .toList());
     }
 
     public Mono<Void> streamOrderBook(String currencyPair, Consumer<OrderBookSnapshot> consumer) {
+        return streamOrderBook(currencyPair, currencyPair, null, consumer);
+    }
+
+    /**
+     * Streams one order book over two independent connections, passing on every frame from whichever
+     * connection delivers it first. A connection that falls silent or behind while its twin keeps
+     * delivering is reconnected after {@code redundancy.stall-timeout}, without a gap in the book.
+     * The connections are the streams {@code <pair>/a} and {@code <pair>/b} of the meters.
+     */
+    public Mono<Void> streamRedundant(String currencyPair, Consumer<OrderBookSnapshot> consumer) {
+        CoinmateProperties.Redundancy redundancy = properties.getRedundancy();
+        FrameRace race = new FrameRace(currencyPair, redundancy.getWindow(), redundancy.getStallTimeout(),
+                meterRegistry);
+        return Mono.whenDelayError(
+                streamOrderBook(currencyPair, currencyPair + "/a", race.leg(0), consumer),
+                streamOrderBook(currencyPair, currencyPair + "/b", race.leg(1), consumer));
+    }
+
+    /**
+     * @param leg the connection's side of a {@link FrameRace}, or {@code null} for a single connection
+     */
+    private Mono<Void> streamOrderBook(String currencyPair, String streamName, FrameRace.Leg leg,
+                                       Consumer<OrderBookSnapshot> consumer) {
+        StreamMeters meters = new StreamMeters(streamName);
         return Mono.defer(() -> {
                     URI uri = URI.create(String.format("%s/api/websocket/channel/order-book/%s",
                             properties.getWebsocketBaseUrl(), currencyPair));
-                    log.info("Connecting to order book stream for {}", currencyPair);
-                    return webSocketClient.execute(uri, session -> {
+                    log.info("Connecting to order book stream for {}", streamName);
+                    return connect(uri, List.of(currencyPair), session -> {
                         // Heartbeat: send periodic WebSocket ping frames
                         Flux<WebSocketMessage> pings = Flux.interval(properties.getPingInterval())
                                 .map(tick -> session.pingMessage(factory -> factory.wrap(new byte[] {1})))
@@ -47,14 +144,26 @@ public class OrderBookWebSocketClient {
                                 .doOnError(err -> log.debug("Ping stream error for {}: {}", currencyPair, err.toString()));
 
                         // Inbound processing with inactivity timeout to trigger reconnect after sleep
-                        Mono<Void> inbound = session.receive()
+                        Flux<WebSocketMessage> received = session.receive()
                                 // Trigger reconnect if nothing is received for the timeout period (e.g., after sleep)
-                                .timeout(properties.getInactivityTimeout())
+                                .timeout(properties.getInactivityTimeout());
+                        if (leg != null) {
+                            leg.connected();
+                            received = received.mergeWith(lagWatchdog(leg));
+                        }
+                        Mono<Void> inbound = received
                                 .flatMap(msg -> {
                                     switch (msg.getType()) {
                                         case TEXT:
-                                            return extractSnapshot(currencyPair, msg.getPayloadAsText())
-                                                    .doOnNext(consumer::accept);
+                                            meters.frameReceived();
+                                            if (leg != null) {
+                                                // Both legs parse into the pair's one depth book
+                                                leg.admit(msg.getPayload(),
+                                                        () -> handleFrame(currencyPair, msg, meters, consumer));
+                                            } else {
+                                                handleFrame(currencyPair, msg, meters, consumer);
+                                            }
+                                            return Mono.empty();
                                         case PONG:
                                         case PING:
                                         case BINARY:
@@ -64,83 +173,237 @@ public class OrderBookWebSocketClient {
                                 })
                                 // If the server closes the connection cleanly, convert completion to an error
                                 // so our retryWhen(...) will perform a seamless reconnect.
-                                .then(Mono.error(new IllegalStateException("WebSocket closed for " + currencyPair)));
+                                .then(Mono.error(new IllegalStateException("WebSocket closed for " + streamName)));
 
-                        return session.send(pings).and(inbound);
+                        return session.send(pings).and(inbound).and(seeder.seed(List.of(currencyPair), consumer));
                     });
                 })
                 .retryWhen(Retry.backoff(Long.MAX_VALUE, properties.getReconnectDelay())
-                        .doBeforeRetry(retrySignal -> log.warn("Reconnecting {} after error: {}",
-                                currencyPair, retrySignal.failure().getMessage()))
-                        .maxBackoff(Duration.ofMinutes(1)))
-                .doOnCancel(() -> log.info("Stream cancelled for {}", currencyPair));
+                        .doBeforeRetry(retrySignal -> {
+                            meters.disconnected();
+                            log.warn("Reconnecting {} after error: {}",
+                                    streamName, retrySignal.failure().getMessage());
+                        })
+                        .maxBackoff(Duration.ofMinutes(1))
+                        .jitter(properties.getConnections().getJitter()))
+                .doOnCancel(() -> log.info("Stream cancelled for {}", streamName));
+    }
+
+    private void handleFrame(String currencyPair, WebSocketMessage msg, StreamMeters meters,
+                             Consumer<OrderBookSnapshot> consumer) {
+        capture(currencyPair, false, msg);
+        OrderBookSnapshot snapshot = extractSnapshot(currencyPair, msg, meters);
+        if (snapshot != null) {
+            seeder.deliver(snapshot, consumer);
+        }
     }
 
-    private Mono<OrderBookSnapshot> extractSnapshot(String currencyPair, String rawPayload) {
+    /**
+     * Opens a connection once the {@link ConnectionScheduler} admits its handshake, and gives up the
+     * handshake's place as soon as the connection is open or has failed.
+     */
+    private Mono<Void> connect(URI uri, Collection<String> currencyPairs, WebSocketHandler handler) {
+        return scheduler.acquire(currencyPairs)
+                .flatMap(handshake -> webSocketClient.execute(uri, session -> {
+                            handshake.connected();
+                            return handler.handle(session);
+                        })
+                        .doFinally(signal -> handshake.release()));
+    }
+
+    /**
+     * Fails the leg's connection, so it reconnects, once it is silent or behind while its twin keeps up.
+     */
+    private static Flux<WebSocketMessage> lagWatchdog(FrameRace.Leg leg) {
+        return Flux.interval(leg.checkInterval())
+                .handle((tick, sink) -> {
+                    String reason = leg.lagging();
+                    if (reason != null) {
+                        sink.error(new IllegalStateException("Connection " + leg.name() + " " + reason));
+                    }
+                });
+    }
+
+    /**
+     * Streams several order books over one shared session. Every (re)connect subscribes all of the
+     * session's channels again, and frames are routed to the pair named in their channel.
+     */
+    public Mono<Void> streamMultiplexed(String sessionName, List<String> currencyPairs,
+                                        Consumer<OrderBookSnapshot> consumer) {
+        Set<String> subscribed = Set.copyOf(currencyPairs);
+        StreamMeters meters = new StreamMeters(sessionName);
+        return Mono.defer(() -> {
+                    URI uri = URI.create(properties.getWebsocketBaseUrl() + "/api/websocket");
+                    log.info("Connecting multiplexed {} for {} order books", sessionName, currencyPairs.size());
+                    return connect(uri, currencyPairs, session -> {
+                        Flux<WebSocketMessage> subscriptions = Flux.fromIterable(currencyPairs)
+                                .map(pair -> session.textMessage(subscribeMessage(pair)));
+
+                        Flux<WebSocketMessage> pings = Flux.interval(properties.getPingInterval())
+                                .map(tick -> session.pingMessage(factory -> factory.wrap(new byte[] {1})))
+                                .doOnError(err -> log.debug("Ping stream error for {}: {}", sessionName, err.toString()));
+
+                        Mono<Void> inbound = session.receive()
+                                .timeout(properties.getInactivityTimeout())
+                                .flatMap(msg -> {
+                                    if (msg.getType() != WebSocketMessage.Type.TEXT) {
+                                        return Mono.empty();
+                                    }
+                                    meters.frameReceived();
+                                    capture(sessionName, true, msg);
+                                    return Mono.justOrEmpty(extractChannelSnapshot(sessionName, subscribed::contains,
+                                                    msg, meters))
+                                            .doOnNext(snapshot -> seeder.deliver(snapshot, consumer));
+                                })
+                                .then(Mono.error(new IllegalStateException("WebSocket closed for " + sessionName)));
+
+                        return session.send(subscriptions.concatWith(pings)).and(inbound)
+                                .and(seeder.seed(currencyPairs, consumer));
+                    });
+                })
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, properties.getReconnectDelay())
+                        .doBeforeRetry(retrySignal -> {
+                            meters.disconnected();
+                            log.warn("Reconnecting {} after error: {}",
+                                    sessionName, retrySignal.failure().getMessage());
+                        })
+                        .maxBackoff(Duration.ofMinutes(1))
+                        .jitter(properties.getConnections().getJitter()))
+                .doOnCancel(() -> log.info("Stream cancelled for {}", sessionName));
+    }
+
+    private static String subscribeMessage(String currencyPair) {
+        return "{\"event\":\"subscribe\",\"data\":{\"channel\":\""
+                + OrderBookPayloadParser.channelOf(currencyPair) + "\"}}";
+    }
+
+    private void capture(String key, boolean channel, WebSocketMessage msg) {
+        if (journal.isCapturing()) {
+            journal.append(key, channel, Instant.now(), msg.getPayload());
+        }
+    }
+
+    /**
+     * Parses a journaled frame exactly like a live one of its stream. Frames of multiplexed sessions are
+     * accepted for every pair.
+     *
+     * @return the snapshot, or {@code null} when the frame holds none or could not be parsed
+     */
+    public OrderBookSnapshot replay(FrameJournal.Frame frame) {
+        StreamMeters meters = replayMeters;
+        if (meters == null) {
+            meters = new StreamMeters("replay");
+            replayMeters = meters;
+        }
+        meters.frameReceived();
+        WebSocketMessage msg = new WebSocketMessage(WebSocketMessage.Type.TEXT,
+                DefaultDataBufferFactory.sharedInstance.wrap(frame.payload().duplicate()));
+        return frame.channel()
+                ? extractChannelSnapshot(frame.key(), pair -> true, msg, meters)
+                : extractSnapshot(frame.key(), msg, meters);
+    }
+
+    private OrderBookSnapshot extractChannelSnapshot(String sessionName, Predicate<String> subscribed,
+                                                     WebSocketMessage msg, StreamMeters meters) {
+        Instant receivedAt = Instant.now();
+        long start = System.nanoTime();
         try {
-            JsonNode root = objectMapper.readTree(rawPayload);
-            String event = root.hasNonNull("event") ? root.get("event").asText() : null;
-            if (event != null && !"data".equalsIgnoreCase(event)) {
-                return Mono.empty();
+            Function<String, OrderBookDepth> depths =
+                    pair -> subscribed.test(pair) ? depthRegistry.bookFor(pair) : null;
+            OrderBookSnapshot snapshot = properties.getParserMode() == CoinmateProperties.ParserMode.TREE
+                    ? payloadParser.parseChannelTree(msg.getPayloadAsText(), depths, receivedAt)
+                    : payloadParser.parseChannelStreaming(msg.getPayload().asInputStream(), depths, receivedAt);
+            parseTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if (snapshot == null || !subscribed.test(snapshot.currencyPair())) {
+                return null;
             }
-            JsonNode payload = root.path("payload");
-            if (payload.isMissingNode()) {
-                return Mono.empty();
-            }
-            PickedLevel bestBid = pickPrice(payload.path("bids"), true);
-            PickedLevel bestAsk = pickPrice(payload.path("asks"), false);
-            if (bestBid == null || bestAsk == null || bestBid.price == null || bestAsk.price == null) {
-                return Mono.empty();
+            snapshotCounter(snapshot.currencyPair()).increment();
+            return snapshot;
+        } catch (Exception ex) {
+            meters.parseFailed();
+            log.warn("Failed to parse order book payload on {}: {}", sessionName, ex.getMessage());
+            return null;
+        }
+    }
+
+    private OrderBookSnapshot extractSnapshot(String currencyPair, WebSocketMessage msg, StreamMeters meters) {
+        Instant receivedAt = Instant.now();
+        long start = System.nanoTime();
+        try {
+            OrderBookDepth depth = depthRegistry.bookFor(currencyPair);
+            OrderBookSnapshot snapshot = properties.getParserMode() == CoinmateProperties.ParserMode.TREE
+                    ? payloadParser.parseTree(currencyPair, msg.getPayloadAsText(), depth, receivedAt)
+                    : payloadParser.parseStreaming(currencyPair, msg.getPayload().asInputStream(), depth, receivedAt);
+            parseTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if (snapshot != null) {
+                snapshotCounter(currencyPair).increment();
             }
-            return Mono.just(new OrderBookSnapshot(
-                    currencyPair,
-                    bestBid.price,
-                    bestBid.amount,
-                    bestAsk.price,
-                    bestAsk.amount,
-                    Instant.now()
-            ));
+            return snapshot;
         } catch (Exception ex) {
+            meters.parseFailed();
             log.warn("Failed to parse order book payload for {}: {}", currencyPair, ex.getMessage());
-            return Mono.empty();
+            return null;
         }
     }
 
-    private PickedLevel pickPrice(JsonNode levels, boolean pickHighest) {
-        if (levels == null || !levels.isArray() || levels.isEmpty()) {
-            return null;
+    private Counter snapshotCounter(String currencyPair) {
+        Counter counter = snapshotCounters.get(currencyPair);
+        if (counter == null) {
+            counter = snapshotCounters.computeIfAbsent(currencyPair, pair -> Counter.builder("coinmate.snapshots")
+                    .description("Order book snapshots parsed")
+                    .tag("pair", pair)
+                    .register(meterRegistry));
         }
-        BigDecimal bestPrice = null;
-        BigDecimal bestAmount = null;
-        for (JsonNode level : levels) {
-            JsonNode priceNode = level.path("price");
-            JsonNode amountNode = level.path("amount");
-            if (!priceNode.isNumber()) {
-                continue;
-            }
-            BigDecimal price = priceNode.decimalValue();
-            BigDecimal amount = amountNode.isNumber() ? amountNode.decimalValue() : null;
-            if (bestPrice == null) {
-                bestPrice = price;
-                bestAmount = amount;
-                continue;
-            }
-            int comparison = price.compareTo(bestPrice);
-            if ((pickHighest && comparison > 0) || (!pickHighest && comparison < 0)) {
-                bestPrice = price;
-                bestAmount = amount;
+        return counter;
+    }
+
+    /**
+     * Meters of one connection, which survive its reconnects.
+     */
+    private final class StreamMeters {
+        private final Counter frames;
+        private final Counter failures;
+        private final Counter reconnects;
+        private final Timer gaps;
+        private volatile long disconnectedAtNanos;
+
+        private StreamMeters(String stream) {
+            this.frames = Counter.builder("coinmate.frames")
+                    .description("Text frames received")
+                    .tag("stream", stream)
+                    .register(meterRegistry);
+            this.failures = Counter.builder("coinmate.frames.failed")
+                    .description("Frames that could not be parsed")
+                    .tag("stream", stream)
+                    .register(meterRegistry);
+            this.reconnects = Counter.builder("coinmate.websocket.reconnects")
+                    .tag("stream", stream)
+                    .register(meterRegistry);
+            this.gaps = Timer.builder("coinmate.websocket.gap")
+                    .description("Time from a connection failure to the first frame after reconnecting")
+                    .tag("stream", stream)
+                    .register(meterRegistry);
+        }
+
+        void frameReceived() {
+            frames.increment();
+            long since = disconnectedAtNanos;
+            if (since != 0) {
+                disconnectedAtNanos = 0;
+                gaps.record(System.nanoTime() - since, TimeUnit.NANOSECONDS);
             }
         }
-        return new PickedLevel(bestPrice, bestAmount);
-    }
 
-    private static final class PickedLevel {
-        final BigDecimal price;
-        final BigDecimal amount;
+        void parseFailed() {
+            failures.increment();
+        }
 
-        private PickedLevel(BigDecimal price, BigDecimal amount) {
-            this.price = price;
-            this.amount = amount;
+        void disconnected() {
+            reconnects.increment();
+            // A failed reconnect attempt extends the running gap rather than starting a new one
+            if (disconnectedAtNanos == 0) {
+                disconnectedAtNanos = System.nanoTime();
+            }
         }
     }
 }
@@ -0,0 +1,49 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.TradingPair;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the fixed-point scales prices and amounts of each pair are carried with on the ingest path.
+ * <p>
+ * Scales come from the precision Coinmate reports for the pair ({@code priceDecimals} and
+ * {@code lotDecimals}); pairs without a reported precision use {@code coinmate.default-price-scale}
+ * and {@code coinmate.default-amount-scale}.
+ */
+@Component
+public class PairPrecisionRegistry {
+
+    private final Map<String, Precision> precisions = new ConcurrentHashMap<>();
+    private final Precision defaultPrecision;
+
+    public PairPrecisionRegistry(CoinmateProperties properties) {
+        this.defaultPrecision = new Precision(properties.getDefaultPriceScale(), properties.getDefaultAmountScale());
+    }
+
+    public void register(TradingPair tradingPair) {
+        if (tradingPair.getName() == null) {
+            return;
+        }
+        register(tradingPair.getName(),
+                tradingPair.getPriceDecimals() != null ? tradingPair.getPriceDecimals() : defaultPrecision.priceScale(),
+                tradingPair.getLotDecimals() != null ? tradingPair.getLotDecimals() : defaultPrecision.amountScale());
+    }
+
+    public void register(String currencyPair, int priceScale, int amountScale) {
+        precisions.put(currencyPair, new Precision(priceScale, amountScale));
+    }
+
+    public Precision precisionOf(String currencyPair) {
+        return currencyPair == null ? defaultPrecision : precisions.getOrDefault(currencyPair, defaultPrecision);
+    }
+
+    /**
+     * Number of decimals prices and amounts of one pair are scaled by.
+     */
+    public record Precision(int priceScale, int amountScale) {
+    }
+}
@@ -0,0 +1,340 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.repository.PairLeaseRepository;
+import io.codextest.coinmate.repository.ShardMemberRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+
+import java.math.MathContext;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Splits the pairs across the instances sharing the database, so running several instances neither
+ * streams a book twice nor writes a rate twice.
+ * <p>
+ * Pairs are placed in groups: all pairs on the routes of a conversion form one group, so its rates are
+ * computed by one instance from books it streams itself, and every other pair is a group of its own.
+ * Every {@code renew-interval} each instance records a heartbeat in {@code shard_members} and works out
+ * which groups it should hold by rendezvous hashing over the live instances, which moves only the groups
+ * of an instance joining or leaving. It then renews its leases in {@code pair_leases}, releases the
+ * groups that moved to another instance and takes the ones that moved to it once they are free or have
+ * expired. A lease is only taken by a conditional update, so a group is never held twice; it changes
+ * hands within a {@code renew-interval} when an instance joins, and within {@code lease-ttl} when one dies.
+ * <p>
+ * Leases expire by the database's clock. An instance that cannot renew them in time stops streaming a
+ * {@code renew-interval} (at most half the {@code lease-ttl}) before they could expire: a watchdog apart
+ * from the database calls counts down from the start of the last successful renewal by the local
+ * monotonic clock, so this holds even while a call hangs.
+ * <p>
+ * Meters: {@code coinmate.shard.pairs} streamed by this instance, {@code coinmate.shard.members} alive
+ * and {@code coinmate.shard.rebalances}, the changes of this instance's pairs.
+ */
+@Component
+public class PairShardCoordinator implements DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(PairShardCoordinator.class);
+
+    private final PairLeaseRepository leases;
+    private final ShardMemberRepository members;
+    private final CoinmateProperties.Sharding settings;
+    private final String instanceId;
+    // Only for the route groups; it never evaluates a rate
+    private final CurrencyGraph routes;
+    private final Counter rebalances;
+    private final AtomicInteger assignedPairs = new AtomicInteger();
+    private final AtomicInteger liveMembers = new AtomicInteger();
+    private final long ttlNanos;
+    private final long marginNanos;
+
+    // Written under this; the watchdog reads it without the lock, which a round stuck in the database holds
+    private volatile List<String> pairs = List.of();
+
+    // Guarded by this
+    private Set<String> held = Set.of();
+    private ScheduledExecutorService scheduler;
+
+    // Guarded by assignment, which the watchdog takes without waiting for a round stuck in the database
+    private final Object assignment = new Object();
+    private List<String> assigned = List.of();
+    private Consumer<List<String>> onAssignment;
+    // System.nanoTime() by which streaming stops unless the leases were renewed
+    private long leasedUntilNanos = System.nanoTime();
+
+    public PairShardCoordinator(PairLeaseRepository leases,
+                                ShardMemberRepository members,
+                                CoinmateProperties properties,
+                                MeterRegistry meterRegistry) {
+        this.leases = leases;
+        this.members = members;
+        this.settings = properties.getSharding();
+        this.instanceId = settings.getInstanceId().isBlank() ? defaultInstanceId() : settings.getInstanceId();
+        this.routes = new CurrencyGraph(properties.getConversions(), properties.getMaxHops(), MathContext.DECIMAL64);
+        this.ttlNanos = settings.getLeaseTtl().toNanos();
+        this.marginNanos = Math.min(settings.getRenewInterval().toNanos(), ttlNanos / 2);
+        this.rebalances = Counter.builder("coinmate.shard.rebalances")
+                .description("Changes of the pairs this instance streams")
+                .register(meterRegistry);
+        Gauge.builder("coinmate.shard.pairs", assignedPairs, AtomicInteger::get)
+                .description("Pairs this instance streams")
+                .register(meterRegistry);
+        Gauge.builder("coinmate.shard.members", liveMembers, AtomicInteger::get)
+                .description("Instances sharing the pairs")
+                .register(meterRegistry);
+    }
+
+    private static String defaultInstanceId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "instance";
+        }
+        return host + "-" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    public boolean isEnabled() {
+        return settings.isEnabled();
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    /**
+     * Takes part in splitting the pairs from now on. The first round runs at once; later changes of this
+     * instance's pairs are passed to {@code onAssignment} on the coordinator's thread.
+     *
+     * @return the pairs this instance streams for now, possibly none until leases of another instance expire
+     */
+    public synchronized List<String> start(List<String> currencyPairs, Consumer<List<String>> onAssignment) {
+        if (scheduler != null) {
+            throw new IllegalStateException("Pair sharding already started");
+        }
+        updatePairs(currencyPairs);
+        rebalance();
+        List<String> first;
+        synchronized (assignment) {
+            this.onAssignment = onAssignment;
+            first = assigned;
+        }
+        // One thread for the rounds, one for the watchdog
+        scheduler = Executors.newScheduledThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "pair-shards");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = settings.getRenewInterval().toMillis();
+        scheduler.scheduleWithFixedDelay(this::rebalance, interval, interval, TimeUnit.MILLISECONDS);
+        long check = Math.max(1, TimeUnit.NANOSECONDS.toMillis(marginNanos / 2));
+        scheduler.scheduleAtFixedRate(this::checkLeases, check, check, TimeUnit.MILLISECONDS);
+        return first;
+    }
+
+    /**
+     * Replaces the pairs to split, e.g. after the trading pair list was refreshed; applied in the next round.
+     */
+    public synchronized void updatePairs(List<String> currencyPairs) {
+        pairs = List.copyOf(currencyPairs);
+        routes.addPairs(pairs);
+    }
+
+    private synchronized void rebalance() {
+        try {
+            long ttlMillis = settings.getLeaseTtl().toMillis();
+            if (members.heartbeat(instanceId) == 0) {
+                members.create(instanceId);
+            }
+            Set<String> alive = new HashSet<>(members.findAliveWithin(ttlMillis));
+            alive.add(instanceId);
+            liveMembers.set(alive.size());
+
+            Map<String, List<String>> groups = groups();
+            Set<String> wanted = new HashSet<>();
+            for (String group : groups.keySet()) {
+                if (instanceId.equals(owner(group, alive))) {
+                    wanted.add(group);
+                }
+            }
+            // The database stamps a lease after the call that took or renewed it started, so the leases
+            // held last at least lease-ttl from the start of the first such call
+            long leasedFromNanos = System.nanoTime();
+            boolean leased = leases.renew(instanceId, ttlMillis) > 0;
+            Set<String> holding = new HashSet<>(leases.findGroupKeysByOwner(instanceId));
+            List<String> surplus = new ArrayList<>(holding);
+            surplus.removeAll(wanted);
+            if (!surplus.isEmpty()) {
+                // Stop streaming before releasing, so the next holder never overlaps with this instance
+                holding.removeAll(surplus);
+                assign(pairsOf(groups, holding));
+                leases.release(surplus, instanceId);
+            }
+            for (String group : wanted) {
+                long attemptNanos = System.nanoTime();
+                if (!holding.contains(group) && acquire(group, ttlMillis)) {
+                    holding.add(group);
+                    if (!leased) {
+                        leasedFromNanos = attemptNanos;
+                        leased = true;
+                    }
+                }
+            }
+            if (leased) {
+                renewed(leasedFromNanos);
+            }
+            held = holding;
+            members.deleteSilentFor(ttlMillis * 4);
+            assign(pairsOf(groups, holding));
+        } catch (RuntimeException e) {
+            // The watchdog stops streaming if no renewal succeeds in time
+            log.warn("Could not renew the pair leases of {}: {}", instanceId, e.getMessage());
+        }
+    }
+
+    private void renewed(long leasedFromNanos) {
+        synchronized (assignment) {
+            leasedUntilNanos = leasedFromNanos + ttlNanos - marginNanos;
+        }
+    }
+
+    /**
+     * Stops streaming once the leases were not renewed in time, whatever the round is waiting for.
+     */
+    private void checkLeases() {
+        synchronized (assignment) {
+            if (!assigned.isEmpty() && System.nanoTime() - leasedUntilNanos >= 0) {
+                log.warn("Pair leases of {} were not renewed in time, stopping before they expire", instanceId);
+                assign(List.of());
+            }
+        }
+    }
+
+    private boolean acquire(String group, long ttlMillis) {
+        if (!leases.existsById(group)) {
+            try {
+                leases.create(group);
+            } catch (DataIntegrityViolationException e) {
+                // Another instance added it at the same time
+            }
+        }
+        return leases.acquire(group, instanceId, ttlMillis) == 1;
+    }
+
+    /**
+     * @return the pairs by group, each group in the order of its first pair
+     */
+    private Map<String, List<String>> groups() {
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        for (String pair : pairs) {
+            String conversion = routes.routeGroup(pair);
+            String group = conversion == null ? "pair:" + pair : "routes:" + conversion;
+            groups.computeIfAbsent(group, g -> new ArrayList<>()).add(pair);
+        }
+        return groups;
+    }
+
+    private static List<String> pairsOf(Map<String, List<String>> groups, Set<String> holding) {
+        List<String> result = new ArrayList<>();
+        groups.forEach((group, groupPairs) -> {
+            if (holding.contains(group)) {
+                result.addAll(groupPairs);
+            }
+        });
+        return List.copyOf(result);
+    }
+
+    /**
+     * Rendezvous hashing: every instance ranks the live instances alike for a group and the highest wins.
+     */
+    static String owner(String group, Set<String> alive) {
+        String owner = null;
+        long best = 0;
+        for (String member : alive) {
+            long score = mix(((long) member.hashCode() << 32) ^ group.hashCode());
+            if (owner == null || score > best || (score == best && member.compareTo(owner) < 0)) {
+                owner = member;
+                best = score;
+            }
+        }
+        return owner;
+    }
+
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    private void assign(List<String> currencyPairs) {
+        synchronized (assignment) {
+            if (System.nanoTime() - leasedUntilNanos >= 0) {
+                // A renewal that returned too late proves nothing about the leases
+                currencyPairs = List.of();
+            }
+            if (currencyPairs.equals(assigned)) {
+                return;
+            }
+            log.info("Instance {} streams {} of {} pairs shared by {} instances", instanceId, currencyPairs.size(),
+                    pairs.size(), liveMembers.get());
+            assigned = currencyPairs;
+            assignedPairs.set(currencyPairs.size());
+            rebalances.increment();
+            if (onAssignment != null) {
+                onAssignment.accept(currencyPairs);
+            }
+        }
+    }
+
+    /**
+     * Releases this instance's leases and membership, so the others take its pairs over in their next
+     * round instead of after the leases expire.
+     */
+    @Override
+    public void destroy() {
+        ScheduledExecutorService stopping;
+        synchronized (this) {
+            stopping = scheduler;
+            scheduler = null;
+        }
+        if (stopping == null) {
+            return;
+        }
+        stopping.shutdown();
+        try {
+            stopping.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                if (!held.isEmpty()) {
+                    leases.release(List.copyOf(held), instanceId);
+                }
+                members.deleteById(instanceId);
+            } catch (RuntimeException e) {
+                log.warn("Could not release the pair leases of {}, they expire in {}: {}", instanceId,
+                        settings.getLeaseTtl(), e.getMessage());
+            }
+            held = Set.of();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.model.PairAnalytics;
+
+import java.time.Instant;
+
+/**
+ * The latest top-of-book samples of one pair in primitive ring buffers, with running sums so that
+ * adding a sample costs O(1) and allocates nothing.
+ * <p>
+ * The ring keeps each sample's time, the log return of the mid since the previous sample and the bucket
+ * of its spread in a histogram of log-spaced spread buckets, so the evicted sample can be subtracted
+ * from the sums and the histogram. The sum of squared returns is recomputed from the ring once per
+ * lap, which keeps rounding errors from piling up at an amortized O(1). Written by one thread, read by
+ * any; access is synchronized.
+ */
+final class PairWindow {
+
+    // Spread buckets grow by 6% from 0.01 bp, so a percentile is within 3% of the bucket middle
+    private static final double MIN_SPREAD_BPS = 0.01;
+    private static final double BUCKET_GROWTH = 1.06;
+    private static final double LOG_GROWTH = Math.log(BUCKET_GROWTH);
+    static final int BUCKETS = 256;
+
+    private final String currencyPair;
+    private final double emaDecayMicros;
+    private final long[] timesMicros;
+    private final double[] logReturns;
+    private final short[] spreadBuckets;
+    private final int[] histogram = new int[BUCKETS];
+    private int head;
+    private int size;
+    private double sumSquaredReturns;
+    private double lastMid = Double.NaN;
+    private double midEma = Double.NaN;
+    private long lastTimeMicros;
+
+    PairWindow(String currencyPair, int window, double emaHalfLifeMicros) {
+        if (window < 2) {
+            throw new IllegalArgumentException("Analytics window must hold at least 2 snapshots: " + window);
+        }
+        this.currencyPair = currencyPair;
+        this.emaDecayMicros = emaHalfLifeMicros / Math.log(2);
+        this.timesMicros = new long[window];
+        this.logReturns = new double[window];
+        this.spreadBuckets = new short[window];
+    }
+
+    /**
+     * Adds a snapshot; one without both sides of the book is ignored.
+     */
+    synchronized void add(OrderBookSnapshot snapshot) {
+        if (snapshot.bestBid() <= 0 || snapshot.bestAsk() <= 0) {
+            return;
+        }
+        Instant receivedAt = snapshot.receivedAt();
+        long timeMicros = receivedAt.getEpochSecond() * 1_000_000 + receivedAt.getNano() / 1_000;
+        // The scale cancels out of the returns and the spread, not of the mid itself
+        double scale = Math.pow(10, -snapshot.priceScale());
+        double bid = snapshot.bestBid() * scale;
+        double ask = snapshot.bestAsk() * scale;
+        double mid = (bid + ask) / 2;
+
+        double logReturn = Double.isNaN(lastMid) ? 0 : Math.log(mid / lastMid);
+        if (Double.isNaN(midEma)) {
+            midEma = mid;
+        } else {
+            double elapsed = Math.max(0, timeMicros - lastTimeMicros);
+            midEma += (mid - midEma) * (1 - Math.exp(-elapsed / emaDecayMicros));
+        }
+        lastMid = mid;
+        lastTimeMicros = timeMicros;
+
+        if (size == timesMicros.length) {
+            sumSquaredReturns -= logReturns[head] * logReturns[head];
+            histogram[spreadBuckets[head]]--;
+        } else {
+            size++;
+        }
+        int bucket = bucket((ask - bid) / mid * 10_000);
+        timesMicros[head] = timeMicros;
+        logReturns[head] = logReturn;
+        spreadBuckets[head] = (short) bucket;
+        histogram[bucket]++;
+        sumSquaredReturns += logReturn * logReturn;
+        head++;
+        if (head == timesMicros.length) {
+            head = 0;
+            resum();
+        }
+    }
+
+    private void resum() {
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += logReturns[i] * logReturns[i];
+        }
+        sumSquaredReturns = sum;
+    }
+
+    private static int bucket(double spreadBps) {
+        if (!(spreadBps > MIN_SPREAD_BPS)) {
+            // Also a crossed or locked book
+            return 0;
+        }
+        return Math.min(BUCKETS - 1, 1 + (int) (Math.log(spreadBps / MIN_SPREAD_BPS) / LOG_GROWTH));
+    }
+
+    /**
+     * @return the geometric middle of the bucket's spread range
+     */
+    private static double spreadOf(int bucket) {
+        return bucket == 0 ? 0 : MIN_SPREAD_BPS * Math.pow(BUCKET_GROWTH, bucket - 0.5);
+    }
+
+    private double spreadPercentile(double percentile) {
+        long rank = (long) Math.ceil(percentile * size);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += histogram[bucket];
+            if (seen >= rank) {
+                return spreadOf(bucket);
+            }
+        }
+        return spreadOf(BUCKETS - 1);
+    }
+
+    synchronized double midEma() {
+        return midEma;
+    }
+
+    synchronized double volatilityPerHour() {
+        double seconds = windowSeconds();
+        // The oldest sample's return leads into the window rather than lying within it
+        double sum = size == 0 ? 0 : sumSquaredReturns - oldestReturnSquared();
+        return seconds > 0 ? Math.sqrt(Math.max(0, sum) / seconds * 3600) : Double.NaN;
+    }
+
+    synchronized double spreadBps(double percentile) {
+        return size == 0 ? Double.NaN : spreadPercentile(percentile);
+    }
+
+    synchronized double updatesPerSecond() {
+        double seconds = windowSeconds();
+        return seconds > 0 ? (size - 1) / seconds : Double.NaN;
+    }
+
+    private double oldestReturnSquared() {
+        int oldest = size == timesMicros.length ? head : 0;
+        return logReturns[oldest] * logReturns[oldest];
+    }
+
+    private double windowSeconds() {
+        if (size < 2) {
+            return 0;
+        }
+        int oldest = size == timesMicros.length ? head : 0;
+        return (lastTimeMicros - timesMicros[oldest]) / 1e6;
+    }
+
+    synchronized PairAnalytics snapshot() {
+        return new PairAnalytics(currencyPair, size, windowSeconds(), lastMid, midEma, volatilityPerHour(),
+                spreadBps(0.5), spreadBps(0.9), spreadBps(0.99), updatesPerSecond(),
+                Instant.ofEpochSecond(lastTimeMicros / 1_000_000, lastTimeMicros % 1_000_000 * 1_000));
+    }
+}
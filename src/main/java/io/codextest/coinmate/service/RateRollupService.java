@@ -0,0 +1,411 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.ConversionDirection;
+import io.codextest.coinmate.model.RateRollup;
+import io.codextest.coinmate.repository.ExchangeRateRepository;
+import io.codextest.coinmate.repository.RateRollupRepository;
+import io.codextest.coinmate.repository.RateTickRepository;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aggregates rates into open/high/low/close buckets of every configured width, per direction and
+ * route, so long ranges can be read from {@code exchange_rate_rollups} instead of the raw rows.
+ * <p>
+ * {@link #record} only updates the open buckets in memory. A background thread writes the buckets that
+ * have ended every {@code flush-interval} and, when {@code raw-retention} is set, deletes raw
+ * {@code exchange_rates} rows past it once a minute (with compact storage, drops the partitions past
+ * it). Buckets that fail to write are kept and written again on the next flushes, apart from newer ones
+ * so they cannot make those fail too, and raw rates are kept from the start of the oldest bucket not
+ * written yet, so an outage of the database loses neither. A bucket still failing after
+ * {@code write-retries} flushes, or beyond the {@code max-pending} waiting, is dropped, which also lets
+ * raw-rate retention move on. Stopping the application writes the buckets that are still open.
+ * <p>
+ * Meters: {@code coinmate.rollups.written}, {@code coinmate.rollups.failed} write attempts,
+ * {@code coinmate.rollups.dropped} and {@code coinmate.rates.purged}.
+ */
+@Component
+public class RateRollupService implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(RateRollupService.class);
+    private static final Duration PURGE_INTERVAL = Duration.ofMinutes(1);
+
+    private final RateRollupRepository rollupRepository;
+    private final ExchangeRateRepository exchangeRateRepository;
+    private final RateTickRepository tickRepository;
+    private final CoinmateProperties.Rollup settings;
+    private final long[] widthMillis;
+
+    // Guarded by this; closed holds the buckets of failed writes too, oldest first
+    private final Map<Key, Series> series = new HashMap<>();
+    private final Deque<Pending> closed = new ArrayDeque<>();
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong purged = new AtomicLong();
+
+    private volatile boolean running;
+    private ScheduledExecutorService scheduler;
+    private Instant lastPurge;
+
+    public RateRollupService(RateRollupRepository rollupRepository,
+                             ExchangeRateRepository exchangeRateRepository,
+                             RateTickRepository tickRepository,
+                             CoinmateProperties properties,
+                             MeterRegistry meterRegistry) {
+        this.rollupRepository = rollupRepository;
+        this.exchangeRateRepository = exchangeRateRepository;
+        this.tickRepository = tickRepository;
+        this.settings = properties.getRollup();
+        List<Duration> buckets = settings.getBuckets();
+        this.widthMillis = new long[buckets.size()];
+        for (int i = 0; i < widthMillis.length; i++) {
+            Duration width = buckets.get(i);
+            if (width.isNegative() || width.isZero() || width.getNano() != 0) {
+                throw new IllegalArgumentException("Rollup buckets must be whole seconds: " + width);
+            }
+            widthMillis[i] = width.toMillis();
+        }
+        FunctionCounter.builder("coinmate.rollups.written", written, AtomicLong::get).register(meterRegistry);
+        FunctionCounter.builder("coinmate.rollups.failed", failed, AtomicLong::get).register(meterRegistry);
+        FunctionCounter.builder("coinmate.rollups.dropped", dropped, AtomicLong::get).register(meterRegistry);
+        FunctionCounter.builder("coinmate.rates.purged", purged, AtomicLong::get).register(meterRegistry);
+    }
+
+    /**
+     * Adds a rate to the open bucket of every width.
+     *
+     * @param spread spread to the opposite direction in the same units as the rate, or {@code NaN}
+     *               when unknown
+     */
+    public synchronized void record(ConversionDirection direction, String route, BigDecimal rate,
+                                    double spread, Instant at) {
+        if (!settings.isEnabled()) {
+            return;
+        }
+        Series s = series.computeIfAbsent(new Key(direction, route), key -> new Series(widthMillis.length));
+        long atMillis = at.toEpochMilli();
+        for (int i = 0; i < widthMillis.length; i++) {
+            // A rate stamped before the bucket already written out is counted in the next one
+            long start = Math.max(Math.floorDiv(atMillis, widthMillis[i]) * widthMillis[i], s.nextStart[i]);
+            Bucket bucket = s.open[i];
+            if (bucket != null && start >= bucket.start + widthMillis[i]) {
+                close(direction, route, s, i);
+                bucket = null;
+            }
+            if (bucket == null) {
+                bucket = new Bucket(start, rate, atMillis);
+                s.open[i] = bucket;
+            }
+            bucket.add(rate, spread, atMillis);
+        }
+    }
+
+    /**
+     * Writes every bucket that ended by {@code now}, on the caller's thread.
+     */
+    public void flushClosed(Instant now) {
+        List<Pending> batch;
+        synchronized (this) {
+            long nowMillis = now.toEpochMilli();
+            for (Map.Entry<Key, Series> entry : series.entrySet()) {
+                Series s = entry.getValue();
+                for (int i = 0; i < widthMillis.length; i++) {
+                    if (s.open[i] != null && s.open[i].start + widthMillis[i] <= nowMillis) {
+                        close(entry.getKey().direction(), entry.getKey().route(), s, i);
+                    }
+                }
+            }
+            batch = takeClosed();
+        }
+        write(batch);
+    }
+
+    /**
+     * Writes every bucket, including the open ones, on the caller's thread.
+     */
+    public void flushAll() {
+        List<Pending> batch;
+        synchronized (this) {
+            for (Map.Entry<Key, Series> entry : series.entrySet()) {
+                for (int i = 0; i < widthMillis.length; i++) {
+                    if (entry.getValue().open[i] != null) {
+                        close(entry.getKey().direction(), entry.getKey().route(), entry.getValue(), i);
+                    }
+                }
+            }
+            batch = takeClosed();
+        }
+        write(batch);
+    }
+
+    /**
+     * Deletes raw rates older than {@code raw-retention}, if set, but none from the start of the oldest
+     * bucket that is open or not written yet.
+     */
+    public void purgeRawRates(Instant now) {
+        Duration retention = settings.getRawRetention();
+        if (retention == null) {
+            return;
+        }
+        try {
+            Instant cutoff = now.minus(retention);
+            Instant oldest = oldestUnwritten();
+            if (oldest != null && oldest.isBefore(cutoff)) {
+                cutoff = oldest;
+            }
+            long deleted = tickRepository.isEnabled()
+                    ? tickRepository.deleteBefore(cutoff)
+                    : exchangeRateRepository.deleteComputedBefore(cutoff);
+            purged.addAndGet(deleted);
+            if (deleted > 0) {
+                log.debug("Deleted {} exchange rates older than {}", deleted, retention);
+            }
+        } catch (Exception e) {
+            log.warn("Failed to delete expired exchange rates: {}", e.getMessage());
+        }
+    }
+
+    private void close(ConversionDirection direction, String route, Series s, int width) {
+        Bucket bucket = s.open[width];
+        closed.addLast(new Pending(new RateRollup(direction, route, (int) (widthMillis[width] / 1000),
+                Instant.ofEpochMilli(bucket.start), Instant.ofEpochMilli(bucket.openAt),
+                Instant.ofEpochMilli(bucket.closeAt), bucket.open, bucket.high, bucket.low, bucket.close,
+                bucket.spreadCount == 0 ? null : BigDecimal.valueOf(bucket.spreadSum / bucket.spreadCount),
+                bucket.count), 0));
+        s.nextStart[width] = bucket.start + widthMillis[width];
+        s.open[width] = null;
+        trimClosed();
+    }
+
+    private void trimClosed() {
+        int over = closed.size() - settings.getMaxPending();
+        for (int i = 0; i < over; i++) {
+            closed.pollFirst();
+        }
+        if (over > 0) {
+            dropped.addAndGet(over);
+            log.warn("Dropped the {} oldest rate rollups beyond {} waiting to be written", over,
+                    settings.getMaxPending());
+        }
+    }
+
+    private synchronized Instant oldestUnwritten() {
+        long oldest = Long.MAX_VALUE;
+        for (Pending pending : closed) {
+            oldest = Math.min(oldest, pending.rollup().getBucketStart().toEpochMilli());
+        }
+        for (Series s : series.values()) {
+            for (Bucket bucket : s.open) {
+                if (bucket != null) {
+                    oldest = Math.min(oldest, bucket.start);
+                }
+            }
+        }
+        return oldest == Long.MAX_VALUE ? null : Instant.ofEpochMilli(oldest);
+    }
+
+    private List<Pending> takeClosed() {
+        List<Pending> batch = new ArrayList<>(closed);
+        closed.clear();
+        return batch;
+    }
+
+    private void write(List<Pending> batch) {
+        // Buckets that failed before go on their own, so one the database rejects fails no newer ones
+        List<Pending> retried = new ArrayList<>();
+        List<Pending> fresh = new ArrayList<>();
+        for (Pending pending : batch) {
+            (pending.attempts() == 0 ? fresh : retried).add(pending);
+        }
+        List<Pending> retry = new ArrayList<>();
+        retry.addAll(save(retried));
+        retry.addAll(save(fresh));
+        if (retry.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            for (int i = retry.size() - 1; i >= 0; i--) {
+                closed.addFirst(retry.get(i));
+            }
+            trimClosed();
+        }
+    }
+
+    /**
+     * @return the buckets to write again with the next flush, none once written or out of retries
+     */
+    private List<Pending> save(List<Pending> batch) {
+        if (batch.isEmpty()) {
+            return List.of();
+        }
+        try {
+            rollupRepository.saveAll(batch.stream().map(Pending::rollup).toList());
+            written.addAndGet(batch.size());
+            return List.of();
+        } catch (Exception e) {
+            failed.addAndGet(batch.size());
+            List<Pending> retry = new ArrayList<>(batch.size());
+            for (Pending pending : batch) {
+                if (pending.attempts() < settings.getWriteRetries()) {
+                    // A fresh entity, as the failed one may have been given an id already
+                    RateRollup rollup = pending.rollup();
+                    retry.add(new Pending(new RateRollup(rollup.getDirection(), rollup.getRoute(),
+                            rollup.getBucketSeconds(), rollup.getBucketStart(), rollup.getOpenAt(),
+                            rollup.getCloseAt(), rollup.getOpen(), rollup.getHigh(), rollup.getLow(),
+                            rollup.getClose(), rollup.getMeanSpread(), rollup.getUpdateCount()),
+                            pending.attempts() + 1));
+                }
+            }
+            int given = batch.size() - retry.size();
+            dropped.addAndGet(given);
+            log.warn("Failed to persist {} rate rollups, retrying {} with the next flush and dropping {}: {}",
+                    batch.size(), retry.size(), given, e.getMessage());
+            return retry;
+        }
+    }
+
+    private void tick() {
+        Instant now = Instant.now();
+        flushClosed(now);
+        if (lastPurge == null || Duration.between(lastPurge, now).compareTo(PURGE_INTERVAL) >= 0) {
+            lastPurge = now;
+            purgeRawRates(now);
+        }
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running || (!settings.isEnabled() && settings.getRawRetention() == null)) {
+            return;
+        }
+        running = true;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rate-rollup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = settings.getFlushInterval().toMillis();
+        scheduler.scheduleWithFixedDelay(this::tick, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        ScheduledExecutorService stopping;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            stopping = scheduler;
+        }
+        stopping.shutdown();
+        try {
+            stopping.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushAll();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        // Like the exchange rate writer, stop after the snapshot dispatcher has delivered its last rates
+        return DEFAULT_PHASE - 1;
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private record Key(ConversionDirection direction, String route) {
+    }
+
+    /**
+     * An ended bucket waiting to be written, after {@code attempts} failed writes.
+     */
+    private record Pending(RateRollup rollup, int attempts) {
+    }
+
+    private static final class Series {
+        private final Bucket[] open;
+        private final long[] nextStart;
+
+        private Series(int widths) {
+            this.open = new Bucket[widths];
+            this.nextStart = new long[widths];
+            Arrays.fill(nextStart, Long.MIN_VALUE);
+        }
+    }
+
+    private static final class Bucket {
+        private final long start;
+        private final BigDecimal open;
+        private final long openAt;
+        private BigDecimal high;
+        private BigDecimal low;
+        private BigDecimal close;
+        private long closeAt;
+        private double spreadSum;
+        private int spreadCount;
+        private int count;
+
+        private Bucket(long start, BigDecimal open, long openAt) {
+            this.start = start;
+            this.open = open;
+            this.openAt = openAt;
+            this.high = open;
+            this.low = open;
+        }
+
+        void add(BigDecimal rate, double spread, long at) {
+            if (rate.compareTo(high) > 0) {
+                high = rate;
+            }
+            if (rate.compareTo(low) < 0) {
+                low = rate;
+            }
+            close = rate;
+            closeAt = at;
+            if (!Double.isNaN(spread)) {
+                spreadSum += spread;
+                spreadCount++;
+            }
+            count++;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.model.PairAnalytics;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Service;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rolling top-of-book statistics per pair, updated with every snapshot in O(1) and without allocating
+ * (see {@link PairWindow}), so they are current in process instead of being recomputed from the database.
+ * <p>
+ * Meters per pair: {@code coinmate.analytics.mid.ema}, {@code coinmate.analytics.volatility} (realized,
+ * per hour), {@code coinmate.analytics.spread} in basis points per {@code quantile} and
+ * {@code coinmate.analytics.update.rate} in snapshots per second.
+ */
+@Service
+public class RollingAnalytics {
+
+    private final Map<String, PairWindow> windows = new ConcurrentHashMap<>();
+    private final CoinmateProperties.Analytics settings;
+    private final double emaHalfLifeMicros;
+    private final MeterRegistry meterRegistry;
+
+    public RollingAnalytics(CoinmateProperties properties, MeterRegistry meterRegistry) {
+        this.settings = properties.getAnalytics();
+        this.emaHalfLifeMicros = settings.getEmaHalfLife().toNanos() / 1e3;
+        this.meterRegistry = meterRegistry;
+    }
+
+    public boolean isEnabled() {
+        return settings.isEnabled();
+    }
+
+    /**
+     * Adds a snapshot to its pair's window. Snapshots of a pair must arrive from one thread at a time;
+     * the streaming runner delivers them from a single {@link SnapshotDispatcher} lane.
+     */
+    public void record(OrderBookSnapshot snapshot) {
+        PairWindow window = windows.get(snapshot.currencyPair());
+        if (window == null) {
+            window = windows.computeIfAbsent(snapshot.currencyPair(), this::newWindow);
+        }
+        window.add(snapshot);
+    }
+
+    public Optional<PairAnalytics> get(String currencyPair) {
+        PairWindow window = windows.get(currencyPair);
+        return window == null ? Optional.empty() : Optional.of(window.snapshot());
+    }
+
+    /**
+     * @return the statistics of every pair seen, by pair name
+     */
+    public List<PairAnalytics> all() {
+        return windows.values().stream()
+                .map(PairWindow::snapshot)
+                .sorted(Comparator.comparing(PairAnalytics::currencyPair))
+                .toList();
+    }
+
+    private PairWindow newWindow(String currencyPair) {
+        PairWindow window = new PairWindow(currencyPair, settings.getWindow(), emaHalfLifeMicros);
+        Gauge.builder("coinmate.analytics.mid.ema", window, PairWindow::midEma)
+                .description("Time-weighted moving average of the mid price")
+                .tag("pair", currencyPair)
+                .register(meterRegistry);
+        Gauge.builder("coinmate.analytics.volatility", window, PairWindow::volatilityPerHour)
+                .description("Realized volatility of the mid price over the window, per hour")
+                .tag("pair", currencyPair)
+                .register(meterRegistry);
+        for (double quantile : new double[] {0.5, 0.99}) {
+            Gauge.builder("coinmate.analytics.spread", window, w -> w.spreadBps(quantile))
+                    .description("Spread percentile over the window in basis points of the mid")
+                    .baseUnit("bps")
+                    .tag("pair", currencyPair)
+                    .tag("quantile", String.valueOf(quantile))
+                    .register(meterRegistry);
+        }
+        Gauge.builder("coinmate.analytics.update.rate", window, PairWindow::updatesPerSecond)
+                .description("Snapshots per second over the window")
+                .tag("pair", currencyPair)
+                .register(meterRegistry);
+        return window;
+    }
+}
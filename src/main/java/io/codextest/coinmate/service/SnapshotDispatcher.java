@@ -0,0 +1,180 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Hands snapshots from the WebSocket I/O threads to the consumers that process them.
+ * <p>
+ * Every consumer {@link #subscribe subscribed} gets its own lane: one worker thread and one slot per
+ * pair holding the newest snapshot not yet processed. {@link #publish} only swaps the slot and, if the
+ * slot was empty, queues the pair for the worker, so it never blocks and never runs consumer code. A
+ * consumer that falls behind skips the intermediate snapshots of a pair and sees only the newest one;
+ * each consumer does so at its own pace without holding back the others. As a lane has a single
+ * thread, its consumer is never called concurrently.
+ * <p>
+ * Meters per lane ({@code consumer} tag): {@code coinmate.dispatch.delivered},
+ * {@code coinmate.dispatch.conflated}, {@code coinmate.dispatch.failed} and the
+ * {@code coinmate.dispatch.pending} gauge of pairs waiting for the worker.
+ */
+@Component
+public class SnapshotDispatcher implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(SnapshotDispatcher.class);
+
+    private final MeterRegistry meterRegistry;
+    private final List<Lane> lanes = new CopyOnWriteArrayList<>();
+    private volatile boolean running;
+
+    public SnapshotDispatcher(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Adds a consumer on a lane of its own. Snapshots published before subscribing are not replayed.
+     */
+    public synchronized void subscribe(String name, Consumer<OrderBookSnapshot> consumer) {
+        Lane lane = new Lane(name, consumer);
+        lanes.add(lane);
+        if (running) {
+            lane.start();
+        }
+    }
+
+    /**
+     * Offers a snapshot to every lane; safe to call from any thread and never blocks.
+     */
+    public void publish(OrderBookSnapshot snapshot) {
+        for (Lane lane : lanes) {
+            lane.offer(snapshot);
+        }
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        lanes.forEach(Lane::start);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        lanes.forEach(Lane::stop);
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        // Stop before the exchange rate writer so rates computed from the last snapshots still get written
+        return DEFAULT_PHASE;
+    }
+
+    private final class Lane implements Runnable {
+
+        private final String name;
+        private final Consumer<OrderBookSnapshot> consumer;
+        private final Map<String, AtomicReference<OrderBookSnapshot>> slots = new ConcurrentHashMap<>();
+        private final BlockingQueue<AtomicReference<OrderBookSnapshot>> ready = new LinkedBlockingQueue<>();
+        private final Counter delivered;
+        private final Counter conflated;
+        private final Counter failed;
+        private Thread worker;
+
+        private Lane(String name, Consumer<OrderBookSnapshot> consumer) {
+            this.name = name;
+            this.consumer = consumer;
+            this.delivered = Counter.builder("coinmate.dispatch.delivered")
+                    .description("Snapshots handed to the consumer")
+                    .tag("consumer", name)
+                    .register(meterRegistry);
+            this.conflated = Counter.builder("coinmate.dispatch.conflated")
+                    .description("Snapshots replaced by a newer one before the consumer got to them")
+                    .tag("consumer", name)
+                    .register(meterRegistry);
+            this.failed = Counter.builder("coinmate.dispatch.failed")
+                    .description("Snapshots the consumer threw on")
+                    .tag("consumer", name)
+                    .register(meterRegistry);
+            Gauge.builder("coinmate.dispatch.pending", ready, BlockingQueue::size)
+                    .description("Pairs with a snapshot waiting for the consumer")
+                    .tag("consumer", name)
+                    .register(meterRegistry);
+        }
+
+        void offer(OrderBookSnapshot snapshot) {
+            AtomicReference<OrderBookSnapshot> slot = slots.get(snapshot.currencyPair());
+            if (slot == null) {
+                slot = slots.computeIfAbsent(snapshot.currencyPair(), pair -> new AtomicReference<>());
+            }
+            // Only the publisher that fills an empty slot queues it; later ones just replace the value
+            if (slot.getAndSet(snapshot) == null) {
+                ready.offer(slot);
+            } else {
+                conflated.increment();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                OrderBookSnapshot snapshot;
+                try {
+                    snapshot = ready.take().getAndSet(null);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (snapshot == null) {
+                    continue;
+                }
+                try {
+                    consumer.accept(snapshot);
+                    delivered.increment();
+                } catch (RuntimeException e) {
+                    failed.increment();
+                    log.warn("Consumer {} failed on {}: {}", name, snapshot.currencyPair(), e.toString());
+                }
+            }
+        }
+
+        void start() {
+            worker = new Thread(this, "snapshot-" + name);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        void stop() {
+            worker.interrupt();
+            try {
+                worker.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
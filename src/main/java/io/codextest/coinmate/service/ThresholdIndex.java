@@ -0,0 +1,79 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.model.AlertRule;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+
+/**
+ * Rules on one series of values, sorted by threshold: rules that fire when the value rises above their
+ * threshold, and rules that fire when it falls below. An update only visits the thresholds between the
+ * previous and the new value, so it costs O(log n + fired rules) however many rules there are.
+ * <p>
+ * Rules are added and removed from any thread; updates come from one thread at a time.
+ */
+final class ThresholdIndex {
+
+    private final ConcurrentSkipListMap<Double, AlertRule[]> rising = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<Double, AlertRule[]> falling = new ConcurrentSkipListMap<>();
+    private double previous = Double.NaN;
+
+    void add(AlertRule rule, boolean onRise) {
+        (onRise ? rising : falling).merge(rule.threshold(), new AlertRule[] {rule}, (rules, added) -> {
+            AlertRule[] merged = Arrays.copyOf(rules, rules.length + 1);
+            merged[rules.length] = added[0];
+            return merged;
+        });
+    }
+
+    void remove(AlertRule rule, boolean onRise) {
+        (onRise ? rising : falling).computeIfPresent(rule.threshold(), (threshold, rules) -> {
+            AlertRule[] kept = Arrays.stream(rules).filter(r -> r.id() != rule.id()).toArray(AlertRule[]::new);
+            return kept.length == 0 ? null : kept;
+        });
+    }
+
+    boolean isEmpty() {
+        return rising.isEmpty() && falling.isEmpty();
+    }
+
+    /**
+     * @return the value before this update, {@code NaN} for the first
+     */
+    double previous() {
+        return previous;
+    }
+
+    /**
+     * Passes the rules whose threshold the value crossed since the last update to {@code fired}. A
+     * {@code NaN} value is skipped, the first value only sets the starting point.
+     */
+    void update(double value, Consumer<AlertRule> fired) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        double last = previous;
+        previous = value;
+        if (Double.isNaN(last) || value == last) {
+            return;
+        }
+        if (value > last) {
+            // Rules at or above the last value and below the new one
+            for (Map.Entry<Double, AlertRule[]> entry = rising.ceilingEntry(last);
+                 entry != null && entry.getKey() < value; entry = rising.higherEntry(entry.getKey())) {
+                for (AlertRule rule : entry.getValue()) {
+                    fired.accept(rule);
+                }
+            }
+        } else {
+            for (Map.Entry<Double, AlertRule[]> entry = falling.floorEntry(last);
+                 entry != null && entry.getKey() > value; entry = falling.lowerEntry(entry.getKey())) {
+                for (AlertRule rule : entry.getValue()) {
+                    fired.accept(rule);
+                }
+            }
+        }
+    }
+}
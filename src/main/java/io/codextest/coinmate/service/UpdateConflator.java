@@ -0,0 +1,194 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.ConversionRate;
+import io.codextest.coinmate.model.FixedPoint;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drops order book tops and conversion rates that carry no new information.
+ * <p>
+ * A snapshot whose best bid/ask and amounts equal the last admitted one of its pair is always dropped,
+ * as is a rate equal to the last emitted one of its direction. A real change is admitted when it moves
+ * the price by at least {@code min-relative-change}, or when {@code min-interval} has passed since the
+ * last admitted update; with the defaults (zero) that means every real change.
+ * <p>
+ * Meters: {@code coinmate.conflation.snapshots} per {@code pair} and {@code coinmate.conflation.rates}
+ * per {@code direction}, counting the updates of each {@code outcome}: {@code emitted} or
+ * {@code suppressed}.
+ */
+@Component
+public class UpdateConflator {
+
+    private final CoinmateProperties.Conflation settings;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Gate> snapshotGates = new ConcurrentHashMap<>();
+    private final Map<String, Gate> rateGates = new ConcurrentHashMap<>();
+
+    public UpdateConflator(CoinmateProperties properties, MeterRegistry meterRegistry) {
+        this.settings = properties.getConflation();
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * @return whether the snapshot changes the top of its pair's book enough to be processed
+     */
+    public boolean admitSnapshot(OrderBookSnapshot snapshot) {
+        Gate gate = snapshotGates.computeIfAbsent(snapshot.currencyPair(),
+                pair -> new Gate(settings.getPairs().get(pair), "coinmate.conflation.snapshots",
+                        "Order book tops passed on or dropped by the conflation", Tags.of("pair", pair)));
+        synchronized (gate) {
+            OrderBookSnapshot last = gate.lastSnapshot;
+            boolean admit = !settings.isEnabled() || last == null || (!sameTop(last, snapshot)
+                    && gate.passes(relativeChange(last, snapshot), snapshot.receivedAt()));
+            if (admit) {
+                gate.lastSnapshot = snapshot;
+                gate.admit(snapshot.receivedAt());
+            } else {
+                gate.suppressed.incrementAndGet();
+            }
+            return admit;
+        }
+    }
+
+    /**
+     * @return whether the rate moved enough since the last emitted rate of its direction to be
+     * logged and stored
+     */
+    public boolean admitRate(ConversionRate rate) {
+        Gate gate = rateGates.computeIfAbsent(rate.directionKey(),
+                direction -> new Gate(settings.getDirections().get(direction), "coinmate.conflation.rates",
+                        "Conversion rates passed on or dropped by the conflation", Tags.of("direction", direction)));
+        synchronized (gate) {
+            BigDecimal last = gate.lastRate;
+            boolean admit = !settings.isEnabled() || last == null || (last.compareTo(rate.rate()) != 0
+                    && gate.passes(relativeChange(last, rate.rate()), rate.computedAt()));
+            if (admit) {
+                gate.lastRate = rate.rate();
+                gate.admit(rate.computedAt());
+            } else {
+                gate.suppressed.incrementAndGet();
+            }
+            return admit;
+        }
+    }
+
+    /**
+     * @return emitted/suppressed counts of order book tops per pair
+     */
+    public Map<String, Counts> snapshotCounts() {
+        return counts(snapshotGates);
+    }
+
+    /**
+     * @return emitted/suppressed counts of conversion rates per direction
+     */
+    public Map<String, Counts> rateCounts() {
+        return counts(rateGates);
+    }
+
+    private static Map<String, Counts> counts(Map<String, Gate> gates) {
+        Map<String, Counts> counts = new TreeMap<>();
+        gates.forEach((key, gate) -> counts.put(key, new Counts(gate.emitted.get(), gate.suppressed.get())));
+        return counts;
+    }
+
+    private static boolean sameTop(OrderBookSnapshot a, OrderBookSnapshot b) {
+        return samePrice(a, a.bestBid(), b, b.bestBid())
+                && samePrice(a, a.bestAsk(), b, b.bestAsk())
+                && sameAmount(a, a.bestBidAmount(), b, b.bestBidAmount())
+                && sameAmount(a, a.bestAskAmount(), b, b.bestAskAmount());
+    }
+
+    private static boolean samePrice(OrderBookSnapshot a, long aPrice, OrderBookSnapshot b, long bPrice) {
+        return FixedPoint.compare(aPrice, a.priceScale(), bPrice, b.priceScale()) == 0;
+    }
+
+    private static boolean sameAmount(OrderBookSnapshot a, long aAmount, OrderBookSnapshot b, long bAmount) {
+        if (aAmount == FixedPoint.NONE || bAmount == FixedPoint.NONE) {
+            return aAmount == bAmount;
+        }
+        return FixedPoint.compare(aAmount, a.amountScale(), bAmount, b.amountScale()) == 0;
+    }
+
+    private static double relativeChange(OrderBookSnapshot last, OrderBookSnapshot current) {
+        return Math.max(
+                relativeChange(FixedPoint.toDouble(last.bestBid(), last.priceScale()),
+                        FixedPoint.toDouble(current.bestBid(), current.priceScale())),
+                relativeChange(FixedPoint.toDouble(last.bestAsk(), last.priceScale()),
+                        FixedPoint.toDouble(current.bestAsk(), current.priceScale())));
+    }
+
+    private static double relativeChange(double last, double current) {
+        if (last == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return Math.abs(current / last - 1);
+    }
+
+    private static double relativeChange(BigDecimal last, BigDecimal current) {
+        if (last == null || current == null || last.signum() == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return Math.abs(current.doubleValue() / last.doubleValue() - 1);
+    }
+
+    public record Counts(long emitted, long suppressed) {
+    }
+
+    private final class Gate {
+        final Duration minInterval;
+        final double minRelativeChange;
+        final AtomicLong emitted = new AtomicLong();
+        final AtomicLong suppressed = new AtomicLong();
+        Instant lastAdmittedAt;
+        OrderBookSnapshot lastSnapshot;
+        BigDecimal lastRate;
+
+        Gate(CoinmateProperties.Threshold override, String meter, String description, Tags tags) {
+            this.minInterval = override != null && override.getMinInterval() != null
+                    ? override.getMinInterval() : settings.getMinInterval();
+            this.minRelativeChange = override != null && override.getMinRelativeChange() != null
+                    ? override.getMinRelativeChange() : settings.getMinRelativeChange();
+            FunctionCounter.builder(meter, emitted, AtomicLong::get)
+                    .description(description)
+                    .tags(tags)
+                    .tag("outcome", "emitted")
+                    .register(meterRegistry);
+            FunctionCounter.builder(meter, suppressed, AtomicLong::get)
+                    .description(description)
+                    .tags(tags)
+                    .tag("outcome", "suppressed")
+                    .register(meterRegistry);
+        }
+
+        boolean passes(double relativeChange, Instant at) {
+            if (relativeChange >= minRelativeChange) {
+                return true;
+            }
+            if (lastAdmittedAt == null || at == null) {
+                return true;
+            }
+            // Without an interval only min-relative-change lets a change through
+            return !minInterval.isZero() && !minInterval.isNegative()
+                    && Duration.between(lastAdmittedAt, at).compareTo(minInterval) >= 0;
+        }
+
+        void admit(Instant at) {
+            lastAdmittedAt = at;
+            emitted.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.ConversionRate;
+import io.codextest.coinmate.model.FixedPoint;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The per-update lines of {@link OrderBookConversionService}, written to the
+ * {@code io.codextest.coinmate.updates} logger, which {@code logback-spring.xml} sends through an
+ * asynchronous appender so a slow console never holds up the threads delivering frames.
+ * <p>
+ * In {@link CoinmateProperties.UpdateLogMode#SAMPLED} mode an update only costs a map lookup and two
+ * atomic operations until its pair or direction is due a line; the line is formatted from the scaled
+ * prices without a shared formatter. {@link CoinmateProperties.UpdateLogMode#VERBOSE} keeps the former
+ * line per update, formatted per thread since {@link DecimalFormat} is not thread-safe.
+ */
+final class UpdateLog {
+
+    private static final Logger log = LoggerFactory.getLogger("io.codextest.coinmate.updates");
+
+    private static final ThreadLocal<DecimalFormat> DECIMAL_FORMAT = ThreadLocal.withInitial(
+            () -> new DecimalFormat("#,##0.0000######", new DecimalFormatSymbols(Locale.US)));
+
+    private final CoinmateProperties.UpdateLogMode mode;
+    private final long intervalNanos;
+    private final Map<String, Sample> samples = new ConcurrentHashMap<>();
+
+    UpdateLog(CoinmateProperties.UpdateLog settings) {
+        this.mode = settings.getMode();
+        this.intervalNanos = settings.getInterval().toNanos();
+    }
+
+    void book(OrderBookSnapshot snapshot) {
+        if (mode == CoinmateProperties.UpdateLogMode.OFF || !log.isInfoEnabled()) {
+            return;
+        }
+        if (mode == CoinmateProperties.UpdateLogMode.VERBOSE) {
+            log.info("order_book [{}] bid={} ask={}", snapshot.currencyPair(),
+                    format(snapshot.bestBidDecimal()), format(snapshot.bestAskDecimal()));
+            return;
+        }
+        long updates = due(snapshot.currencyPair());
+        if (updates > 0) {
+            StringBuilder line = new StringBuilder(96).append("book pair=").append(snapshot.currencyPair());
+            FixedPoint.append(line.append(" bid="), snapshot.bestBid(), snapshot.priceScale());
+            FixedPoint.append(line.append(" ask="), snapshot.bestAsk(), snapshot.priceScale());
+            log.info(line.append(" updates=").append(updates).toString());
+        }
+    }
+
+    /**
+     * @param inverse whether the rate is quoted per unit of its target currency, see {@link CurrencyGraph.Leg}
+     */
+    void rate(ConversionRate rate, boolean inverse) {
+        if (mode == CoinmateProperties.UpdateLogMode.OFF || !log.isInfoEnabled()) {
+            return;
+        }
+        if (mode == CoinmateProperties.UpdateLogMode.VERBOSE) {
+            if (rate.stale()) {
+                log.info("{}→{} via {} (stale): {}", rate.fromCurrency(), rate.toCurrency(), rate.route(),
+                        format(rate.rate()));
+                return;
+            }
+            // Both directions are quoted per one unit of the configured source currency,
+            // e.g. CZK→EUR shows how many CZK are needed per 1 EUR.
+            String unit = inverse ? rate.toCurrency() : rate.fromCurrency();
+            String quoted = inverse ? rate.fromCurrency() : rate.toCurrency();
+            log.info("{}→{} via {}: 1 {} ≈ {} {}", rate.fromCurrency(), rate.toCurrency(), rate.route(),
+                    unit, format(rate.rate()), quoted);
+            return;
+        }
+        String direction = rate.directionKey();
+        long updates = due(direction);
+        if (updates > 0) {
+            log.info(new StringBuilder(128).append("rate direction=").append(direction)
+                    .append(" route=").append(rate.route())
+                    .append(" rate=").append(rate.rate().toPlainString())
+                    .append(" stale=").append(rate.stale())
+                    .append(" updates=").append(updates).toString());
+        }
+    }
+
+    /**
+     * Counts an update of the key.
+     *
+     * @return the updates since the key's last line including this one when a line is due, else 0
+     */
+    private long due(String key) {
+        Sample sample = samples.get(key);
+        if (sample == null) {
+            sample = samples.computeIfAbsent(key, k -> new Sample(System.nanoTime() - intervalNanos));
+        }
+        sample.updates.incrementAndGet();
+        long now = System.nanoTime();
+        long next = sample.nextLineAt.get();
+        if (now - next < 0 || !sample.nextLineAt.compareAndSet(next, now + intervalNanos)) {
+            return 0;
+        }
+        return sample.updates.getAndSet(0);
+    }
+
+    private static String format(BigDecimal value) {
+        return value == null ? "-" : DECIMAL_FORMAT.get().format(value);
+    }
+
+    private static final class Sample {
+
+        private final AtomicLong updates = new AtomicLong();
+        private final AtomicLong nextLineAt;
+
+        Sample(long nextLineAt) {
+            this.nextLineAt = new AtomicLong(nextLineAt);
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package io.codextest.coinmate.service;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.model.TradingPair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Local state that lets a restart skip the wait for the trading pair REST call and for the first frames:
+ * the last trading pair list and the latest snapshot of every pair.
+ * <p>
+ * The file is an append-only log of records {@code [length][type][payload][crc32c]}: a pair list, or a
+ * pair name followed by its snapshot in the {@link KafkaRecordCodec} layout. Loading replays the log, so
+ * the last record per pair wins, and stops at the first torn or corrupt record, which a crash during an
+ * append leaves at the tail. Snapshots are collected in memory as they arrive and only the changed
+ * ones are appended every {@code flush-interval}; once the log is several times larger than its live
+ * records it is rewritten compacted into a temporary file that replaces it atomically.
+ */
+@Component
+public class WarmStartCache implements SmartLifecycle {
+
+    private static final Logger log = LoggerFactory.getLogger(WarmStartCache.class);
+
+    private static final int MAGIC = 0x434d5354;
+    private static final byte FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = Integer.BYTES + 1;
+    private static final byte PAIRS = 1;
+    private static final byte SNAPSHOT = 2;
+    private static final long MIN_COMPACTION_SIZE = 64 * 1024;
+
+    private final CoinmateProperties.WarmStart settings;
+    private final Map<String, OrderBookSnapshot> pending = new ConcurrentHashMap<>();
+    private volatile List<TradingPair> pendingPairs;
+
+    // Guarded by this
+    private final Map<String, OrderBookSnapshot> saved = new LinkedHashMap<>();
+    private List<TradingPair> savedPairs = List.of();
+    private FileChannel channel;
+    private long validLength;
+
+    private final Object wakeUp = new Object();
+    private volatile boolean running;
+    private Thread worker;
+
+    public WarmStartCache(CoinmateProperties properties) {
+        this.settings = properties.getWarmStart();
+    }
+
+    public boolean isEnabled() {
+        return settings.isEnabled();
+    }
+
+    /**
+     * Reads the state saved by the previous run; snapshots older than {@code max-snapshot-age} are left
+     * out. An unreadable file counts as empty.
+     */
+    public synchronized Saved load() {
+        if (!settings.isEnabled()) {
+            return Saved.EMPTY;
+        }
+        byte[] content;
+        try {
+            content = Files.readAllBytes(settings.getFile());
+        } catch (NoSuchFileException e) {
+            return Saved.EMPTY;
+        } catch (IOException e) {
+            log.warn("Cannot read warm start state {}: {}", settings.getFile(), e.getMessage());
+            return Saved.EMPTY;
+        }
+        replay(ByteBuffer.wrap(content));
+        Instant oldest = Instant.now().minus(settings.getMaxSnapshotAge());
+        List<OrderBookSnapshot> snapshots = saved.values().stream()
+                .filter(snapshot -> snapshot.receivedAt() != null && snapshot.receivedAt().isAfter(oldest))
+                .toList();
+        log.info("Loaded warm start state: {} pairs, {} of {} snapshots recent enough",
+                savedPairs.size(), snapshots.size(), saved.size());
+        return new Saved(savedPairs, snapshots);
+    }
+
+    private void replay(ByteBuffer buffer) {
+        saved.clear();
+        savedPairs = List.of();
+        validLength = 0;
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.get() != FORMAT_VERSION) {
+            return;
+        }
+        validLength = HEADER_SIZE;
+        CRC32C crc = new CRC32C();
+        try {
+            while (buffer.remaining() > 0) {
+                int length = buffer.getInt();
+                if (length < 1 || length > buffer.remaining() - Integer.BYTES) {
+                    break;
+                }
+                ByteBuffer record = buffer.slice(buffer.position(), length);
+                buffer.position(buffer.position() + length);
+                crc.reset();
+                crc.update(record.duplicate());
+                if ((int) crc.getValue() != buffer.getInt()) {
+                    break;
+                }
+                apply(record);
+                validLength = buffer.position();
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            // A torn or foreign record ends the usable part of the log
+        }
+    }
+
+    private void apply(ByteBuffer record) {
+        byte type = record.get();
+        if (type == PAIRS) {
+            int count = record.getShort();
+            List<TradingPair> pairs = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                TradingPair pair = new TradingPair();
+                pair.setName(getString(record));
+                pair.setPriceDecimals(getDecimals(record));
+                pair.setLotDecimals(getDecimals(record));
+                pairs.add(pair);
+            }
+            savedPairs = List.copyOf(pairs);
+        } else if (type == SNAPSHOT) {
+            String pair = getString(record);
+            byte[] value = new byte[record.remaining()];
+            record.get(value);
+            saved.put(pair, KafkaRecordCodec.decodeSnapshot(pair, value));
+        }
+    }
+
+    /**
+     * Saves the trading pair list with the next flush.
+     */
+    public void savePairs(List<TradingPair> pairs) {
+        if (settings.isEnabled()) {
+            pendingPairs = List.copyOf(pairs);
+        }
+    }
+
+    /**
+     * Keeps the snapshot for the next flush; called for every snapshot, so it only replaces a map entry.
+     */
+    public void saveSnapshot(OrderBookSnapshot snapshot) {
+        if (settings.isEnabled()) {
+            pending.put(snapshot.currencyPair(), snapshot);
+        }
+    }
+
+    /**
+     * Appends the pair list and snapshots saved since the last flush.
+     */
+    public synchronized void flush() {
+        List<TradingPair> pairs = pendingPairs;
+        if (pairs == null && pending.isEmpty()) {
+            return;
+        }
+        pendingPairs = null;
+        List<OrderBookSnapshot> snapshots = new ArrayList<>(pending.size());
+        for (String pair : pending.keySet()) {
+            OrderBookSnapshot snapshot = pending.remove(pair);
+            if (snapshot != null) {
+                snapshots.add(snapshot);
+            }
+        }
+        if (pairs != null) {
+            savedPairs = pairs;
+        }
+        snapshots.forEach(snapshot -> saved.put(snapshot.currencyPair(), snapshot));
+        try {
+            if (channel == null) {
+                open();
+            }
+            if (channel.size() > MIN_COMPACTION_SIZE && channel.size() > 4 * liveSize()) {
+                compact();
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(recordsSize(pairs, snapshots));
+            putRecords(buffer, pairs, snapshots);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            validLength = channel.position();
+        } catch (IOException e) {
+            log.warn("Cannot write warm start state {}: {}", settings.getFile(), e.getMessage());
+            closeQuietly();
+        }
+    }
+
+    private void open() throws IOException {
+        Path file = settings.getFile();
+        if (validLength < HEADER_SIZE) {
+            // No usable log yet, start a new one with everything known so far
+            compact();
+            return;
+        }
+        channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        // Drop a torn tail so new records follow the last valid one
+        channel.truncate(validLength);
+        channel.position(validLength);
+    }
+
+    private void compact() throws IOException {
+        Path file = settings.getFile().toAbsolutePath();
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        List<OrderBookSnapshot> snapshots = List.copyOf(saved.values());
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + recordsSize(savedPairs, snapshots));
+        buffer.putInt(MAGIC).put(FORMAT_VERSION);
+        putRecords(buffer, savedPairs, snapshots);
+        buffer.flip();
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        closeQuietly();
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        validLength = channel.size();
+    }
+
+    private long liveSize() {
+        return HEADER_SIZE + recordsSize(savedPairs, saved.values());
+    }
+
+    private static int recordsSize(List<TradingPair> pairs, Collection<OrderBookSnapshot> snapshots) {
+        int size = 0;
+        if (pairs != null) {
+            size += 2 * Integer.BYTES + 1 + Short.BYTES;
+            for (TradingPair pair : pairs) {
+                size += stringSize(pair.getName()) + 2;
+            }
+        }
+        for (OrderBookSnapshot snapshot : snapshots) {
+            size += 2 * Integer.BYTES + 1 + stringSize(snapshot.currencyPair()) + KafkaRecordCodec.SNAPSHOT_SIZE;
+        }
+        return size;
+    }
+
+    private static void putRecords(ByteBuffer buffer, List<TradingPair> pairs,
+                                   Collection<OrderBookSnapshot> snapshots) {
+        if (pairs != null) {
+            int start = beginRecord(buffer, PAIRS);
+            buffer.putShort((short) pairs.size());
+            for (TradingPair pair : pairs) {
+                putString(buffer, pair.getName());
+                buffer.put(pair.getPriceDecimals() == null ? -1 : pair.getPriceDecimals().byteValue());
+                buffer.put(pair.getLotDecimals() == null ? -1 : pair.getLotDecimals().byteValue());
+            }
+            endRecord(buffer, start);
+        }
+        for (OrderBookSnapshot snapshot : snapshots) {
+            int start = beginRecord(buffer, SNAPSHOT);
+            putString(buffer, snapshot.currencyPair());
+            buffer.put(KafkaRecordCodec.encodeSnapshot(snapshot));
+            endRecord(buffer, start);
+        }
+    }
+
+    private static int beginRecord(ByteBuffer buffer, byte type) {
+        int start = buffer.position();
+        buffer.putInt(0);
+        buffer.put(type);
+        return start;
+    }
+
+    private static void endRecord(ByteBuffer buffer, int start) {
+        int length = buffer.position() - start - Integer.BYTES;
+        buffer.putInt(start, length);
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.slice(start + Integer.BYTES, length));
+        buffer.putInt((int) crc.getValue());
+    }
+
+    private static int stringSize(String value) {
+        return Short.BYTES + value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Integer getDecimals(ByteBuffer buffer) {
+        byte decimals = buffer.get();
+        return decimals < 0 ? null : (int) decimals;
+    }
+
+    private void closeQuietly() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("Closing warm start state failed: {}", e.getMessage());
+        }
+        channel = null;
+    }
+
+    private void runWorker() {
+        long intervalMillis = Math.max(1, settings.getFlushInterval().toMillis());
+        while (running) {
+            synchronized (wakeUp) {
+                try {
+                    wakeUp.wait(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            if (running) {
+                flush();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running || !settings.isEnabled()) {
+            return;
+        }
+        running = true;
+        worker = new Thread(this::runWorker, "warm-start");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @Override
+    public void stop() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+        }
+        // Not interrupted: an interrupt during a write would close the file channel
+        synchronized (wakeUp) {
+            wakeUp.notifyAll();
+        }
+        try {
+            worker.join(settings.getFlushInterval().toMillis() + 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            flush();
+            if (channel != null) {
+                try {
+                    channel.force(false);
+                } catch (IOException e) {
+                    log.warn("Cannot sync warm start state {}: {}", settings.getFile(), e.getMessage());
+                }
+            }
+            closeQuietly();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        // Stop after the snapshot dispatcher, so the last snapshots it delivers are saved
+        return DEFAULT_PHASE - 1;
+    }
+
+    /**
+     * State saved by the previous run.
+     */
+    public record Saved(List<TradingPair> pairs, List<OrderBookSnapshot> snapshots) {
+
+        static final Saved EMPTY = new Saved(List.of(), List.of());
+    }
+}
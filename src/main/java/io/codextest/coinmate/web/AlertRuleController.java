@@ -0,0 +1,57 @@
+package io.codextest.coinmate.web;
+
+import io.codextest.coinmate.model.AlertRule;
+import io.codextest.coinmate.service.AlertRules;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Alert rules, e.g. {@code POST /api/alerts/rules} with
+ * {@code {"subject":"EUR_TO_CZK","kind":"CHANGE","threshold":-1.5,"window":"PT5M"}}, listed by
+ * {@code GET /api/alerts/rules} and removed by {@code DELETE /api/alerts/rules/{id}}. Rules added here
+ * live until the application stops.
+ */
+@RestController
+@RequestMapping("/api/alerts/rules")
+public class AlertRuleController {
+
+    private final AlertRules rules;
+
+    public AlertRuleController(AlertRules rules) {
+        this.rules = rules;
+    }
+
+    @GetMapping
+    public List<AlertRule> list() {
+        return rules.list();
+    }
+
+    @PostMapping
+    @ResponseStatus(HttpStatus.CREATED)
+    public AlertRule add(@RequestBody AlertRule rule) {
+        return rules.add(rule);
+    }
+
+    @DeleteMapping("/{id}")
+    public ResponseEntity<Void> remove(@PathVariable("id") long id) {
+        return rules.remove(id) ? ResponseEntity.noContent().build() : ResponseEntity.notFound().build();
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    public Map<String, String> badRequest(IllegalArgumentException e) {
+        return Map.of("error", e.getMessage());
+    }
+}
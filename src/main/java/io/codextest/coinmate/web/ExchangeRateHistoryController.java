@@ -0,0 +1,61 @@
+package io.codextest.coinmate.web;
+
+import io.codextest.coinmate.model.ConversionDirection;
+import io.codextest.coinmate.model.DownsampledRate;
+import io.codextest.coinmate.model.RateHistoryPage;
+import io.codextest.coinmate.service.ExchangeRateHistoryService;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stored rate history, e.g. {@code GET /api/history/EUR_TO_CZK?from=2024-05-01T00:00:00Z&to=2024-06-01T00:00:00Z}
+ * for pages and {@code .../EUR_TO_CZK/downsampled?from=...&to=...&points=500} for charts. The JDBC work
+ * runs on the bounded elastic scheduler, off the event loop.
+ */
+@RestController
+@RequestMapping("/api/history/{direction}")
+public class ExchangeRateHistoryController {
+
+    private final ExchangeRateHistoryService historyService;
+
+    public ExchangeRateHistoryController(ExchangeRateHistoryService historyService) {
+        this.historyService = historyService;
+    }
+
+    @GetMapping
+    public Mono<RateHistoryPage> page(@PathVariable("direction") ConversionDirection direction,
+                                      @RequestParam("from") Instant from,
+                                      @RequestParam("to") Instant to,
+                                      @RequestParam(name = "after", required = false) String after,
+                                      @RequestParam(name = "limit", defaultValue = "500") int limit) {
+        return Mono.fromCallable(() -> historyService.page(direction, from, to, after, limit))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    @GetMapping("/downsampled")
+    public Mono<List<DownsampledRate>> downsampled(@PathVariable("direction") ConversionDirection direction,
+                                                   @RequestParam("from") Instant from,
+                                                   @RequestParam("to") Instant to,
+                                                   @RequestParam(name = "points", defaultValue = "500") int points) {
+        return Mono.fromCallable(() -> historyService.downsample(direction, from, to, points))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    public Map<String, String> badRequest(IllegalArgumentException e) {
+        return Map.of("error", e.getMessage());
+    }
+}
@@ -0,0 +1,43 @@
+package io.codextest.coinmate.web;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.service.LiveRateBroadcaster;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Server-sent events of live rates ({@code event: rate}) and best bid/ask ({@code event: book}), with
+ * the update key as event id, e.g. {@code GET /api/live?pairs=BTC_EUR&directions=EUR_TO_CZK}.
+ */
+@RestController
+public class LiveRateController {
+
+    private final LiveRateBroadcaster broadcaster;
+    private final Duration heartbeat;
+
+    public LiveRateController(LiveRateBroadcaster broadcaster, CoinmateProperties properties) {
+        this.broadcaster = broadcaster;
+        this.heartbeat = properties.getLive().getHeartbeat();
+    }
+
+    @GetMapping(path = "/api/live", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<Object>> live(@RequestParam(name = "pairs", required = false) List<String> pairs,
+                                              @RequestParam(name = "directions", required = false) List<String> directions) {
+        Flux<ServerSentEvent<Object>> updates = broadcaster.updates(LiveRateBroadcaster.filter(pairs, directions))
+                .map(update -> ServerSentEvent.builder(update.data())
+                        .event(update.type())
+                        .id(update.key())
+                        .build());
+        Flux<ServerSentEvent<Object>> heartbeats = Flux.interval(heartbeat)
+                .map(tick -> ServerSentEvent.builder().comment("heartbeat").build());
+        // Prefetch of one keeps demand, and so conflation, tied to what the connection actually takes
+        return Flux.merge(1, updates, heartbeats);
+    }
+}
@@ -0,0 +1,60 @@
+package io.codextest.coinmate.web;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.codextest.coinmate.service.LiveRateBroadcaster;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.socket.WebSocketHandler;
+import org.springframework.web.reactive.socket.WebSocketSession;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+/**
+ * The live updates of {@link LiveRateController} over a WebSocket, one JSON
+ * {@link io.codextest.coinmate.model.LiveUpdate} per text frame, e.g.
+ * {@code ws://host:8081/ws/live?pairs=BTC_EUR}.
+ */
+@Component
+public class LiveRateWebSocketHandler implements WebSocketHandler {
+
+    private final LiveRateBroadcaster broadcaster;
+    private final ObjectMapper objectMapper;
+
+    public LiveRateWebSocketHandler(LiveRateBroadcaster broadcaster, ObjectMapper objectMapper) {
+        this.broadcaster = broadcaster;
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    public Mono<Void> handle(WebSocketSession session) {
+        var query = UriComponentsBuilder.fromUri(session.getHandshakeInfo().getUri()).build().getQueryParams();
+        List<String> pairs = split(query.get("pairs"));
+        List<String> directions = split(query.get("directions"));
+        // Nothing is read from clients, but the inbound side has to be consumed for close frames
+        Mono<Void> inbound = session.receive().then();
+        Mono<Void> outbound = session.send(broadcaster.updates(LiveRateBroadcaster.filter(pairs, directions))
+                .map(update -> session.textMessage(toJson(update))));
+        return Mono.firstWithSignal(inbound, outbound);
+    }
+
+    private String toJson(Object update) {
+        try {
+            return objectMapper.writeValueAsString(update);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot serialize live update", e);
+        }
+    }
+
+    private static List<String> split(List<String> values) {
+        if (values == null) {
+            return List.of();
+        }
+        return values.stream()
+                .flatMap(value -> List.of(value.split(",")).stream())
+                .map(String::trim)
+                .filter(value -> !value.isEmpty())
+                .toList();
+    }
+}
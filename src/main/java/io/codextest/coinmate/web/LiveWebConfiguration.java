@@ -0,0 +1,18 @@
+package io.codextest.coinmate.web;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.reactive.handler.SimpleUrlHandlerMapping;
+
+import java.util.Map;
+
+@Configuration(proxyBeanMethods = false)
+public class LiveWebConfiguration {
+
+    @Bean
+    public HandlerMapping liveWebSocketMapping(LiveRateWebSocketHandler handler) {
+        // Ahead of the annotated controllers
+        return new SimpleUrlHandlerMapping(Map.of("/ws/live", handler), -1);
+    }
+}
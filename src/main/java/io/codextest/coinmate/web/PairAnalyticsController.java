@@ -0,0 +1,36 @@
+package io.codextest.coinmate.web;
+
+import io.codextest.coinmate.model.PairAnalytics;
+import io.codextest.coinmate.service.RollingAnalytics;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+/**
+ * Rolling statistics of the pairs' top of book, e.g. {@code GET /api/analytics/BTC_EUR}, or
+ * {@code GET /api/analytics} for all pairs. Served from memory.
+ */
+@RestController
+@RequestMapping("/api/analytics")
+public class PairAnalyticsController {
+
+    private final RollingAnalytics analytics;
+
+    public PairAnalyticsController(RollingAnalytics analytics) {
+        this.analytics = analytics;
+    }
+
+    @GetMapping
+    public List<PairAnalytics> all() {
+        return analytics.all();
+    }
+
+    @GetMapping("/{pair}")
+    public ResponseEntity<PairAnalytics> pair(@PathVariable("pair") String pair) {
+        return ResponseEntity.of(analytics.get(pair));
+    }
+}
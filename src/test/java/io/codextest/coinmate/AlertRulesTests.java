@@ -0,0 +1,138 @@
+package io.codextest.coinmate;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.Alert;
+import io.codextest.coinmate.model.AlertRule;
+import io.codextest.coinmate.model.AlertRule.Kind;
+import io.codextest.coinmate.model.ConversionRate;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.service.AlertPublisher;
+import io.codextest.coinmate.service.AlertRules;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+class AlertRulesTests {
+
+    private static final Instant T0 = Instant.parse("2024-05-01T10:00:00Z");
+
+    private final CoinmateProperties properties = new CoinmateProperties();
+    private final AlertPublisher publisher = mock(AlertPublisher.class);
+
+    @Test
+    void firesOnceWhenTheValueCrossesAThresholdAndAgainOnlyAfterItCrossedBack() {
+        AlertRules rules = new AlertRules(publisher, properties);
+        AlertRule above = rules.add(new AlertRule(0, "BTC_EUR", Kind.ABOVE, 101, null));
+        AlertRule below = rules.add(new AlertRule(0, "BTC_EUR", Kind.BELOW, 99, null));
+        AlertRule wide = rules.add(new AlertRule(0, "BTC_EUR", Kind.SPREAD, 10, null));
+        rules.add(new AlertRule(0, "BTC_CZK", Kind.ABOVE, 1, null));
+
+        double[] mids = {100, 102, 103, 100, 102, 98};
+        for (int i = 0; i < mids.length; i++) {
+            rules.onSnapshot(snapshot(mids[i], 0.01, T0.plusSeconds(i)));
+        }
+        // 0.01 wide becomes 0.21 wide, about 21 bps
+        rules.onSnapshot(snapshot(98, 0.21, T0.plusSeconds(6)));
+
+        List<Alert> alerts = published();
+        assertThat(alerts).extracting(Alert::rule).containsExactly(above, above, below, wide);
+        assertThat(alerts.get(0).value()).isEqualTo(102.0);
+        assertThat(alerts.get(0).previous()).isEqualTo(100.0);
+        assertThat(alerts.get(0).firedAt()).isEqualTo(T0.plusSeconds(1));
+        assertThat(alerts.get(3).value()).isCloseTo(0.21 / 98 * 10_000, within(0.1));
+    }
+
+    @Test
+    void measuresChangesOverTheirWindowAndForgetsRemovedRules() {
+        AlertRules rules = new AlertRules(publisher, properties);
+        AlertRule fall = rules.add(new AlertRule(0, "EUR_TO_CZK", Kind.CHANGE, -1, Duration.ofMinutes(1)));
+        AlertRule level = rules.add(new AlertRule(0, "EUR_TO_CZK", Kind.ABOVE, 26, null));
+
+        rules.onRate(rate("25.00", T0), Double.NaN);
+        rules.onRate(rate("24.90", T0.plusSeconds(30)), Double.NaN);
+        // Only now does the series reach a minute back: -0.8% against 25.00, then -1.2%
+        rules.onRate(rate("24.80", T0.plusSeconds(60)), Double.NaN);
+        rules.onRate(rate("24.70", T0.plusSeconds(61)), Double.NaN);
+        // -0.8% against 24.90 at 30s
+        rules.onRate(rate("24.70", T0.plusSeconds(90)), Double.NaN);
+
+        assertThat(published()).extracting(Alert::rule).containsExactly(fall);
+        assertThat(published().get(0).value()).isCloseTo(-1.2, within(1e-9));
+
+        assertThat(rules.remove(level.id())).isTrue();
+        assertThat(rules.remove(level.id())).isFalse();
+        assertThat(rules.list()).containsExactly(fall);
+        rules.onRate(rate("26.50", T0.plusSeconds(91)), Double.NaN);
+        assertThat(published()).extracting(Alert::rule).containsOnly(fall);
+
+        assertThatThrownBy(() -> new AlertRule(0, "EUR_TO_CZK", Kind.CHANGE, 1, null))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void deliversToTheSinksOffTheCallingThread() {
+        CoinmateProperties.Rule configured = new CoinmateProperties.Rule();
+        configured.setSubject("EUR_TO_CZK");
+        configured.setKind(Kind.BELOW);
+        configured.setThreshold(25);
+        properties.getAlerts().setRules(List.of(configured));
+        SimpleMeterRegistry meters = new SimpleMeterRegistry();
+        List<Alert> delivered = new CopyOnWriteArrayList<>();
+        List<String> threads = new CopyOnWriteArrayList<>();
+        AlertPublisher async = new AlertPublisher(List.of(
+                alert -> {
+                    throw new IllegalStateException("unreachable");
+                },
+                alert -> {
+                    threads.add(Thread.currentThread().getName());
+                    delivered.add(alert);
+                }), properties, meters);
+        async.start();
+        try {
+            AlertRules rules = new AlertRules(async, properties);
+            assertThat(rules.list()).extracting(AlertRule::subject).containsExactly("EUR_TO_CZK");
+            rules.onRate(rate("25.10", T0), Double.NaN);
+            rules.onRate(rate("24.90", T0.plusSeconds(1)), Double.NaN);
+
+            await().atMost(5, TimeUnit.SECONDS).until(() -> delivered.size() == 1);
+            assertThat(threads).containsExactly("alert-publisher");
+            assertThat(meters.get("coinmate.alerts.fired").counter().count()).isEqualTo(1.0);
+            // The failing sink does not keep the alert from the other one
+            assertThat(meters.get("coinmate.alerts.failed").counter().count()).isEqualTo(1.0);
+        } finally {
+            async.stop();
+        }
+    }
+
+    private List<Alert> published() {
+        ArgumentCaptor<Alert> alerts = ArgumentCaptor.forClass(Alert.class);
+        verify(publisher, atLeast(0)).publish(alerts.capture());
+        return alerts.getAllValues();
+    }
+
+    private static OrderBookSnapshot snapshot(double mid, double width, Instant receivedAt) {
+        long bid = Math.round((mid - width / 2) * 1000);
+        long ask = Math.round((mid + width / 2) * 1000);
+        return new OrderBookSnapshot("BTC_EUR", bid, 50_000, ask, 50_000, 3, 5, receivedAt);
+    }
+
+    private static ConversionRate rate(String rate, Instant computedAt) {
+        return new ConversionRate("EUR", "CZK", new BigDecimal(rate), BigDecimal.ONE, BigDecimal.ONE,
+                "BTC_EUR>BTC_CZK", computedAt);
+    }
+}
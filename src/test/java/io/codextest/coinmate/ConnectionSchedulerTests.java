@@ -0,0 +1,119 @@
+package io.codextest.coinmate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.service.CoinmateApiClient;
+import io.codextest.coinmate.service.ConnectionScheduler;
+import io.codextest.coinmate.service.FrameJournal;
+import io.codextest.coinmate.service.OrderBookDepthRegistry;
+import io.codextest.coinmate.service.OrderBookPayloadParser;
+import io.codextest.coinmate.service.OrderBookSeeder;
+import io.codextest.coinmate.service.OrderBookSubscriptions;
+import io.codextest.coinmate.service.OrderBookWebSocketClient;
+import io.codextest.coinmate.service.PairPrecisionRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.Mockito.mock;
+
+class ConnectionSchedulerTests {
+
+    private final CoinmateProperties properties = new CoinmateProperties();
+    private final SimpleMeterRegistry meters = new SimpleMeterRegistry();
+
+    @Test
+    void admitsCriticalHandshakesFirstAndAtMostTheConfiguredNumberAtOnce() {
+        properties.getConnections().setMaxConcurrentHandshakes(2);
+        ConnectionScheduler scheduler = new ConnectionScheduler(properties, meters);
+        scheduler.prioritize("BTC_EUR"::equals);
+        List<ConnectionScheduler.Handshake> admitted = new CopyOnWriteArrayList<>();
+        List<String> order = new CopyOnWriteArrayList<>();
+
+        for (String pair : List.of("ADA_EUR", "XRP_EUR", "LTC_EUR", "DASH_EUR", "BTC_EUR")) {
+            scheduler.acquire(List.of(pair)).subscribe(handshake -> {
+                order.add(pair);
+                admitted.add(handshake);
+            });
+        }
+        Disposable abandoned = scheduler.acquire(List.of("ETH_EUR")).subscribe(handshake -> order.add("ETH_EUR"));
+        assertThat(order).containsExactly("ADA_EUR", "XRP_EUR");
+        assertThat(scheduler.getQueued()).isEqualTo(4);
+        abandoned.dispose();
+        assertThat(scheduler.getQueued()).isEqualTo(3);
+
+        // The stream feeding a conversion overtakes the ones that asked before it
+        admitted.get(0).connected();
+        assertThat(order).containsExactly("ADA_EUR", "XRP_EUR", "BTC_EUR");
+        admitted.get(1).release();
+        admitted.get(1).release();
+        assertThat(order).containsExactly("ADA_EUR", "XRP_EUR", "BTC_EUR", "LTC_EUR");
+        admitted.get(2).connected();
+        admitted.get(3).connected();
+        assertThat(order).containsExactly("ADA_EUR", "XRP_EUR", "BTC_EUR", "LTC_EUR", "DASH_EUR");
+        assertThat(scheduler.getQueued()).isZero();
+
+        assertThat(meters.get("coinmate.handshake").tag("priority", "critical").timer().count()).isEqualTo(1);
+        assertThat(meters.get("coinmate.handshake").tag("priority", "other").timer().count()).isEqualTo(2);
+        assertThat(meters.get("coinmate.handshake.failed").tag("priority", "other").counter().count()).isEqualTo(1);
+        assertThat(meters.get("coinmate.handshake.wait").tag("priority", "other").timer().count()).isEqualTo(4);
+    }
+
+    @Test
+    void freesThePlaceOfAHandshakeThatDoesNotComplete() {
+        properties.getConnections().setMaxConcurrentHandshakes(1);
+        properties.getConnections().setHandshakeTimeout(Duration.ofMillis(500));
+        ConnectionScheduler scheduler = new ConnectionScheduler(properties, meters);
+        List<String> order = new CopyOnWriteArrayList<>();
+
+        scheduler.acquire(List.of("BTC_EUR")).subscribe(handshake -> order.add("BTC_EUR"));
+        scheduler.acquire(List.of("BTC_CZK")).subscribe(handshake -> {
+            order.add("BTC_CZK");
+            handshake.connected();
+        });
+
+        assertThat(order).containsExactly("BTC_EUR");
+        await().atMost(5, TimeUnit.SECONDS).until(() -> order.size() == 2);
+        assertThat(meters.get("coinmate.handshake.failed").tag("priority", "other").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void connectsEveryStreamThroughASingleHandshakePlace() {
+        properties.getConnections().setMaxConcurrentHandshakes(1);
+        properties.getSeeding().setEnabled(false);
+        try (ExchangeSimulator exchange = ExchangeSimulator.start(ExchangeSimulator.Scenario.of(9, 20))) {
+            properties.setWebsocketBaseUrl(exchange.websocketBaseUrl());
+            ConnectionScheduler scheduler = new ConnectionScheduler(properties, meters);
+            scheduler.prioritize(pair -> pair.startsWith("S004"));
+            OrderBookWebSocketClient client = new OrderBookWebSocketClient(
+                    new OrderBookPayloadParser(new ObjectMapper(), new PairPrecisionRegistry(properties)),
+                    new OrderBookDepthRegistry(properties), properties, meters, new FrameJournal(properties, meters),
+                    new OrderBookSeeder(mock(CoinmateApiClient.class), properties, meters), scheduler);
+            Map<String, OrderBookSnapshot> latest = new ConcurrentHashMap<>();
+            OrderBookSubscriptions subscriptions = new OrderBookSubscriptions(client, properties,
+                    snapshot -> latest.putIfAbsent(snapshot.currencyPair(), snapshot));
+            try {
+                subscriptions.update(exchange.pairNames());
+                await().atMost(10, TimeUnit.SECONDS).until(() -> latest.size() == 9);
+                assertThat(exchange.getConnections()).isEqualTo(9);
+                assertThat(scheduler.getQueued()).isZero();
+                assertThat(meters.get("coinmate.handshake").tag("priority", "critical").timer().count())
+                        .isEqualTo(2);
+                assertThat(meters.get("coinmate.handshake").tag("priority", "other").timer().count())
+                        .isEqualTo(7);
+            } finally {
+                subscriptions.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package io.codextest.coinmate;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.ConversionDirection;
+import io.codextest.coinmate.model.ConversionRate;
+import io.codextest.coinmate.model.ExchangeRate;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.service.AlertRules;
+import io.codextest.coinmate.service.CurrencyGraph;
+import io.codextest.coinmate.service.ExchangeRateWriter;
+import io.codextest.coinmate.service.OrderBookConversionService;
+import io.codextest.coinmate.service.OrderBookDepthRegistry;
+import io.codextest.coinmate.service.RateRollupService;
+import io.codextest.coinmate.service.UpdateConflator;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class CurrencyGraphTests {
+
+    private static final MathContext MC = new MathContext(16, RoundingMode.HALF_UP);
+
+    private ExchangeRateWriter writer;
+    private OrderBookConversionService service;
+
+    @BeforeEach
+    void setUp() {
+        writer = mock(ExchangeRateWriter.class);
+        service = service(new CoinmateProperties());
+    }
+
+    private OrderBookConversionService service(CoinmateProperties properties) {
+        OrderBookConversionService service = new OrderBookConversionService(writer,
+                new OrderBookDepthRegistry(properties), new UpdateConflator(properties, new SimpleMeterRegistry()),
+                mock(RateRollupService.class), mock(AlertRules.class), properties,
+                new SimpleMeterRegistry());
+        service.registerPairs(List.of("BTC_EUR", "BTC_CZK", "LTC_EUR", "LTC_CZK", "EUR_CZK", "ETH_BTC"));
+        return service;
+    }
+
+    @Test
+    void enumeratesRoutesUpToMaxHopsAndIndexesThemByPair() {
+        CoinmateProperties.Conversion conversion = new CoinmateProperties.Conversion("EUR", "CZK");
+        CurrencyGraph graph = new CurrencyGraph(List.of(conversion), 2, MC);
+        graph.addPairs(List.of("BTC_EUR", "BTC_CZK", "LTC_EUR", "LTC_CZK", "EUR_CZK", "ETH_BTC"));
+
+        CurrencyGraph.Leg forward = graph.leg("EUR", "CZK");
+        assertThat(forward.getRoutes()).extracting(CurrencyGraph.Route::getDescription)
+                .containsExactly("EUR_CZK", "BTC_EUR>BTC_CZK", "LTC_EUR>LTC_CZK");
+        assertThat(graph.leg("CZK", "EUR").getRoutes()).extracting(CurrencyGraph.Route::getDescription)
+                .containsExactly("EUR_CZK", "BTC_CZK>BTC_EUR", "LTC_CZK>LTC_EUR");
+        assertThat(graph.routesThrough("ETH_BTC")).isEmpty();
+        assertThat(graph.routesThrough("BTC_EUR")).hasSize(2);
+        assertThat(graph.addPairs(List.of("BTC_EUR", "not-a-pair"))).isFalse();
+    }
+
+    @Test
+    void matchesTheDirectBtcComputationExactly() {
+        service.handleSnapshot(snapshot("BTC_EUR", "57321.4", "57344.9"));
+        service.handleSnapshot(snapshot("BTC_CZK", "1448210", "1449980"));
+
+        ConversionRate eurToCzk = service.latestRates().get("EUR_TO_CZK");
+        ConversionRate czkToEur = service.latestRates().get("CZK_TO_EUR");
+        assertThat(eurToCzk.rate()).isEqualTo(new BigDecimal("1448210").divide(new BigDecimal("57344.9"), MC));
+        assertThat(czkToEur.rate()).isEqualTo(new BigDecimal("1449980").divide(new BigDecimal("57321.4"), MC));
+        assertThat(eurToCzk.route()).isEqualTo("BTC_EUR>BTC_CZK");
+        assertThat(czkToEur.route()).isEqualTo("BTC_CZK>BTC_EUR");
+        assertThat(eurToCzk.bidAmount()).isEqualByComparingTo("2");
+        assertThat(eurToCzk.askAmount()).isEqualByComparingTo("1");
+
+        ArgumentCaptor<ExchangeRate> saved = ArgumentCaptor.forClass(ExchangeRate.class);
+        verify(writer, times(2)).submit(saved.capture());
+        assertThat(saved.getAllValues()).extracting(ExchangeRate::getDirection)
+                .containsExactlyInAnyOrder(ConversionDirection.EUR_TO_CZK, ConversionDirection.CZK_TO_EUR);
+    }
+
+    @Test
+    void switchesToTheBestRouteAndIgnoresUnrelatedPairs() {
+        service.handleSnapshot(snapshot("BTC_EUR", "50000", "50010"));
+        service.handleSnapshot(snapshot("BTC_CZK", "1250000", "1251000"));
+        clearInvocations(writer);
+
+        service.handleSnapshot(snapshot("ETH_BTC", "0.05", "0.051"));
+        verify(writer, never()).submit(org.mockito.ArgumentMatchers.any());
+
+        // A direct book paying more CZK per EUR wins the forward leg, but costs more on the way back
+        service.handleSnapshot(snapshot("EUR_CZK", "25.1", "25.3"));
+
+        assertThat(service.latestRates().get("EUR_TO_CZK").route()).isEqualTo("EUR_CZK");
+        assertThat(service.latestRates().get("EUR_TO_CZK").rate()).isEqualByComparingTo("25.1");
+        assertThat(service.latestRates().get("CZK_TO_EUR").route()).isEqualTo("BTC_CZK>BTC_EUR");
+    }
+
+    @Test
+    void restoredBooksGiveStaleRatesUntilLiveFramesReplaceThem() {
+        List<ConversionRate> published = new ArrayList<>();
+        service.addRateListener(published::add);
+
+        service.restoreSnapshots(List.of(snapshot("BTC_EUR", "50000", "50010"),
+                snapshot("BTC_CZK", "1250000", "1251000")));
+
+        assertThat(service.latestRates().get("EUR_TO_CZK").stale()).isTrue();
+        assertThat(published).hasSize(2).allMatch(ConversionRate::stale);
+        verify(writer, never()).submit(org.mockito.ArgumentMatchers.any());
+
+        // One live book is not enough while the route still crosses the restored one
+        service.handleSnapshot(snapshot("BTC_EUR", "50000", "50010"));
+        assertThat(service.latestRates().get("EUR_TO_CZK").stale()).isTrue();
+        verify(writer, never()).submit(org.mockito.ArgumentMatchers.any());
+
+        // The same top as restored still counts as a change, so fresh rates are written at once
+        service.handleSnapshot(snapshot("BTC_CZK", "1250000", "1251000"));
+        assertThat(service.latestRates().values()).noneMatch(ConversionRate::stale);
+        verify(writer, times(2)).submit(org.mockito.ArgumentMatchers.any());
+    }
+
+    @Test
+    void flagsRatesOverBooksOlderThanTheMaximumInputAge() {
+        CoinmateProperties properties = new CoinmateProperties();
+        properties.setMaxInputAge(Duration.ofMinutes(1));
+        OrderBookConversionService service = service(properties);
+
+        service.handleSnapshot(snapshot("EUR_CZK", "25.1", "25.3"));
+        service.handleSnapshot(snapshot("BTC_EUR", "50000", "50010", Instant.now().minus(Duration.ofMinutes(2))));
+        clearInvocations(writer);
+        service.handleSnapshot(snapshot("BTC_CZK", "1300000", "1301000"));
+
+        ConversionRate rate = service.latestRates().get("EUR_TO_CZK");
+        assertThat(rate.route()).isEqualTo("BTC_EUR>BTC_CZK");
+        assertThat(rate.stale()).isTrue();
+        verify(writer, never()).submit(org.mockito.ArgumentMatchers.any());
+    }
+
+    @Test
+    void refusesBooksOlderThanTheMaximumInputAge() {
+        CoinmateProperties properties = new CoinmateProperties();
+        properties.setMaxInputAge(Duration.ofMinutes(1));
+        properties.setStaleInputPolicy(CoinmateProperties.StaleInputPolicy.REFUSE);
+        OrderBookConversionService service = service(properties);
+
+        service.handleSnapshot(snapshot("EUR_CZK", "25.1", "25.3"));
+        service.handleSnapshot(snapshot("BTC_EUR", "50000", "50010", Instant.now().minus(Duration.ofMinutes(2))));
+        service.handleSnapshot(snapshot("BTC_CZK", "1300000", "1301000"));
+
+        // The better route over the aged BTC_EUR book is left out
+        ConversionRate rate = service.latestRates().get("EUR_TO_CZK");
+        assertThat(rate.route()).isEqualTo("EUR_CZK");
+        assertThat(rate.rate()).isEqualByComparingTo("25.1");
+        assertThat(rate.stale()).isFalse();
+
+        service.handleSnapshot(snapshot("BTC_EUR", "50000", "50010"));
+        assertThat(service.latestRates().get("EUR_TO_CZK").route()).isEqualTo("BTC_EUR>BTC_CZK");
+    }
+
+    private static OrderBookSnapshot snapshot(String pair, String bid, String ask) {
+        return snapshot(pair, bid, ask, Instant.now());
+    }
+
+    private static OrderBookSnapshot snapshot(String pair, String bid, String ask, Instant receivedAt) {
+        return OrderBookSnapshot.of(pair, new BigDecimal(bid), new BigDecimal("2"),
+                new BigDecimal(ask), BigDecimal.ONE, 8, 8, receivedAt);
+    }
+}
@@ -0,0 +1,163 @@
+package io.codextest.coinmate;
+
+import io.codextest.coinmate.model.ConversionDirection;
+import io.codextest.coinmate.model.DownsampledRate;
+import io.codextest.coinmate.model.ExchangeRate;
+import io.codextest.coinmate.model.RateHistoryPage;
+import io.codextest.coinmate.model.RatePoint;
+import io.codextest.coinmate.model.RateRollup;
+import io.codextest.coinmate.repository.ExchangeRateRepository;
+import io.codextest.coinmate.repository.RateRollupRepository;
+import io.codextest.coinmate.service.ExchangeRateHistoryService;
+import io.codextest.coinmate.web.ExchangeRateHistoryController;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class ExchangeRateHistoryTests {
+
+    private static final Instant T0 = Instant.parse("2024-05-01T10:00:00Z");
+
+    @Autowired
+    private ExchangeRateRepository exchangeRateRepository;
+
+    @Autowired
+    private RateRollupRepository rollupRepository;
+
+    @Autowired
+    private ExchangeRateHistoryService historyService;
+
+    @BeforeEach
+    void setUp() {
+        List<ExchangeRate> rates = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            // Two rates per second, so pages have to break ties on the id
+            rates.add(new ExchangeRate(ConversionDirection.EUR_TO_CZK,
+                    new BigDecimal("25").add(BigDecimal.valueOf(i, 3)), T0.plusSeconds(i / 2)));
+            if (i % 10 == 0) {
+                rates.add(new ExchangeRate(ConversionDirection.CZK_TO_EUR, new BigDecimal("25.5"), T0.plusSeconds(i / 2)));
+            }
+        }
+        exchangeRateRepository.saveAll(rates);
+    }
+
+    @AfterEach
+    void cleanUp() {
+        exchangeRateRepository.deleteAll();
+        rollupRepository.deleteAll();
+    }
+
+    @Test
+    void pagesThroughTheRangeWithoutGapsOrRepeats() {
+        List<RatePoint> all = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            RateHistoryPage page = historyService.page(ConversionDirection.EUR_TO_CZK,
+                    T0, T0.plusSeconds(100), cursor, 40);
+            all.addAll(page.items());
+            cursor = page.next();
+            pages++;
+        } while (cursor != null);
+
+        // [T0, T0 + 100 s) holds 200 of the 250 rates
+        assertThat(pages).isEqualTo(5);
+        assertThat(all).hasSize(200);
+        assertThat(all).extracting(RatePoint::id).doesNotHaveDuplicates();
+        assertThat(all).extracting(point -> point.rate().stripTrailingZeros())
+                .isSortedAccordingTo(BigDecimal::compareTo);
+        assertThat(all.get(199).rate()).isEqualByComparingTo("25.199");
+    }
+
+    @Test
+    void downsamplesRawRatesIntoBuckets() {
+        List<DownsampledRate> points = historyService.downsample(ConversionDirection.EUR_TO_CZK,
+                T0, T0.plusSeconds(10), 20);
+
+        // 500 ms buckets are narrower than any rollup, and only every other one holds a whole second
+        assertThat(points).hasSize(10);
+        assertThat(points.get(3).bucketStart()).isEqualTo(T0.plusSeconds(3));
+        assertThat(points.get(3).open()).isEqualByComparingTo("25.006");
+        assertThat(points.get(3).close()).isEqualByComparingTo("25.007");
+        assertThat(points).extracting(DownsampledRate::count).containsOnly(2L);
+    }
+
+    @Test
+    void downsamplesWideBucketsFromRollupsAcrossRoutes() {
+        List<RateRollup> rollups = new ArrayList<>();
+        for (int minute = 0; minute < 60; minute++) {
+            BigDecimal base = new BigDecimal("25").add(BigDecimal.valueOf(minute, 2));
+            rollups.add(rollup("BTC_EUR>BTC_CZK", minute, base, base.add(new BigDecimal("0.05")), base, 10));
+            rollups.add(rollup("EUR_CZK", minute, base, base, base.subtract(new BigDecimal("0.05")), 5));
+        }
+        rollupRepository.saveAll(rollups);
+
+        List<DownsampledRate> points = historyService.downsample(ConversionDirection.EUR_TO_CZK,
+                T0.plusSeconds(30), T0.plusSeconds(3600), 30);
+
+        // 119 s buckets are widened to two whole minutes aligned to the minute rollups
+        assertThat(points).hasSize(30);
+        assertThat(points.get(0).bucketStart()).isEqualTo(T0);
+        assertThat(points.get(0).count()).isEqualTo(30);
+        assertThat(points.get(0).high()).isEqualByComparingTo("25.06");
+        assertThat(points.get(0).low()).isEqualByComparingTo("24.95");
+        assertThat(points.get(29).bucketStart()).isEqualTo(T0.plusSeconds(58 * 60));
+    }
+
+    @Test
+    void takesOpenAndCloseOfABucketByTimeWhenTheRouteSwitchedWithinIt() {
+        // The direct route took over at 20 s into the minute; the row written first is the later one
+        rollupRepository.saveAll(List.of(
+                new RateRollup(ConversionDirection.EUR_TO_CZK, "EUR_CZK", 60, T0, T0.plusSeconds(20),
+                        T0.plusSeconds(59), new BigDecimal("26.00"), new BigDecimal("26.50"), new BigDecimal("26.00"),
+                        new BigDecimal("26.50"), null, 4),
+                new RateRollup(ConversionDirection.EUR_TO_CZK, "BTC_EUR>BTC_CZK", 60, T0, T0.plusSeconds(5),
+                        T0.plusSeconds(40), new BigDecimal("25.00"), new BigDecimal("25.10"), new BigDecimal("25.00"),
+                        new BigDecimal("25.10"), null, 6)));
+
+        List<DownsampledRate> points = historyService.downsample(ConversionDirection.EUR_TO_CZK,
+                T0, T0.plusSeconds(600), 5);
+
+        assertThat(points).hasSize(1);
+        assertThat(points.get(0).open()).isEqualByComparingTo("25.00");
+        assertThat(points.get(0).close()).isEqualByComparingTo("26.50");
+        assertThat(points.get(0).count()).isEqualTo(10);
+    }
+
+    @Test
+    void servesPagesOverHttpAndRejectsEmptyRanges() {
+        WebTestClient client = WebTestClient.bindToController(new ExchangeRateHistoryController(historyService)).build();
+
+        client.get().uri("/api/history/CZK_TO_EUR?from={from}&to={to}&limit=10", T0, T0.plusSeconds(200))
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.items.length()").isEqualTo(10)
+                .jsonPath("$.next").isNotEmpty();
+        client.get().uri("/api/history/CZK_TO_EUR?from={from}&to={to}", T0, T0)
+                .exchange()
+                .expectStatus().isBadRequest();
+        assertThatThrownBy(() -> historyService.page(ConversionDirection.EUR_TO_CZK, T0, T0.plusSeconds(1), "nope", 10))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static RateRollup rollup(String route, int minute, BigDecimal open, BigDecimal high, BigDecimal low,
+                                     int count) {
+        return new RateRollup(ConversionDirection.EUR_TO_CZK, route, 60, T0.plusSeconds(minute * 60L), null, null,
+                open, high, low, open, null, count);
+    }
+}
@@ -0,0 +1,222 @@
+package io.codextest.coinmate;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.ConversionDirection;
+import io.codextest.coinmate.model.ExchangeRate;
+import io.codextest.coinmate.repository.ExchangeRateRepository;
+import io.codextest.coinmate.repository.RateTickRepository;
+import io.codextest.coinmate.service.ExchangeRateWriter;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class ExchangeRateWriterTests {
+
+    @Autowired
+    private ExchangeRateWriter writer;
+
+    @Autowired
+    private ExchangeRateRepository repository;
+
+    @AfterEach
+    void cleanUp() {
+        repository.deleteAll();
+    }
+
+    @Test
+    void writesQueuedRatesInBatches() {
+        long before = writer.getWritten();
+        for (int i = 0; i < 120; i++) {
+            writer.submit(rate(i % 2 == 0 ? ConversionDirection.EUR_TO_CZK : ConversionDirection.CZK_TO_EUR, i));
+        }
+        writer.flush();
+
+        assertThat(repository.count()).isEqualTo(120);
+        assertThat(writer.getWritten() - before).isEqualTo(120);
+        assertThat(repository.findAll()).extracting(ExchangeRate::getId).doesNotContainNull().doesNotHaveDuplicates();
+    }
+
+    @Test
+    void dropsOldestWhenFull() {
+        ExchangeRateRepository target = mock(ExchangeRateRepository.class);
+        ExchangeRateWriter small = idleWriter(target, CoinmateProperties.OverflowPolicy.DROP_OLDEST);
+        small.start();
+        for (int i = 0; i < 5; i++) {
+            small.submit(rate(ConversionDirection.EUR_TO_CZK, i));
+        }
+        small.stop();
+
+        assertThat(small.getDropped()).isEqualTo(2);
+        assertThat(writtenRates(target)).extracting(rate -> rate.getRate().intValue()).containsExactly(2, 3, 4);
+    }
+
+    @Test
+    void conflatesPerDirectionWhenFull() {
+        ExchangeRateRepository target = mock(ExchangeRateRepository.class);
+        ExchangeRateWriter small = idleWriter(target, CoinmateProperties.OverflowPolicy.CONFLATE);
+        small.start();
+        small.submit(rate(ConversionDirection.EUR_TO_CZK, 0));
+        small.submit(rate(ConversionDirection.CZK_TO_EUR, 1));
+        small.submit(rate(ConversionDirection.EUR_TO_CZK, 2));
+        small.submit(rate(ConversionDirection.CZK_TO_EUR, 3));
+        small.submit(rate(ConversionDirection.EUR_TO_CZK, 4));
+        small.stop();
+
+        assertThat(small.getConflated()).isEqualTo(2);
+        assertThat(writtenRates(target)).extracting(rate -> rate.getRate().intValue()).containsExactly(0, 3, 4);
+        assertThat(small.submit(rate(ConversionDirection.EUR_TO_CZK, 5))).isFalse();
+    }
+
+    @Test
+    void timesBatchesAndTheLatencyFromFrameToWrite() {
+        SimpleMeterRegistry meters = new SimpleMeterRegistry();
+        ExchangeRateWriter timed = new ExchangeRateWriter(mock(ExchangeRateRepository.class),
+                mock(RateTickRepository.class), new CoinmateProperties(), meters);
+        ExchangeRate fromFrame = rate(ConversionDirection.EUR_TO_CZK, 1);
+        fromFrame.setSourceReceivedAt(Instant.now().minusMillis(250));
+        timed.start();
+        timed.submit(fromFrame);
+        // Rates recomputed without a triggering frame carry no receive time and are not timed
+        timed.submit(rate(ConversionDirection.CZK_TO_EUR, 2));
+        timed.stop();
+
+        assertThat(meters.get("coinmate.rates.save").timer().count()).isEqualTo(1);
+        assertThat(meters.get("coinmate.rates.written").functionCounter().count()).isEqualTo(2);
+        Timer endToEnd = meters.get("coinmate.rates.end-to-end").timer();
+        assertThat(endToEnd.count()).isEqualTo(1);
+        assertThat(endToEnd.totalTime(TimeUnit.MILLISECONDS)).isGreaterThanOrEqualTo(250);
+    }
+
+    @Test
+    void writesAPartialBatchOnceTheFlushIntervalPassed() {
+        ExchangeRateRepository target = mock(ExchangeRateRepository.class);
+        CoinmateProperties properties = new CoinmateProperties();
+        properties.getPersistence().setFlushInterval(Duration.ofMillis(100));
+        ExchangeRateWriter slow = new ExchangeRateWriter(target, mock(RateTickRepository.class), properties,
+                new SimpleMeterRegistry());
+        slow.start();
+        try {
+            slow.submit(rate(ConversionDirection.EUR_TO_CZK, 1));
+
+            await().atMost(5, TimeUnit.SECONDS).until(() -> slow.getWritten() == 1);
+        } finally {
+            slow.stop();
+        }
+    }
+
+    @Test
+    void retriesAFailedBatchAndLosesOnlyItsBadRow() {
+        ExchangeRateRepository target = mock(ExchangeRateRepository.class);
+        AtomicInteger outage = new AtomicInteger(2);
+        doAnswer(invocation -> {
+            List<ExchangeRate> batch = invocation.getArgument(0);
+            if (outage.getAndDecrement() > 0) {
+                throw new DataAccessResourceFailureException("Connection refused");
+            }
+            if (batch.stream().anyMatch(rate -> rate.getRate().intValue() == 5)) {
+                throw new DataIntegrityViolationException("Bad row");
+            }
+            return batch;
+        }).when(target).saveAll(any());
+        CoinmateProperties properties = new CoinmateProperties();
+        properties.getPersistence().setBatchSize(8);
+        properties.getPersistence().setFlushInterval(Duration.ofHours(1));
+        properties.getPersistence().setRetryBackoff(Duration.ofMillis(1));
+        ExchangeRateWriter retrying = new ExchangeRateWriter(target, mock(RateTickRepository.class), properties,
+                new SimpleMeterRegistry());
+        retrying.start();
+        for (int i = 0; i < 8; i++) {
+            retrying.submit(rate(ConversionDirection.EUR_TO_CZK, i));
+        }
+        retrying.stop();
+
+        assertThat(retrying.getWritten()).isEqualTo(7);
+        assertThat(retrying.getFailed()).isEqualTo(1);
+    }
+
+    @Test
+    void flushesOnStopOnlyOnceTheWorkerFinishedItsBatch() throws InterruptedException {
+        ExchangeRateRepository target = mock(ExchangeRateRepository.class);
+        AtomicInteger writing = new AtomicInteger();
+        AtomicInteger mostWriting = new AtomicInteger();
+        CountDownLatch databaseBack = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            mostWriting.accumulateAndGet(writing.incrementAndGet(), Math::max);
+            try {
+                databaseBack.await();
+            } finally {
+                writing.decrementAndGet();
+            }
+            return invocation.getArgument(0);
+        }).when(target).saveAll(any());
+        CoinmateProperties properties = new CoinmateProperties();
+        properties.getPersistence().setBatchSize(1);
+        properties.getPersistence().setShutdownTimeout(Duration.ofMillis(50));
+        ExchangeRateWriter stuck = new ExchangeRateWriter(target, mock(RateTickRepository.class), properties,
+                new SimpleMeterRegistry());
+        stuck.start();
+        stuck.submit(rate(ConversionDirection.EUR_TO_CZK, 1));
+        await().atMost(5, TimeUnit.SECONDS).until(() -> writing.get() == 1);
+        stuck.submit(rate(ConversionDirection.EUR_TO_CZK, 2));
+
+        // The worker outlives the shutdown timeout; the flush waits for it instead of writing alongside
+        Thread stopping = new Thread(stuck::stop);
+        stopping.start();
+        await().during(200, TimeUnit.MILLISECONDS).atMost(1, TimeUnit.SECONDS).until(() -> writing.get() == 1);
+        databaseBack.countDown();
+        stopping.join(5_000);
+
+        assertThat(mostWriting.get()).isEqualTo(1);
+        assertThat(stuck.getWritten()).isEqualTo(2);
+    }
+
+    private static ExchangeRateWriter idleWriter(ExchangeRateRepository target, CoinmateProperties.OverflowPolicy policy) {
+        CoinmateProperties properties = new CoinmateProperties();
+        properties.getPersistence().setQueueCapacity(3);
+        // Batches larger than the queue and a long interval keep the worker idle until stop()
+        properties.getPersistence().setBatchSize(10);
+        properties.getPersistence().setFlushInterval(Duration.ofHours(1));
+        properties.getPersistence().setOverflowPolicy(policy);
+        return new ExchangeRateWriter(target, mock(RateTickRepository.class), properties,
+                new SimpleMeterRegistry());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<ExchangeRate> writtenRates(ExchangeRateRepository target) {
+        ArgumentCaptor<List<ExchangeRate>> batches = ArgumentCaptor.forClass(List.class);
+        verify(target, atLeastOnce()).saveAll(batches.capture());
+        List<ExchangeRate> all = new ArrayList<>();
+        batches.getAllValues().forEach(all::addAll);
+        return all;
+    }
+
+    private static ExchangeRate rate(ConversionDirection direction, int value) {
+        return new ExchangeRate(direction, BigDecimal.valueOf(value), Instant.now());
+    }
+}
@@ -0,0 +1,396 @@
+package io.codextest.coinmate;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+import reactor.netty.http.websocket.WebsocketInbound;
+import reactor.netty.http.websocket.WebsocketOutbound;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Synthetic Coinmate exchange on a local port for tests and load tests. It serves
+ * {@code /api/tradingPairs}, the current book of a pair on {@code /api/orderBook?currencyPair=} and the
+ * order book channels of any number of pairs, both per pair
+ * ({@code /api/websocket/channel/order-book/{pair}}) and multiplexed ({@code /api/websocket} with
+ * subscribe messages); channels of pairs not in the list are served too.
+ * <p>
+ * Every connection walks the mid prices of its books randomly and sends full books of {@code depth}
+ * levels per side at {@link #setFramesPerSecond frames per second} per pair, changeable while running.
+ * Connections are dropped and stalled (kept open without frames) after exponentially distributed times,
+ * and PONG frames can be mixed in. Frames a connection cannot write in time are skipped and counted as
+ * {@link #getFramesMissed missed}, like an exchange sending its current book rather than a backlog.
+ */
+public final class ExchangeSimulator implements AutoCloseable {
+
+    private static final Duration TICK = Duration.ofMillis(10);
+    // Frames owed beyond this many ticks are missed rather than sent in a burst
+    private static final int MAX_BACKLOG_TICKS = 5;
+    private static final Pattern SUBSCRIBE = Pattern.compile("\"channel\":\"order_book-([A-Za-z0-9_]+)\"");
+
+    private final Scenario scenario;
+    private final List<Pair> pairs = new ArrayList<>();
+    private final Map<String, Pair> pairsByName = new ConcurrentHashMap<>();
+    private final String tradingPairs;
+    private final DisposableServer server;
+    private volatile double framesPerSecond;
+
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder framesMissed = new LongAdder();
+    private final LongAdder connections = new LongAdder();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder stalls = new LongAdder();
+    private final LongAdder orderBookRequests = new LongAdder();
+
+    private ExchangeSimulator(Scenario scenario) {
+        this.scenario = scenario;
+        this.framesPerSecond = scenario.framesPerSecond();
+        Random random = new Random(scenario.pairs());
+        long euroMid = 0;
+        for (int i = 0; i < scenario.pairs(); i++) {
+            Pair pair;
+            if (i == 0) {
+                pair = new Pair("EUR_CZK", 3, 25_000);
+            } else if (i % 2 == 1) {
+                // 1 to 50 000 EUR in cents; the CZK book of the same currency follows at 25 CZK/EUR
+                euroMid = 100 + random.nextInt(5_000_000);
+                pair = new Pair(String.format("S%03d_EUR", (i + 1) / 2), 2, euroMid);
+            } else {
+                pair = new Pair(String.format("S%03d_CZK", i / 2), 2, euroMid * 25);
+            }
+            pairs.add(pair);
+            pairsByName.put(pair.name, pair);
+        }
+        StringBuilder json = new StringBuilder("{\"error\":false,\"errorMessage\":null,\"data\":[");
+        for (Pair pair : pairs) {
+            if (json.charAt(json.length() - 1) != '[') {
+                json.append(',');
+            }
+            json.append("{\"name\":\"").append(pair.name).append("\",\"priceDecimals\":").append(pair.priceScale)
+                    .append(",\"lotDecimals\":").append(Pair.AMOUNT_SCALE).append('}');
+        }
+        this.tradingPairs = json.append("]}").toString();
+        this.server = HttpServer.create()
+                .port(0)
+                .route(routes -> routes
+                        .get("/api/tradingPairs", (request, response) -> response
+                                .header(HttpHeaderNames.CONTENT_TYPE, "application/json")
+                                .sendString(Mono.just(tradingPairs)))
+                        .get("/api/orderBook", this::orderBook)
+                        .get("/api/websocket/channel/order-book/{pair}", (request, response) -> {
+                            Pair pair = pairsByName.computeIfAbsent(request.param("pair"),
+                                    name -> new Pair(name, 2, 100_000));
+                            return response.sendWebsocket((in, out) -> stream(new Feed(List.of(pair)), out));
+                        })
+                        .ws("/api/websocket", this::multiplexed))
+                .bindNow();
+    }
+
+    /**
+     * Starts serving on a free port.
+     */
+    public static ExchangeSimulator start(Scenario scenario) {
+        return new ExchangeSimulator(scenario);
+    }
+
+    private Publisher<Void> orderBook(HttpServerRequest request, HttpServerResponse response) {
+        orderBookRequests.increment();
+        QueryStringDecoder query = new QueryStringDecoder(request.uri());
+        String name = query.parameters().getOrDefault("currencyPair", List.of("")).get(0);
+        Pair pair = pairsByName.computeIfAbsent(name, n -> new Pair(n, 2, 100_000));
+        StringBuilder json = new StringBuilder("{\"error\":false,\"errorMessage\":null,\"data\":");
+        book(json, pair, pair.mid, new SplittableRandom());
+        return response.header(HttpHeaderNames.CONTENT_TYPE, "application/json")
+                .sendString(Mono.just(json.append('}').toString()));
+    }
+
+    private Publisher<Void> multiplexed(WebsocketInbound in, WebsocketOutbound out) {
+        Feed feed = new Feed(new CopyOnWriteArrayList<>());
+        in.receive().asString().subscribe(message -> {
+            Matcher matcher = SUBSCRIBE.matcher(message);
+            if (message.contains("\"subscribe\"") && matcher.find()) {
+                feed.add(pairsByName.computeIfAbsent(matcher.group(1), name -> new Pair(name, 2, 100_000)));
+            }
+        }, error -> {
+            // The connection was closed, which ends the outbound as well
+        });
+        return stream(feed, out);
+    }
+
+    private Publisher<Void> stream(Feed feed, WebsocketOutbound out) {
+        Flux<Object> frames = Flux.interval(TICK)
+                .onBackpressureDrop()
+                .concatMapIterable(tick -> feed.tick(), 1)
+                .map(json -> (Object) new TextWebSocketFrame(json))
+                .doOnNext(frame -> framesSent.increment());
+        if (scenario.pongEvery() != null) {
+            frames = frames.mergeWith(Flux.interval(scenario.pongEvery())
+                    .map(tick -> new PongWebSocketFrame(Unpooled.wrappedBuffer(new byte[] {1}))));
+        }
+        if (scenario.disconnectEvery() != null) {
+            frames = frames.take(exponential(scenario.disconnectEvery()))
+                    .doOnComplete(disconnects::increment);
+        }
+        connections.increment();
+        openConnections.incrementAndGet();
+        // A completed outbound closes the connection
+        return out.sendObject(frames).then().doFinally(signal -> openConnections.decrementAndGet());
+    }
+
+    private static Duration exponential(Duration mean) {
+        double factor = -Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        return Duration.ofNanos(Math.max(1, (long) (mean.toNanos() * factor)));
+    }
+
+    public void setFramesPerSecond(double framesPerSecond) {
+        this.framesPerSecond = framesPerSecond;
+    }
+
+    public double getFramesPerSecond() {
+        return framesPerSecond;
+    }
+
+    public List<String> pairNames() {
+        return pairs.stream().map(pair -> pair.name).toList();
+    }
+
+    public String restBaseUrl() {
+        return "http://localhost:" + server.port();
+    }
+
+    public String websocketBaseUrl() {
+        return "ws://localhost:" + server.port();
+    }
+
+    public long getFramesSent() {
+        return framesSent.sum();
+    }
+
+    public long getFramesMissed() {
+        return framesMissed.sum();
+    }
+
+    public long getConnections() {
+        return connections.sum();
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    public long getDisconnects() {
+        return disconnects.sum();
+    }
+
+    public long getStalls() {
+        return stalls.sum();
+    }
+
+    public long getOrderBookRequests() {
+        return orderBookRequests.sum();
+    }
+
+    @Override
+    public void close() {
+        server.disposeNow();
+    }
+
+    /**
+     * What the simulator serves.
+     *
+     * @param pairs           number of pairs listed; the first is {@code EUR_CZK}, the others
+     *                        {@code Snnn_EUR} and {@code Snnn_CZK} of the same {@code Snnn} in turn, so
+     *                        EUR and CZK are also connected over two hops
+     * @param framesPerSecond initial frames per second and pair
+     * @param depth           price levels per side of each book
+     * @param volatility      standard deviation of the relative mid price move per frame
+     * @param disconnectEvery mean lifetime of a connection, or {@code null} to keep connections open
+     * @param stallEvery      mean time between stalls of a connection, or {@code null} for none
+     * @param stallFor        length of a stall
+     * @param pongEvery       interval of unsolicited PONG frames, or {@code null} for none
+     * @param amounts         whether levels carry an {@code amount}; Coinmate leaves it out at times
+     */
+    public record Scenario(int pairs, double framesPerSecond, int depth, double volatility,
+                           Duration disconnectEvery, Duration stallEvery, Duration stallFor,
+                           Duration pongEvery, boolean amounts) {
+
+        public static Scenario of(int pairs, double framesPerSecond) {
+            return new Scenario(pairs, framesPerSecond, 20, 0.0005, null, null, Duration.ZERO, null, true);
+        }
+
+        public Scenario withDepth(int depth) {
+            return new Scenario(pairs, framesPerSecond, depth, volatility, disconnectEvery, stallEvery, stallFor,
+                    pongEvery, amounts);
+        }
+
+        public Scenario withVolatility(double volatility) {
+            return new Scenario(pairs, framesPerSecond, depth, volatility, disconnectEvery, stallEvery, stallFor,
+                    pongEvery, amounts);
+        }
+
+        public Scenario withDisconnects(Duration every) {
+            return new Scenario(pairs, framesPerSecond, depth, volatility, every, stallEvery, stallFor, pongEvery,
+                    amounts);
+        }
+
+        public Scenario withStalls(Duration every, Duration length) {
+            return new Scenario(pairs, framesPerSecond, depth, volatility, disconnectEvery, every, length,
+                    pongEvery, amounts);
+        }
+
+        public Scenario withPongs(Duration every) {
+            return new Scenario(pairs, framesPerSecond, depth, volatility, disconnectEvery, stallEvery, stallFor,
+                    every, amounts);
+        }
+
+        public Scenario withoutAmounts() {
+            return new Scenario(pairs, framesPerSecond, depth, volatility, disconnectEvery, stallEvery, stallFor,
+                    pongEvery, false);
+        }
+    }
+
+    private static final class Pair {
+
+        static final int AMOUNT_SCALE = 8;
+
+        final String name;
+        final int priceScale;
+        // Last mid of any connection, so a reconnect continues the walk (in ticks of priceScale)
+        volatile long mid;
+
+        Pair(String name, int priceScale, long mid) {
+            this.name = name;
+            this.priceScale = priceScale;
+            this.mid = mid;
+        }
+    }
+
+    /**
+     * The books of one connection and its pacing; only touched on the connection's tick.
+     */
+    private final class Feed {
+
+        private final List<Pair> books;
+        private final SplittableRandom random = new SplittableRandom();
+        private long lastTickNanos = System.nanoTime();
+        private double credit;
+        private double missed;
+        private int next;
+        private long stallEndsNanos;
+        private long nextStallNanos;
+
+        Feed(List<Pair> books) {
+            this.books = books;
+            if (scenario.stallEvery() != null) {
+                nextStallNanos = lastTickNanos + exponential(scenario.stallEvery()).toNanos();
+            }
+        }
+
+        void add(Pair pair) {
+            books.add(pair);
+        }
+
+        List<String> tick() {
+            long now = System.nanoTime();
+            double elapsed = (now - lastTickNanos) / 1e9;
+            lastTickNanos = now;
+            if (now < stallEndsNanos) {
+                return List.of();
+            }
+            if (scenario.stallEvery() != null && now >= nextStallNanos) {
+                stalls.increment();
+                stallEndsNanos = now + scenario.stallFor().toNanos();
+                nextStallNanos = stallEndsNanos + exponential(scenario.stallEvery()).toNanos();
+                return List.of();
+            }
+            int size = books.size();
+            if (size == 0) {
+                return List.of();
+            }
+            double rate = framesPerSecond * size;
+            credit += rate * elapsed;
+            double backlog = 1 + rate * TICK.toNanos() / 1e9 * MAX_BACKLOG_TICKS;
+            if (credit > backlog) {
+                missed += credit - backlog;
+                credit = backlog;
+                framesMissed.add((long) missed);
+                missed -= (long) missed;
+            }
+            int count = (int) credit;
+            credit -= count;
+            List<String> frames = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                frames.add(frame(books.get(next++ % size)));
+            }
+            return frames;
+        }
+
+        private String frame(Pair pair) {
+            int depth = scenario.depth();
+            long mid = pair.mid;
+            mid += Math.round(mid * scenario.volatility() * random.nextGaussian());
+            mid = Math.max(mid, 4L * depth + 10);
+            pair.mid = mid;
+            StringBuilder json = new StringBuilder(80 + depth * 80)
+                    .append("{\"event\":\"data\",\"channel\":\"order_book-").append(pair.name)
+                    .append("\",\"payload\":");
+            book(json, pair, mid, random);
+            return json.append('}').toString();
+        }
+    }
+
+    /**
+     * Appends a book of {@code depth} levels per side around {@code mid}, as sent in frames and REST responses.
+     */
+    private void book(StringBuilder json, Pair pair, long mid, SplittableRandom random) {
+        int depth = scenario.depth();
+        long halfSpread = Math.max(1, mid / 5_000);
+        long step = Math.max(1, mid / 10_000);
+        json.append("{\"bids\":[");
+        for (int level = 0; level < depth; level++) {
+            level(json, level, mid - halfSpread - level * step, pair.priceScale, scenario.amounts(), random);
+        }
+        json.append("],\"asks\":[");
+        for (int level = 0; level < depth; level++) {
+            level(json, level, mid + halfSpread + level * step, pair.priceScale, scenario.amounts(), random);
+        }
+        json.append("]}");
+    }
+
+    private static void level(StringBuilder json, int level, long price, int priceScale, boolean amounts,
+                              SplittableRandom random) {
+        if (level > 0) {
+            json.append(',');
+        }
+        json.append("{\"price\":").append(BigDecimal.valueOf(price, priceScale).toPlainString());
+        if (amounts) {
+            // 0.001 to 5 units
+            long amount = 100_000 + random.nextLong(500_000_000);
+            json.append(",\"amount\":").append(BigDecimal.valueOf(amount, Pair.AMOUNT_SCALE).toPlainString());
+        }
+        json.append('}');
+    }
+}
@@ -0,0 +1,99 @@
+package io.codextest.coinmate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.model.TradingPair;
+import io.codextest.coinmate.service.CoinmateApiClient;
+import io.codextest.coinmate.service.ConnectionScheduler;
+import io.codextest.coinmate.service.FrameJournal;
+import io.codextest.coinmate.service.OrderBookDepthRegistry;
+import io.codextest.coinmate.service.OrderBookPayloadParser;
+import io.codextest.coinmate.service.OrderBookSeeder;
+import io.codextest.coinmate.service.OrderBookWebSocketClient;
+import io.codextest.coinmate.service.PairPrecisionRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.Disposable;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class ExchangeSimulatorTests {
+
+    private final CoinmateProperties properties = new CoinmateProperties();
+    private final SimpleMeterRegistry meters = new SimpleMeterRegistry();
+
+    @Test
+    void servesTheTradingPairsAndAMultiplexedBookOfEachPair() {
+        try (ExchangeSimulator exchange = ExchangeSimulator.start(ExchangeSimulator.Scenario.of(40, 20))) {
+            properties.setRestBaseUrl(exchange.restBaseUrl());
+            properties.setWebsocketBaseUrl(exchange.websocketBaseUrl());
+            List<TradingPair> pairs = apiClient(new PairPrecisionRegistry(properties))
+                    .fetchTradingPairs()
+                    .collectList()
+                    .block(Duration.ofSeconds(10));
+            assertThat(pairs).hasSize(40).extracting(TradingPair::getName).contains("EUR_CZK", "S001_EUR");
+            PairPrecisionRegistry precisions = new PairPrecisionRegistry(properties);
+            pairs.forEach(precisions::register);
+
+            Map<String, OrderBookSnapshot> latest = new ConcurrentHashMap<>();
+            Disposable stream = client(precisions)
+                    .streamMultiplexed("session-0", exchange.pairNames(),
+                            snapshot -> latest.put(snapshot.currencyPair(), snapshot))
+                    .subscribe();
+            try {
+                await().atMost(10, TimeUnit.SECONDS).until(() -> latest.size() == 40);
+                assertThat(latest.values()).allSatisfy(snapshot -> {
+                    assertThat(snapshot.bestBid()).isLessThan(snapshot.bestAsk());
+                    assertThat(snapshot.priceScale()).isEqualTo(snapshot.currencyPair().equals("EUR_CZK") ? 3 : 2);
+                });
+                assertThat(exchange.getConnections()).isEqualTo(1);
+            } finally {
+                stream.dispose();
+            }
+        }
+    }
+
+    @Test
+    void dropsAndStallsConnections() {
+        properties.setReconnectDelay(Duration.ofMillis(50));
+        properties.setInactivityTimeout(Duration.ofMillis(300));
+        ExchangeSimulator.Scenario scenario = ExchangeSimulator.Scenario.of(1, 50)
+                .withDisconnects(Duration.ofMillis(400))
+                .withStalls(Duration.ofMillis(200), Duration.ofMillis(500));
+        try (ExchangeSimulator exchange = ExchangeSimulator.start(scenario)) {
+            properties.setWebsocketBaseUrl(exchange.websocketBaseUrl());
+            Disposable stream = client(new PairPrecisionRegistry(properties))
+                    .streamOrderBook("BTC_EUR", snapshot -> { })
+                    .subscribe();
+            try {
+                await().atMost(10, TimeUnit.SECONDS).until(() -> exchange.getConnections() >= 3);
+                assertThat(exchange.getDisconnects() + exchange.getStalls()).isPositive();
+                assertThat(exchange.getFramesSent()).isPositive();
+                assertThat(meters.get("coinmate.websocket.reconnects").counter().count()).isPositive();
+            } finally {
+                stream.dispose();
+            }
+        }
+    }
+
+    private OrderBookWebSocketClient client(PairPrecisionRegistry precisions) {
+        return new OrderBookWebSocketClient(new OrderBookPayloadParser(new ObjectMapper(), precisions),
+                new OrderBookDepthRegistry(properties), properties, meters, new FrameJournal(properties, meters),
+                new OrderBookSeeder(apiClient(precisions), properties, meters),
+                new ConnectionScheduler(properties, meters));
+    }
+
+    private CoinmateApiClient apiClient(PairPrecisionRegistry precisions) {
+        return new CoinmateApiClient(WebClient.builder(), new OrderBookPayloadParser(new ObjectMapper(), precisions),
+                properties);
+    }
+}
@@ -0,0 +1,182 @@
+package io.codextest.coinmate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.ConversionRate;
+import io.codextest.coinmate.model.FixedPoint;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.service.AlertRules;
+import io.codextest.coinmate.service.ExchangeRateWriter;
+import io.codextest.coinmate.service.OrderBookConversionService;
+import io.codextest.coinmate.service.OrderBookDepthRegistry;
+import io.codextest.coinmate.service.OrderBookPayloadParser;
+import io.codextest.coinmate.service.PairPrecisionRegistry;
+import io.codextest.coinmate.service.RateRollupService;
+import io.codextest.coinmate.service.UpdateConflator;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.jqwik.api.Arbitraries;
+import net.jqwik.api.Arbitrary;
+import net.jqwik.api.Combinators;
+import net.jqwik.api.ForAll;
+import net.jqwik.api.Property;
+import net.jqwik.api.Provide;
+import net.jqwik.api.constraints.IntRange;
+import net.jqwik.api.constraints.LongRange;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Property-based checks that the scaled {@code long} pipeline gives exactly the figures the
+ * {@link BigDecimal} arithmetic it replaced gave.
+ */
+class FixedPointTests {
+
+    private static final MathContext MC = new MathContext(16, RoundingMode.HALF_UP);
+
+    @Property
+    void divisionMatchesBigDecimalIncludingScale(@ForAll @LongRange(min = -999_999_999_999_999L, max = 999_999_999_999_999L) long dividend,
+                                                 @ForAll @IntRange(min = -4, max = 12) int dividendScale,
+                                                 @ForAll("divisors") long divisor,
+                                                 @ForAll @IntRange(min = -4, max = 12) int divisorScale,
+                                                 @ForAll @IntRange(min = 1, max = 18) int precision) {
+        BigDecimal expected = BigDecimal.valueOf(dividend, dividendScale)
+                .divide(BigDecimal.valueOf(divisor, divisorScale), new MathContext(precision, RoundingMode.HALF_UP));
+
+        FixedPoint quotient = FixedPoint.divide(dividend, dividendScale, divisor, divisorScale, precision);
+
+        assertThat(quotient.toBigDecimal()).isEqualTo(expected);
+    }
+
+    @Property
+    void exactQuotientsKeepThePreferredScale(@ForAll @LongRange(min = 1, max = 99_999_999) long factor,
+                                             @ForAll @LongRange(min = 1, max = 99_999_999) long divisor,
+                                             @ForAll @IntRange(min = 0, max = 8) int scale) {
+        BigDecimal expected = BigDecimal.valueOf(factor * divisor, scale)
+                .divide(BigDecimal.valueOf(divisor, scale), MC);
+
+        assertThat(FixedPoint.divide(factor * divisor, scale, divisor, scale, 16).toBigDecimal()).isEqualTo(expected);
+    }
+
+    @Property
+    void parsingMatchesBigDecimalRounding(@ForAll("decimalTexts") String text,
+                                          @ForAll @IntRange(min = 0, max = 10) int scale) {
+        char[] chars = text.toCharArray();
+        long parsed = FixedPoint.parse(chars, 0, chars.length, scale, FixedPoint.MAX_DIGITS);
+
+        BigDecimal expected = new BigDecimal(text).setScale(scale, RoundingMode.HALF_UP);
+        if (expected.unscaledValue().bitLength() >= 64 || new BigDecimal(text).precision() > FixedPoint.MAX_DIGITS) {
+            return;
+        }
+        assertThat(parsed).isEqualTo(expected.unscaledValue().longValueExact());
+    }
+
+    @Property
+    void comparisonAcrossScalesMatchesBigDecimal(@ForAll long a, @ForAll @IntRange(min = -3, max = 18) int aScale,
+                                                 @ForAll long b, @ForAll @IntRange(min = -3, max = 18) int bScale) {
+        int expected = BigDecimal.valueOf(a, aScale).compareTo(BigDecimal.valueOf(b, bScale));
+
+        assertThat(Integer.signum(FixedPoint.compare(a, aScale, b, bScale))).isEqualTo(expected);
+    }
+
+    @Property
+    void appendingMatchesPlainBigDecimalText(@ForAll long unscaled, @ForAll @IntRange(min = -3, max = 20) int scale) {
+        String expected = unscaled == FixedPoint.NONE ? "-" : BigDecimal.valueOf(unscaled, scale).toPlainString();
+
+        assertThat(FixedPoint.append(new StringBuilder("x="), unscaled, scale)).hasToString("x=" + expected);
+    }
+
+    @Property(tries = 300)
+    void streamingFramesMatchTheTreeAndTheDecimalPrices(@ForAll("levels") List<String> bids,
+                                                        @ForAll("levels") List<String> asks,
+                                                        @ForAll @IntRange(min = 0, max = 8) int priceScale) throws IOException {
+        CoinmateProperties properties = new CoinmateProperties();
+        PairPrecisionRegistry precisions = new PairPrecisionRegistry(properties);
+        precisions.register("BTC_EUR", priceScale, 8);
+        OrderBookPayloadParser parser = new OrderBookPayloadParser(new ObjectMapper(), precisions);
+        String frame = "{\"event\":\"data\",\"payload\":{\"bids\":[" + levels(bids) + "],\"asks\":[" + levels(asks) + "]}}";
+
+        OrderBookSnapshot tree = parser.parseTree("BTC_EUR", frame);
+        OrderBookSnapshot streaming = parser.parseStreaming("BTC_EUR", frame.getBytes(StandardCharsets.UTF_8));
+
+        BigDecimal bestBid = bids.stream().map(BigDecimal::new).max(BigDecimal::compareTo).orElseThrow();
+        BigDecimal bestAsk = asks.stream().map(BigDecimal::new).min(BigDecimal::compareTo).orElseThrow();
+        assertThat(streaming).isEqualTo(new OrderBookSnapshot("BTC_EUR", tree.bestBid(), tree.bestBidAmount(),
+                tree.bestAsk(), tree.bestAskAmount(), priceScale, 8, streaming.receivedAt()));
+        assertThat(streaming.bestBidDecimal()).isEqualByComparingTo(bestBid.setScale(priceScale, RoundingMode.HALF_UP));
+        assertThat(streaming.bestAskDecimal()).isEqualByComparingTo(bestAsk.setScale(priceScale, RoundingMode.HALF_UP));
+    }
+
+    @Property(tries = 500)
+    void routeRatesMatchTheBigDecimalComputation(@ForAll("prices") BigDecimal eurBid, @ForAll("prices") BigDecimal eurAsk,
+                                                 @ForAll("prices") BigDecimal czkBid, @ForAll("prices") BigDecimal czkAsk) {
+        CoinmateProperties properties = new CoinmateProperties();
+        OrderBookConversionService service = new OrderBookConversionService(mock(ExchangeRateWriter.class),
+                new OrderBookDepthRegistry(properties), new UpdateConflator(properties, new SimpleMeterRegistry()),
+                mock(RateRollupService.class), mock(AlertRules.class), properties,
+                new SimpleMeterRegistry());
+        service.registerPairs(List.of("BTC_EUR", "BTC_CZK"));
+        service.handleSnapshot(OrderBookSnapshot.of("BTC_EUR", eurBid, BigDecimal.ONE, eurAsk, BigDecimal.ONE,
+                2, 8, Instant.now()));
+        service.handleSnapshot(OrderBookSnapshot.of("BTC_CZK", czkBid, BigDecimal.ONE, czkAsk, BigDecimal.ONE,
+                2, 8, Instant.now()));
+
+        ConversionRate eurToCzk = service.latestRates().get("EUR_TO_CZK");
+        ConversionRate czkToEur = service.latestRates().get("CZK_TO_EUR");
+        // What the pipeline computed from the decimal prices before the switch to scaled longs
+        assertThat(eurToCzk.rate()).isEqualByComparingTo(czkBid.divide(eurAsk, MC));
+        assertThat(czkToEur.rate()).isEqualByComparingTo(czkAsk.divide(eurBid, MC));
+        // ... and that is also what gets persisted, numeric(38, 18)
+        assertThat(eurToCzk.rate().setScale(18, RoundingMode.HALF_UP))
+                .isEqualTo(czkBid.divide(eurAsk, MC).setScale(18, RoundingMode.HALF_UP));
+    }
+
+    @Provide
+    Arbitrary<Long> divisors() {
+        return Arbitraries.longs().between(-999_999_999_999_999L, 999_999_999_999_999L).filter(value -> value != 0);
+    }
+
+    @Provide
+    Arbitrary<String> decimalTexts() {
+        Arbitrary<String> integerPart = Arbitraries.strings().numeric().ofMinLength(1).ofMaxLength(10)
+                .map(digits -> digits.replaceFirst("^0+(?=.)", ""));
+        Arbitrary<String> fractionPart = Arbitraries.strings().numeric().ofMinLength(0).ofMaxLength(10);
+        Arbitrary<String> exponent = Arbitraries.integers().between(-6, 6)
+                .map(value -> "e" + value).injectNull(0.7).map(value -> value == null ? "" : value);
+        return Combinators.combine(Arbitraries.of("", "-"), integerPart, fractionPart, exponent)
+                .as((sign, integer, fraction, exp) -> sign + integer + (fraction.isEmpty() ? "" : "." + fraction) + exp);
+    }
+
+    @Provide
+    Arbitrary<List<String>> levels() {
+        return Arbitraries.bigDecimals().between(new BigDecimal("0.000001"), new BigDecimal("9999999"))
+                .ofScale(6)
+                .map(BigDecimal::stripTrailingZeros)
+                .map(BigDecimal::toPlainString)
+                .list().ofMinSize(1).ofMaxSize(8);
+    }
+
+    @Provide
+    Arbitrary<BigDecimal> prices() {
+        return Arbitraries.bigDecimals().between(new BigDecimal("0.01"), new BigDecimal("99999999.99")).ofScale(2);
+    }
+
+    private static String levels(List<String> prices) {
+        StringBuilder levels = new StringBuilder();
+        for (String price : prices) {
+            if (levels.length() > 0) {
+                levels.append(',');
+            }
+            levels.append("{\"price\":").append(price).append(",\"amount\":0.5}");
+        }
+        return levels.toString();
+    }
+}
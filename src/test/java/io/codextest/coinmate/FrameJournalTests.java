@@ -0,0 +1,151 @@
+package io.codextest.coinmate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.service.CoinmateApiClient;
+import io.codextest.coinmate.service.ConnectionScheduler;
+import io.codextest.coinmate.service.FrameJournal;
+import io.codextest.coinmate.service.FrameJournalReplayer;
+import io.codextest.coinmate.service.OrderBookDepthRegistry;
+import io.codextest.coinmate.service.OrderBookPayloadParser;
+import io.codextest.coinmate.service.OrderBookSeeder;
+import io.codextest.coinmate.service.OrderBookWebSocketClient;
+import io.codextest.coinmate.service.PairPrecisionRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class FrameJournalTests {
+
+    @TempDir
+    private Path directory;
+
+    private CoinmateProperties properties;
+    private SimpleMeterRegistry meters;
+
+    @BeforeEach
+    void setUp() {
+        properties = new CoinmateProperties();
+        properties.getJournal().setCapture(true);
+        properties.getJournal().setDirectory(directory);
+        properties.getJournal().setSegmentSize(DataSize.ofKilobytes(1));
+        properties.getJournal().setMaxSize(DataSize.ofKilobytes(3));
+        meters = new SimpleMeterRegistry();
+    }
+
+    @Test
+    void rotatesSegmentsAndKeepsTheNewestFramesWithinTheMaxSize() throws IOException {
+        FrameJournal journal = new FrameJournal(properties, meters);
+        journal.start();
+        Instant start = Instant.parse("2024-05-01T10:00:00Z");
+        for (int i = 0; i < 100; i++) {
+            DataBuffer payload = buffer(frame("BTC_EUR", 100 + i));
+            journal.append("BTC_EUR", false, start.plusMillis(i), payload);
+            // Capturing must leave the frame for the parser
+            assertThat(payload.readPosition()).isZero();
+        }
+        journal.stop();
+
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> segments = files.toList();
+            assertThat(segments).hasSizeGreaterThan(1);
+            assertThat(segments.stream().mapToLong(FrameJournalTests::size).sum())
+                    .isLessThanOrEqualTo(DataSize.ofKilobytes(3).toBytes() + DataSize.ofKilobytes(1).toBytes());
+        }
+        List<FrameJournal.Frame> frames = new ArrayList<>();
+        FrameJournal.read(directory).forEachRemaining(frames::add);
+        assertThat(frames).hasSizeBetween(2, 99);
+        // The oldest segments are gone, the rest is complete and in order up to the last frame
+        FrameJournal.Frame last = frames.get(frames.size() - 1);
+        assertThat(last.key()).isEqualTo("BTC_EUR");
+        assertThat(last.channel()).isFalse();
+        assertThat(last.receivedAt()).isEqualTo(start.plusMillis(99));
+        assertThat(StandardCharsets.UTF_8.decode(last.payload()).toString()).isEqualTo(frame("BTC_EUR", 199));
+        for (int i = 1; i < frames.size(); i++) {
+            assertThat(frames.get(i).receivedAt()).isEqualTo(frames.get(i - 1).receivedAt().plusMillis(1));
+        }
+        assertThat(journal.getFrames()).isEqualTo(100);
+    }
+
+    @Test
+    void replaysJournaledFramesThroughTheParser() throws IOException {
+        properties.getJournal().setSegmentSize(DataSize.ofKilobytes(64));
+        properties.getJournal().setMaxSize(DataSize.ofMegabytes(1));
+        FrameJournal journal = new FrameJournal(properties, meters);
+        journal.start();
+        Instant now = Instant.now();
+        journal.append("BTC_EUR", false, now, buffer(frame("BTC_EUR", 100)));
+        journal.append("session-0", true, now, buffer(frame("BTC_CZK", 2500)));
+        journal.append("BTC_EUR", false, now, buffer("{\"event\":\"ping\"}"));
+        journal.stop();
+
+        OrderBookWebSocketClient client = new OrderBookWebSocketClient(
+                new OrderBookPayloadParser(new ObjectMapper(), new PairPrecisionRegistry(properties)),
+                new OrderBookDepthRegistry(properties), properties, meters, journal,
+                new OrderBookSeeder(mock(CoinmateApiClient.class), properties, meters),
+                new ConnectionScheduler(properties, meters));
+        List<OrderBookSnapshot> snapshots = new ArrayList<>();
+
+        FrameJournalReplayer.Report report = new FrameJournalReplayer(client, properties, meters)
+                .replay(snapshots::add);
+
+        assertThat(report.frames()).isEqualTo(3);
+        assertThat(report.snapshots()).isEqualTo(2);
+        assertThat(snapshots).extracting(OrderBookSnapshot::currencyPair).containsExactly("BTC_EUR", "BTC_CZK");
+        assertThat(snapshots.get(1).bestBidDecimal()).isEqualByComparingTo("2500");
+        assertThat(meters.get("coinmate.replay.frame").timer().count()).isEqualTo(3);
+        assertThat(report.toString()).contains("3 frames, 2 snapshots", "p99.9");
+
+        // The report covers processing the snapshots, and this replay alone
+        FrameJournalReplayer.Report slow = new FrameJournalReplayer(client, properties, meters)
+                .replay(snapshot -> LockSupport.parkNanos(Duration.ofMillis(20).toNanos()));
+        assertThat(slow.frameLatency().count()).isEqualTo(3);
+        assertThat(slow.frameLatency().max(TimeUnit.MILLISECONDS)).isGreaterThanOrEqualTo(20);
+        assertThat(meters.get("coinmate.replay.frame").timer().count()).isEqualTo(6);
+    }
+
+    @Test
+    void readsNothingFromAMissingDirectory() throws IOException {
+        Iterator<FrameJournal.Frame> frames = FrameJournal.read(directory.resolve("missing"));
+        assertThat(frames.hasNext()).isFalse();
+    }
+
+    private static String frame(String pair, int bid) {
+        return "{\"event\":\"data\",\"channel\":\"order_book-" + pair + "\",\"payload\":{\"bids\":[{\"price\":"
+                + bid + ",\"amount\":1}],\"asks\":[{\"price\":" + (bid + 1) + ",\"amount\":1}]}}";
+    }
+
+    private static DataBuffer buffer(String text) {
+        return DefaultDataBufferFactory.sharedInstance.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
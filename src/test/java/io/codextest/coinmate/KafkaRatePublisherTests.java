@@ -0,0 +1,111 @@
+package io.codextest.coinmate;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.ConversionRate;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.service.KafkaRatePublisher;
+import io.codextest.coinmate.service.KafkaRecordCodec;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.Test;
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+import org.springframework.kafka.test.utils.KafkaTestUtils;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+@EmbeddedKafka(partitions = 1, topics = {"coinmate.order-books", "coinmate.rates"})
+class KafkaRatePublisherTests {
+
+    private static final Instant RECEIVED_AT = Instant.parse("2024-05-01T10:00:00.123456Z");
+
+    @Test
+    void publishesBinaryRecordsKeyedByPairAndDirection(EmbeddedKafkaBroker broker) {
+        SimpleMeterRegistry meters = new SimpleMeterRegistry();
+        KafkaTemplate<String, byte[]> template = template(broker.getBrokersAsString(), Map.of());
+        KafkaRatePublisher publisher = new KafkaRatePublisher(template, new CoinmateProperties(), meters);
+        publisher.start();
+
+        OrderBookSnapshot snapshot = OrderBookSnapshot.of("BTC_EUR", new BigDecimal("50000.5"), BigDecimal.ONE,
+                new BigDecimal("50010"), null, 8, 8, RECEIVED_AT);
+        ConversionRate rate = new ConversionRate("EUR", "CZK", new BigDecimal("25.1234567890123456"),
+                new BigDecimal("0.5"), null, "BTC_EUR>BTC_CZK", RECEIVED_AT);
+        publisher.publishSnapshot(snapshot);
+        publisher.publishRate(rate);
+
+        Map<String, Object> consumerProps = KafkaTestUtils.consumerProps("publisher-test", "false", broker);
+        consumerProps.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+        try (Consumer<String, byte[]> consumer = new DefaultKafkaConsumerFactory<>(consumerProps,
+                new StringDeserializer(), new ByteArrayDeserializer()).createConsumer()) {
+            broker.consumeFromAllEmbeddedTopics(consumer);
+            ConsumerRecords<String, byte[]> records = KafkaTestUtils.getRecords(consumer, Duration.ofSeconds(10), 2);
+
+            ConsumerRecord<String, byte[]> book = records.records("coinmate.order-books").iterator().next();
+            assertThat(book.key()).isEqualTo("BTC_EUR");
+            assertThat(book.timestamp()).isEqualTo(RECEIVED_AT.toEpochMilli());
+            assertThat(book.value()).hasSize(43);
+            assertThat(KafkaRecordCodec.decodeSnapshot(book.key(), book.value())).isEqualTo(snapshot);
+
+            ConsumerRecord<String, byte[]> computed = records.records("coinmate.rates").iterator().next();
+            assertThat(computed.key()).isEqualTo("EUR_TO_CZK");
+            assertThat(KafkaRecordCodec.decodeRate(computed.key(), computed.value())).isEqualTo(rate);
+        }
+
+        await().atMost(5, TimeUnit.SECONDS).until(() -> publisher.getSent() == 2);
+        assertThat(meters.get("coinmate.kafka.lag").tag("topic", "coinmate.rates").timer().count()).isEqualTo(1);
+        publisher.stop();
+        ((DefaultKafkaProducerFactory<String, byte[]>) template.getProducerFactory()).destroy();
+    }
+
+    @Test
+    void dropsTheOldestRecordsInsteadOfBlockingWhenTheBrokerIsUnreachable() {
+        CoinmateProperties properties = new CoinmateProperties();
+        properties.getKafka().setQueueCapacity(10);
+        properties.getKafka().setShutdownTimeout(Duration.ofMillis(200));
+        // Every send waits for metadata that never comes
+        KafkaTemplate<String, byte[]> template = template("localhost:1",
+                Map.of(ProducerConfig.MAX_BLOCK_MS_CONFIG, 2000));
+        KafkaRatePublisher publisher = new KafkaRatePublisher(template, properties, new SimpleMeterRegistry());
+        publisher.start();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 10_000; i++) {
+            publisher.publishRate(new ConversionRate("EUR", "CZK", BigDecimal.valueOf(25_000 + i, 3), null, null,
+                    "EUR_CZK", Instant.now()));
+        }
+
+        assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofSeconds(1));
+        assertThat(publisher.getQueued()).isEqualTo(10);
+        assertThat(publisher.getDropped()).isGreaterThanOrEqualTo(10_000 - 11);
+        publisher.stop();
+        ((DefaultKafkaProducerFactory<String, byte[]>) template.getProducerFactory()).destroy();
+    }
+
+    private static KafkaTemplate<String, byte[]> template(String brokers, Map<String, Object> overrides) {
+        Map<String, Object> config = new HashMap<>(KafkaTestUtils.producerProps(brokers));
+        config.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true);
+        config.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, "lz4");
+        config.putAll(overrides);
+        return new KafkaTemplate<>(new DefaultKafkaProducerFactory<>(config, new StringSerializer(),
+                new ByteArraySerializer()));
+    }
+}
@@ -0,0 +1,176 @@
+package io.codextest.coinmate;
+
+import io.codextest.coinmate.model.ConversionRate;
+import io.codextest.coinmate.model.LiveUpdate;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.service.LiveRateBroadcaster;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscription;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.client.ReactorNettyWebSocketClient;
+import reactor.core.publisher.BaseSubscriber;
+
+import java.math.BigDecimal;
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        // Spring Boot turns metric exports off in tests
+        properties = {"spring.main.web-application-type=reactive", "management.prometheus.metrics.export.enabled=true"})
+@ActiveProfiles("test")
+class LiveRateStreamTests {
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private LiveRateBroadcaster broadcaster;
+
+    @Test
+    void streamsTheLatestAndThenEveryNewRateOverSse() {
+        broadcaster.publishRate(rate("EUR_TO_CZK", "25.10"));
+        broadcaster.publishRate(rate("CZK_TO_EUR", "25.40"));
+
+        List<ServerSentEvent<String>> events = WebClient.create("http://localhost:" + port)
+                .get()
+                .uri("/api/live?directions=EUR_TO_CZK&pairs=NONE")
+                .accept(MediaType.TEXT_EVENT_STREAM)
+                .retrieve()
+                .bodyToFlux(new ParameterizedTypeReference<ServerSentEvent<String>>() {
+                })
+                .filter(event -> event.event() != null)
+                .doOnNext(event -> {
+                    if (event.data().contains("25.1")) {
+                        broadcaster.publishRate(rate("EUR_TO_CZK", "25.20"));
+                    }
+                })
+                .take(2)
+                .collectList()
+                .block(Duration.ofSeconds(10));
+
+        assertThat(events).extracting(ServerSentEvent::event).containsExactly("rate", "rate");
+        assertThat(events).extracting(ServerSentEvent::id).containsOnly("rate:EUR_TO_CZK");
+        assertThat(events.get(0).data()).contains("\"rate\":25.10");
+        assertThat(events.get(1).data()).contains("\"rate\":25.20");
+    }
+
+    @Test
+    void streamsBookTopsOverWebSocket() {
+        broadcaster.publishBook(OrderBookSnapshot.of("BTC_EUR", new BigDecimal("50000.5"), BigDecimal.ONE,
+                new BigDecimal("50010"), new BigDecimal("0.25"), 8, 8, Instant.now()));
+        List<String> messages = new CopyOnWriteArrayList<>();
+
+        new ReactorNettyWebSocketClient()
+                .execute(URI.create("ws://localhost:" + port + "/ws/live?pairs=BTC_EUR&directions=NONE"),
+                        session -> session.receive()
+                                .map(WebSocketMessage::getPayloadAsText)
+                                .doOnNext(messages::add)
+                                .take(1)
+                                .then())
+                .block(Duration.ofSeconds(10));
+
+        assertThat(messages).singleElement().satisfies(message -> assertThat(message)
+                .contains("\"type\":\"book\"", "\"key\":\"book:BTC_EUR\"", "\"bestBid\":50000.5"));
+    }
+
+    @Test
+    void slowSubscriberGetsOnlyTheNewestValuePerKey() {
+        SimpleMeterRegistry meters = new SimpleMeterRegistry();
+        LiveRateBroadcaster isolated = new LiveRateBroadcaster(meters);
+        List<LiveUpdate> received = new CopyOnWriteArrayList<>();
+        ManualSubscriber subscriber = new ManualSubscriber(received);
+        isolated.updates(LiveRateBroadcaster.filter(null, null)).subscribe(subscriber);
+
+        for (int i = 0; i < 100; i++) {
+            isolated.publishRate(rate("EUR_TO_CZK", "25." + i));
+            isolated.publishBook(OrderBookSnapshot.of("BTC_EUR", BigDecimal.valueOf(50_000 + i), BigDecimal.ONE,
+                    BigDecimal.valueOf(50_010 + i), BigDecimal.ONE, 8, 8, Instant.now()));
+        }
+        subscriber.request(10);
+
+        await().atMost(5, TimeUnit.SECONDS).until(() -> received.size() == 2);
+        assertThat(received).extracting(LiveUpdate::key).containsExactly("rate:EUR_TO_CZK", "book:BTC_EUR");
+        assertThat(((ConversionRate) received.get(0).data()).rate()).isEqualByComparingTo("25.99");
+        assertThat(meters.get("coinmate.live.conflated").counter().count()).isEqualTo(198);
+        assertThat(meters.get("coinmate.live.subscribers").gauge().value()).isEqualTo(1);
+
+        subscriber.dispose();
+        assertThat(meters.get("coinmate.live.subscribers").gauge().value()).isZero();
+    }
+
+    @Test
+    void servesTheMetersInPrometheusFormat() {
+        String scrape = WebClient.create("http://localhost:" + port)
+                .get()
+                .uri("/actuator/prometheus")
+                .retrieve()
+                .bodyToMono(String.class)
+                .block(Duration.ofSeconds(10));
+
+        assertThat(scrape).contains("coinmate_live_subscribers");
+    }
+
+    @Test
+    void newSubscriberGetsWhatIsPublishedWhileItsReplayRuns() {
+        LiveRateBroadcaster isolated = new LiveRateBroadcaster(new SimpleMeterRegistry());
+        isolated.publishRate(rate("EUR_TO_CZK", "25.1"));
+        List<LiveUpdate> received = new CopyOnWriteArrayList<>();
+        AtomicBoolean first = new AtomicBoolean(true);
+        Predicate<String> all = LiveRateBroadcaster.filter(null, null);
+
+        // The first key the replay tests sees a newer rate published right then
+        isolated.updates(key -> {
+            if (first.getAndSet(false)) {
+                isolated.publishRate(rate("EUR_TO_CZK", "25.2"));
+            }
+            return all.test(key);
+        }).subscribe(received::add);
+
+        await().atMost(5, TimeUnit.SECONDS).until(() -> !received.isEmpty());
+        assertThat(received).hasSize(1);
+        assertThat(((ConversionRate) received.get(0).data()).rate()).isEqualByComparingTo("25.2");
+    }
+
+    private static ConversionRate rate(String direction, String value) {
+        String[] currencies = direction.split("_TO_");
+        return new ConversionRate(currencies[0], currencies[1], new BigDecimal(value), null, null,
+                "BTC_EUR>BTC_CZK", Instant.now());
+    }
+
+    private static final class ManualSubscriber extends BaseSubscriber<LiveUpdate> {
+
+        private final List<LiveUpdate> received;
+
+        private ManualSubscriber(List<LiveUpdate> received) {
+            this.received = received;
+        }
+
+        @Override
+        protected void hookOnSubscribe(Subscription subscription) {
+            // No demand until the test asks for it
+        }
+
+        @Override
+        protected void hookOnNext(LiveUpdate value) {
+            received.add(value);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package io.codextest.coinmate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.ConversionDirection;
+import io.codextest.coinmate.model.ConversionQuote;
+import io.codextest.coinmate.service.AlertRules;
+import io.codextest.coinmate.service.ExchangeRateWriter;
+import io.codextest.coinmate.service.OrderBookConversionService;
+import io.codextest.coinmate.service.OrderBookDepth;
+import io.codextest.coinmate.service.OrderBookDepthRegistry;
+import io.codextest.coinmate.service.OrderBookPayloadParser;
+import io.codextest.coinmate.service.PairPrecisionRegistry;
+import io.codextest.coinmate.service.RateRollupService;
+import io.codextest.coinmate.service.UpdateConflator;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.Mockito.mock;
+
+class OrderBookDepthTests {
+
+    @Test
+    void keepsLevelsSortedAndBoundedToCapacity() {
+        OrderBookDepth depth = new OrderBookDepth("BTC_EUR", 3);
+        depth.beginUpdate();
+        depth.stageBid(99, 1);
+        depth.stageBid(101, 1);
+        depth.stageBid(97, 1);
+        depth.stageBid(100, 1);
+        depth.stageAsk(105, 1);
+        depth.stageAsk(103, 1);
+        depth.stageAsk(0, 1);
+        depth.publish(Instant.now());
+
+        assertThat(depth.bidLevels()).isEqualTo(3);
+        assertThat(depth.bestBid()).isEqualTo(101);
+        assertThat(depth.askLevels()).isEqualTo(2);
+        assertThat(depth.bestAsk()).isEqualTo(103);
+        // 101 + 100 + 99 for three units proves 97 was dropped
+        assertThat(depth.quoteProceedsOf(3)).isEqualTo(300);
+        assertThat(depth.quoteProceedsOf(4)).isNaN();
+    }
+
+    @Test
+    void stagedLevelsStayInvisibleUntilPublished() {
+        OrderBookDepth depth = new OrderBookDepth("BTC_EUR", 5);
+        depth.beginUpdate();
+        depth.stageAsk(10, 2);
+        depth.publish(Instant.now());
+
+        depth.beginUpdate();
+        depth.stageAsk(20, 2);
+
+        assertThat(depth.bestAsk()).isEqualTo(10);
+        assertThat(depth.quoteCostOf(1)).isEqualTo(10);
+        assertThat(depth.baseBoughtFor(20)).isEqualTo(2);
+        assertThat(depth.baseBoughtFor(30)).isNaN();
+        assertThat(depth.baseBoughtFor(15)).isEqualTo(1.5);
+    }
+
+    @Test
+    void quotesWalkBothBooksForLargeNotionals() throws IOException {
+        CoinmateProperties properties = new CoinmateProperties();
+        OrderBookDepthRegistry registry = new OrderBookDepthRegistry(properties);
+        OrderBookPayloadParser parser = new OrderBookPayloadParser(new ObjectMapper(),
+                new PairPrecisionRegistry(properties));
+        OrderBookConversionService service =
+                new OrderBookConversionService(mock(ExchangeRateWriter.class), registry,
+                        new UpdateConflator(properties, new SimpleMeterRegistry()), mock(RateRollupService.class),
+                        mock(AlertRules.class),
+                        properties, new SimpleMeterRegistry());
+        service.handleSnapshot(parser.parseStreaming("BTC_EUR", load("btc_eur.json"), registry.bookFor("BTC_EUR")));
+        service.handleSnapshot(parser.parseStreaming("BTC_CZK", load("btc_czk.json"), registry.bookFor("BTC_CZK")));
+
+        ConversionQuote small = service.quote(ConversionDirection.EUR_TO_CZK, new BigDecimal("10")).orElseThrow();
+        ConversionQuote large = service.quote(ConversionDirection.EUR_TO_CZK, new BigDecimal("10000")).orElseThrow();
+        ConversionQuote buy = service.quote(ConversionDirection.CZK_TO_EUR, new BigDecimal("10000")).orElseThrow();
+
+        double top = 1448210 / 57344.9;
+        assertThat(small.rate().doubleValue()).isCloseTo(top, within(1e-9));
+        assertThat(small.slippage().doubleValue()).isCloseTo(0, within(1e-12));
+        assertThat(large.rate().doubleValue()).isLessThan(top);
+        assertThat(large.slippage().doubleValue()).isPositive();
+        assertThat(buy.rate().doubleValue()).isGreaterThan(1449980 / 57321.4);
+        assertThat(buy.slippage().doubleValue()).isPositive();
+        assertThat(service.quote(ConversionDirection.EUR_TO_CZK, new BigDecimal("10000000"))).isEmpty();
+    }
+
+    private static byte[] load(String resource) throws IOException {
+        try (InputStream in = new ClassPathResource("payloads/" + resource).getInputStream()) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package io.codextest.coinmate;
+
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.service.OrderBookWebSocketClient;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class OrderBookMultiplexedStreamTests {
+
+    private static final Pattern CHANNEL = Pattern.compile("\"channel\":\"(order_book-[A-Z_]+)\"");
+
+    private static final AtomicInteger connections = new AtomicInteger();
+    private static final List<Set<String>> subscriptionsPerConnection = new CopyOnWriteArrayList<>();
+    private static DisposableServer wsServer;
+    private static int port;
+
+    @BeforeAll
+    static void startServer() {
+        wsServer = HttpServer.create()
+                .port(0)
+                .route(routes -> routes.ws("/api/websocket", (in, out) -> {
+                    int connection = connections.incrementAndGet();
+                    Set<String> channels = ConcurrentHashMap.newKeySet();
+                    subscriptionsPerConnection.add(channels);
+
+                    // Answer every subscribe with a few data frames on that channel
+                    Flux<Object> frames = in.receive().asString()
+                            .flatMap(message -> {
+                                Matcher matcher = CHANNEL.matcher(message);
+                                if (!message.contains("\"subscribe\"") || !matcher.find()) {
+                                    return Flux.empty();
+                                }
+                                String channel = matcher.group(1);
+                                channels.add(channel);
+                                return Flux.interval(Duration.ofMillis(50))
+                                        .take(3)
+                                        .map(i -> (Object) new TextWebSocketFrame("{\"event\":\"data\",\"channel\":\""
+                                                + channel + "\",\"payload\":{\"bids\":[{\"price\":" + (100 + i)
+                                                + ",\"amount\":1}],\"asks\":[{\"price\":" + (101 + i) + ",\"amount\":1}]}}"));
+                            })
+                            // An unsubscribed channel must be ignored by the client
+                            .startWith(new TextWebSocketFrame("{\"event\":\"data\",\"channel\":\"order_book-LTC_EUR\","
+                                    + "\"payload\":{\"bids\":[{\"price\":1}],\"asks\":[{\"price\":2}]}}"));
+
+                    // The first connection drops after a few frames to force a reconnect
+                    if (connection == 1) {
+                        return out.sendObject(frames.take(4));
+                    }
+                    return out.sendObject(frames).neverComplete();
+                }))
+                .bindNow();
+        port = wsServer.port();
+    }
+
+    @AfterAll
+    static void stopServer() {
+        if (wsServer != null) {
+            wsServer.disposeNow();
+        }
+    }
+
+    @DynamicPropertySource
+    static void overrideProps(DynamicPropertyRegistry registry) {
+        registry.add("coinmate.websocket-base-url", () -> "ws://localhost:" + port);
+        registry.add("coinmate.connection-mode", () -> "multiplexed");
+        registry.add("coinmate.reconnect-delay", () -> "100ms");
+    }
+
+    @Autowired
+    private OrderBookWebSocketClient client;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Test
+    void routesFramesOfSeveralPairsOverOneResubscribedConnection() throws InterruptedException {
+        CountDownLatch secondConnection = new CountDownLatch(4);
+        List<OrderBookSnapshot> received = new CopyOnWriteArrayList<>();
+
+        Disposable subscription = client
+                .streamOrderBooks(List.of("BTC_EUR", "BTC_CZK"), snapshot -> {
+                    received.add(snapshot);
+                    if (connections.get() >= 2) {
+                        secondConnection.countDown();
+                    }
+                })
+                .onErrorResume(e -> Mono.empty())
+                .subscribe();
+
+        try {
+            assertThat(secondConnection.await(10, TimeUnit.SECONDS))
+                    .as("expected snapshots after reconnecting").isTrue();
+            // One session per connection, and the reconnect subscribes every channel again
+            assertThat(connections.get()).isEqualTo(2);
+            assertThat(subscriptionsPerConnection.get(1))
+                    .containsExactlyInAnyOrder("order_book-BTC_EUR", "order_book-BTC_CZK");
+            assertThat(received).extracting(OrderBookSnapshot::currencyPair)
+                    .contains("BTC_EUR", "BTC_CZK")
+                    .doesNotContain("LTC_EUR");
+            // The outage is counted and measured up to the first frame on the new connection
+            assertThat(meterRegistry.get("coinmate.websocket.reconnects").counter().count()).isEqualTo(1);
+            assertThat(meterRegistry.get("coinmate.websocket.gap").timer().count()).isEqualTo(1);
+            assertThat(meterRegistry.get("coinmate.snapshots").tag("pair", "BTC_EUR").counter().count())
+                    .isPositive();
+        } finally {
+            subscription.dispose();
+        }
+    }
+}
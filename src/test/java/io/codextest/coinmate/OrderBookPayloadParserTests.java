@@ -0,0 +1,105 @@
+package io.codextest.coinmate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.service.OrderBookPayloadParser;
+import io.codextest.coinmate.service.PairPrecisionRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.core.io.ClassPathResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class OrderBookPayloadParserTests {
+
+    private final OrderBookPayloadParser parser = new OrderBookPayloadParser(new ObjectMapper(),
+            new PairPrecisionRegistry(new CoinmateProperties()));
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "btc_eur.json",
+            "btc_czk.json",
+            "unsorted_levels.json",
+            "amount_before_price.json",
+            "mixed_levels.json",
+            "subscribe_success.json",
+            "ping.json",
+            "empty_side.json",
+            "no_event.json"
+    })
+    void streamingParserMatchesTreeParserOnRecordedPayloads(String resource) throws IOException {
+        byte[] payload = load(resource);
+
+        OrderBookSnapshot tree = parser.parseTree("BTC_EUR", new String(payload, StandardCharsets.UTF_8));
+        OrderBookSnapshot streaming = parser.parseStreaming("BTC_EUR", payload);
+
+        if (tree == null) {
+            assertThat(streaming).isNull();
+            return;
+        }
+        assertThat(streaming).isNotNull();
+        assertThat(streaming.currencyPair()).isEqualTo(tree.currencyPair());
+        assertThat(streaming.bestBid()).isEqualTo(tree.bestBid());
+        assertThat(streaming.bestBidAmount()).isEqualTo(tree.bestBidAmount());
+        assertThat(streaming.bestAsk()).isEqualTo(tree.bestAsk());
+        assertThat(streaming.bestAskAmount()).isEqualTo(tree.bestAskAmount());
+        assertThat(streaming.priceScale()).isEqualTo(tree.priceScale());
+        assertThat(streaming.amountScale()).isEqualTo(tree.amountScale());
+    }
+
+    @Test
+    void picksBestLevelsRegardlessOfOrdering() throws IOException {
+        OrderBookSnapshot snapshot = parser.parseStreaming("ETH_EUR", load("unsorted_levels.json"));
+
+        assertThat(snapshot).isNotNull();
+        assertThat(snapshot.bestBidDecimal()).isEqualByComparingTo("2401.95");
+        assertThat(snapshot.bestBidAmountDecimal()).isEqualByComparingTo("0.0751");
+        assertThat(snapshot.bestAskDecimal()).isEqualByComparingTo("2405.15");
+        assertThat(snapshot.bestAskAmountDecimal()).isEqualByComparingTo("0.42");
+    }
+
+    @Test
+    void skipsNonNumericLevelsAndKeepsFirstOfEqualPrices() throws IOException {
+        OrderBookSnapshot snapshot = parser.parseStreaming("BTC_EUR", load("mixed_levels.json"));
+
+        assertThat(snapshot).isNotNull();
+        assertThat(snapshot.bestBidDecimal()).isEqualByComparingTo("100.25");
+        assertThat(snapshot.bestBidAmountDecimal()).isNull();
+        assertThat(snapshot.bestAskDecimal()).isEqualByComparingTo("102");
+        assertThat(snapshot.bestAskAmountDecimal()).isNull();
+    }
+
+    @Test
+    void streamingParserReadsFromInputStream() throws IOException {
+        try (InputStream in = new ClassPathResource("payloads/btc_czk.json").getInputStream()) {
+            OrderBookSnapshot snapshot = parser.parseStreaming("BTC_CZK", in);
+
+            assertThat(snapshot).isNotNull();
+            assertThat(snapshot.bestBidDecimal()).isEqualByComparingTo("1448210");
+            assertThat(snapshot.bestAskDecimal()).isEqualByComparingTo("1449980");
+        }
+    }
+
+    @Test
+    void bothParsersRejectMalformedPayloads() {
+        byte[] truncated = "{\"event\":\"data\",\"payload\":{\"bids\":[{\"price\":1".getBytes(StandardCharsets.UTF_8);
+
+        assertThatThrownBy(() -> parser.parseTree("BTC_EUR", new String(truncated, StandardCharsets.UTF_8)))
+                .isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> parser.parseStreaming("BTC_EUR", truncated))
+                .isInstanceOf(IOException.class);
+    }
+
+    private static byte[] load(String resource) throws IOException {
+        try (InputStream in = new ClassPathResource("payloads/" + resource).getInputStream()) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package io.codextest.coinmate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.FixedPoint;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.service.CoinmateApiClient;
+import io.codextest.coinmate.service.ConnectionScheduler;
+import io.codextest.coinmate.service.FrameJournal;
+import io.codextest.coinmate.service.OrderBookDepth;
+import io.codextest.coinmate.service.OrderBookDepthRegistry;
+import io.codextest.coinmate.service.OrderBookPayloadParser;
+import io.codextest.coinmate.service.OrderBookSeeder;
+import io.codextest.coinmate.service.OrderBookWebSocketClient;
+import io.codextest.coinmate.service.PairPrecisionRegistry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.Mockito.mock;
+
+class OrderBookRedundancyTests {
+
+    private static final long FRAME_MILLIS = 20;
+
+    private final CoinmateProperties properties = new CoinmateProperties();
+    private final SimpleMeterRegistry meters = new SimpleMeterRegistry();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final long startNanos = System.nanoTime();
+    private final OrderBookDepthRegistry depths = new OrderBookDepthRegistry(properties);
+    private DisposableServer server;
+
+    @AfterEach
+    void stopServer() {
+        if (server != null) {
+            server.disposeNow();
+        }
+    }
+
+    @Test
+    void passesEachFrameOnceFromWhicheverConnectionDeliversItFirst() {
+        startServer(-1);
+        List<OrderBookSnapshot> snapshots = new CopyOnWriteArrayList<>();
+        Disposable stream = client().streamRedundant("BTC_EUR", snapshots::add).subscribe();
+        try {
+            await().atMost(10, TimeUnit.SECONDS).until(() -> duplicates() >= 20);
+        } finally {
+            stream.dispose();
+        }
+        assertThat(connections).hasValue(2);
+        // Every book reached the consumer once, whichever connection won it
+        assertThat(snapshots).extracting(OrderBookSnapshot::bestBid).doesNotHaveDuplicates();
+        double won = meters.find("coinmate.race.won").counters().stream().mapToDouble(Counter::count).sum();
+        // A frame admitted just before the stream was disposed may not have reached the consumer
+        assertThat(won).isBetween((double) snapshots.size(), snapshots.size() + 1.0);
+        assertThat(meters.get("coinmate.race.lead").timer().count()).isEqualTo((long) duplicates());
+    }
+
+    @Test
+    void reconnectsAConnectionThatStallsWhileItsTwinDelivers() {
+        properties.getRedundancy().setStallTimeout(Duration.ofMillis(300));
+        properties.setReconnectDelay(Duration.ofMillis(50));
+        // Far beyond the test, so only the race can notice the stall
+        properties.setInactivityTimeout(Duration.ofMinutes(1));
+        startServer(2);
+        List<OrderBookSnapshot> snapshots = new CopyOnWriteArrayList<>();
+        Disposable stream = client().streamRedundant("BTC_EUR", snapshots::add).subscribe();
+        try {
+            await().atMost(10, TimeUnit.SECONDS).until(() -> connections.get() >= 3);
+            double reconnects = meters.find("coinmate.websocket.reconnects").counters().stream()
+                    .mapToDouble(Counter::count).sum();
+            assertThat(reconnects).isPositive();
+            int delivered = snapshots.size();
+            await().atMost(5, TimeUnit.SECONDS).until(() -> snapshots.size() > delivered + 10);
+        } finally {
+            stream.dispose();
+        }
+    }
+
+    @Test
+    void parsesAndPassesOnTheFramesOfBothConnectionsOneAtATime() {
+        // Both connections get the same deep books every millisecond, so the legs win frames in turn
+        Flux<Long> books = Flux.interval(Duration.ofMillis(1)).onBackpressureBuffer().share();
+        server = HttpServer.create()
+                .port(0)
+                .route(routes -> routes.get("/api/websocket/channel/order-book/{pair}",
+                        (request, response) -> response.sendWebsocket((in, out) -> {
+                            connections.incrementAndGet();
+                            return out.sendObject(books.map(book -> new TextWebSocketFrame(frame(book, 50))));
+                        })))
+                .bindNow();
+        properties.setWebsocketBaseUrl("ws://localhost:" + server.port());
+        OrderBookWebSocketClient client = client();
+        OrderBookDepth depth = depths.bookFor("BTC_EUR");
+        List<OrderBookSnapshot> snapshots = new CopyOnWriteArrayList<>();
+        AtomicInteger inConsumer = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        AtomicInteger torn = new AtomicInteger();
+
+        Disposable stream = client.streamRedundant("BTC_EUR", snapshot -> {
+            if (inConsumer.incrementAndGet() > 1) {
+                overlaps.incrementAndGet();
+            }
+            // The depth book holds exactly the frame being passed on
+            if (depth.bestBid() != FixedPoint.toDouble(snapshot.bestBid(), snapshot.priceScale())
+                    || depth.bidLevels() != 50 || depth.askLevels() != 50) {
+                torn.incrementAndGet();
+            }
+            snapshots.add(snapshot);
+            inConsumer.decrementAndGet();
+        }).subscribe();
+        try {
+            await().atMost(10, TimeUnit.SECONDS).until(() -> snapshots.size() >= 1000 && duplicates() >= 100);
+        } finally {
+            stream.dispose();
+        }
+        assertThat(overlaps).hasValue(0);
+        assertThat(torn).hasValue(0);
+        assertThat(snapshots).extracting(OrderBookSnapshot::bestBid).isSorted().doesNotHaveDuplicates();
+        assertThat(meters.get("coinmate.race.won").tag("leg", "a").counter().count()).isPositive();
+        assertThat(meters.get("coinmate.race.won").tag("leg", "b").counter().count()).isPositive();
+    }
+
+    /**
+     * Serves the current book of BTC_EUR on every connection, changing every {@link #FRAME_MILLIS}, like
+     * Coinmate pushing the same book to all subscribers.
+     *
+     * @param stalledConnection the connection (counting from 1) that goes silent after a few frames, or -1
+     */
+    private void startServer(int stalledConnection) {
+        server = HttpServer.create()
+                .port(0)
+                .route(routes -> routes.get("/api/websocket/channel/order-book/{pair}",
+                        (request, response) -> response.sendWebsocket((in, out) -> {
+                            int connection = connections.incrementAndGet();
+                            Flux<Long> books = Flux.interval(Duration.ofMillis(FRAME_MILLIS))
+                                    .map(tick -> (System.nanoTime() - startNanos) / (FRAME_MILLIS * 1_000_000))
+                                    .distinctUntilChanged();
+                            if (connection == stalledConnection) {
+                                books = books.take(5).concatWith(Flux.never());
+                            }
+                            return out.sendObject(books.map(book -> new TextWebSocketFrame(frame(book))));
+                        })))
+                .bindNow();
+        properties.setWebsocketBaseUrl("ws://localhost:" + server.port());
+    }
+
+    private static String frame(long book, int levels) {
+        StringBuilder frame = new StringBuilder("{\"event\":\"data\",\"channel\":\"order_book-BTC_EUR\","
+                + "\"payload\":{\"bids\":[");
+        for (int level = 0; level < levels; level++) {
+            frame.append(level == 0 ? "" : ",").append("{\"price\":").append(100_000 + book - level)
+                    .append(",\"amount\":0.5}");
+        }
+        frame.append("],\"asks\":[");
+        for (int level = 0; level < levels; level++) {
+            frame.append(level == 0 ? "" : ",").append("{\"price\":").append(100_001 + book + level)
+                    .append(",\"amount\":0.25}");
+        }
+        return frame.append("]}}").toString();
+    }
+
+    private static String frame(long book) {
+        return "{\"event\":\"data\",\"channel\":\"order_book-BTC_EUR\",\"payload\":{"
+                + "\"bids\":[{\"price\":" + (1000 + book) + ",\"amount\":0.5}],"
+                + "\"asks\":[{\"price\":" + (1001 + book) + ",\"amount\":0.25}]}}";
+    }
+
+    private double duplicates() {
+        Counter counter = meters.find("coinmate.race.duplicates").counter();
+        return counter == null ? 0 : counter.count();
+    }
+
+    private OrderBookWebSocketClient client() {
+        // Frames only; the race is what is under test
+        properties.getSeeding().setEnabled(false);
+        return new OrderBookWebSocketClient(
+                new OrderBookPayloadParser(new ObjectMapper(), new PairPrecisionRegistry(properties)),
+                depths, properties, meters, new FrameJournal(properties, meters),
+                new OrderBookSeeder(mock(CoinmateApiClient.class), properties, meters),
+                new ConnectionScheduler(properties, meters));
+    }
+}
@@ -0,0 +1,168 @@
+package io.codextest.coinmate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.model.TradingPair;
+import io.codextest.coinmate.service.CoinmateApiClient;
+import io.codextest.coinmate.service.ConnectionScheduler;
+import io.codextest.coinmate.service.FrameJournal;
+import io.codextest.coinmate.service.OrderBookDepthRegistry;
+import io.codextest.coinmate.service.OrderBookPayloadParser;
+import io.codextest.coinmate.service.OrderBookSeeder;
+import io.codextest.coinmate.service.OrderBookWebSocketClient;
+import io.codextest.coinmate.service.PairPrecisionRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class OrderBookSeedingTests {
+
+    private final CoinmateProperties properties = new CoinmateProperties();
+    private final SimpleMeterRegistry meters = new SimpleMeterRegistry();
+
+    @Test
+    void seedsQuietPairsOverRestWhenTheirStreamsConnect() {
+        // No frames at all, as from pairs nobody trades
+        try (ExchangeSimulator exchange = ExchangeSimulator.start(ExchangeSimulator.Scenario.of(3, 0))) {
+            properties.setRestBaseUrl(exchange.restBaseUrl());
+            properties.setWebsocketBaseUrl(exchange.websocketBaseUrl());
+            PairPrecisionRegistry precisions = new PairPrecisionRegistry(properties);
+            CoinmateApiClient apiClient = new CoinmateApiClient(WebClient.builder(),
+                    new OrderBookPayloadParser(new ObjectMapper(), precisions), properties);
+            List<TradingPair> pairs = apiClient.fetchTradingPairs().collectList().block(Duration.ofSeconds(10));
+            pairs.forEach(precisions::register);
+            OrderBookWebSocketClient client = new OrderBookWebSocketClient(
+                    new OrderBookPayloadParser(new ObjectMapper(), precisions), new OrderBookDepthRegistry(properties),
+                    properties, meters, new FrameJournal(properties, meters),
+                    new OrderBookSeeder(apiClient, properties, meters), new ConnectionScheduler(properties, meters));
+
+            Map<String, OrderBookSnapshot> latest = new ConcurrentHashMap<>();
+            Disposable single = client.streamOrderBook("EUR_CZK", snapshot -> latest.put(snapshot.currencyPair(),
+                    snapshot)).subscribe();
+            Disposable shared = client.streamMultiplexed("session-0", List.of("S001_EUR", "S001_CZK"),
+                    snapshot -> latest.put(snapshot.currencyPair(), snapshot)).subscribe();
+            try {
+                await().atMost(10, TimeUnit.SECONDS).until(() -> latest.size() == 3);
+                assertThat(latest.get("EUR_CZK").priceScale()).isEqualTo(3);
+                assertThat(latest.values()).allSatisfy(snapshot ->
+                        assertThat(snapshot.bestBid()).isLessThan(snapshot.bestAsk()));
+                assertThat(exchange.getFramesSent()).isZero();
+                assertThat(exchange.getOrderBookRequests()).isEqualTo(3);
+                assertThat(meters.get("coinmate.seeds").tag("outcome", "applied").counter().count()).isEqualTo(3);
+            } finally {
+                single.dispose();
+                shared.dispose();
+            }
+        }
+    }
+
+    @Test
+    void dropsASeedOnceAFrameOfItsPairArrivedAfterTheRequest() {
+        CoinmateApiClient apiClient = mock(CoinmateApiClient.class);
+        Sinks.One<OrderBookSnapshot> late = Sinks.one();
+        Sinks.One<OrderBookSnapshot> timely = Sinks.one();
+        when(apiClient.fetchOrderBooks(any())).thenReturn(late.asMono().flux()).thenReturn(timely.asMono().flux());
+        OrderBookSeeder seeder = new OrderBookSeeder(apiClient, properties, meters);
+        List<OrderBookSnapshot> delivered = new CopyOnWriteArrayList<>();
+
+        seeder.seed(List.of("BTC_EUR"), delivered::add).subscribe();
+        // The twin of a redundant connection leaves the pair to the seed in flight
+        seeder.seed(List.of("BTC_EUR"), delivered::add).subscribe();
+        OrderBookSnapshot frame = snapshot(5_000_100, Instant.now());
+        seeder.deliver(frame, delivered::add);
+        late.tryEmitValue(snapshot(5_000_000, Instant.now()));
+        assertThat(delivered).containsExactly(frame);
+
+        // A reconnect with no frame since gets its seed
+        seeder.seed(List.of("BTC_EUR"), delivered::add).subscribe();
+        OrderBookSnapshot seed = snapshot(5_000_200, Instant.now());
+        timely.tryEmitValue(seed);
+        seeder.deliver(frame, delivered::add);
+        assertThat(delivered).containsExactly(frame, seed, frame);
+        verify(apiClient, times(2)).fetchOrderBooks(any());
+        assertThat(meters.get("coinmate.seeds").tag("outcome", "applied").counter().count()).isEqualTo(1);
+        assertThat(meters.get("coinmate.seeds").tag("outcome", "superseded").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void passesOnAFrameArrivingWhileTheSeedIsPassedOnAfterIt() throws Exception {
+        CoinmateApiClient apiClient = mock(CoinmateApiClient.class);
+        Sinks.One<OrderBookSnapshot> response = Sinks.one();
+        when(apiClient.fetchOrderBooks(any())).thenReturn(response.asMono().flux());
+        OrderBookSeeder seeder = new OrderBookSeeder(apiClient, properties, meters);
+        List<OrderBookSnapshot> delivered = new CopyOnWriteArrayList<>();
+        CountDownLatch applying = new CountDownLatch(1);
+        CountDownLatch applied = new CountDownLatch(1);
+
+        seeder.seed(List.of("BTC_EUR"), snapshot -> {
+            applying.countDown();
+            try {
+                applied.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            delivered.add(snapshot);
+        }).subscribe();
+        OrderBookSnapshot seed = snapshot(5_000_000, Instant.now());
+        Thread responder = new Thread(() -> response.tryEmitValue(seed));
+        responder.start();
+        assertThat(applying.await(10, TimeUnit.SECONDS)).isTrue();
+        OrderBookSnapshot frame = snapshot(5_000_100, Instant.now());
+        Thread receiver = new Thread(() -> seeder.deliver(frame, delivered::add));
+        receiver.start();
+        // The frame waits for the seed rather than being overwritten by it
+        await().atMost(10, TimeUnit.SECONDS).until(() -> receiver.getState() == Thread.State.BLOCKED
+                || receiver.getState() == Thread.State.TERMINATED);
+        applied.countDown();
+        responder.join(10_000);
+        receiver.join(10_000);
+
+        assertThat(delivered).containsExactly(seed, frame);
+    }
+
+    @Test
+    void parsesOrderBookResponsesAndRejectsApiErrors() throws Exception {
+        OrderBookPayloadParser parser = new OrderBookPayloadParser(new ObjectMapper(),
+                new PairPrecisionRegistry(properties));
+        Instant now = Instant.now();
+
+        OrderBookSnapshot snapshot = parser.parseOrderBookResponse("BTC_EUR", "{\"error\":false,\"errorMessage\":null,"
+                + "\"data\":{\"asks\":[{\"price\":50001.5,\"amount\":0.2},{\"price\":50000.5,\"amount\":0.1}],"
+                + "\"bids\":[{\"price\":49999,\"amount\":1.5}],\"timestamp\":1700000000000}}", now);
+
+        assertThat(snapshot.bestAskDecimal()).isEqualByComparingTo("50000.5");
+        assertThat(snapshot.bestBidAmountDecimal()).isEqualByComparingTo("1.5");
+        assertThat(snapshot.receivedAt()).isEqualTo(now);
+        assertThat(parser.parseOrderBookResponse("BTC_EUR",
+                "{\"error\":false,\"data\":{\"asks\":[],\"bids\":[]}}", now)).isNull();
+        assertThatThrownBy(() -> parser.parseOrderBookResponse("NOPE_EUR",
+                "{\"error\":true,\"errorMessage\":\"Invalid currency pair\",\"data\":null}", now))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("Invalid currency pair");
+    }
+
+    private static OrderBookSnapshot snapshot(long bid, Instant receivedAt) {
+        return new OrderBookSnapshot("BTC_EUR", bid, 100_000_000, bid + 100, 100_000_000, 2, 8, receivedAt);
+    }
+}
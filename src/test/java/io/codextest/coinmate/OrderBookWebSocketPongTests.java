@@ -1,10 +1,8 @@
 package io.codextest.coinmate;
 
 import io.codextest.coinmate.service.OrderBookWebSocketClient;
+import io.codextest.coinmate.model.FixedPoint;
 import io.codextest.coinmate.model.OrderBookSnapshot;
-import io.netty.buffer.Unpooled;
-import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
-import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
@@ -15,8 +13,6 @@ import org.springframework.test.context.DynamicPropertyRegistry;
 import org.springframework.test.context.DynamicPropertySource;
 import reactor.core.Disposable;
 import reactor.core.publisher.Mono;
-import reactor.netty.DisposableServer;
-import reactor.netty.http.server.HttpServer;
 
 import java.time.Duration;
 import java.util.List;
@@ -30,42 +26,26 @@ import static org.assertj.core.api.Assertions.assertThat;
 @ActiveProfiles("test")
 class OrderBookWebSocketPongTests {
 
-    private static DisposableServer wsServer;
-    private static int port;
+    private static ExchangeSimulator exchange;
 
     @BeforeAll
     static void startServer() {
-        wsServer = HttpServer.create()
-                .port(0)
-                .route(routes -> routes.ws("/api/websocket/channel/order-book/{pair}", (in, out) -> {
-                    // Mixed stream: frequent TEXT frames and some PONG frames
-                    String json = "{\"event\":\"data\",\"payload\":{\"bids\":[{\"price\":10001}],\"asks\":[{\"price\":10011}]}}";
-
-                    var textFrames = reactor.core.publisher.Flux.interval(Duration.ofMillis(100))
-                            .map(i -> (Object) new TextWebSocketFrame(json));
-
-                    var pongFrames = reactor.core.publisher.Flux.interval(Duration.ofMillis(350))
-                            .map(i -> (Object) new PongWebSocketFrame(Unpooled.wrappedBuffer(new byte[]{1})));
-
-                    var mixed = reactor.core.publisher.Flux.merge(textFrames, pongFrames)
-                            .take(30); // limit to keep test bounded
-
-                    return out.sendObject(mixed).neverComplete();
-                }))
-                .bindNow();
-        port = wsServer.port();
+        // Mixed stream: frequent TEXT frames, whose levels have no amount, and some PONG frames
+        exchange = ExchangeSimulator.start(ExchangeSimulator.Scenario.of(1, 10)
+                .withPongs(Duration.ofMillis(350))
+                .withoutAmounts());
     }
 
     @AfterAll
     static void stopServer() {
-        if (wsServer != null) {
-            wsServer.disposeNow();
+        if (exchange != null) {
+            exchange.close();
         }
     }
 
     @DynamicPropertySource
     static void overrideProps(DynamicPropertyRegistry registry) {
-        registry.add("coinmate.websocket-base-url", () -> "ws://localhost:" + port);
+        registry.add("coinmate.websocket-base-url", exchange::websocketBaseUrl);
     }
 
     @Autowired
@@ -91,6 +71,9 @@ class OrderBookWebSocketPongTests {
             // Basic sanity: values parsed as provided by server
             assertThat(received.get(0).bestBid()).isNotNull();
             assertThat(received.get(0).bestAsk()).isNotNull();
+            assertThat(received.get(0).bestBid()).isLessThan(received.get(0).bestAsk());
+            assertThat(received.get(0).bestBidAmount()).isEqualTo(FixedPoint.NONE);
+            assertThat(received.get(0).bestAskAmount()).isEqualTo(FixedPoint.NONE);
         } finally {
             subscription.dispose();
         }
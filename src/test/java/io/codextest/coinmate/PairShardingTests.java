@@ -0,0 +1,179 @@
+package io.codextest.coinmate;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.ShardMember;
+import io.codextest.coinmate.repository.PairLeaseRepository;
+import io.codextest.coinmate.repository.ShardMemberRepository;
+import io.codextest.coinmate.service.PairShardCoordinator;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class PairShardingTests {
+
+    // EUR→CZK routes cross these; they have to stay on one instance
+    private static final List<String> ROUTED = List.of("BTC_EUR", "BTC_CZK", "EUR_CZK", "LTC_EUR", "LTC_CZK");
+
+    @Autowired
+    private PairLeaseRepository leases;
+
+    @Autowired
+    private ShardMemberRepository members;
+
+    private final List<PairShardCoordinator> coordinators = new ArrayList<>();
+
+    @AfterEach
+    void cleanUp() {
+        coordinators.forEach(PairShardCoordinator::destroy);
+        leases.deleteAll();
+        members.deleteAll();
+    }
+
+    @Test
+    void splitsThePairsAndHandsThemOverWhenAnInstanceLeaves() {
+        List<String> pairs = pairs();
+        AtomicReference<List<String>> first = new AtomicReference<>();
+        AtomicReference<List<String>> second = new AtomicReference<>();
+        PairShardCoordinator a = coordinator("a");
+        first.set(a.start(pairs, first::set));
+        assertThat(first.get()).containsExactlyInAnyOrderElementsOf(pairs);
+
+        PairShardCoordinator b = coordinator("b");
+        second.set(b.start(pairs, second::set));
+        await().atMost(10, TimeUnit.SECONDS).until(() -> !first.get().isEmpty() && !second.get().isEmpty()
+                && first.get().size() + second.get().size() == pairs.size());
+        Set<String> union = new HashSet<>(first.get());
+        union.addAll(second.get());
+        assertThat(union).containsExactlyInAnyOrderElementsOf(pairs);
+        assertThat(List.of(first.get(), second.get()))
+                .anySatisfy(assigned -> assertThat(assigned).containsAll(ROUTED));
+
+        a.destroy();
+        await().atMost(10, TimeUnit.SECONDS).until(() -> second.get().size() == pairs.size());
+    }
+
+    @Test
+    void takesOverTheLeasesOfAnInstanceThatDied() {
+        members.save(new ShardMember("dead", Instant.now()));
+        leases.create("routes:EUR_CZK");
+        assertThat(leases.acquire("routes:EUR_CZK", "dead", 1000)).isEqualTo(1);
+
+        AtomicReference<List<String>> assigned = new AtomicReference<>();
+        PairShardCoordinator survivor = coordinator("survivor");
+        assigned.set(survivor.start(pairs(), assigned::set));
+        // The lease of the dead instance is honoured until it expires
+        assertThat(assigned.get()).doesNotContainAnyElementsOf(ROUTED);
+
+        await().atMost(10, TimeUnit.SECONDS).until(() -> assigned.get().size() == pairs().size());
+        assertThat(members.findAliveWithin(1000)).containsExactly("survivor");
+    }
+
+    @Test
+    void stampsAndComparesHeartbeatsAndLeasesByTheDatabaseClock() {
+        // Written by an instance whose clock is an hour behind
+        members.save(new ShardMember("skewed", Instant.now().minus(Duration.ofHours(1))));
+        assertThat(members.findAliveWithin(1000)).isEmpty();
+
+        assertThat(members.heartbeat("skewed")).isEqualTo(1);
+        assertThat(members.deleteSilentFor(1000)).isZero();
+        assertThat(members.findAliveWithin(1000)).containsExactly("skewed");
+
+        leases.create("routes:EUR_CZK");
+        assertThat(leases.acquire("routes:EUR_CZK", "skewed", Duration.ofSeconds(15).toMillis())).isEqualTo(1);
+        assertThat(leases.findById("routes:EUR_CZK").orElseThrow().getExpiresAt())
+                .isBetween(Instant.now().plusSeconds(14), Instant.now().plusSeconds(16));
+    }
+
+    @Test
+    void stopsStreamingBeforeItsLeasesExpireWhileTheDatabaseHangs() throws InterruptedException {
+        AtomicBoolean hang = new AtomicBoolean();
+        CountDownLatch recovered = new CountDownLatch(1);
+        PairLeaseRepository hanging = mock(PairLeaseRepository.class, delegatesTo(leases));
+        doAnswer(invocation -> {
+            if (hang.get()) {
+                // Like a query stuck on a dead socket, far longer than the lease
+                recovered.await();
+            }
+            return leases.renew(invocation.getArgument(0), invocation.<Long>getArgument(1));
+        }).when(hanging).renew(anyString(), anyLong());
+        // When streaming stopped, and until when the lease was valid then
+        List<Instant[]> stops = new CopyOnWriteArrayList<>();
+        AtomicReference<List<String>> assigned = new AtomicReference<>();
+        PairShardCoordinator coordinator = coordinator("stuck", hanging, Duration.ofSeconds(2));
+        assigned.set(coordinator.start(pairs(), next -> {
+            if (next.isEmpty()) {
+                Instant stoppedAt = Instant.now();
+                leases.findById("routes:EUR_CZK")
+                        .ifPresent(lease -> stops.add(new Instant[] {stoppedAt, lease.getExpiresAt()}));
+            }
+            assigned.set(next);
+        }));
+        assertThat(assigned.get()).hasSize(pairs().size());
+
+        hang.set(true);
+        Instant hungAt = Instant.now();
+        try {
+            await().atMost(5, TimeUnit.SECONDS).until(() -> assigned.get().isEmpty());
+            // Stopped by the watchdog while the lease was still valid, before another instance could take it
+            assertThat(stops).singleElement().satisfies(stop -> {
+                assertThat(stop[1]).isAfter(stop[0]);
+                assertThat(stop[1]).isBefore(hungAt.plusSeconds(3));
+            });
+        } finally {
+            hang.set(false);
+            recovered.countDown();
+        }
+        await().atMost(10, TimeUnit.SECONDS).until(() -> assigned.get().size() == pairs().size());
+    }
+
+    private PairShardCoordinator coordinator(String instanceId) {
+        return coordinator(instanceId, leases, Duration.ofSeconds(1));
+    }
+
+    private PairShardCoordinator coordinator(String instanceId, PairLeaseRepository leaseRepository,
+                                             Duration leaseTtl) {
+        CoinmateProperties properties = new CoinmateProperties();
+        properties.getSharding().setEnabled(true);
+        properties.getSharding().setInstanceId(instanceId);
+        properties.getSharding().setLeaseTtl(leaseTtl);
+        properties.getSharding().setRenewInterval(Duration.ofMillis(100));
+        PairShardCoordinator coordinator =
+                new PairShardCoordinator(leaseRepository, members, properties, new SimpleMeterRegistry());
+        coordinators.add(coordinator);
+        return coordinator;
+    }
+
+    private static List<String> pairs() {
+        List<String> pairs = new ArrayList<>(ROUTED);
+        pairs.add("ETH_BTC");
+        for (int i = 1; i <= 20; i++) {
+            pairs.add(String.format("S%03d_USD", i));
+        }
+        return pairs;
+    }
+}
@@ -0,0 +1,209 @@
+package io.codextest.coinmate;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.ConversionDirection;
+import io.codextest.coinmate.model.ExchangeRate;
+import io.codextest.coinmate.model.RateRollup;
+import io.codextest.coinmate.repository.ExchangeRateRepository;
+import io.codextest.coinmate.repository.RateRollupRepository;
+import io.codextest.coinmate.repository.RateTickRepository;
+import io.codextest.coinmate.service.RateRollupService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.mockito.ArgumentCaptor;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class RateRollupServiceTests {
+
+    private static final Instant T0 = Instant.parse("2024-05-01T10:00:00Z");
+    private static final String ROUTE = "BTC_EUR>BTC_CZK";
+
+    @Autowired
+    private RateRollupRepository rollupRepository;
+
+    @Autowired
+    private ExchangeRateRepository exchangeRateRepository;
+
+    @Autowired
+    private RateTickRepository tickRepository;
+
+    private RateRollupService rollups;
+
+    @BeforeEach
+    void setUp() {
+        CoinmateProperties properties = new CoinmateProperties();
+        properties.getRollup().setBuckets(List.of(Duration.ofSeconds(1), Duration.ofMinutes(1)));
+        properties.getRollup().setRawRetention(Duration.ofDays(7));
+        rollups = new RateRollupService(rollupRepository, exchangeRateRepository, tickRepository,
+                properties, new SimpleMeterRegistry());
+    }
+
+    @AfterEach
+    void cleanUp() {
+        rollupRepository.deleteAll();
+        exchangeRateRepository.deleteAll();
+    }
+
+    @Test
+    void writesOnlyEndedBucketsWithOhlcSpreadAndCount() {
+        record("25.10", Double.NaN, 100);
+        record("25.30", 0.2, 400);
+        record("25.00", 0.4, 900);
+        record("25.20", 0.3, 1200);
+
+        rollups.flushClosed(T0.plusMillis(1500));
+
+        // Only the first second has ended; the minute and the second second are still open
+        List<RateRollup> written = rollupRepository.findAll();
+        assertThat(written).hasSize(1);
+        RateRollup second = written.get(0);
+        assertThat(second.getBucketSeconds()).isEqualTo(1);
+        assertThat(second.getBucketStart()).isEqualTo(T0);
+        assertThat(second.getOpen()).isEqualByComparingTo("25.10");
+        assertThat(second.getHigh()).isEqualByComparingTo("25.30");
+        assertThat(second.getLow()).isEqualByComparingTo("25.00");
+        assertThat(second.getClose()).isEqualByComparingTo("25.00");
+        assertThat(second.getMeanSpread().doubleValue()).isCloseTo(0.3, within(1e-12));
+        assertThat(second.getUpdateCount()).isEqualTo(3);
+
+        // A late rate of the written second lands in the next one instead of a second row for it
+        record("26.00", 0.3, 950);
+        rollups.flushClosed(T0.plusSeconds(60));
+
+        List<RateRollup> all = rollupRepository.findAll();
+        all.sort(Comparator.comparing(RateRollup::getBucketSeconds).thenComparing(RateRollup::getBucketStart));
+        assertThat(all).extracting(RateRollup::getBucketSeconds, RateRollup::getBucketStart, RateRollup::getUpdateCount)
+                .containsExactly(
+                        tuple(1, T0, 3),
+                        tuple(1, T0.plusSeconds(1), 2),
+                        tuple(60, T0, 5));
+        assertThat(all.get(2).getHigh()).isEqualByComparingTo("26.00");
+        assertThat(all.get(2).getClose()).isEqualByComparingTo("26.00");
+    }
+
+    @Test
+    void deletesRawRatesPastTheRetention() {
+        Instant now = Instant.now();
+        exchangeRateRepository.saveAll(List.of(
+                new ExchangeRate(ConversionDirection.EUR_TO_CZK, new BigDecimal("25"), now.minus(Duration.ofDays(8))),
+                new ExchangeRate(ConversionDirection.EUR_TO_CZK, new BigDecimal("26"), now.minus(Duration.ofDays(1)))));
+
+        rollups.purgeRawRates(now);
+
+        assertThat(exchangeRateRepository.findAll()).extracting(rate -> rate.getRate().intValue()).containsExactly(26);
+    }
+
+    @Test
+    void retriesFailedBatchesAndKeepsTheRawRatesTheyCover() {
+        RateRollupRepository failing = mock(RateRollupRepository.class);
+        when(failing.saveAll(anyList())).thenThrow(new DataAccessResourceFailureException("database down"))
+                .thenAnswer(invocation -> invocation.getArgument(0));
+        ExchangeRateRepository raw = mock(ExchangeRateRepository.class);
+        CoinmateProperties properties = new CoinmateProperties();
+        properties.getRollup().setBuckets(List.of(Duration.ofSeconds(1), Duration.ofMinutes(1)));
+        properties.getRollup().setRawRetention(Duration.ofDays(7));
+        RateRollupService service = new RateRollupService(failing, raw, tickRepository, properties,
+                new SimpleMeterRegistry());
+
+        service.record(ConversionDirection.EUR_TO_CZK, ROUTE, new BigDecimal("25.1"), Double.NaN, T0.plusMillis(100));
+        service.flushClosed(T0.plusSeconds(1));
+        Instant later = T0.plus(Duration.ofDays(30));
+        service.purgeRawRates(later);
+        verify(raw).deleteComputedBefore(T0);
+
+        service.flushAll();
+        service.purgeRawRates(later);
+        verify(raw).deleteComputedBefore(later.minus(Duration.ofDays(7)));
+        ArgumentCaptor<List<RateRollup>> batches = ArgumentCaptor.captor();
+        verify(failing, times(3)).saveAll(batches.capture());
+        // The retried bucket goes apart from the newer one
+        assertThat(batches.getAllValues().get(1)).extracting(RateRollup::getBucketSeconds, RateRollup::getId)
+                .containsExactly(tuple(1, null));
+        assertThat(batches.getAllValues().get(2)).extracting(RateRollup::getBucketSeconds)
+                .containsExactly(60);
+        assertThat(service.getFailed()).isEqualTo(1);
+        assertThat(service.getWritten()).isEqualTo(2);
+    }
+
+    @Test
+    void dropsABucketTheDatabaseKeepsRejectingWithoutFailingNewerOnes() {
+        RateRollupRepository rejecting = mock(RateRollupRepository.class);
+        when(rejecting.saveAll(anyList())).thenAnswer(invocation -> {
+            List<RateRollup> batch = invocation.getArgument(0);
+            if (batch.stream().anyMatch(rollup -> rollup.getBucketStart().equals(T0))) {
+                throw new DataIntegrityViolationException("Bad bucket");
+            }
+            return batch;
+        });
+        ExchangeRateRepository raw = mock(ExchangeRateRepository.class);
+        CoinmateProperties properties = new CoinmateProperties();
+        properties.getRollup().setBuckets(List.of(Duration.ofSeconds(1)));
+        properties.getRollup().setRawRetention(Duration.ofDays(7));
+        properties.getRollup().setWriteRetries(2);
+        RateRollupService service = new RateRollupService(rejecting, raw, tickRepository, properties,
+                new SimpleMeterRegistry());
+
+        for (int second = 0; second < 4; second++) {
+            service.record(ConversionDirection.EUR_TO_CZK, ROUTE, new BigDecimal("25.1"), Double.NaN,
+                    T0.plusSeconds(second));
+            service.flushClosed(T0.plusSeconds(second + 1));
+        }
+
+        assertThat(service.getWritten()).isEqualTo(3);
+        assertThat(service.getFailed()).isEqualTo(3);
+        assertThat(service.getDropped()).isEqualTo(1);
+        Instant later = T0.plus(Duration.ofDays(30));
+        service.purgeRawRates(later);
+        verify(raw).deleteComputedBefore(later.minus(Duration.ofDays(7)));
+    }
+
+    @Test
+    void dropsTheOldestBucketsBeyondTheMostPending() {
+        RateRollupRepository down = mock(RateRollupRepository.class);
+        when(down.saveAll(anyList())).thenThrow(new DataAccessResourceFailureException("database down"));
+        CoinmateProperties properties = new CoinmateProperties();
+        properties.getRollup().setBuckets(List.of(Duration.ofSeconds(1)));
+        properties.getRollup().setMaxPending(3);
+        RateRollupService service = new RateRollupService(down, mock(ExchangeRateRepository.class), tickRepository,
+                properties, new SimpleMeterRegistry());
+
+        for (int second = 0; second < 5; second++) {
+            service.record(ConversionDirection.EUR_TO_CZK, ROUTE, new BigDecimal("25.1"), Double.NaN,
+                    T0.plusSeconds(second));
+        }
+        service.flushClosed(T0.plusSeconds(5));
+
+        assertThat(service.getDropped()).isEqualTo(2);
+        ArgumentCaptor<List<RateRollup>> batches = ArgumentCaptor.captor();
+        verify(down).saveAll(batches.capture());
+        assertThat(batches.getValue()).extracting(RateRollup::getBucketStart)
+                .containsExactly(T0.plusSeconds(2), T0.plusSeconds(3), T0.plusSeconds(4));
+    }
+
+    private void record(String rate, double spread, long millis) {
+        rollups.record(ConversionDirection.EUR_TO_CZK, ROUTE, new BigDecimal(rate), spread, T0.plusMillis(millis));
+    }
+}
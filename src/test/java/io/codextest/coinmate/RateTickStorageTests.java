@@ -0,0 +1,133 @@
+package io.codextest.coinmate;
+
+import io.codextest.coinmate.model.ConversionDirection;
+import io.codextest.coinmate.model.DownsampledRate;
+import io.codextest.coinmate.model.ExchangeRate;
+import io.codextest.coinmate.model.RateHistoryPage;
+import io.codextest.coinmate.model.RatePoint;
+import io.codextest.coinmate.repository.RateTickRepository;
+import io.codextest.coinmate.service.ExchangeRateHistoryService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(properties = "coinmate.persistence.storage=compact")
+@ActiveProfiles("test")
+class RateTickStorageTests {
+
+    private static final Instant T0 = Instant.parse("2024-05-01T10:00:00Z");
+
+    @Autowired
+    private RateTickRepository tickRepository;
+
+    @Autowired
+    private ExchangeRateHistoryService historyService;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private int written;
+
+    @BeforeEach
+    void setUp() {
+        List<ExchangeRate> rates = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            // Two computations per second, so pages have to break ties on the position
+            Instant computedAt = T0.plusSeconds(i / 2);
+            rates.add(rate(ConversionDirection.EUR_TO_CZK, new BigDecimal("25").add(BigDecimal.valueOf(i, 3)),
+                    computedAt, i + 1));
+            if (i % 10 == 0) {
+                // Stamped a little later by the graph, and shares the row of the forward rate
+                rates.add(rate(ConversionDirection.CZK_TO_EUR, new BigDecimal("25.5"), computedAt.plusNanos(1_000),
+                        i + 1));
+            }
+        }
+        written = tickRepository.write(rates);
+    }
+
+    @AfterEach
+    void cleanUp() {
+        jdbcTemplate.update("delete from exchange_rate_ticks");
+    }
+
+    @Test
+    void writesOneRowPerComputationWithBothDirections() {
+        assertThat(written).isEqualTo(250);
+        assertThat(jdbcTemplate.queryForObject("select count(*) from exchange_rate_ticks", Long.class))
+                .isEqualTo(250);
+        assertThat(jdbcTemplate.queryForObject(
+                "select count(*) from exchange_rate_ticks where reverse_rate is not null", Long.class))
+                .isEqualTo(25);
+
+        // Rates of unknown or different computations, and a repeated direction, are never merged
+        List<ExchangeRate> separate = List.of(
+                rate(ConversionDirection.EUR_TO_CZK, BigDecimal.ONE, T0, 0),
+                rate(ConversionDirection.CZK_TO_EUR, BigDecimal.ONE, T0, 0),
+                rate(ConversionDirection.EUR_TO_CZK, BigDecimal.ONE, T0, 7),
+                rate(ConversionDirection.EUR_TO_CZK, BigDecimal.ONE, T0, 7),
+                rate(ConversionDirection.CZK_TO_EUR, BigDecimal.ONE, T0, 8));
+        assertThat(tickRepository.write(separate)).isEqualTo(5);
+    }
+
+    @Test
+    void pagesThroughTheRangeWithoutGapsOrRepeatsAndKeepsTheDigits() {
+        List<RatePoint> all = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            RateHistoryPage page = historyService.page(ConversionDirection.EUR_TO_CZK,
+                    T0, T0.plusSeconds(100), cursor, 40);
+            all.addAll(page.items());
+            cursor = page.next();
+            pages++;
+        } while (cursor != null);
+
+        assertThat(pages).isEqualTo(5);
+        assertThat(all).hasSize(200);
+        assertThat(all).extracting(point -> point.computedAt() + "_" + point.id()).doesNotHaveDuplicates();
+        assertThat(all).extracting(RatePoint::rate).isSortedAccordingTo(BigDecimal::compareTo);
+        assertThat(all.get(199).rate()).isEqualTo("25.199");
+        assertThat(all.get(0).bidAmount()).isEqualByComparingTo("0.5");
+
+        List<RatePoint> reverse = historyService.page(ConversionDirection.CZK_TO_EUR,
+                T0, T0.plusSeconds(200), null, 100).items();
+        assertThat(reverse).hasSize(25).extracting(RatePoint::rate).containsOnly(new BigDecimal("25.5"));
+    }
+
+    @Test
+    void downsamplesRawRatesIntoBuckets() {
+        List<DownsampledRate> points = historyService.downsample(ConversionDirection.EUR_TO_CZK,
+                T0, T0.plusSeconds(10), 20);
+
+        assertThat(points).hasSize(10);
+        assertThat(points.get(3).bucketStart()).isEqualTo(T0.plusSeconds(3));
+        assertThat(points.get(3).open()).isEqualByComparingTo("25.006");
+        assertThat(points.get(3).close()).isEqualByComparingTo("25.007");
+        assertThat(points).extracting(DownsampledRate::count).containsOnly(2L);
+    }
+
+    @Test
+    void deletesRowsBeforeTheCutoff() {
+        assertThat(tickRepository.deleteBefore(T0.plusSeconds(50))).isEqualTo(100);
+        assertThat(historyService.page(ConversionDirection.EUR_TO_CZK, T0, T0.plusSeconds(200), null, 1000).items())
+                .hasSize(150);
+    }
+
+    private static ExchangeRate rate(ConversionDirection direction, BigDecimal value, Instant computedAt,
+                                     long computation) {
+        ExchangeRate rate = new ExchangeRate(direction, value, new BigDecimal("0.5"), null, computedAt);
+        rate.setComputation(computation);
+        return rate;
+    }
+}
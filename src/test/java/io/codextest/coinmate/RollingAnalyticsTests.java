@@ -0,0 +1,89 @@
+package io.codextest.coinmate;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.model.PairAnalytics;
+import io.codextest.coinmate.service.RollingAnalytics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.assertj.core.api.Assertions.withinPercentage;
+
+class RollingAnalyticsTests {
+
+    private static final Instant T0 = Instant.parse("2024-05-01T10:00:00Z");
+
+    private final SimpleMeterRegistry meters = new SimpleMeterRegistry();
+
+    @Test
+    void keepsStatisticsOverTheLatestSnapshotsOnly() {
+        CoinmateProperties properties = new CoinmateProperties();
+        properties.getAnalytics().setWindow(4);
+        properties.getAnalytics().setEmaHalfLife(Duration.ofSeconds(1));
+        RollingAnalytics analytics = new RollingAnalytics(properties, meters);
+
+        double[] mids = {100, 102, 101, 103, 100, 104};
+        for (int i = 0; i < mids.length; i++) {
+            analytics.record(snapshot(mids[i], T0.plusSeconds(i)));
+        }
+
+        PairAnalytics stats = analytics.get("BTC_EUR").orElseThrow();
+        assertThat(stats.samples()).isEqualTo(4);
+        assertThat(stats.windowSeconds()).isEqualTo(3.0);
+        assertThat(stats.updatesPerSecond()).isEqualTo(1.0);
+        assertThat(stats.mid()).isEqualTo(104.0);
+        assertThat(stats.updatedAt()).isEqualTo(T0.plusSeconds(5));
+        // Evicted returns are no longer part of the volatility
+        double squared = Math.pow(Math.log(103 / 101.0), 2) + Math.pow(Math.log(100 / 103.0), 2)
+                + Math.pow(Math.log(104 / 100.0), 2);
+        assertThat(stats.volatilityPerHour()).isCloseTo(Math.sqrt(squared / 3 * 3600), within(1e-9));
+        // A half life per second halves the distance to every new mid
+        double ema = 100;
+        for (int i = 1; i < mids.length; i++) {
+            ema += (mids[i] - ema) / 2;
+        }
+        assertThat(stats.midEma()).isCloseTo(ema, within(1e-9));
+        // 0.02 wide around a mid of about 100
+        assertThat(stats.spreadBpsP50()).isCloseTo(2.0, withinPercentage(4));
+        assertThat(stats.spreadBpsP99()).isCloseTo(2.0, withinPercentage(4));
+
+        assertThat(meters.get("coinmate.analytics.mid.ema").tag("pair", "BTC_EUR").gauge().value())
+                .isEqualTo(stats.midEma());
+        assertThat(analytics.all()).extracting(PairAnalytics::currencyPair).containsExactly("BTC_EUR");
+        assertThat(analytics.get("BTC_CZK")).isEmpty();
+    }
+
+    @Test
+    void ranksSpreadsIntoPercentiles() {
+        RollingAnalytics analytics = new RollingAnalytics(new CoinmateProperties(), meters);
+        for (int i = 0; i < 100; i++) {
+            // 99 tight books and one wide one
+            double spread = i == 50 ? 1.0 : 0.01;
+            analytics.record(OrderBookSnapshot.of("BTC_EUR", BigDecimal.valueOf(100 - spread / 2),
+                    BigDecimal.ONE, BigDecimal.valueOf(100 + spread / 2), BigDecimal.ONE, 3, 8,
+                    T0.plusMillis(i * 100L)));
+        }
+
+        PairAnalytics stats = analytics.get("BTC_EUR").orElseThrow();
+        assertThat(stats.spreadBpsP50()).isCloseTo(1.0, withinPercentage(4));
+        assertThat(stats.spreadBpsP99()).isCloseTo(1.0, withinPercentage(4));
+        assertThat(meters.get("coinmate.analytics.spread").tag("quantile", "0.5").gauge().value())
+                .isEqualTo(stats.spreadBpsP50());
+
+        analytics.record(OrderBookSnapshot.of("BTC_EUR", new BigDecimal("99.5"), BigDecimal.ONE,
+                new BigDecimal("100.5"), BigDecimal.ONE, 3, 8, T0.plusSeconds(10)));
+        assertThat(analytics.get("BTC_EUR").orElseThrow().spreadBpsP99()).isCloseTo(100.0, withinPercentage(4));
+        assertThat(stats.updatesPerSecond()).isCloseTo(10.0, within(1e-9));
+    }
+
+    private static OrderBookSnapshot snapshot(double mid, Instant receivedAt) {
+        return OrderBookSnapshot.of("BTC_EUR", BigDecimal.valueOf(mid - 0.01), BigDecimal.ONE,
+                BigDecimal.valueOf(mid + 0.01), BigDecimal.ONE, 2, 8, receivedAt);
+    }
+}
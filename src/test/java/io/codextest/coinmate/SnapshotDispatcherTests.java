@@ -0,0 +1,106 @@
+package io.codextest.coinmate;
+
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.service.SnapshotDispatcher;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SnapshotDispatcherTests {
+
+    private SimpleMeterRegistry meters;
+    private SnapshotDispatcher dispatcher;
+
+    @BeforeEach
+    void setUp() {
+        meters = new SimpleMeterRegistry();
+        dispatcher = new SnapshotDispatcher(meters);
+        dispatcher.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        dispatcher.stop();
+    }
+
+    @Test
+    void slowConsumerSkipsToTheNewestSnapshotWithoutHoldingBackOthers() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        List<OrderBookSnapshot> slow = new CopyOnWriteArrayList<>();
+        List<OrderBookSnapshot> fast = new CopyOnWriteArrayList<>();
+        CountDownLatch fastDone = new CountDownLatch(2);
+        CountDownLatch slowDone = new CountDownLatch(3);
+        dispatcher.subscribe("slow", snapshot -> {
+            blocked.countDown();
+            await(release);
+            slow.add(snapshot);
+            slowDone.countDown();
+        });
+        dispatcher.subscribe("fast", snapshot -> {
+            fast.add(snapshot);
+            if (snapshot.bestBidDecimal().intValue() == 199 || snapshot.currencyPair().equals("BTC_CZK")) {
+                fastDone.countDown();
+            }
+        });
+
+        dispatcher.publish(snapshot("BTC_EUR", 0));
+        assertThat(blocked.await(5, TimeUnit.SECONDS)).isTrue();
+        // The slow consumer is stuck in its first snapshot; publishing must neither block nor pile up
+        for (int i = 1; i <= 99; i++) {
+            dispatcher.publish(snapshot("BTC_EUR", i));
+        }
+        dispatcher.publish(snapshot("BTC_CZK", 1));
+        assertThat(fastDone.await(5, TimeUnit.SECONDS)).isTrue();
+        release.countDown();
+        assertThat(slowDone.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // The fast consumer may skip a few snapshots too, but ends on the newest of each pair
+        assertThat(fast).extracting(OrderBookSnapshot::currencyPair).contains("BTC_EUR", "BTC_CZK");
+        assertThat(fast.get(fast.size() - 1).currencyPair()).isEqualTo("BTC_CZK");
+        assertThat(slow).extracting(snapshot -> snapshot.currencyPair() + "@" + snapshot.bestBidDecimal().intValue())
+                .containsExactly("BTC_EUR@100", "BTC_EUR@199", "BTC_CZK@101");
+        assertThat(meters.get("coinmate.dispatch.conflated").tag("consumer", "slow").counter().count())
+                .isEqualTo(98);
+    }
+
+    @Test
+    void keepsDeliveringAfterTheConsumerThrows() throws InterruptedException {
+        CountDownLatch delivered = new CountDownLatch(1);
+        dispatcher.subscribe("flaky", snapshot -> {
+            if (snapshot.currencyPair().equals("BTC_EUR")) {
+                throw new IllegalStateException("boom");
+            }
+            delivered.countDown();
+        });
+
+        dispatcher.publish(snapshot("BTC_EUR", 0));
+        dispatcher.publish(snapshot("BTC_CZK", 0));
+
+        assertThat(delivered.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(meters.get("coinmate.dispatch.failed").counter().count()).isEqualTo(1);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static OrderBookSnapshot snapshot(String pair, int sequence) {
+        return OrderBookSnapshot.of(pair, BigDecimal.valueOf(100 + sequence), BigDecimal.ONE,
+                BigDecimal.valueOf(200 + sequence), BigDecimal.ONE, 8, 8, Instant.now());
+    }
+}
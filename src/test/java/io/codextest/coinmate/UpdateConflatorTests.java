@@ -0,0 +1,100 @@
+package io.codextest.coinmate;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.ConversionRate;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.service.UpdateConflator;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UpdateConflatorTests {
+
+    private static final Instant T0 = Instant.parse("2024-05-01T10:00:00Z");
+
+    private final SimpleMeterRegistry meters = new SimpleMeterRegistry();
+
+    @Test
+    void suppressesResentBooksButKeepsEveryRealChange() {
+        UpdateConflator conflator = new UpdateConflator(new CoinmateProperties(), meters);
+
+        assertThat(conflator.admitSnapshot(snapshot("10001", "10011", "1", 0))).isTrue();
+        assertThat(conflator.admitSnapshot(snapshot("10001.0", "10011", "1", 100))).isFalse();
+        assertThat(conflator.admitSnapshot(snapshot("10001", "10011", "1", 200))).isFalse();
+        assertThat(conflator.admitSnapshot(snapshot("10001", "10011", "2", 300))).isTrue();
+        assertThat(conflator.admitSnapshot(snapshot("10001.5", "10011", "2", 400))).isTrue();
+
+        assertThat(conflator.snapshotCounts().get("BTC_EUR"))
+                .isEqualTo(new UpdateConflator.Counts(3, 2));
+        assertThat(meters.get("coinmate.conflation.snapshots").tags("pair", "BTC_EUR", "outcome", "emitted")
+                .functionCounter().count()).isEqualTo(3);
+        assertThat(meters.get("coinmate.conflation.snapshots").tags("pair", "BTC_EUR", "outcome", "suppressed")
+                .functionCounter().count()).isEqualTo(2);
+    }
+
+    @Test
+    void appliesPerDirectionIntervalAndRelativeChange() {
+        CoinmateProperties properties = new CoinmateProperties();
+        CoinmateProperties.Threshold threshold = new CoinmateProperties.Threshold();
+        threshold.setMinInterval(Duration.ofSeconds(1));
+        threshold.setMinRelativeChange(0.001);
+        properties.getConflation().getDirections().put("EUR_TO_CZK", threshold);
+        UpdateConflator conflator = new UpdateConflator(properties, meters);
+
+        assertThat(conflator.admitRate(rate("25.000", 0))).isTrue();
+        // 0.4 bp move within the interval is held back
+        assertThat(conflator.admitRate(rate("25.001", 200))).isFalse();
+        // 0.2 % move passes immediately
+        assertThat(conflator.admitRate(rate("25.050", 400))).isTrue();
+        assertThat(conflator.admitRate(rate("25.051", 900))).isFalse();
+        // once the interval has passed any change is emitted again
+        assertThat(conflator.admitRate(rate("25.052", 1500))).isTrue();
+        assertThat(conflator.admitRate(rate("25.052", 3000))).isFalse();
+
+        assertThat(conflator.rateCounts().get("EUR_TO_CZK"))
+                .isEqualTo(new UpdateConflator.Counts(3, 3));
+        assertThat(meters.get("coinmate.conflation.rates").tags("direction", "EUR_TO_CZK", "outcome", "suppressed")
+                .functionCounter().count()).isEqualTo(3);
+    }
+
+    @Test
+    void dropsSmallChangesForGoodWithOnlyARelativeThreshold() {
+        CoinmateProperties properties = new CoinmateProperties();
+        properties.getConflation().setMinRelativeChange(0.001);
+        UpdateConflator conflator = new UpdateConflator(properties, meters);
+
+        assertThat(conflator.admitRate(rate("25.000", 0))).isTrue();
+        assertThat(conflator.admitRate(rate("25.001", 200))).isFalse();
+        // No interval, so waiting does not release it
+        assertThat(conflator.admitRate(rate("25.002", 60_000))).isFalse();
+        assertThat(conflator.admitRate(rate("25.050", 60_100))).isTrue();
+
+        assertThat(conflator.rateCounts().get("EUR_TO_CZK"))
+                .isEqualTo(new UpdateConflator.Counts(2, 2));
+    }
+
+    @Test
+    void passesEverythingWhenDisabled() {
+        CoinmateProperties properties = new CoinmateProperties();
+        properties.getConflation().setEnabled(false);
+        UpdateConflator conflator = new UpdateConflator(properties, meters);
+
+        assertThat(conflator.admitSnapshot(snapshot("1", "2", "1", 0))).isTrue();
+        assertThat(conflator.admitSnapshot(snapshot("1", "2", "1", 0))).isTrue();
+    }
+
+    private static OrderBookSnapshot snapshot(String bid, String ask, String bidAmount, long millis) {
+        return OrderBookSnapshot.of("BTC_EUR", new BigDecimal(bid), new BigDecimal(bidAmount),
+                new BigDecimal(ask), BigDecimal.ONE, 8, 8, T0.plusMillis(millis));
+    }
+
+    private static ConversionRate rate(String value, long millis) {
+        return new ConversionRate("EUR", "CZK", new BigDecimal(value), null, null,
+                "BTC_EUR>BTC_CZK", T0.plusMillis(millis));
+    }
+}
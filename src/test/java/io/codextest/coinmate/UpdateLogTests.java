@@ -0,0 +1,134 @@
+package io.codextest.coinmate;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.service.AlertRules;
+import io.codextest.coinmate.service.ExchangeRateWriter;
+import io.codextest.coinmate.service.OrderBookConversionService;
+import io.codextest.coinmate.service.OrderBookDepthRegistry;
+import io.codextest.coinmate.service.RateRollupService;
+import io.codextest.coinmate.service.UpdateConflator;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class UpdateLogTests {
+
+    private final Logger updates = (Logger) LoggerFactory.getLogger("io.codextest.coinmate.updates");
+    private final ListAppender<ILoggingEvent> lines = new ListAppender<>();
+    private Level level;
+
+    @BeforeEach
+    void captureLines() {
+        level = updates.getLevel();
+        // The benchmarks' logback-test.xml quiets everything below WARN when it is on the class path
+        updates.setLevel(Level.INFO);
+        lines.start();
+        updates.addAppender(lines);
+    }
+
+    @AfterEach
+    void releaseLines() {
+        updates.detachAppender(lines);
+        updates.setLevel(level);
+    }
+
+    @Test
+    void samplesALinePerPairAndDirectionCountingTheUpdatesBetween() {
+        CoinmateProperties properties = new CoinmateProperties();
+        properties.getUpdateLog().setInterval(Duration.ofHours(1));
+        OrderBookConversionService service = service(properties);
+
+        for (int i = 0; i < 5; i++) {
+            service.handleSnapshot(snapshot("BTC_EUR", 5_000_000 + i, 3));
+            service.handleSnapshot(snapshot("BTC_CZK", 125_000_000 + i, 0));
+        }
+
+        assertThat(messages()).containsExactly(
+                "book pair=BTC_EUR bid=5000.000 ask=5000.010 updates=1",
+                "book pair=BTC_CZK bid=125000000 ask=125000010 updates=1",
+                "rate direction=EUR_TO_CZK route=BTC_EUR>BTC_CZK rate=24999.95000010000 stale=false updates=1",
+                "rate direction=CZK_TO_EUR route=BTC_CZK>BTC_EUR rate=25000.002 stale=false updates=1");
+
+        properties.getUpdateLog().setInterval(Duration.ZERO);
+        lines.list.clear();
+        service = service(properties);
+        service.handleSnapshot(snapshot("BTC_EUR", 5_000_000, 3));
+        service.handleSnapshot(snapshot("BTC_EUR", 5_000_001, 3));
+        assertThat(messages()).containsExactly(
+                "book pair=BTC_EUR bid=5000.000 ask=5000.010 updates=1",
+                "book pair=BTC_EUR bid=5000.001 ask=5000.011 updates=1");
+    }
+
+    @Test
+    void verboseModeKeepsTheReadableLinesAndFormatsThemSafelyAcrossThreads() throws Exception {
+        CoinmateProperties properties = new CoinmateProperties();
+        properties.getUpdateLog().setMode(CoinmateProperties.UpdateLogMode.VERBOSE);
+        OrderBookConversionService service = service(properties);
+        service.handleSnapshot(snapshot("BTC_EUR", 5_000_000, 3));
+        service.handleSnapshot(snapshot("BTC_CZK", 125_000_000, 0));
+
+        assertThat(messages()).containsExactly(
+                "order_book [BTC_EUR] bid=5,000.0000 ask=5,000.0100",
+                "order_book [BTC_CZK] bid=125,000,000.0000 ask=125,000,010.0000",
+                "EUR→CZK via BTC_EUR>BTC_CZK: 1 EUR ≈ 24,999.9500001 CZK",
+                "CZK→EUR via BTC_CZK>BTC_EUR: 1 EUR ≈ 25,000.0020 CZK");
+
+        // Books of different pairs arrive on different event loops; a shared formatter garbled these
+        lines.list.clear();
+        ExecutorService loops = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                String pair = "P" + thread + "_USD";
+                OrderBookConversionService own = service(properties);
+                done.add(loops.submit(() -> {
+                    for (int i = 0; i < 500; i++) {
+                        own.handleSnapshot(snapshot(pair, 1_234_567_000L + i, 3));
+                    }
+                }));
+            }
+            for (Future<?> future : done) {
+                future.get();
+            }
+        } finally {
+            loops.shutdown();
+        }
+        assertThat(messages()).hasSize(2000)
+                .allMatch(line -> line.matches("order_book \\[P\\d_USD] bid=1,234,5\\d\\d\\.\\d{4} ask=1,234,5\\d\\d\\.\\d{4}"));
+    }
+
+    private List<String> messages() {
+        return lines.list.stream().map(ILoggingEvent::getFormattedMessage).toList();
+    }
+
+    private static OrderBookConversionService service(CoinmateProperties properties) {
+        OrderBookConversionService service = new OrderBookConversionService(mock(ExchangeRateWriter.class),
+                new OrderBookDepthRegistry(properties), new UpdateConflator(properties, new SimpleMeterRegistry()),
+                mock(RateRollupService.class), mock(AlertRules.class), properties, new SimpleMeterRegistry());
+        service.registerPairs(List.of("BTC_EUR", "BTC_CZK"));
+        return service;
+    }
+
+    private static OrderBookSnapshot snapshot(String pair, long bid, int priceScale) {
+        return new OrderBookSnapshot(pair, bid, 100_000_000, bid + 10, 100_000_000, priceScale, 8,
+                Instant.now());
+    }
+}
@@ -0,0 +1,108 @@
+package io.codextest.coinmate;
+
+import io.codextest.coinmate.config.CoinmateProperties;
+import io.codextest.coinmate.model.OrderBookSnapshot;
+import io.codextest.coinmate.model.TradingPair;
+import io.codextest.coinmate.service.WarmStartCache;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+class WarmStartCacheTests {
+
+    @TempDir
+    private Path directory;
+
+    private CoinmateProperties properties;
+
+    @BeforeEach
+    void setUp() {
+        properties = new CoinmateProperties();
+        properties.getWarmStart().setFile(directory.resolve("state.bin"));
+    }
+
+    @Test
+    void restoresThePairsAndTheLatestSnapshotPerPair() {
+        WarmStartCache cache = new WarmStartCache(properties);
+        assertThat(cache.load().pairs()).isEmpty();
+        cache.savePairs(List.of(pair("BTC_EUR", 2, 8), pair("BTC_CZK", null, null)));
+        cache.saveSnapshot(snapshot("BTC_EUR", "50000", Instant.now()));
+        cache.flush();
+        cache.saveSnapshot(snapshot("BTC_EUR", "50001", Instant.now()));
+        cache.saveSnapshot(snapshot("BTC_CZK", "1250000", Instant.now().minus(Duration.ofHours(2))));
+        cache.flush();
+
+        WarmStartCache.Saved saved = new WarmStartCache(properties).load();
+
+        assertThat(saved.pairs()).extracting(TradingPair::getName, TradingPair::getPriceDecimals,
+                TradingPair::getLotDecimals).containsExactly(tuple("BTC_EUR", 2, 8), tuple("BTC_CZK", null, null));
+        // The CZK book is older than max-snapshot-age
+        assertThat(saved.snapshots()).singleElement().satisfies(snapshot -> {
+            assertThat(snapshot.currencyPair()).isEqualTo("BTC_EUR");
+            assertThat(snapshot.bestBidDecimal()).isEqualByComparingTo("50001");
+        });
+    }
+
+    @Test
+    void dropsATornTailAndAppendsAfterTheLastValidRecord() throws IOException {
+        WarmStartCache cache = new WarmStartCache(properties);
+        cache.load();
+        cache.saveSnapshot(snapshot("BTC_EUR", "50000", Instant.now()));
+        cache.flush();
+        Path file = properties.getWarmStart().getFile();
+        long valid = Files.size(file);
+        // A crash in the middle of the next append
+        Files.write(file, new byte[] {0, 0, 0, 60, 2, 0, 7}, StandardOpenOption.APPEND);
+
+        WarmStartCache restarted = new WarmStartCache(properties);
+        assertThat(restarted.load().snapshots()).hasSize(1);
+        restarted.saveSnapshot(snapshot("BTC_CZK", "1250000", Instant.now()));
+        restarted.flush();
+
+        assertThat(Files.size(file)).isGreaterThan(valid);
+        assertThat(new WarmStartCache(properties).load().snapshots())
+                .extracting(OrderBookSnapshot::currencyPair).containsExactly("BTC_EUR", "BTC_CZK");
+    }
+
+    @Test
+    void compactsTheLogOnceItOutgrowsTheLiveRecords() throws IOException {
+        WarmStartCache cache = new WarmStartCache(properties);
+        cache.load();
+        Instant now = Instant.now().truncatedTo(ChronoUnit.MICROS);
+        for (int i = 0; i < 2000; i++) {
+            cache.saveSnapshot(snapshot("BTC_EUR", String.valueOf(50_000 + i), now));
+            cache.flush();
+        }
+
+        Path file = properties.getWarmStart().getFile();
+        assertThat(Files.size(file)).isLessThan(64 * 1024);
+        assertThat(new WarmStartCache(properties).load().snapshots()).singleElement()
+                .isEqualTo(snapshot("BTC_EUR", "51999", now));
+    }
+
+    private static TradingPair pair(String name, Integer priceDecimals, Integer lotDecimals) {
+        TradingPair pair = new TradingPair();
+        pair.setName(name);
+        pair.setPriceDecimals(priceDecimals);
+        pair.setLotDecimals(lotDecimals);
+        return pair;
+    }
+
+    private static OrderBookSnapshot snapshot(String pair, String bid, Instant receivedAt) {
+        return OrderBookSnapshot.of(pair, new BigDecimal(bid), BigDecimal.ONE, new BigDecimal(bid).add(BigDecimal.TEN),
+                null, 8, 8, receivedAt);
+    }
+}